@@ -0,0 +1,119 @@
+/**
+ * Converts pressure to altitude with the standard atmosphere formula,
+ * altitude = 44307.7 * (1 - (pressure / QNH) ^ 0.190284), using a table instead of
+ * Math.pow.
+ *
+ * The table holds the altitude every 0.5 hPa from 300 to 1250 hPa (the sensor's
+ * range) and is interpolated linearly. The formula's curvature is greatest at the low
+ * pressure end, which bounds the interpolation error to 2 mm anywhere in the range;
+ * outside it the formula is used directly. The table is immutable and built for one
+ * QNH: when Config.qnh changes, refresh builds a new one and swaps it in, so a
+ * conversion always uses a single consistent table.
+ */
+public class AltitudeConverter {
+
+	public static final double MIN_PRESSURE = 300.0; // hPa
+	public static final double MAX_PRESSURE = 1250.0; // hPa
+	public static final double STEP = 0.5; // hPa between table entries
+	public static final double STANDARD_QNH = 1013.25; // hPa
+
+	private static final double SCALE = 44307.7; // metres
+	private static final double EXPONENT = 0.190284;
+	private static final double ENTRIES_PER_HPA = 1 / STEP;
+
+	private volatile Table table;
+
+	/**
+	 * Table of altitudes for one QNH
+	 */
+	private static class Table {
+
+		private final double qnh; // hPa
+		private final double[] altitudes; // altitude at each entry
+		private final double[] slopes; // change in altitude per step to the next entry
+
+		/**
+		 * Constructor for a table
+		 *
+		 * @param qnh Sea level pressure in hPa
+		 */
+		private Table(double qnh) {
+			this.qnh = qnh;
+			int size = (int) Math.round((MAX_PRESSURE - MIN_PRESSURE) / STEP) + 1;
+			altitudes = new double[size];
+			slopes = new double[size];
+			for (int i = 0; i < size; i++)
+				altitudes[i] = formula(MIN_PRESSURE + i * STEP, qnh);
+			for (int i = 0; i < size - 1; i++)
+				slopes[i] = altitudes[i + 1] - altitudes[i];
+		}
+	}
+
+	/**
+	 * Constructor for an altitude converter using Config.qnh
+	 */
+	public AltitudeConverter() {
+		table = new Table(Config.qnh);
+	}
+
+	/**
+	 * Rebuild the table if Config.qnh has changed since it was built
+	 *
+	 * @return True if the table was rebuilt
+	 */
+	public boolean refresh() {
+		double qnh = Config.qnh;
+		if (qnh == table.qnh || !(qnh > 0))
+			return false;
+		table = new Table(qnh);
+		if (Config.verbose)
+			System.out.printf("Altitude: QNH %.2fhPa\n", qnh);
+		return true;
+	}
+
+	/**
+	 * Returns the QNH the current table was built for
+	 *
+	 * @return Sea level pressure in hPa
+	 */
+	public double getQNH() {
+		return table.qnh;
+	}
+
+	/**
+	 * Convert a pressure to altitude
+	 *
+	 * @param pressure Pressure in hPa
+	 * @return Altitude in metres above the QNH level
+	 */
+	public double toAltitude(double pressure) {
+		Table t = table;
+		double position = (pressure - MIN_PRESSURE) * ENTRIES_PER_HPA;
+		int index = (int) position;
+		if (position < 0 || index >= t.altitudes.length - 1)
+			return formula(pressure, t.qnh);
+		return t.altitudes[index] + (position - index) * t.slopes[index];
+	}
+
+	/**
+	 * Convert a pressure to altitude with the formula
+	 *
+	 * @param pressure Pressure in hPa
+	 * @param qnh Sea level pressure in hPa
+	 * @return Altitude in metres
+	 */
+	public static double formula(double pressure, double qnh) {
+		return SCALE * (1 - Math.pow(pressure / qnh, EXPONENT));
+	}
+
+	/**
+	 * Find the QNH that makes a pressure correspond to a known altitude (e.g. from GPS)
+	 *
+	 * @param pressure Pressure in hPa
+	 * @param altitude Altitude in metres
+	 * @return Sea level pressure in hPa
+	 */
+	public static double qnhFor(double pressure, double altitude) {
+		return pressure / Math.pow(1 - altitude / SCALE, 1 / EXPONENT);
+	}
+}
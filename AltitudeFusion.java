@@ -0,0 +1,133 @@
+/**
+ * Combines barometric and GPS altitude into one altitude.
+ *
+ * The barometer gives altitude with little noise or delay, but from a QNH that drifts
+ * with the weather; GPS altitude is noisy and lags but does not drift. The fused
+ * altitude is the barometer's (the vario filter's estimate, updated with each sample)
+ * plus an offset that each GPS fix corrects a little. The offset is estimated with a
+ * one state Kalman filter: the first fixes set it quickly, after which it follows
+ * GPS with a time constant of a minute or two at the default settings
+ * (Config.altitudeDrift and Config.gpsAltitudeNoise), so GPS noise is averaged out and
+ * only slow drift is corrected. Since the offset is the barometer's error, it is
+ * effectively an estimate of the current QNH. Fixes arrive on the GPS thread and the
+ * altitude is read by others.
+ */
+public class AltitudeFusion {
+
+	private BMP388 sensor;
+	private double offset; // GPS altitude minus barometric altitude, metres
+	private double variance; // variance of the offset, infinite before the first fix
+	private long lastFixTime; // milliseconds of the last fix used
+	private long fixes; // number of fixes used
+	private double qnh; // QNH the barometric altitudes used so far were measured from
+
+	/**
+	 * Constructor for an altitude fusion object
+	 *
+	 * @param sensor Barometer, whose vario filter supplies the barometric altitude
+	 */
+	public AltitudeFusion(BMP388 sensor) {
+		this.sensor = sensor;
+		offset = 0.0;
+		variance = Double.POSITIVE_INFINITY;
+		fixes = 0;
+		qnh = sensor.getAltitudeConverter().getQNH();
+	}
+
+	/**
+	 * Correct the offset with a GPS fix (ignored without a 3D fix or barometer sample)
+	 *
+	 * @param fix The fix
+	 */
+	public synchronized void addGPSFix(GPSData fix) {
+		double barometric = sensor.getVarioFilter().getAltitude();
+		if (fix == null || !fix.isValid() || !fix.isComplete() || Double.isNaN(barometric))
+			return;
+		followQNH();
+
+		double dop = fix.getHDOP() > 1 ? fix.getHDOP() : 1; // NaN if unknown
+		double noise = Config.gpsAltitudeNoise * dop;
+		long now = Clock.millis();
+		if (fixes > 0) {
+			double dt = Math.max(0, now - lastFixTime) / 1000.0;
+			variance += Config.altitudeDrift * Config.altitudeDrift * dt;
+		}
+
+		double measured = fix.getAltitude() - barometric;
+		if (fixes == 0) {
+			offset = measured;
+			variance = noise * noise;
+		} else {
+			double gain = variance / (variance + noise * noise);
+			offset += gain * (measured - offset);
+			variance *= 1 - gain;
+		}
+		lastFixTime = now;
+		fixes++;
+	}
+
+	/**
+	 * Keep the fused altitude continuous when the barometer's QNH is changed, since
+	 * barometric altitudes then move by the same amount
+	 */
+	private void followQNH() {
+		double current = sensor.getAltitudeConverter().getQNH();
+		PTAData data = sensor.getLastData();
+		if (current != qnh && data != null) {
+			offset -= AltitudeConverter.formula(data.getPressure(), current)
+					- AltitudeConverter.formula(data.getPressure(), qnh);
+		}
+		qnh = current;
+	}
+
+	/**
+	 * Returns the fused altitude
+	 *
+	 * @return Altitude in metres (barometric until the first GPS fix), or NaN before the
+	 *         first barometer sample
+	 */
+	public synchronized double getAltitude() {
+		followQNH();
+		return sensor.getVarioFilter().getAltitude() + offset;
+	}
+
+	/**
+	 * Returns whether GPS has calibrated the barometric altitude
+	 *
+	 * @return True after the first fix has been used
+	 */
+	public synchronized boolean isCalibrated() {
+		return fixes > 0;
+	}
+
+	/**
+	 * Returns the estimated error of the barometric altitude
+	 *
+	 * @return GPS altitude minus barometric altitude, in metres
+	 */
+	public synchronized double getOffset() {
+		followQNH();
+		return offset;
+	}
+
+	/**
+	 * Returns the standard deviation of the offset
+	 *
+	 * @return Metres, or infinity before the first fix
+	 */
+	public synchronized double getUncertainty() {
+		return Math.sqrt(variance);
+	}
+
+	/**
+	 * Returns the QNH that would make the barometric altitude match the fused altitude
+	 *
+	 * @return Sea level pressure in hPa, or NaN before the first barometer sample
+	 */
+	public synchronized double getQNH() {
+		PTAData data = sensor.getLastData();
+		if (data == null)
+			return Double.NaN;
+		return AltitudeConverter.qnhFor(data.getPressure(), data.getAltitude() + getOffset());
+	}
+}
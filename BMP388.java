@@ -1,15 +1,34 @@
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 import com.pi4j.io.i2c.I2CBus;
 import com.pi4j.io.i2c.I2CDevice;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class BMP388 {
 
+  public static final int ADDRESS = 0x77;
+
   private static byte CHIP_ID = 0x50;
   private static byte REGISTER_CHIPID = 0x00;
+  private static byte REGISTER_ERROR = 0x02;
   private static byte REGISTER_STATUS = 0x03;
   private static byte REGISTER_PRESSUREDATA = 0x04;
   private static byte REGISTER_TEMPDATA = 0x07;
+  private static byte REGISTER_SENSORTIME = 0x0C;
+  private static byte REGISTER_FIFO_DATA = 0x14;
+  private static byte REGISTER_FIFO_WATERMARK = 0x15;
+  private static byte REGISTER_FIFO_CONFIG_1 = 0x17;
+  private static byte REGISTER_FIFO_CONFIG_2 = 0x18;
+  private static byte REGISTER_INT_CTRL = 0x19;
   private static byte REGISTER_CONTROL = 0x1B;
   private static byte REGISTER_OSR = 0x1C;
   private static byte REGISTER_ODR = 0x1D;
@@ -17,26 +36,116 @@ public class BMP388 {
   private static byte REGISTER_CAL_DATA = 0x31;
   private static byte REGISTER_CMD = 0x7E;
 
-  private static int[] OSR_SETTINGS = { 1, 2, 4, 8, 16, 32 }; // pressure and temperature oversampling settings
-  private static int[] IIR_SETTINGS = { 0, 2, 4, 8, 16, 32, 64, 128 }; // IIR filter coefficients
-
-  public static int samples = 20;
-
-  private I2CDevice device;
+  private static byte MODE_FORCED = 0x13; // pressure and temperature enabled, forced mode
+  private static byte MODE_NORMAL = 0x33; // pressure and temperature enabled, normal mode
+  private static int STATUS_DATA_READY = 0x60; // pressure and temperature data ready bits
+  private static int ERROR_CONFIG = 0x04; // oversampling too long for the output data rate
+  private static byte CMD_FIFO_FLUSH = (byte) 0xB0;
+  private static byte FIFO_ENABLE = 0x1D; // FIFO on, with sensor time, pressure and temperature frames
+  private static byte FIFO_FILTERED = 0x08; // store IIR filtered data, no subsampling
+  private static byte INT_DATA_READY = 0x46; // latched active high interrupt on data ready
+  private static byte INT_FIFO_WATERMARK = 0x0E; // latched active high interrupt on FIFO watermark
+
+  // FIFO frame headers
+  private static int FRAME_PRESSURE_TEMPERATURE = 0x94; // temperature then pressure, 3 bytes each
+  private static int FRAME_TEMPERATURE = 0x90;
+  private static int FRAME_PRESSURE = 0x84;
+  private static int FRAME_SENSORTIME = 0xA0; // sensor time of the last frame, after the FIFO is emptied
+  private static int FRAME_CONFIG_CHANGE = 0x48; // followed by 1 byte
+  private static int FRAME_CONFIG_ERROR = 0x44; // followed by 1 byte
+  private static int FRAME_EMPTY = 0x80;
+  private static int FIFO_SIZE = 512;
+  private static double SENSORTIME_TICK = 0.0390625; // milliseconds per sensor time count
+
+  // register and FIFO layouts
+  private static final Struct.Codec CALIBRATION_FORMAT = Struct.compile("<HHbhhbbHHbbhbb"); // T1 T2 T3 P1 ... P11
+  private static final Struct.Codec HEADER_FORMAT = Struct.compile("<K3xH"); // sensor time to FIFO length
+  private static final Struct.Codec UINT24 = Struct.compile("<K"); // pressure, temperature or sensor time
+
+  static final int[] OSR_SETTINGS = { 1, 2, 4, 8, 16, 32 }; // pressure and temperature oversampling settings
+  static final int[] IIR_SETTINGS = { 0, 2, 4, 8, 16, 32, 64, 128 }; // IIR filter coefficients + 1, 0 for off
+
+  public static int samples = 50; // samples per second, also the number averaged for the vario
+
+  private I2CRegisters registers;
   private BMP388Worker workerThread;
-  private ArrayList<PTAData> dataList;
-  private double[] tempCalib;
-  private double[] pressureCalib;
-  private double seaLevelPressure;
+  private volatile TaskScheduler.Task pollTask; // reads the sensor at a fixed rate when not interrupt driven, or null
+  private SampleBuffer altitudes; // the last two seconds of altitudes
+  private VarioFilter vario; // altitude, climb and acceleration estimated from each sample
+  private volatile PTAData lastData;
+  private final Topic<PTAData> readings = new Topic<>("pressure"); // each sample as it is stored
+  private BMP388Compensation compensation;
+  private boolean integerCompensation; // use the fixed point reference formulas
+  private byte[] burst; // worker's buffer for register reads
+  private double[] sample; // worker's pressure and temperature
+  private AltitudeConverter altitudeConverter;
   private double lastAltitude;
   private long lastDataTime;
   private int pressureOversampling;
   private int temperatureOversampling;
   private int filterCoefficient;
+  private boolean normalMode; // measuring continuously, otherwise one forced measurement per read
+  private boolean fifoMode; // measuring continuously into the FIFO, read in batches
+  private int fifoBatch; // frames read per FIFO batch
+  private double fifoPeriod; // milliseconds between FIFO frames
+  private byte[] fifoBuffer; // FIFO contents from the last batch read
+  private double[] fifoSamples; // pressure (Pa) and temperature (deg C) of each frame in the last batch
+  private long[] fifoTimes; // reconstructed time (Clock ms) of each frame in the last batch
+  private long fifoFrames; // frames read from the FIFO
+  private long fifoReads; // batches read from the FIFO
+  private GpioController gpio;
+  private GpioPinDigitalInput intPin; // GPIO input wired to the sensor's INT pin
+  private boolean interruptDriven; // the worker waits for the INT pin instead of sleeping
+  private Semaphore interrupts; // released for each data ready (or watermark) interrupt
+  private volatile long interruptTime; // Clock.nanos of the last interrupt
+  private TimingStats sampleTiming; // intervals between sample timestamps
+  private BMP388Tuner tuner; // chooses oversampling and filtering, null if fixed
+  private PrintWriter trace;
+  private long traceStartTime;
 
   public BMP388(I2CBus i2cBus) throws IOException {
+    this(i2cBus.getDevice(ADDRESS), new I2CRegisters.Bus("I2C"), null);
+  }
+
+  /**
+   * Constructor for a sensor that can signal data ready on a GPIO pin
+   * (Config.sensorIntPin)
+   *
+   * @param i2cBus I2C bus
+   * @param gpio GPIO controller
+   */
+  public BMP388(I2CBus i2cBus, GpioController gpio) throws IOException {
+    this(i2cBus.getDevice(ADDRESS), new I2CRegisters.Bus("I2C"), gpio);
+  }
+
+  /**
+   * Constructor for a sensor on an I2C device (real or SimBMP388)
+   *
+   * @param device I2C device at the sensor's address
+   */
+  public BMP388(I2CDevice device) {
+    this(device, new I2CRegisters.Bus("I2C"), null);
+  }
+
+  /**
+   * Constructor for a sensor on an I2C device with its INT pin on Config.sensorIntPin.
+   * Without a GPIO controller, interrupts are expected through dataReady (as from
+   * SimBMP388).
+   *
+   * @param device I2C device at the sensor's address
+   * @param bus Bus the device is on, shared with the other sensors on it
+   * @param gpio GPIO controller, or null
+   */
+  public BMP388(I2CDevice device, I2CRegisters.Bus bus, GpioController gpio) {
     try {
-      device = i2cBus.getDevice(0x77);
+      registers = new I2CRegisters(device, bus, "BMP388", true);
+      registers.cache(REGISTER_FIFO_WATERMARK, 6); // to IF_CONF, before PWR_CTRL, which forced mode changes
+      registers.cache(REGISTER_OSR, 4); // to CONFIG
+      registers.cache(REGISTER_CAL_DATA, CALIBRATION_FORMAT.size());
+      this.gpio = gpio;
+      burst = new byte[16];
+      sample = new double[2];
+      sampleTiming = new TimingStats("BMP388 samples");
 
       byte chipId = readByte(REGISTER_CHIPID);
       if (chipId != CHIP_ID && Config.verbose) {
@@ -49,12 +158,23 @@ public class BMP388 {
 
       lastAltitude = 0;
       lastDataTime = 0;
-      seaLevelPressure = 1013.25;
-      dataList = new ArrayList<PTAData>();
+      altitudeConverter = new AltitudeConverter();
+      altitudes = new SampleBuffer(samples);
+      vario = new VarioFilter();
 
-      setPressureOversampling(8);
       setTemperatureOversampling(1);
-      setFilterCoefficient(2);
+      if (Config.sensorNoiseTarget > 0) {
+        // the first choice needs the pressure here rather than at sea level, so take one
+        // forced measurement (at the reset oversampling) before the worker starts
+        double[] pt = new double[2];
+        read(new byte[16], pt);
+        double pressure = pt[0] > 0 ? pt[0] / 100 : Config.qnh;
+        tuner = new BMP388Tuner(samples);
+        applySetting(tuner.choose(pressure, Clock.millis()));
+      } else {
+        setPressureOversampling(8);
+        setFilterCoefficient(2);
+      }
 
       startWorker();
 
@@ -65,75 +185,179 @@ public class BMP388 {
     }
   }
 
+  /**
+   * Constructor for a sensor without a device, fed with recorded samples through
+   * addSample (used for replay)
+   */
+  public BMP388() {
+    lastAltitude = 0;
+    lastDataTime = 0;
+    altitudeConverter = new AltitudeConverter();
+    altitudes = new SampleBuffer(samples);
+    vario = new VarioFilter();
+  }
+
   /**
    * Shut down the controller
    */
   public void shutdown() {
     if (workerThread != null)
       workerThread.shutdown();
+    if (pollTask != null)
+      pollTask.cancel();
+    if (interrupts != null)
+      interrupts.release();
+    if (trace != null)
+      trace.close();
+    if (Config.verbose && sampleTiming != null)
+      sampleTiming.print();
+    if (Config.verbose && registers != null)
+      registers.print();
   }
 
   /**
    * Start worker thread
    */
   private void startWorker() {
+    if (Config.sensorMode.equals("FIFO"))
+      startFifoMode();
+    else if (Config.sensorMode.equals("NORMAL"))
+      startNormalMode();
+    if (Config.sensorIntPin >= 0 && normalMode)
+      startInterrupts();
+
+    // record the samples for replay if requested
+    if (!Config.pressureTrace.isEmpty()) {
+      try {
+        trace = new PrintWriter(new FileWriter(Config.pressureTrace, true));
+        trace.println("time,pressure,temperature");
+        traceStartTime = Clock.millis();
+      } catch (IOException e) {
+        Errors.handleException(e, "Failed to open pressure trace");
+      }
+    }
+
+    // waiting for the interrupt or a forced measurement blocks, so needs its own thread;
+    // otherwise the sensor measures by itself and is read at a fixed rate on the
+    // sensors' scheduler
     workerThread = new BMP388Worker();
-    (new Thread(workerThread)).start();
-    if (Config.verbose)
+    int period = 1000 / samples * (fifoMode ? fifoBatch : 1);
+    if (interruptDriven || !normalMode)
+      Workers.execute("bmp388", workerThread);
+    else {
+      pollTask = Workers.sensors().schedule("bmp388", period, period, TaskScheduler.HIGH, new Runnable() {
+        @Override
+        public void run() {
+          // a measurement found now had been made by the time the poll was due, so a late
+          // poll counts towards the sample's latency
+          long late = Math.max(0, Clock.millis() - pollTask.getDeadline());
+          workerThread.poll(Clock.nanos() - late * 1000000L);
+        }
+      });
+    }
+    if (Config.verbose && pollTask != null)
+      System.out.printf("BMP388: reading every %dms\n", period);
+    else if (Config.verbose)
       System.out.printf("BMP388: worker ready\n");
   }
 
+  /**
+   * Returns the climb rate, from the Kalman filter or (if Config.varioFilter is
+   * AVERAGE) the change in average altitude over the last second
+   *
+   * @return Climb rate in m/s; in AVERAGE mode, 0 until two seconds of samples have
+   *         been taken
+   */
   public double getAltitudeChange() {
-    if (dataList.size() < samples * 2)
-      return 0;
-    int size = Math.min(dataList.size(), samples);
-    return (getAverageAltitude(size) - getPrevAverageAltitude(size));
+    if (Config.varioFilter.equals("AVERAGE"))
+      return altitudes.getChange();
+    return vario.getVerticalSpeed();
+  }
+
+  public VarioFilter getVarioFilter() {
+    return vario;
   }
 
   public PTAData getPTA() {
-    double[] pt = read();
+    double[] pt = new double[2];
+    read(new byte[16], pt);
     double pressure = pt[0] / 100;
     // double[] result = new double[] { pressure, pt[1], calcAltitude(pressure) };
-    PTAData result = new PTAData(pressure, pt[1], calcAltitude(pressure));
+    PTAData result = new PTAData(pressure, pt[1], calcAltitude(pressure), Clock.millis());
     return result;
   }
 
+  /**
+   * Store a sample in the history
+   *
+   * @param pressure Pressure in Pa
+   * @param temperature Temperature in deg C
+   * @return The stored data
+   */
+  public PTAData addSample(double pressure, double temperature) {
+    return addSample(pressure, temperature, Clock.millis());
+  }
+
+  /**
+   * Store a sample measured at a known time in the history
+   *
+   * @param pressure Pressure in Pa
+   * @param temperature Temperature in deg C
+   * @param time Time of the measurement in milliseconds
+   * @return The stored data
+   */
+  public PTAData addSample(double pressure, double temperature, long time) {
+    PTAData previous = lastData;
+    if (altitudeConverter.refresh() && previous != null) {
+      // move the history to the new QNH so the vario doesn't see a jump
+      double delta = altitudeConverter.toAltitude(previous.getPressure()) - previous.getAltitude();
+      altitudes.shift(delta);
+      vario.shift(delta);
+    }
+    PTAData data = new PTAData(pressure / 100, temperature, calcAltitude(pressure / 100), time);
+    altitudes.add(data.getAltitude());
+    vario.update(data.getAltitude(), time);
+    lastData = data;
+    lastDataTime = time;
+    readings.publish(data);
+    return data;
+  }
+
   public PTAData getLastData() {
-    if (dataList.size() < 1)
-      return null;
-    return dataList.get(dataList.size() - 1);
+    return lastData;
+  }
+
+  /**
+   * Returns the stream of samples, published as each is stored
+   *
+   * @return Topic of samples
+   */
+  public Topic<PTAData> getReadings() {
+    return readings;
   }
 
-  public ArrayList<PTAData> getAllData() {
-    return dataList;
+  public SampleBuffer getAltitudes() {
+    return altitudes;
   }
 
   public double getPressure() {
-    return read()[0] / 100;
+    return getPTA().getPressure();
   }
 
   public double getTemperature() {
-    return read()[1];
+    return getPTA().getTemperature();
   }
 
   public double getAltitude() {
     return calcAltitude(getPressure());
   }
 
-  public double getAverageAltitude(int size) {
-    double sum = 0.0;
-    int min = dataList.size() - size;
-    for (int i = dataList.size() - 1; i >= min; i--)
-      if (dataList.get(i) != null)
-        sum += dataList.get(i).getAltitude();
-    return sum / size;
+  public double getAverageAltitude() {
+    return altitudes.getMean();
   }
 
-  public double getPrevAverageAltitude(int size) {
-    double sum = 0.0;
-    for (int i = 0; i < size; i++)
-      sum += dataList.get(i).getAltitude();
-    return sum / size;
+  public double getPrevAverageAltitude() {
+    return altitudes.getPreviousMean();
   }
 
   public int getPressureOversampling() {
@@ -148,10 +372,8 @@ public class BMP388 {
         break;
       }
     }
-    if (index > 0) {
-      byte newSetting = (byte) ((readByte(REGISTER_OSR) & 0xf8) | index);
-      writeByte(REGISTER_OSR, newSetting);
-    }
+    if (index >= 0)
+      registers.update(REGISTER_OSR, 0x07, index);
   }
 
   public int getTemperatureOversampling() {
@@ -166,10 +388,8 @@ public class BMP388 {
         break;
       }
     }
-    if (index > 0) {
-      byte newSetting = (byte) ((readByte(REGISTER_OSR) & 0xc7) | (index << 3));
-      writeByte(REGISTER_OSR, newSetting);
-    }
+    if (index >= 0)
+      registers.update(REGISTER_OSR, 0x38, index << 3);
   }
 
   public int getFilterCoefficient() {
@@ -179,95 +399,335 @@ public class BMP388 {
   public void setFilterCoefficient(int coefficient) {
     int index = -1;
     for (int i = 0; i < IIR_SETTINGS.length; i++) {
-      if (OSR_SETTINGS[i] == coefficient) {
+      if (IIR_SETTINGS[i] == coefficient) {
         index = i;
         break;
       }
     }
-    if (index > 0) {
+    if (index >= 0) {
       byte newSetting = (byte) (index << 1);
       writeByte(REGISTER_CONFIG, newSetting);
     }
   }
 
+  /**
+   * Returns the tuner choosing the oversampling and filter settings
+   *
+   * @return Tuner, or null if the settings are fixed (Config.sensorNoiseTarget is 0)
+   */
+  public BMP388Tuner getTuner() {
+    return tuner;
+  }
+
+  /**
+   * Apply the oversampling and filter settings the tuner chose, if they differ from the
+   * sensor's. In normal mode the sensor sleeps while they change.
+   *
+   * @param setting Settings
+   */
+  private void applySetting(BMP388Tuner.Setting setting) {
+    if (setting.getOversampling() == getPressureOversampling() && setting.getFilter() == getFilterCoefficient())
+      return;
+    if (normalMode)
+      writeByte(REGISTER_CONTROL, (byte) 0x00);
+    setPressureOversampling(setting.getOversampling());
+    setFilterCoefficient(setting.getFilter());
+    if (normalMode)
+      writeByte(REGISTER_CONTROL, MODE_NORMAL);
+    if (Config.verbose)
+      System.out.printf("BMP388: %s (%s)\n", setting, tuner.isFlying() ? "flying" : "at rest");
+  }
+
+  public AltitudeConverter getAltitudeConverter() {
+    return altitudeConverter;
+  }
+
   private double calcAltitude(double pressure) {
-    lastAltitude = 44307.7 * (1 - Math.pow(pressure / seaLevelPressure, 0.190284));
+    lastAltitude = altitudeConverter.toAltitude(pressure);
     return lastAltitude;
   }
 
-  private double[] read() {
-    double[] pt = new double[2];
+  /**
+   * Switch to normal mode, where the sensor measures at its output data rate without
+   * being triggered. Falls back to forced mode if the oversampling settings take too
+   * long for the rate.
+   */
+  private void startNormalMode() {
+    setOutputDataRate(samples);
+    writeByte(REGISTER_CONTROL, MODE_NORMAL);
+    normalMode = true;
+
+    if ((readByte(REGISTER_ERROR) & ERROR_CONFIG) != 0) {
+      System.out.printf("BMP388: measurements too long for %dHz, using forced mode\n", getOutputDataRate());
+      writeByte(REGISTER_CONTROL, (byte) 0x00);
+      normalMode = false;
+    } else if (Config.verbose)
+      System.out.printf("BMP388: normal mode at %dHz\n", getOutputDataRate());
+  }
+
+  /**
+   * Returns the output data rate used in normal mode
+   *
+   * @return Measurements per second (rounded down)
+   */
+  public int getOutputDataRate() {
+    return 200 >> (readByte(REGISTER_ODR) & 0x1f);
+  }
+
+  /**
+   * Set the output data rate used in normal mode to the nearest rate the sensor
+   * supports (200Hz divided by a power of 2)
+   *
+   * @param rate Measurements per second
+   */
+  public void setOutputDataRate(int rate) {
+    int index = 0;
+    while (index < 17 && 200.0 / (1 << (index + 1)) >= rate * 0.75)
+      index++;
+    writeByte(REGISTER_ODR, (byte) index);
+  }
+
+  /**
+   * Switch to FIFO mode, where the sensor measures at its output data rate in normal
+   * mode and queues the results in its FIFO, which is read a batch at a time
+   */
+  private void startFifoMode() {
+    fifoBatch = Math.max(1, Math.min(Config.sensorFifoBatch, (FIFO_SIZE - 8) / 7));
+    fifoBuffer = new byte[FIFO_SIZE + 8];
+    fifoSamples = new double[FIFO_SIZE / 2];
+    fifoTimes = new long[FIFO_SIZE / 4];
+
+    // watermark, FIFO_CONFIG_1 and FIFO_CONFIG_2 in one write
+    int watermark = fifoBatch * 7;
+    byte[] fifoConfig = { (byte) watermark, (byte) (watermark >> 8), FIFO_ENABLE, FIFO_FILTERED };
+    registers.write(REGISTER_FIFO_WATERMARK, fifoConfig, 0, fifoConfig.length);
+    writeByte(REGISTER_CMD, CMD_FIFO_FLUSH);
+
+    startNormalMode();
+    fifoMode = normalMode;
+    fifoPeriod = 5.0 * (1 << (readByte(REGISTER_ODR) & 0x1f));
+    if (fifoMode && Config.verbose)
+      System.out.printf("BMP388: FIFO mode, %d frames per read\n", fifoBatch);
+  }
+
+  /**
+   * Read everything in the FIFO into fifoSamples and fifoTimes
+   *
+   * @return Number of measurements read
+   */
+  private int readFifo() {
+    // sensor time now and the FIFO length (0x0C to 0x13) in one read
+    byte[] header = readBurst(REGISTER_SENSORTIME, burst, 8);
+    long readTime = Clock.millis();
+    int sensorTime = (int) HEADER_FORMAT.get(header, 0, 0);
+    int length = (int) HEADER_FORMAT.get(header, 0, 1) & 0x1ff;
+    if (length == 0)
+      return 0;
+    if (length >= FIFO_SIZE && Config.verbose)
+      System.out.println("BMP388: FIFO full, oldest samples lost");
+
+    // reading past the end gives the sensor time frame
+    length = Math.min(length + 4, fifoBuffer.length);
+    registers.read(REGISTER_FIFO_DATA, fifoBuffer, 0, length);
+    fifoReads++;
+
+    int count = 0;
+    int frameTime = -1;
+    int i = 0;
+    while (i < length) {
+      int frame = fifoBuffer[i] & 0xff;
+      if (frame == FRAME_PRESSURE_TEMPERATURE && i + 7 <= length) {
+        compensate(fifoBuffer, i + 4, i + 1, fifoSamples, count * 2);
+        count++;
+        i += 7;
+      } else if ((frame == FRAME_PRESSURE || frame == FRAME_TEMPERATURE) && i + 4 <= length)
+        i += 4; // both are always enabled, these only appear around a configuration change
+      else if (frame == FRAME_SENSORTIME && i + 4 <= length) {
+        frameTime = (int) UINT24.get(fifoBuffer, i + 1, 0);
+        i += 4;
+      } else if (frame == FRAME_CONFIG_CHANGE)
+        i += 2;
+      else if (frame == FRAME_CONFIG_ERROR) {
+        if (Config.verbose)
+          System.out.println("BMP388: FIFO configuration error");
+        i += 2;
+      } else
+        break; // empty frame or a partial frame at the end
+    }
+    fifoFrames += count;
+
+    // the last frame was measured when the sensor time frame says, and the others one
+    // period apart before it
+    double lastFrame = readTime;
+    if (frameTime >= 0)
+      lastFrame -= ((sensorTime - frameTime) & 0xffffff) * SENSORTIME_TICK;
+    long previous = lastDataTime;
+    for (int n = 0; n < count; n++) {
+      fifoTimes[n] = Math.max(Math.round(lastFrame - (count - 1 - n) * fifoPeriod), previous + 1);
+      previous = fifoTimes[n];
+    }
+    return count;
+  }
+
+  /**
+   * Have the sensor signal each measurement (or a full FIFO batch) on its INT pin and
+   * listen for it on Config.sensorIntPin
+   */
+  private void startInterrupts() {
+    interrupts = new Semaphore(0);
+    writeByte(REGISTER_INT_CTRL, fifoMode ? INT_FIFO_WATERMARK : INT_DATA_READY);
+
+    if (gpio != null) {
+      intPin = gpio.provisionDigitalInputPin(RaspiPin.getPinByAddress(Config.sensorIntPin), "sensorInt",
+          PinPullResistance.PULL_DOWN);
+      intPin.setShutdownOptions(true);
+
+      // register a listener for state change events
+      // this runs in its own thread
+      intPin.addListener(new GpioPinListenerDigital() {
+        @Override
+        public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+          if (event.getState().isHigh())
+            dataReady();
+        }
+      });
+    }
+    interruptDriven = true;
+    if (Config.verbose)
+      System.out.printf("BMP388: interrupt on pin %d\n", Config.sensorIntPin);
+  }
+
+  /**
+   * Signal that the sensor has raised its INT pin, waking the worker
+   */
+  public void dataReady() {
+    interruptTime = Clock.nanos();
+    if (interrupts != null)
+      interrupts.release();
+  }
+
+  /**
+   * Returns statistics of the intervals between sample timestamps
+   *
+   * @return Timing statistics
+   */
+  public TimingStats getSampleTiming() {
+    return sampleTiming;
+  }
+
+  /**
+   * Returns the number of measurements read from the FIFO
+   *
+   * @return Frame count
+   */
+  public long getFifoFrames() {
+    return fifoFrames;
+  }
+
+  /**
+   * Returns the number of batches read from the FIFO
+   *
+   * @return Read count
+   */
+  public long getFifoReads() {
+    return fifoReads;
+  }
+
+  /**
+   * Returns whether the sensor is measuring continuously
+   *
+   * @return True in normal mode, false in forced mode
+   */
+  public boolean isNormalMode() {
+    return normalMode;
+  }
+
+  /**
+   * Take a measurement (forced mode) or wait for the next one (normal mode)
+   *
+   * @param buffer Buffer for the register values, at least 15 bytes
+   * @param out Array for the pressure in Pa and temperature in deg C
+   */
+  private void read(byte[] buffer, double[] out) {
+    if (normalMode) {
+      // wait for the next measurement
+      while (!readLatest(buffer, out))
+        Util.delay(1);
+      return;
+    }
 
     // perform one measurement in forced mode
-    writeByte(REGISTER_CONTROL, (byte) 0x13);
+    writeByte(REGISTER_CONTROL, MODE_FORCED);
 
     // wait for both conversions to complete
-    while ((readByte(REGISTER_STATUS) & 0x60) != 0x60) {
+    while ((readByte(REGISTER_STATUS) & STATUS_DATA_READY) != STATUS_DATA_READY) {
       Util.delay(2);
     }
 
     // get ADC values
-    byte[] data = readRegister(REGISTER_PRESSUREDATA, 6);
-    long adc_p = ((data[2] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[0] & 0xff);
-    long adc_t = ((data[5] & 0xff) << 16) | ((data[4] & 0xff) << 8) | (data[3] & 0xff);
-
-    // calculate temperature
-    double pd1 = (double) adc_t - tempCalib[0];
-    double pd2 = pd1 * tempCalib[1];
-    double temperature = pd2 + (pd1 * pd1) * tempCalib[2];
-
-    // calculate pressure
-    pd1 = pressureCalib[5] * temperature;
-    pd2 = pressureCalib[6] * Math.pow(temperature, 2.0);
-    double pd3 = pressureCalib[7] * Math.pow(temperature, 3.0);
-    double po1 = pressureCalib[4] + pd1 + pd2 + pd3;
-
-    pd1 = pressureCalib[1] * temperature;
-    pd2 = pressureCalib[2] * Math.pow(temperature, 2.0);
-    pd3 = pressureCalib[3] * Math.pow(temperature, 3.0);
-    double po2 = (double) adc_p * (pressureCalib[0] + pd1 + pd2 + pd3);
+    compensate(readBurst(REGISTER_PRESSUREDATA, buffer, 6), 0, 3, out, 0);
+  }
 
-    pd1 = Math.pow(adc_p, 2);
-    pd2 = pressureCalib[8] + pressureCalib[9] * temperature;
-    pd3 = pd1 * pd2;
-    double pd4 = pd3 + pressureCalib[10] * Math.pow(adc_p, 3.0);
+  /**
+   * Read the status and data registers in one burst (normal mode)
+   *
+   * @param buffer Buffer for the register values, at least 15 bytes
+   * @param out Array for the pressure in Pa and temperature in deg C
+   * @return True if there was a new measurement since the last read
+   */
+  private boolean readLatest(byte[] buffer, double[] out) {
+    // with a latched interrupt, read on to INT_STATUS (0x11) to clear it
+    byte[] data = readBurst(REGISTER_STATUS, buffer, interruptDriven ? 15 : 7);
+    if ((data[0] & STATUS_DATA_READY) != STATUS_DATA_READY)
+      return false;
+    compensate(data, 1, 4, out, 0);
+    return true;
+  }
 
-    double pressure = po1 + po2 + pd4;
+  /**
+   * Calculate pressure and temperature from raw data register values
+   *
+   * @param data Register values or FIFO frames
+   * @param p Index of the first pressure data byte
+   * @param t Index of the first temperature data byte
+   * @param out Array for the pressure in Pa and temperature in deg C
+   * @param index Index in out for the pressure
+   */
+  private void compensate(byte[] data, int p, int t, double[] out, int index) {
+    int adc_p = (int) UINT24.get(data, p, 0);
+    int adc_t = (int) UINT24.get(data, t, 0);
+    if (integerCompensation)
+      compensation.compensateInteger(adc_p, adc_t, out, index);
+    else
+      compensation.compensate(adc_p, adc_t, out, index);
+  }
 
-    // pressure in Pa, temperature in deg C
-    pt[0] = pressure;
-    pt[1] = temperature;
-    return pt;
+  /**
+   * Returns the compensation formulas for this sensor's calibration
+   *
+   * @return Compensation object
+   */
+  public BMP388Compensation getCompensation() {
+    return compensation;
   }
 
   private void readCoefficients() {
     try {
-      byte[] bytes = readRegister(REGISTER_CAL_DATA, 21);
-      long[] coeff = new Struct().unpack("<HHbhhbbHHbbhbb", bytes);
-
-      tempCalib = new double[] { (double) coeff[0] / Math.pow(2, -8.0), // T1
-          (double) coeff[1] / Math.pow(2, 30.0), // T2
-          (double) coeff[2] / Math.pow(2, 48.0) }; // T3
-
-      pressureCalib = new double[] { ((double) coeff[3] - Math.pow(2, 14.0)) / Math.pow(2, 20.0), // P1
-          ((double) coeff[4] - Math.pow(2, 14.0)) / Math.pow(2, 29.0), // P2
-          (double) coeff[5] / Math.pow(2, 32.0), // P3
-          (double) coeff[6] / Math.pow(2, 37.0), // P4
-          (double) coeff[7] / Math.pow(2, -3.0), // P5
-          (double) coeff[8] / Math.pow(2, 6.0), // P6
-          (double) coeff[9] / Math.pow(2, 8.0), // P7
-          (double) coeff[10] / Math.pow(2, 15.0), // P8
-          (double) coeff[11] / Math.pow(2, 48.0), // P9
-          (double) coeff[12] / Math.pow(2, 48.0), // P10
-          (double) coeff[13] / Math.pow(2, 65.0) }; // P11
+      byte[] bytes = registers.read(REGISTER_CAL_DATA, new byte[CALIBRATION_FORMAT.size()], 0,
+          CALIBRATION_FORMAT.size());
+      long[] coeff = new long[CALIBRATION_FORMAT.count()];
+      CALIBRATION_FORMAT.unpack(bytes, 0, coeff);
+
+      compensation = new BMP388Compensation(coeff);
+      integerCompensation = Config.sensorIntegerCompensation;
 
       if (Config.verbose) {
         System.out.print("BMP388: T calib = ");
         for (int i = 0; i < 3; i++)
-          System.out.printf("T%d: %f, \n", i + 1, tempCalib[i]);
+          System.out.printf("T%d: %f, \n", i + 1, compensation.getTemperatureCalib()[i]);
         System.out.print("\nBMP388: P calib = ");
         for (int i = 0; i < 11; i++)
-          System.out.printf("P%d: %f, \n", i + 1, pressureCalib[i]);
+          System.out.printf("P%d: %f, \n", i + 1, compensation.getPressureCalib()[i]);
         System.out.println();
       }
     } catch (Exception e) {
@@ -277,31 +737,36 @@ public class BMP388 {
 
   private void reset() {
     writeByte(REGISTER_CMD, (byte) 0xb6);
+    registers.invalidate();
+  }
+
+  /**
+   * Returns the sensor's register access, with its bus statistics
+   *
+   * @return Registers, or null without a device
+   */
+  public I2CRegisters getRegisters() {
+    return registers;
   }
 
   private byte readByte(byte register) {
-    return readRegister(register, 1)[0];
+    return registers.read(register);
   }
 
-  private byte[] readRegister(byte register, int length) {
-    byte[] result = new byte[length];
-    try {
-      byte[] toWrite = new byte[] { (byte) (register & 0xff) };
-      device.write(toWrite);
-      device.read(result, 0, length);
-    } catch (IOException e) {
-      Errors.handleException(e, "Failed to read sensor data");
-    }
-    return result;
+  /**
+   * Read consecutive registers in a single transaction
+   *
+   * @param register First register
+   * @param buffer Buffer for the values
+   * @param length Number of registers
+   * @return The buffer
+   */
+  private byte[] readBurst(byte register, byte[] buffer, int length) {
+    return registers.read(register, buffer, 0, length);
   }
 
   private void writeByte(byte register, byte value) {
-    try {
-      byte[] toWrite = new byte[] { (byte) (register & 0xff), (byte) (value & 0xff) };
-      device.write(toWrite);
-    } catch (IOException e) {
-      Errors.handleException(e, "Failed to write to sensor");
-    }
+    registers.write(register, value);
   }
 
   /**
@@ -310,7 +775,7 @@ public class BMP388 {
   public class BMP388Worker implements Runnable {
 
     // flag for whether the worker should shut down
-    private boolean shutdown;
+    private volatile boolean shutdown;
 
     /**
      * Constructor
@@ -320,25 +785,90 @@ public class BMP388 {
     }
 
     /**
-     * Main worker loop
+     * Main worker loop, for the interrupt or forced mode
      */
     @Override
     public void run() {
       int delay = 1000 / samples;
-      lastDataTime = System.currentTimeMillis();
+      lastDataTime = Clock.millis();
       while (!shutdown) {
         long endTime = lastDataTime + delay;
-        PTAData sensorData = getPTA();
-        dataList.add(sensorData);
-        lastDataTime = System.currentTimeMillis();
 
-        if (dataList.size() > samples * 2)
-          dataList.remove(0);
+        // wait for the sensor to signal, reading anyway if an interrupt was missed
+        long signalTime = -1;
+        if (interruptDriven && awaitInterrupt(3 * delay * (fifoMode ? fifoBatch : 1)))
+          signalTime = interruptTime;
+        if (shutdown)
+          break;
+
+        if (normalMode)
+          poll(signalTime);
+        else {
+          read(burst, sample);
+          record(sample[0], sample[1], Clock.millis(), Clock.nanos());
+          Util.delay(Math.max(0, (int) (endTime - Clock.millis())));
+        }
+      }
+    }
+
+    /**
+     * Read what the sensor measured by itself (normal or FIFO mode) since the last call:
+     * everything in the FIFO, or the latest measurement if there is a new one. Polled
+     * at a fixed rate, the scheduler's period and the sensor's timer drift apart, so a
+     * poll now and then finds nothing new, or (in normal mode) misses a measurement
+     * replaced before it was read; the interrupt or the FIFO avoids that.
+     *
+     * @param signalTime Clock.nanos of the interrupt, or -1 if not signalled
+     */
+    private void poll(long signalTime) {
+      if (fifoMode) {
+        int count = readFifo();
+        for (int i = 0; i < count; i++)
+          record(fifoSamples[i * 2], fifoSamples[i * 2 + 1], fifoTimes[i], fifoTimes[i] * 1000000L);
+        return;
+      }
+      if (!readLatest(burst, sample))
+        return;
+      long now = Clock.nanos();
+      if (signalTime < 0)
+        signalTime = now;
+      record(sample[0], sample[1], Clock.millis() - (now - signalTime) / 1000000L, signalTime);
+    }
 
-        Util.delay(Math.max(0, (int) (endTime - System.currentTimeMillis())));
+    /**
+     * Wait for an interrupt from the sensor
+     *
+     * @param timeout Milliseconds to wait
+     * @return True if interrupted, false if timed out
+     */
+    private boolean awaitInterrupt(int timeout) {
+      try {
+        boolean signalled = interrupts.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        interrupts.drainPermits(); // interrupts missed while reading are covered by this read
+        return signalled;
+      } catch (InterruptedException e) {
+        Errors.handleException(e, "Thread interrupted");
+        return false;
       }
     }
 
+    /**
+     * Store a sample and add it to the trace if recording
+     *
+     * @param pressure Pressure in Pa
+     * @param temperature Temperature in deg C
+     * @param time Time of the measurement in milliseconds
+     * @param nanos Time of the measurement in nanoseconds, for the timing statistics
+     */
+    private void record(double pressure, double temperature, long time, long nanos) {
+      addSample(pressure, temperature, time);
+      sampleTiming.add(nanos);
+      if (tuner != null && tuner.addSample(pressure, time))
+        applySetting(tuner.choose(pressure / 100, time));
+      if (trace != null)
+        trace.printf(Locale.ROOT, "%d,%.2f,%.3f\n", time - traceStartTime, pressure, temperature);
+    }
+
     /**
      * Shut down the worker
      */
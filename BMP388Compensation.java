@@ -0,0 +1,187 @@
+/**
+ * Turns raw BMP388 readings into temperature and pressure using the sensor's
+ * calibration values.
+ *
+ * The floating point path uses the datasheet formulas with the coefficients scaled
+ * once when the calibration is loaded, and evaluates the polynomials in Horner form.
+ * The temperature dependent parts of the pressure polynomial are kept until the raw
+ * temperature changes, which it rarely does between samples. Results are written to
+ * caller supplied arrays so nothing is allocated per sample.
+ *
+ * The integer path is a port of the 64 bit fixed point compensation in Bosch's
+ * reference driver (BMP3 API), giving temperature in 0.01 deg C and pressure in
+ * 0.01 Pa with integer arithmetic only.
+ */
+public class BMP388Compensation {
+
+  // raw calibration values, as stored in the sensor
+  private final long t1, t2, t3;
+  private final long p1, p2, p3, p4, p5, p6, p7, p8, p9, p10, p11;
+
+  // scaled floating point coefficients
+  private final double[] tempCalib;
+  private final double[] pressureCalib;
+
+  // floating point terms for the last raw temperature
+  private int lastAdcT = -1;
+  private double temperature; // deg C
+  private double offset; // pressure polynomial terms that depend only on temperature
+  private double sensitivity;
+  private double quadratic;
+
+  // integer path state
+  private long tLin; // linearized temperature from the last integer temperature calculation
+
+  /**
+   * Constructor for a compensation object
+   *
+   * @param coeff Calibration values as unpacked from the sensor (T1 to T3, then P1 to
+   *              P11)
+   */
+  public BMP388Compensation(long[] coeff) {
+    t1 = coeff[0];
+    t2 = coeff[1];
+    t3 = coeff[2];
+    p1 = coeff[3];
+    p2 = coeff[4];
+    p3 = coeff[5];
+    p4 = coeff[6];
+    p5 = coeff[7];
+    p6 = coeff[8];
+    p7 = coeff[9];
+    p8 = coeff[10];
+    p9 = coeff[11];
+    p10 = coeff[12];
+    p11 = coeff[13];
+
+    // datasheet section 9.1, the scale factors are powers of 2 so this is exact
+    tempCalib = new double[] { t1 * 0x1p8, // T1
+        t2 * 0x1p-30, // T2
+        t3 * 0x1p-48 }; // T3
+    pressureCalib = new double[] { (p1 - 16384) * 0x1p-20, // P1
+        (p2 - 16384) * 0x1p-29, // P2
+        p3 * 0x1p-32, // P3
+        p4 * 0x1p-37, // P4
+        p5 * 0x1p3, // P5
+        p6 * 0x1p-6, // P6
+        p7 * 0x1p-8, // P7
+        p8 * 0x1p-15, // P8
+        p9 * 0x1p-48, // P9
+        p10 * 0x1p-48, // P10
+        p11 * 0x1p-65 }; // P11
+  }
+
+  /**
+   * Returns the scaled temperature coefficients
+   *
+   * @return T1 to T3
+   */
+  public double[] getTemperatureCalib() {
+    return tempCalib;
+  }
+
+  /**
+   * Returns the scaled pressure coefficients
+   *
+   * @return P1 to P11
+   */
+  public double[] getPressureCalib() {
+    return pressureCalib;
+  }
+
+  /**
+   * Compensate a raw pressure and temperature
+   *
+   * @param adcP Raw 24 bit pressure
+   * @param adcT Raw 24 bit temperature
+   * @param out Array for the result, pressure in Pa then temperature in deg C
+   * @param index Index in out for the pressure
+   */
+  public synchronized void compensate(int adcP, int adcT, double[] out, int index) {
+    if (adcT != lastAdcT) {
+      double[] t = tempCalib;
+      double[] p = pressureCalib;
+      double d = adcT - t[0];
+      double temp = d * (t[1] + d * t[2]);
+
+      offset = p[4] + temp * (p[5] + temp * (p[6] + temp * p[7]));
+      sensitivity = p[0] + temp * (p[1] + temp * (p[2] + temp * p[3]));
+      quadratic = p[8] + p[9] * temp;
+      temperature = temp;
+      lastAdcT = adcT;
+    }
+
+    double adc = adcP;
+    out[index] = offset + adc * (sensitivity + adc * (quadratic + adc * pressureCalib[10]));
+    out[index + 1] = temperature;
+  }
+
+  /**
+   * Compensate a raw temperature with integer arithmetic (Bosch reference)
+   *
+   * @param adcT Raw 24 bit temperature
+   * @return Temperature in 0.01 deg C
+   */
+  public long temperatureInteger(int adcT) {
+    long d1 = adcT - 256 * t1;
+    long d2 = t2 * d1;
+    long d3 = d1 * d1;
+    long d4 = d3 * t3;
+    long d5 = d2 * 262144 + d4;
+    tLin = d5 / 4294967296L;
+    return tLin * 25 / 16384;
+  }
+
+  /**
+   * Compensate a raw pressure with integer arithmetic (Bosch reference), using the
+   * temperature from the last call to temperatureInteger
+   *
+   * @param adcP Raw 24 bit pressure
+   * @return Pressure in 0.01 Pa
+   */
+  public long pressureInteger(int adcP) {
+    long adc = adcP;
+    long d1 = tLin * tLin;
+    long d2 = d1 / 64;
+    long d3 = d2 * tLin / 256;
+    long d4 = p8 * d3 / 32;
+    long d5 = p7 * d1 * 16;
+    long d6 = p6 * tLin * 4194304;
+    long offset = p5 * 140737488355328L + d4 + d5 + d6;
+
+    d2 = p4 * d3 / 32;
+    d4 = p3 * d1 * 4;
+    d5 = (p2 - 16384) * tLin * 2097152;
+    long sensitivity = (p1 - 16384) * 70368744177664L + d2 + d4 + d5;
+
+    d1 = sensitivity / 16777216 * adc;
+    d2 = p10 * tLin;
+    d3 = d2 + 65536 * p9;
+    d4 = d3 * adc / 8192;
+
+    // divided by 10 and multiplied again afterwards to avoid overflow
+    d5 = adc * (d4 / 10) / 512;
+    d5 = d5 * 10;
+    d6 = adc * adc;
+    d2 = p11 * d6 / 65536;
+    d3 = d2 * adc / 128;
+    d4 = offset / 4 + d1 + d5 + d3;
+
+    // unsigned in the reference, the product can exceed 2^63
+    return (d4 * 25) >>> 40;
+  }
+
+  /**
+   * Compensate a raw pressure and temperature with integer arithmetic
+   *
+   * @param adcP Raw 24 bit pressure
+   * @param adcT Raw 24 bit temperature
+   * @param out Array for the result, pressure in Pa then temperature in deg C
+   * @param index Index in out for the pressure
+   */
+  public synchronized void compensateInteger(int adcP, int adcT, double[] out, int index) {
+    long temp = temperatureInteger(adcT);
+    out[index] = pressureInteger(adcP) / 100.0;
+    out[index + 1] = temp / 100.0;
+  }
+}
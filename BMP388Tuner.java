@@ -0,0 +1,287 @@
+/**
+ * Chooses the BMP388's pressure oversampling and IIR filter coefficient for a target
+ * noise, from the noise measured in the samples.
+ *
+ * Oversampling by n divides the noise of a conversion by the square root of n but
+ * makes the conversion longer, and the IIR filter smooths further at the cost of delay.
+ * The noise of a single conversion is estimated from the second differences of the
+ * samples, which remove a steady climb or sink, corrected for the settings in use; it
+ * is kept separately at rest and in flight, where gusts and airflow over the case add
+ * to it. The settings chosen are those with the lowest latency whose predicted
+ * altitude noise per sample is within Config.sensorNoiseTarget, or the quietest if none
+ * is. Each conversion must fit in a sample period, so the output data rate limits the
+ * oversampling. The choice is revisited after Config.sensorTuneInterval seconds if the
+ * device has landed or taken off, or the noise has changed by a fifth.
+ *
+ * Samples are added by the sensor's worker, which applies new settings; the flying
+ * state is set from GPS fixes on another thread.
+ */
+public class BMP388Tuner {
+
+  // RMS pressure noise of a single conversion assumed before any is measured, Pa
+  public static final double TYPICAL_NOISE = 2.0;
+
+  private static final int MIN_SAMPLES = 250; // samples measured before the settings are judged
+  private static final double CHANGE = 1.2; // noise ratio that calls for new settings
+
+  private final int rate; // output data rate, samples per second
+  private final double[] variance; // single conversion noise variance at rest and flying, Pa^2
+  private final long[] counts; // second differences measured at rest and flying
+  private volatile boolean flying;
+
+  // settings in use
+  private Setting current;
+  private boolean tunedFlying; // state the settings were chosen for
+  private double tunedNoise; // single conversion noise they were chosen for, Pa
+  private long tunedTime; // milliseconds when they were applied
+  private long settled; // samples since they were applied
+  private int settleSamples; // samples the IIR filter takes to settle after a change
+
+  // last two samples, for the second difference
+  private double p1, p2;
+  private long lastTime;
+  private int history; // number of evenly spaced samples in p1 and p2
+
+  /**
+   * A combination of settings and what they are predicted to give
+   */
+  public static class Setting {
+
+    private final int oversampling; // pressure oversampling
+    private final int filter; // BMP388.IIR_SETTINGS value
+    private final double noise; // altitude noise per sample, m
+    private final double latency; // delay of the filtered altitude, s
+    private final double conversionTime; // s
+    private final double bandwidth; // Hz
+
+    private Setting(int oversampling, int filter, double noise, double latency, double conversionTime,
+        double bandwidth) {
+      this.oversampling = oversampling;
+      this.filter = filter;
+      this.noise = noise;
+      this.latency = latency;
+      this.conversionTime = conversionTime;
+      this.bandwidth = bandwidth;
+    }
+
+    public int getOversampling() {
+      return oversampling;
+    }
+
+    public int getFilter() {
+      return filter;
+    }
+
+    public double getNoise() {
+      return noise;
+    }
+
+    public double getLatency() {
+      return latency;
+    }
+
+    public double getConversionTime() {
+      return conversionTime;
+    }
+
+    public double getBandwidth() {
+      return bandwidth;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("OSR x%d, IIR %d: %.3fm noise, %.0fms latency, %.1fms conversion, %.1fHz bandwidth",
+          oversampling, filter, noise, latency * 1000, conversionTime * 1000, bandwidth);
+    }
+  }
+
+  /**
+   * Constructor for a tuner
+   *
+   * @param rate Output data rate in samples per second
+   */
+  public BMP388Tuner(int rate) {
+    this.rate = rate;
+    variance = new double[] { TYPICAL_NOISE * TYPICAL_NOISE, TYPICAL_NOISE * TYPICAL_NOISE };
+    counts = new long[2];
+    flying = false;
+  }
+
+  /**
+   * Set whether the device is flying, e.g. from the GPS ground speed
+   *
+   * @param flying True if flying
+   */
+  public void setFlying(boolean flying) {
+    this.flying = flying;
+  }
+
+  /**
+   * Returns whether the device is flying
+   *
+   * @return True if flying
+   */
+  public boolean isFlying() {
+    return flying;
+  }
+
+  /**
+   * Returns the estimated noise of a single conversion without oversampling
+   *
+   * @param flying True for the estimate in flight, false at rest
+   * @return RMS noise in Pa, TYPICAL_NOISE until measured
+   */
+  public synchronized double getNoise(boolean flying) {
+    return Math.sqrt(variance[flying ? 1 : 0]);
+  }
+
+  /**
+   * Returns the settings in use
+   *
+   * @return Settings, or null before the first choice
+   */
+  public synchronized Setting getCurrent() {
+    return current;
+  }
+
+  /**
+   * Add a sample, measured with the current settings
+   *
+   * @param pressure Pressure in Pa
+   * @param time Time of the measurement in milliseconds
+   * @return True if new settings should be chosen
+   */
+  public synchronized boolean addSample(double pressure, long time) {
+    if (current == null)
+      return false;
+    settled++;
+
+    // samples must be a period apart for the second difference
+    long interval = time - lastTime;
+    lastTime = time;
+    if (settled <= settleSamples || Math.abs(interval * rate - 1000) > 500) {
+      history = 0;
+    } else if (history < 2) {
+      history++;
+    } else {
+      double d2 = pressure - 2 * p1 + p2;
+      double measured = d2 * d2 / secondDifferenceGain(current.oversampling, current.filter);
+      int state = flying ? 1 : 0;
+      counts[state]++;
+      variance[state] += (measured - variance[state]) / Math.min(counts[state], 10 * MIN_SAMPLES);
+    }
+    p2 = p1;
+    p1 = pressure;
+
+    if (settled < settleSamples + MIN_SAMPLES || time - tunedTime < Config.sensorTuneInterval * 1000)
+      return false;
+    boolean state = flying;
+    if (counts[state ? 1 : 0] < MIN_SAMPLES)
+      return false;
+    double ratio = getNoise(state) / tunedNoise;
+    return state != tunedFlying || ratio > CHANGE || ratio < 1 / CHANGE;
+  }
+
+  /**
+   * Choose settings for the current state and noise, and start measuring with them
+   *
+   * @param pressure Current pressure in hPa, for the altitude noise
+   * @param time Time in milliseconds
+   * @return Settings
+   */
+  public synchronized Setting choose(double pressure, long time) {
+    boolean state = flying;
+    double noise = getNoise(state);
+    double metresPerPa = Math
+        .abs(AltitudeConverter.formula(pressure, Config.qnh) - AltitudeConverter.formula(pressure + 0.01, Config.qnh));
+
+    Setting best = null;
+    Setting quietest = null;
+    for (int osr : BMP388.OSR_SETTINGS) {
+      for (int filter : BMP388.IIR_SETTINGS) {
+        Setting setting = predict(osr, filter, noise, metresPerPa);
+        if (setting == null)
+          continue;
+        if (quietest == null || setting.noise < quietest.noise)
+          quietest = setting;
+        if (setting.noise <= Config.sensorNoiseTarget && (best == null || setting.latency < best.latency
+            || setting.latency == best.latency && setting.noise < best.noise))
+          best = setting;
+      }
+    }
+    current = best != null ? best : quietest;
+    tunedFlying = state;
+    tunedNoise = noise;
+    tunedTime = time;
+    settled = 0;
+    settleSamples = 5 * Math.max(1, current.filter);
+    history = 0;
+    return current;
+  }
+
+  /**
+   * Predict the noise, latency and bandwidth of a combination of settings
+   *
+   * @param oversampling Pressure oversampling
+   * @param filter BMP388.IIR_SETTINGS value
+   * @param noise RMS noise of a single conversion in Pa
+   * @param metresPerPa Change in altitude for 1 Pa
+   * @return Prediction, or null if the conversion is too long for the output data rate
+   */
+  public Setting predict(int oversampling, int filter, double noise, double metresPerPa) {
+    double conversion = conversionTime(oversampling, 1);
+    if (conversion > 1.0 / rate)
+      return null;
+    double alpha = filter == 0 ? 1.0 : 1.0 / filter;
+    double sampleNoise = noise / Math.sqrt(oversampling) * Math.sqrt(alpha / (2 - alpha));
+    double latency = conversion / 2 + (1 - alpha) / alpha / rate;
+
+    // -3dB point of the filter, and of averaging over the pressure measurement
+    double bandwidth = rate / 2.0;
+    if (alpha < 1) {
+      double phi = 1 - alpha;
+      double cos = (1 + phi * phi - 2 * alpha * alpha) / (2 * phi);
+      if (cos > -1)
+        bandwidth = Math.acos(cos) / (2 * Math.PI) * rate;
+    }
+    bandwidth = Math.min(bandwidth, 0.443 / (oversampling * 2020e-6));
+    return new Setting(oversampling, filter, sampleNoise * metresPerPa, latency, conversion, bandwidth);
+  }
+
+  /**
+   * Returns the time a measurement takes (from the datasheet)
+   *
+   * @param pressureOversampling Pressure oversampling
+   * @param temperatureOversampling Temperature oversampling
+   * @return Seconds
+   */
+  public static double conversionTime(int pressureOversampling, int temperatureOversampling) {
+    return (234 + 392 + 2020 * pressureOversampling + 163 + 2020 * temperatureOversampling) / 1e6;
+  }
+
+  /**
+   * Returns the variance of the second difference of the samples, for a single
+   * conversion variance of 1. The IIR filter makes consecutive samples correlated (an
+   * AR(1) process with coefficient 1 - alpha), which the second difference sees.
+   *
+   * @param oversampling Pressure oversampling
+   * @param filter BMP388.IIR_SETTINGS value
+   * @return Gain
+   */
+  private static double secondDifferenceGain(int oversampling, int filter) {
+    double alpha = filter == 0 ? 1.0 : 1.0 / filter;
+    double phi = 1 - alpha;
+    double stationary = alpha * alpha / (1 - phi * phi);
+    return stationary * (6 - 8 * phi + 2 * phi * phi) / oversampling;
+  }
+
+  /**
+   * Print the noise estimates and the settings in use
+   */
+  public synchronized void print() {
+    System.out.printf("BMP388 tuning: noise %.2fPa at rest (%d), %.2fPa flying (%d), %s\n", getNoise(false),
+        counts[0], getNoise(true), counts[1], flying ? "flying" : "at rest");
+    if (current != null)
+      System.out.printf("  %s, for %s\n", current, tunedFlying ? "flight" : "rest");
+  }
+}
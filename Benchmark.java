@@ -0,0 +1,445 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Benchmarks for the data processing paths, runnable on any machine without the
+ * Raspberry Pi hardware attached.
+ *
+ * Usage: java -cp Gfly.jar Benchmark nmea [file] [hours]
+ *        java -cp Gfly.jar Benchmark ubx [hours]
+ *        java -cp Gfly.jar Benchmark compensation [millions]
+ *        java -cp Gfly.jar Benchmark altitude [millions]
+ *
+ * If no file is given, a synthetic 10Hz stream is generated. The ubx benchmark compares
+ * decoding NAV-PVT messages with parsing and assembling the equivalent NMEA. The
+ * compensation benchmark checks the BMP388 compensation paths against the previous
+ * formulas over the ADC range, then times them. The altitude benchmark measures the
+ * altitude table's error against the formula over the sensor's range at a few QNH
+ * values, then times both.
+ */
+public class Benchmark {
+
+	// size of the chunks data is fed in, similar to what the serial port delivers
+	private static final int CHUNK_SIZE = 64;
+
+	public static void main(String... args) {
+		try {
+			if (args.length > 0 && args[0].equals("nmea"))
+				benchmarkNMEA(args);
+			else if (args.length > 0 && args[0].equals("ubx"))
+				benchmarkUBX(args);
+			else if (args.length > 0 && args[0].equals("compensation"))
+				benchmarkCompensation(args);
+			else if (args.length > 0 && args[0].equals("altitude"))
+				benchmarkAltitude(args);
+			else
+				System.out.println(
+						"Usage: Benchmark nmea [file] [hours] | ubx [hours] | compensation [millions] | altitude [millions]");
+		} catch (Exception e) {
+			Errors.handleException(e, "Benchmark failed");
+		}
+	}
+
+	/**
+	 * Compare the NMEA parser with the previous String based parsing
+	 *
+	 * @param args Command line arguments
+	 */
+	private static void benchmarkNMEA(String... args) throws Exception {
+		byte[] data;
+		int repeat = 1;
+		if (args.length > 1 && !args[1].matches("[0-9]+")) {
+			data = Files.readAllBytes(Paths.get(args[1]));
+			System.out.printf("Loaded %d bytes from %s\n", data.length, args[1]);
+		} else {
+			// generate one hour and parse it repeatedly
+			repeat = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+			data = SimFlight.generateNMEA(3600, 10);
+			System.out.printf("Generated %d bytes per hour of 10Hz NMEA, parsing %d hours\n", data.length, repeat);
+		}
+
+		final long[] fixes = new long[1];
+		NMEAParser parser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				if (parser.getType() == NMEAParser.RMC || parser.getType() == NMEAParser.GGA)
+					fixes[0]++;
+			}
+		});
+		LegacyParser legacy = new LegacyParser();
+
+		// warm up both paths before measuring
+		feed(parser, legacy, data, Math.min(data.length, 1 << 20));
+
+		fixes[0] = 0;
+		long sentences = parser.getSentenceCount();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < repeat; i++)
+			feed(parser, null, data, data.length);
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		sentences = parser.getSentenceCount() - sentences;
+		report("NMEAParser", sentences, elapsed, allocated);
+		System.out.printf("  %d RMC/GGA, %d checksum errors, %d framing errors\n", fixes[0],
+				parser.getChecksumErrors(), parser.getFramingErrors());
+
+		legacy.count = 0;
+		allocated = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < repeat; i++)
+			feed(null, legacy, data, data.length);
+		elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		report("String buffer (previous)", legacy.count, elapsed, allocated);
+	}
+
+	/**
+	 * Compare producing fixes from UBX NAV-PVT with producing them from NMEA
+	 *
+	 * @param args Command line arguments
+	 */
+	private static void benchmarkUBX(String... args) {
+		int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		byte[] ubx = SimFlight.generateUBX(3600, 10);
+		byte[] nmea = SimFlight.generateNMEA(3600, 10);
+		System.out.printf("Generated %d bytes of NAV-PVT and %d bytes of NMEA per hour at 10Hz, %d hours\n",
+				ubx.length, nmea.length, repeat);
+
+		final long[] fixes = new long[1];
+		final EpochAssembler assembler = new EpochAssembler(new EpochAssembler.Listener() {
+			@Override
+			public void fixPublished(GPSData fix) {
+				fixes[0]++;
+			}
+		});
+		final UBXParser ubxParser = new UBXParser(new UBXParser.Listener() {
+			@Override
+			public void messageReceived(UBXParser parser) {
+				if (parser.isNavPVT())
+					assembler.accept(parser, false);
+			}
+		});
+		final NMEAParser nmeaParser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				assembler.accept(parser, false);
+			}
+		});
+
+		// warm up both paths before measuring
+		for (int i = 0; i < 3; i++) {
+			ubxParser.accept(ubx, 0, ubx.length);
+			nmeaParser.accept(nmea, 0, nmea.length);
+		}
+
+		fixes[0] = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < repeat; i++)
+			for (int j = 0; j < ubx.length; j += CHUNK_SIZE)
+				ubxParser.accept(ubx, j, Math.min(CHUNK_SIZE, ubx.length - j));
+		long elapsed = System.nanoTime() - start;
+		report("UBX NAV-PVT fixes", fixes[0], elapsed, allocatedBytes() - allocated);
+		System.out.printf("  %d checksum errors, last fix %s %s %.6f %.6f %.1fm\n", ubxParser.getChecksumErrors(),
+				assembler.getLatest().getDate(), assembler.getLatest().getTime(), assembler.getLatest().getLatitude(),
+				assembler.getLatest().getLongitude(), assembler.getLatest().getAltitude());
+
+		fixes[0] = 0;
+		allocated = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < repeat; i++)
+			for (int j = 0; j < nmea.length; j += CHUNK_SIZE)
+				nmeaParser.accept(nmea, j, Math.min(CHUNK_SIZE, nmea.length - j));
+		elapsed = System.nanoTime() - start;
+		report("NMEA fixes", fixes[0], elapsed, allocatedBytes() - allocated);
+		System.out.printf("  last fix %s %s %.6f %.6f %.1fm\n", assembler.getLatest().getDate(),
+				assembler.getLatest().getTime(), assembler.getLatest().getLatitude(),
+				assembler.getLatest().getLongitude(), assembler.getLatest().getAltitude());
+	}
+
+	/**
+	 * Compare the BMP388 compensation (Horner form and fixed point) with the previous
+	 * Math.pow formulas, using the simulated sensor's calibration
+	 *
+	 * @param args Command line arguments
+	 */
+	private static void benchmarkCompensation(String... args) throws Exception {
+		int millions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		byte[] calibration = new byte[21];
+		new SimBMP388().read(0x31, calibration, 0, calibration.length);
+		long[] coefficients = new long[14];
+		Struct.compile("<HHbhhbbHHbbhbb").unpack(calibration, 0, coefficients);
+		BMP388Compensation compensation = new BMP388Compensation(coefficients);
+		LegacyCompensation legacy = new LegacyCompensation(calibration);
+		System.out.printf("Coefficients identical to the previous scaling: %b\n",
+				Arrays.equals(legacy.tempCalib, compensation.getTemperatureCalib())
+						&& Arrays.equals(legacy.pressureCalib, compensation.getPressureCalib()));
+
+		// every 4096th value of each 24 bit ADC reading
+		double[] out = new double[2];
+		double[] integer = new double[2];
+		long compared = 0, identical = 0, inRange = 0;
+		double maxRelative = 0, maxPressureError = 0, maxTemperatureError = 0;
+		double maxIntegerPressure = 0, maxIntegerTemperature = 0;
+		for (int adcT = 0; adcT < 1 << 24; adcT += 4096) {
+			for (int adcP = 0; adcP < 1 << 24; adcP += 4096) {
+				double[] expected = legacy.compensate(adcP, adcT);
+				compensation.compensate(adcP, adcT, out, 0);
+				compared++;
+				if (out[0] == expected[0] && out[1] == expected[1])
+					identical++;
+				if (expected[0] != 0)
+					maxRelative = Math.max(maxRelative, Math.abs(out[0] - expected[0]) / Math.abs(expected[0]));
+
+				// operating range of the sensor
+				if (expected[0] >= 30000 && expected[0] <= 125000 && expected[1] >= -40 && expected[1] <= 85) {
+					inRange++;
+					maxPressureError = Math.max(maxPressureError, Math.abs(out[0] - expected[0]));
+					maxTemperatureError = Math.max(maxTemperatureError, Math.abs(out[1] - expected[1]));
+					compensation.compensateInteger(adcP, adcT, integer, 0);
+					maxIntegerPressure = Math.max(maxIntegerPressure, Math.abs(integer[0] - expected[0]));
+					maxIntegerTemperature = Math.max(maxIntegerTemperature, Math.abs(integer[1] - expected[1]));
+				}
+			}
+		}
+		System.out.printf("Horner: %d of %d readings bit-identical, max relative difference %.2e\n", identical,
+				compared, maxRelative);
+		System.out.printf("  in the operating range (%d readings): max %.2e Pa, %.2e deg C\n", inRange,
+				maxPressureError, maxTemperatureError);
+		System.out.printf("Fixed point: max %.3f Pa, %.4f deg C from the floating point result (0.01 resolution)\n",
+				maxIntegerPressure, maxIntegerTemperature);
+
+		// time a slow climb: pressure changes every sample, temperature every 50
+		int count = millions * 1000000;
+		for (int pass = 0; pass < 2; pass++) {
+			double sum = 0;
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				sum += legacy.compensate(6500000 + (i & 0xffff), 8300000 + (i / 50 & 0xff))[0];
+			long elapsed = System.nanoTime() - start;
+			if (pass == 1)
+				report("Previous (Math.pow)", count, elapsed, allocatedBytes() - allocated);
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				compensation.compensate(6500000 + (i & 0xffff), 8300000 + (i / 50 & 0xff), out, 0);
+				sum += out[0];
+			}
+			elapsed = System.nanoTime() - start;
+			if (pass == 1)
+				report("Horner", count, elapsed, allocatedBytes() - allocated);
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				compensation.compensateInteger(6500000 + (i & 0xffff), 8300000 + (i / 50 & 0xff), out, 0);
+				sum += out[0];
+			}
+			elapsed = System.nanoTime() - start;
+			if (pass == 1) {
+				report("Fixed point", count, elapsed, allocatedBytes() - allocated);
+				System.out.printf("  (checksum %.1f)\n", sum);
+			}
+		}
+	}
+
+	/**
+	 * Compare the altitude table with the Math.pow formula it replaces
+	 *
+	 * @param args Command line arguments
+	 */
+	private static void benchmarkAltitude(String... args) {
+		int millions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		double qnh = Config.qnh;
+		try {
+			// error over the sensor's range, 0.001 hPa apart
+			for (double setting : new double[] { 950.0, AltitudeConverter.STANDARD_QNH, 1050.0 }) {
+				Config.qnh = setting;
+				AltitudeConverter converter = new AltitudeConverter();
+				double maxError = 0, worstPressure = 0;
+				for (int i = 0; i <= 950000; i++) {
+					double pressure = AltitudeConverter.MIN_PRESSURE + i * 0.001;
+					double error = Math.abs(converter.toAltitude(pressure) - AltitudeConverter.formula(pressure, setting));
+					if (error > maxError) {
+						maxError = error;
+						worstPressure = pressure;
+					}
+				}
+				System.out.printf("QNH %.2fhPa: max error %.2f mm (at %.1fhPa)\n", setting, maxError * 1000,
+						worstPressure);
+			}
+
+			// time a slow climb near 900 hPa
+			Config.qnh = AltitudeConverter.STANDARD_QNH;
+			AltitudeConverter converter = new AltitudeConverter();
+			int count = millions * 1000000;
+			for (int pass = 0; pass < 2; pass++) {
+				double sum = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					sum += AltitudeConverter.formula(900 + (i & 0xffff) * 0.0001, AltitudeConverter.STANDARD_QNH);
+				long elapsed = System.nanoTime() - start;
+				if (pass == 1)
+					report("Formula (Math.pow)", count, elapsed, -1);
+
+				start = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					sum += converter.toAltitude(900 + (i & 0xffff) * 0.0001);
+				elapsed = System.nanoTime() - start;
+				if (pass == 1) {
+					report("Table", count, elapsed, -1);
+					System.out.printf("  (checksum %.1f)\n", sum);
+				}
+			}
+		} finally {
+			Config.qnh = qnh;
+		}
+	}
+
+	/**
+	 * Feed data to the parsers in serial sized chunks
+	 */
+	private static void feed(NMEAParser parser, LegacyParser legacy, byte[] data, int length) {
+		for (int i = 0; i < length; i += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, length - i);
+			if (parser != null)
+				parser.accept(data, i, count);
+			if (legacy != null)
+				legacy.accept(new String(data, i, count, StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Print the results of a benchmark run
+	 */
+	private static void report(String name, long count, long nanos, long allocated) {
+		System.out.printf("%s: %d in %.1f ms, %.0f ns each", name, count, nanos / 1e6,
+				count > 0 ? (double) nanos / count : 0.0);
+		if (allocated >= 0)
+			System.out.printf(", %.1f bytes allocated each", count > 0 ? (double) allocated / count : 0.0);
+		System.out.println();
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread
+	 *
+	 * @return Bytes allocated, or -1 if the JVM cannot report it
+	 */
+	private static long allocatedBytes() {
+		try {
+			return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The previous BMP388 compensation, kept for comparison: coefficients scaled with
+	 * Math.pow and the polynomials summed term by term
+	 */
+	private static class LegacyCompensation {
+
+		private double[] tempCalib;
+		private double[] pressureCalib;
+
+		private LegacyCompensation(byte[] calibration) throws Exception {
+			long[] coeff = new Struct().unpack("<HHbhhbbHHbbhbb", calibration);
+			tempCalib = new double[] { (double) coeff[0] / Math.pow(2, -8.0), (double) coeff[1] / Math.pow(2, 30.0),
+					(double) coeff[2] / Math.pow(2, 48.0) };
+			pressureCalib = new double[] { ((double) coeff[3] - Math.pow(2, 14.0)) / Math.pow(2, 20.0),
+					((double) coeff[4] - Math.pow(2, 14.0)) / Math.pow(2, 29.0), (double) coeff[5] / Math.pow(2, 32.0),
+					(double) coeff[6] / Math.pow(2, 37.0), (double) coeff[7] / Math.pow(2, -3.0),
+					(double) coeff[8] / Math.pow(2, 6.0), (double) coeff[9] / Math.pow(2, 8.0),
+					(double) coeff[10] / Math.pow(2, 15.0), (double) coeff[11] / Math.pow(2, 48.0),
+					(double) coeff[12] / Math.pow(2, 48.0), (double) coeff[13] / Math.pow(2, 65.0) };
+		}
+
+		private double[] compensate(long adc_p, long adc_t) {
+			double[] pt = new double[2];
+			double pd1 = (double) adc_t - tempCalib[0];
+			double pd2 = pd1 * tempCalib[1];
+			double temperature = pd2 + (pd1 * pd1) * tempCalib[2];
+
+			pd1 = pressureCalib[5] * temperature;
+			pd2 = pressureCalib[6] * Math.pow(temperature, 2.0);
+			double pd3 = pressureCalib[7] * Math.pow(temperature, 3.0);
+			double po1 = pressureCalib[4] + pd1 + pd2 + pd3;
+
+			pd1 = pressureCalib[1] * temperature;
+			pd2 = pressureCalib[2] * Math.pow(temperature, 2.0);
+			pd3 = pressureCalib[3] * Math.pow(temperature, 3.0);
+			double po2 = (double) adc_p * (pressureCalib[0] + pd1 + pd2 + pd3);
+
+			pd1 = Math.pow(adc_p, 2);
+			pd2 = pressureCalib[8] + pressureCalib[9] * temperature;
+			pd3 = pd1 * pd2;
+			double pd4 = pd3 + pressureCalib[10] * Math.pow(adc_p, 3.0);
+
+			pt[0] = po1 + po2 + pd4;
+			pt[1] = temperature;
+			return pt;
+		}
+	}
+
+	/**
+	 * The previous serial data handling, kept for comparison: a String buffer that is
+	 * appended to, searched and split, then split again and parsed for each sentence
+	 */
+	private static class LegacyParser {
+
+		private String buffer = "";
+		private ArrayList<double[]> dataList = new ArrayList<>();
+		private long count;
+
+		private void accept(String serialData) {
+			if (buffer.length() > 1024) buffer = "";
+			buffer += serialData;
+			String type = buffer.contains("$GPRMC") ? "$GPRMC" : buffer.contains("$GPGGA") ? "$GPGGA" : null;
+			if (type != null) {
+				buffer = buffer.substring(buffer.indexOf(type));
+				if (buffer.split(",").length > 10) {
+					dataList.add(parse(buffer));
+					if (dataList.size() > 15) dataList.remove(0);
+					buffer = "";
+					count++;
+				}
+			}
+		}
+
+		private double[] parse(String data) {
+			String[] parts = data.split(",");
+			double[] result = new double[5];
+			try {
+				if (data.contains("GPRMC")) {
+					String time = String.format("%s.%s.%s", parts[1].substring(0, 2), parts[1].substring(2, 4),
+							parts[1].substring(4, 6));
+					String date = String.format("20%s-%s-%s", parts[9].substring(4, 6), parts[9].substring(2, 4),
+							parts[9].substring(0, 2));
+					result[0] = Double.parseDouble(parts[3].substring(0, 2))
+							+ Double.parseDouble(parts[3].substring(2)) / 60.0;
+					result[1] = Double.parseDouble(parts[5].substring(0, 3))
+							+ Double.parseDouble(parts[5].substring(3)) / 60.0;
+					result[2] = Double.parseDouble(parts[7]);
+					result[3] = Double.parseDouble(parts[8]) + time.length() + date.length();
+				} else {
+					result[0] = Double.parseDouble(parts[2].substring(0, 2))
+							+ Double.parseDouble(parts[2].substring(2)) / 60.0;
+					result[1] = Double.parseDouble(parts[4].substring(0, 3))
+							+ Double.parseDouble(parts[4].substring(3)) / 60.0;
+					result[4] = Double.parseDouble(parts[9]);
+				}
+			} catch (Exception e) {
+				// partial sentence, same as the previous behaviour
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Recognizes gestures from a button's presses and releases.
+ *
+ * A state machine fed the switch's edges, classified by their own timestamps so a
+ * late delivery does not change the gesture: a release before Config.buttonShortTime
+ * is a short press, or a double press if a second short press starts within the
+ * double press time of it; a hold reports its progress from Config.buttonHoldTime and
+ * is a long press once it reaches Config.buttonLongTime, while still held; a hold
+ * released before that is cancelled. Holds and the wait for a second press end with
+ * time rather than an edge, so update must be called regularly. Nothing blocks, and
+ * the listener is called on the thread feeding the recognizer.
+ */
+public class ButtonGestures {
+
+	/**
+	 * Gestures reported to the listener
+	 */
+	public enum Gesture {
+		SHORT, DOUBLE, LONG, CANCEL
+	}
+
+	/**
+	 * Receiver of the recognized gestures
+	 */
+	public interface Listener {
+		/**
+		 * Called when a gesture is recognized
+		 *
+		 * @param gesture The gesture
+		 */
+		void gesture(Gesture gesture);
+
+		/**
+		 * Called on each update while a hold is in progress
+		 *
+		 * @param duration Milliseconds since the press
+		 */
+		void holding(long duration);
+	}
+
+	// states
+	private static final int IDLE = 0;
+	private static final int PRESSED = 1; // pressed, not yet long
+	private static final int RELEASED = 2; // short press released, waiting for a second
+	private static final int LONG_DONE = 3; // long press reported, waiting for the release
+
+	private final Listener listener;
+	private int doubleTime; // milliseconds to wait for a second press, 0 for no double presses
+	private int state;
+	private long pressTime; // time of the last press
+	private long releaseTime; // time of the last release
+	private boolean second; // whether the press in progress follows a short press
+
+	/**
+	 * Constructor for a gesture recognizer
+	 *
+	 * @param listener Receiver of the gestures
+	 */
+	public ButtonGestures(Listener listener) {
+		this.listener = listener;
+		doubleTime = Config.buttonDoubleTime;
+		state = IDLE;
+	}
+
+	/**
+	 * Set how long to wait for a second press. Waiting delays every short press by that
+	 * long, so it can be turned off (0) where double presses mean nothing.
+	 *
+	 * @param doubleTime Milliseconds, 0 for no double presses
+	 */
+	public void setDoubleTime(int doubleTime) {
+		this.doubleTime = doubleTime;
+	}
+
+	/**
+	 * Add a press or release
+	 *
+	 * @param edge The edge
+	 */
+	public void addEdge(Switch.Edge edge) {
+		long time = edge.getTime();
+		update(time);
+
+		if (edge.isPressed()) {
+			second = state == RELEASED;
+			state = PRESSED;
+			pressTime = time;
+		}
+		else if (state == PRESSED) {
+			long duration = time - pressTime;
+			if (duration >= Config.buttonShortTime) {
+				state = IDLE;
+				listener.gesture(Gesture.CANCEL);
+			}
+			else if (second) {
+				state = IDLE;
+				listener.gesture(Gesture.DOUBLE);
+			}
+			else if (doubleTime > 0) {
+				state = RELEASED;
+				releaseTime = time;
+			}
+			else {
+				state = IDLE;
+				listener.gesture(Gesture.SHORT);
+			}
+		}
+		else if (state == LONG_DONE)
+			state = IDLE;
+	}
+
+	/**
+	 * Report the gestures that end with time: a long press, a hold's progress, or a
+	 * short press with no second press
+	 *
+	 * @param time Current time in milliseconds
+	 */
+	public void update(long time) {
+		if (state == RELEASED && time - releaseTime >= doubleTime) {
+			state = IDLE;
+			listener.gesture(Gesture.SHORT);
+		}
+		else if (state == PRESSED) {
+			long duration = time - pressTime;
+
+			// a second press held too long to be a double: the first was a short press
+			if (second && duration >= Config.buttonShortTime) {
+				second = false;
+				listener.gesture(Gesture.SHORT);
+			}
+			if (duration >= Config.buttonLongTime) {
+				state = LONG_DONE;
+				listener.gesture(Gesture.LONG);
+			}
+			else if (duration >= Config.buttonHoldTime)
+				listener.holding(duration);
+		}
+	}
+
+	/**
+	 * Returns whether a gesture is in progress
+	 *
+	 * @return True if the button is held or a second press may follow
+	 */
+	public boolean isActive() {
+		return state != IDLE;
+	}
+}
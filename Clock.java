@@ -0,0 +1,91 @@
+/**
+ * Source of time for the program, either the system clock or a virtual clock.
+ *
+ * On the device this is the system clock and sleep is Thread.sleep. For replay, the
+ * virtual clock only moves when sleep or advance is called, so a recorded flight can
+ * be run as fast as the processing allows and gives the same results every time. The
+ * virtual clock is meant to be driven by a single thread (see Replay); worker threads
+ * are not started in that mode.
+ */
+public class Clock {
+
+	private static volatile boolean virtual = false; // whether the virtual clock is in use
+	private static volatile long virtualTime; // virtual time in milliseconds since the epoch
+
+	/**
+	 * Returns the current time
+	 *
+	 * @return Milliseconds since the Unix epoch
+	 */
+	public static long millis() {
+		return virtual ? virtualTime : System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns a high resolution time for measuring intervals
+	 *
+	 * @return Nanoseconds from an arbitrary origin
+	 */
+	public static long nanos() {
+		return virtual ? virtualTime * 1000000L : System.nanoTime();
+	}
+
+	/**
+	 * Wait for a set amount of time, or move the virtual clock forward by that amount
+	 *
+	 * @param milliseconds How long to wait for
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public static void sleep(long milliseconds) throws InterruptedException {
+		if (virtual)
+			advance(milliseconds);
+		else if (milliseconds > 0)
+			Thread.sleep(milliseconds);
+	}
+
+	/**
+	 * Switch to the virtual clock
+	 *
+	 * @param startTime Initial virtual time in milliseconds since the Unix epoch
+	 */
+	public static void useVirtual(long startTime) {
+		virtualTime = startTime;
+		virtual = true;
+	}
+
+	/**
+	 * Switch back to the system clock
+	 */
+	public static void useSystem() {
+		virtual = false;
+	}
+
+	/**
+	 * Returns whether the virtual clock is in use
+	 *
+	 * @return True for replay
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Move the virtual clock forward
+	 *
+	 * @param milliseconds Amount to move forward, ignored if negative
+	 */
+	public static void advance(long milliseconds) {
+		if (milliseconds > 0)
+			virtualTime += milliseconds;
+	}
+
+	/**
+	 * Move the virtual clock forward to a time, if it is not already past it
+	 *
+	 * @param time Time in milliseconds since the Unix epoch
+	 */
+	public static void advanceTo(long time) {
+		if (time > virtualTime)
+			virtualTime = time;
+	}
+}
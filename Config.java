@@ -38,23 +38,92 @@ public class Config {
 	// if true, give extra console output
 	public static boolean verbose = false;
 
+	// if true, run with simulated devices instead of the Raspberry Pi's I/O (use with gpsSource SIM)
+	public static boolean simulateDevices = false;
+
+	// presses for the simulated main switch as wait:hold in milliseconds, e.g. "5000:300,500:2500"
+	public static String simButtonScript = "";
+
 	// time zone string to save with data
 	public static String timeZone = "GMT"; // GPS sends time in GMT timezone
 
 	// if using USB for GPS serial connection, use "USB"
 	// if disconnected, use "NONE"
+	// to read gpsDevice directly on a dedicated thread instead of through pi4j, use "DIRECT"
+	// for a simulated module playing gpsSimFile (or a generated flight), use "SIM"
 	// otherwise use default (UART)
 	public static String gpsSource = "USB";
 
+	// protocol sent by the GPS module: "NMEA" sentences, or "UBX" NAV-PVT messages for u-blox modules
+	public static String gpsProtocol = "NMEA";
+
+	// device path read when gpsSource is DIRECT (can be any path, e.g. a pseudo terminal)
+	public static String gpsDevice = "/dev/ttyS0";
+
+	// NMEA log played by the simulated GPS module, or empty to generate a flight
+	public static String gpsSimFile = "";
+
+	// baud rate of the GPS serial connection
+	public static int gpsBaud = 9600;
+
+	// if true, set the GPS module's baud rate, sentences and fix rate at startup
+	public static boolean gpsConfigure = false;
+
+	// baud rate the GPS module uses when it powers up
+	public static int gpsDefaultBaud = 9600;
+
+	// milliseconds between GPS fixes (100 for 10Hz, needs a baud rate of at least 38400)
+	public static int gpsUpdateInterval = 1000;
+
+	// sentences the GPS module should send with each fix (any of GLL, RMC, VTG, GGA, GSA, GSV)
+	public static String gpsSentences = "RMC,GGA";
+
+	// milliseconds to wait for the GPS module to acknowledge a command
+	public static int gpsAckTimeout = 1000;
+
 	// if no data is received for this number of milliseconds, consider GPS fix lost
 	public static int gpsDataTimeout = 15000;
 
+	// number of previous GPS fixes to keep
+	public static int gpsHistorySize = 15;
+
 	// delay time (in milliseconds) between checking USB devices
 	public static int usbPollingInterval = 5000;
 
 	// milliseconds to wait before the next main loop iteration
 	public static int mainLoopDelay = 100;
 
+	// how the barometer is read: "NORMAL" measures continuously and each sample is one burst read,
+	// "FIFO" measures continuously into the sensor's FIFO which is read in batches,
+	// "FORCED" triggers each sample and polls for it
+	public static String sensorMode = "NORMAL";
+
+	// number of samples read at a time in FIFO mode (at most 72)
+	public static int sensorFifoBatch = 10;
+
+	// if true, compensate barometer readings with Bosch's fixed point formulas instead of floating point
+	public static boolean sensorIntegerCompensation = false;
+
+	// GPIO pin wired to the barometer's INT pin to read each sample when the sensor signals
+	// it (NORMAL or FIFO sensorMode), or -1 to time the reads with sleeps
+	public static int sensorIntPin = -1;
+
+	// altitude noise per barometer sample (m RMS) to tune the oversampling and filtering for, choosing
+	// the lowest latency that meets it from the measured noise, or 0 for fixed settings (x8, IIR 2);
+	// how often the choice may change (s), and the GPS ground speed above which the device is flying (km/h)
+	public static double sensorNoiseTarget = 0.1;
+	public static int sensorTuneInterval = 30;
+	public static double sensorTuneSpeed = 10.0;
+
+	// sea level pressure in hPa that barometric altitudes are measured from
+	public static volatile double qnh = AltitudeConverter.STANDARD_QNH;
+
+	// if set, every barometer sample is appended to this file for replay (time in ms, pressure in Pa, temperature)
+	public static String pressureTrace = "";
+
+	// if set, all serial data from the GPS module is appended to this file for replay
+	public static String gpsTrace = "";
+
 	// milliseconds to wait on startup before attempting to initialize device
 	public static int programStartDelay = 0; // (defaulted to no delay)
 
@@ -62,14 +131,51 @@ public class Config {
 	public static int ledErrorFlashes = 3; // number of flashes when showing an error
 	public static int ledFlashTime = 500; // milliseconds that LED should be on for during a flash
 	public static int ledFlashOffTime = 500; // milliseconds that LED should be off for after a flash
-	public static int ledRefreshTime = 100; // milliseconds between checks for if LED should be updated
+	public static int ledRefreshTime = 100; // no longer used: the LED is updated as soon as an event is queued
 	public static int ledSensorDelayTime = 50; // milliseconds to delay sensor reading after LED is fired
 	public static int ledExtraFlashColour = -1; // one extra flash per reading - use a colour code from LED.java
 
 	public static boolean varioAudioOn = true;
-	public static int altitudeSource = 0;
+	public static int altitudeSource = 0; // 0 barometer calibrated by GPS, 1 GPS, 2 barometer
 	public static int mode = 1;
 
+	// vario audio: climb rates (m/s) from varioSinkThreshold to varioClimbThreshold are silent,
+	// others sound as varioAudioTable gives them, interpolated between comma separated
+	// climb:frequency(Hz):beep period(ms, 0 for continuous):duty points (empty for the default),
+	// and frequency changes glide with a time constant of varioAudioGlide milliseconds
+	public static double varioSinkThreshold = -0.5;
+	public static double varioClimbThreshold = 0.5;
+	public static String varioAudioTable = "";
+	public static int varioAudioGlide = 50;
+
+	// button gestures (milliseconds): a press shorter than buttonShortTime is short, two within
+	// buttonDoubleTime make a double press (outside the menu), a hold shows its progress from
+	// buttonHoldTime and completes at buttonLongTime, and the menu closes after menuTimeout idle
+	public static int buttonShortTime = 1000;
+	public static int buttonDoubleTime = 400;
+	public static int buttonHoldTime = 500;
+	public static int buttonLongTime = 2000;
+	public static int menuTimeout = 5000;
+
+	// how the climb rate is found: "KALMAN" estimates it from each sample, "AVERAGE"
+	// compares the average altitudes of the last two seconds (about a second behind)
+	public static String varioFilter = "KALMAN";
+	public static double varioProcessNoise = 0.3; // KALMAN: spectral density of vertical jerk ((m/s^3)^2/Hz)
+	public static double varioMeasurementNoise = 0.3; // KALMAN: standard deviation of barometric altitude (m)
+	public static double varioAccelNoise = 0.5; // KALMAN: standard deviation of accelerometer vertical acceleration (m/s^2)
+
+	// accelerometer on the sensor I2C bus feeding the vario ("MPU6050", or "NONE"), samples per
+	// second, samples read from its FIFO at a time, and seconds over which gravity is averaged
+	public static String imuDevice = "NONE";
+	public static int imuSampleRate = 200;
+	public static int imuFifoBatch = 4;
+	public static double imuGravityTime = 5.0;
+
+	// barometer calibration by GPS (altitudeSource 0): how fast the barometer's error is expected to
+	// drift (m per square root of a second) and the noise of GPS altitude at an HDOP of 1 (m)
+	public static double altitudeDrift = 0.1;
+	public static double gpsAltitudeNoise = 10.0;
+
 	// GPIO pin assignments (wiringPi numbering)
 	// pin 8 is for sensor SDA (I2C)
 	// pin 9 is for sensor SCL (I2C)
@@ -128,12 +234,94 @@ public class Config {
 				timeZone = b;
 			else if (a.equals("gpsSource"))
 				gpsSource = b;
+			else if (a.equals("gpsProtocol"))
+				gpsProtocol = b;
+			else if (a.equals("gpsSimFile"))
+				gpsSimFile = b;
+			else if (a.equals("simulateDevices"))
+				simulateDevices = b.equals("true");
+			else if (a.equals("simButtonScript"))
+				simButtonScript = b;
+			else if (a.equals("gpsDevice"))
+				gpsDevice = b;
+			else if (a.equals("gpsBaud"))
+				gpsBaud = Integer.parseInt(b);
+			else if (a.equals("gpsConfigure"))
+				gpsConfigure = b.equals("true");
+			else if (a.equals("gpsDefaultBaud"))
+				gpsDefaultBaud = Integer.parseInt(b);
+			else if (a.equals("gpsUpdateInterval"))
+				gpsUpdateInterval = Integer.parseInt(b);
+			else if (a.equals("gpsSentences"))
+				gpsSentences = b;
+			else if (a.equals("gpsAckTimeout"))
+				gpsAckTimeout = Integer.parseInt(b);
 			else if (a.equals("gpsDataTimeout"))
 				gpsDataTimeout = Integer.parseInt(b);
+			else if (a.equals("gpsHistorySize"))
+				gpsHistorySize = Integer.parseInt(b);
 			else if (a.equals("usbPollingInterval"))
 				usbPollingInterval = Integer.parseInt(b);
 			else if (a.equals("mainLoopDelay"))
 				mainLoopDelay = Integer.parseInt(b);
+			else if (a.equals("sensorMode"))
+				sensorMode = b;
+			else if (a.equals("sensorFifoBatch"))
+				sensorFifoBatch = Integer.parseInt(b);
+			else if (a.equals("sensorIntegerCompensation"))
+				sensorIntegerCompensation = b.equals("true");
+			else if (a.equals("sensorIntPin"))
+				sensorIntPin = Integer.parseInt(b);
+			else if (a.equals("sensorNoiseTarget"))
+				sensorNoiseTarget = Double.parseDouble(b);
+			else if (a.equals("sensorTuneInterval"))
+				sensorTuneInterval = Integer.parseInt(b);
+			else if (a.equals("sensorTuneSpeed"))
+				sensorTuneSpeed = Double.parseDouble(b);
+			else if (a.equals("buttonShortTime"))
+				buttonShortTime = Integer.parseInt(b);
+			else if (a.equals("buttonDoubleTime"))
+				buttonDoubleTime = Integer.parseInt(b);
+			else if (a.equals("buttonHoldTime"))
+				buttonHoldTime = Integer.parseInt(b);
+			else if (a.equals("buttonLongTime"))
+				buttonLongTime = Integer.parseInt(b);
+			else if (a.equals("menuTimeout"))
+				menuTimeout = Integer.parseInt(b);
+			else if (a.equals("varioSinkThreshold"))
+				varioSinkThreshold = Double.parseDouble(b);
+			else if (a.equals("varioClimbThreshold"))
+				varioClimbThreshold = Double.parseDouble(b);
+			else if (a.equals("varioAudioTable"))
+				varioAudioTable = b;
+			else if (a.equals("varioAudioGlide"))
+				varioAudioGlide = Integer.parseInt(b);
+			else if (a.equals("varioFilter"))
+				varioFilter = b;
+			else if (a.equals("varioProcessNoise"))
+				varioProcessNoise = Double.parseDouble(b);
+			else if (a.equals("varioMeasurementNoise"))
+				varioMeasurementNoise = Double.parseDouble(b);
+			else if (a.equals("varioAccelNoise"))
+				varioAccelNoise = Double.parseDouble(b);
+			else if (a.equals("imuDevice"))
+				imuDevice = b;
+			else if (a.equals("imuSampleRate"))
+				imuSampleRate = Integer.parseInt(b);
+			else if (a.equals("imuFifoBatch"))
+				imuFifoBatch = Integer.parseInt(b);
+			else if (a.equals("imuGravityTime"))
+				imuGravityTime = Double.parseDouble(b);
+			else if (a.equals("altitudeDrift"))
+				altitudeDrift = Double.parseDouble(b);
+			else if (a.equals("gpsAltitudeNoise"))
+				gpsAltitudeNoise = Double.parseDouble(b);
+			else if (a.equals("qnh"))
+				qnh = Double.parseDouble(b);
+			else if (a.equals("pressureTrace"))
+				pressureTrace = b;
+			else if (a.equals("gpsTrace"))
+				gpsTrace = b;
 			else if (a.equals("programStartDelay"))
 				programStartDelay = Integer.parseInt(b);
 
@@ -12,14 +12,26 @@ public class DeviceController {
 	// component controllers
 	private GpioController gpio;
 	private I2CBus i2cBus;
+	private I2CRegisters.Bus sensorBus; // lock and statistics for the sensors on i2cBus
 	private GPS gps;
 	private Tone tone;
 	private BMP388 sensor;
+	private AltitudeFusion fusion; // barometric altitude calibrated by GPS
+	private MPU6050 imu; // accelerometer feeding the vario, null if none
+	private Topic<GPSData> fixes; // each GPS fix as it is published
+	private Topic<VarioData> vario; // altitude and climb for each barometer sample
+	private Topic.Subscription<GPSData> fusionStage; // corrects the altitude with each fix
+	private Topic.Subscription<PTAData> varioStage; // turns barometer samples into vario data
 	private ArrayList<LED> leds;
 	private LCD lcd;
 	private SimplePin switchOut;
 	private Switch mainSwitch;
 
+	// last output, kept for replay where there is no LCD or piezo
+	private String[] lcdLines = { "", "" };
+	private VarioAudio audio; // turns the climb rate into the tone
+	private int toneFrequency;
+
 	/**
 	 * Initialize components and I/O
 	 * 
@@ -29,6 +41,9 @@ public class DeviceController {
 		if (Config.verbose)
 			System.out.println("Initializing components...");
 		try {
+			if (Config.simulateDevices)
+				return initSimulated();
+
 			// initialize I/O
 			i2cBus = I2CFactory.getInstance(I2CBus.BUS_1);
 			gpio = GpioFactory.getInstance();
@@ -38,10 +53,14 @@ public class DeviceController {
 			lcd = new LCD();
 			gps = new GPS(gpio, Config.gpsLedPin, Config.gpsSwitchPin);
 			tone = new Tone(Config.piezoPin, "piezo");
-			sensor = new BMP388(i2cBus);
+			sensorBus = new I2CRegisters.Bus("I2C");
+			sensor = new BMP388(i2cBus.getDevice(BMP388.ADDRESS), sensorBus, gpio);
+			if (Config.imuDevice.equals("MPU6050"))
+				imu = new MPU6050(i2cBus.getDevice(MPU6050.ADDRESS), sensorBus, sensor.getVarioFilter());
 			mainSwitch = new Switch(gpio, "main", Config.mainSwitchInPin);
 			switchOut = new SimplePin(gpio, "switchOut", Config.mainSwitchOutPin);
 			switchOut.on();
+			startPipeline(true);
 
 			if (Config.verbose)
 				System.out.println("Done initializing components");
@@ -53,22 +72,161 @@ public class DeviceController {
 		return false;
 	}
 
+	/**
+	 * Initialize simulated components, for running without a Raspberry Pi
+	 * 
+	 * @return True if everything initialized without fatal errors
+	 */
+	private boolean initSimulated() throws Exception {
+		if (!Config.gpsSource.equals("SIM") && !Config.gpsSource.equals("NONE"))
+			System.out.println("Warning: simulated devices with gpsSource " + Config.gpsSource);
+
+		lcd = new LCD(true);
+		gps = new GPS(new Switch("gpsSwitch"), new LED("gpsFix"));
+		tone = new Tone(Config.piezoPin, "piezo", true);
+		SimBMP388 simSensor = new SimBMP388();
+		// the INT pin is only simulated when one is configured, as only then is it wired
+		if (Config.sensorIntPin >= 0) {
+			simSensor.setInterruptHandler(new Runnable() {
+				@Override
+				public void run() {
+					if (sensor != null)
+						sensor.dataReady();
+				}
+			});
+		}
+		sensorBus = new I2CRegisters.Bus("I2C");
+		sensor = new BMP388(simSensor, sensorBus, null);
+		if (Config.imuDevice.equals("MPU6050"))
+			imu = new MPU6050(new SimMPU6050(), sensorBus, sensor.getVarioFilter());
+		mainSwitch = new Switch("main");
+		if (!Config.simButtonScript.isEmpty())
+			mainSwitch.runScript(Config.simButtonScript);
+		startPipeline(true);
+
+		if (Config.verbose)
+			System.out.println("Done initializing simulated components");
+
+		return true;
+	}
+
+	/**
+	 * Initialize with devices fed from recorded data instead of I/O (used for replay)
+	 * 
+	 * @param gps GPS controller fed with recorded serial data
+	 * @param sensor Barometer fed with recorded samples
+	 */
+	public void initReplay(GPS gps, BMP388 sensor) {
+		this.gps = gps;
+		this.sensor = sensor;
+		startPipeline(false);
+	}
+
+	/**
+	 * Connect the GPS and barometer to the stages that process their data: fusion
+	 * calibrates the barometric altitude with each GPS fix, and vario turns each
+	 * barometer sample into the altitude and climb the display and tone use
+	 * 
+	 * @param threaded Whether the stages run as the data arrives, on the threads that
+	 *                 read it, otherwise dispatch must be called regularly (used for
+	 *                 replay)
+	 */
+	private void startPipeline(boolean threaded) {
+		fusion = new AltitudeFusion(sensor);
+		fixes = new Topic<>("fixes");
+		vario = new Topic<>("vario");
+		gps.setFixListener(new EpochAssembler.Listener() {
+			@Override
+			public void fixPublished(GPSData fix) {
+				fixes.publish(fix);
+			}
+		});
+
+		fusionStage = fixes.subscribe("fusion", 16, Topic.Policy.DROP_OLDEST, new Topic.Handler<GPSData>() {
+			@Override
+			public void handle(GPSData fix) {
+				fusion.addGPSFix(fix);
+				if (sensor.getTuner() != null && fix != null && fix.isValid())
+					sensor.getTuner().setFlying(fix.getSpeedKMH() > Config.sensorTuneSpeed);
+			}
+		});
+		varioStage = sensor.getReadings().subscribe("vario", 64, Topic.Policy.DROP_OLDEST,
+				new Topic.Handler<PTAData>() {
+					@Override
+					public void handle(PTAData sample) {
+						vario.publish(new VarioData(sample, getAltitude(), getAltitudeChange(), Clock.millis()));
+					}
+				});
+		audio = new VarioAudio(tone);
+		// both stages are cheap, so they run on the reading threads rather than costing a
+		// thread switch for each sample
+		if (threaded) {
+			fusionStage.inline();
+			varioStage.inline();
+			if (tone != null)
+				audio.start();
+		}
+	}
+
+	/**
+	 * Run the stages on the calling thread, when not threaded
+	 */
+	public void dispatch() {
+		fusionStage.dispatch();
+		varioStage.dispatch();
+	}
+
+	/**
+	 * Returns the stream of GPS fixes
+	 * 
+	 * @return Topic of fixes
+	 */
+	public Topic<GPSData> getFixes() {
+		return fixes;
+	}
+
+	/**
+	 * Returns the stream of altitude and climb, one for each barometer sample
+	 * 
+	 * @return Topic of vario data
+	 */
+	public Topic<VarioData> getVario() {
+		return vario;
+	}
+
 	public void shutdown() {
 		if (Config.verbose)
 			System.out.println("Stopping devices...");
 		try {
+			if (fixes != null)
+				fixes.close();
+			if (vario != null)
+				vario.close();
+			if (sensor != null)
+				sensor.getReadings().close();
 			if (lcd != null)
 				lcd.shutdown();
 			if (gps != null)
 				gps.shutdown();
 			if (sensor != null)
 				sensor.shutdown();
+			if (imu != null)
+				imu.shutdown();
+			if (sensorBus != null && Config.verbose)
+				sensorBus.print();
+			if (audio != null)
+				audio.shutdown();
 			if (tone != null)
 				tone.shutdown();
+			if (mainSwitch != null)
+				mainSwitch.shutdown();
 			if (gpio != null)
 				gpio.shutdown();
 			if (i2cBus != null)
 				i2cBus.close();
+
+			// stop the shared scheduler and let the blocking workers end
+			Workers.shutdown();
 		} catch (Exception e) {
 			Errors.handleException(e, "Failed to gracefully stop devices");
 		}
@@ -89,6 +247,38 @@ public class DeviceController {
 		return sensor.getLastData();
 	}
 
+	/**
+	 * Returns the altitude from the source chosen by Config.altitudeSource
+	 *
+	 * @return Altitude in metres, or NaN if the source has no data yet
+	 */
+	public double getAltitude() {
+		if (Config.altitudeSource == 1) {
+			GPSData data = getGPSData();
+			return data == null ? Double.NaN : data.getAltitude();
+		} else if (Config.altitudeSource == 2) {
+			PTAData data = getPTA();
+			return data == null ? Double.NaN : data.getAltitude();
+		}
+		return fusion.getAltitude();
+	}
+
+	public AltitudeFusion getAltitudeFusion() {
+		return fusion;
+	}
+
+	/**
+	 * Set the QNH so the barometric altitude matches the GPS calibrated altitude
+	 *
+	 * @return The new QNH in hPa, or NaN if there has been no GPS fix or barometer sample
+	 */
+	public double setQNHFromGPS() {
+		if (!fusion.isCalibrated() || Double.isNaN(fusion.getQNH()))
+			return Double.NaN;
+		Config.qnh = fusion.getQNH();
+		return Config.qnh;
+	}
+
 	public double getAltitudeChange() {
 		return sensor.getAltitudeChange();
 	}
@@ -97,8 +287,19 @@ public class DeviceController {
 		tone.play(freq);
 	}
 
-	public void setTone(int freq) {
-		tone.setFreq(freq);
+	/**
+	 * Set the vario's sound from a climb rate
+	 * 
+	 * @param climb Climb rate in m/s
+	 * @param sampleTime Clock.millis the barometer sample it came from was measured
+	 */
+	public void setClimb(double climb, long sampleTime) {
+		toneFrequency = Config.varioAudioOn ? audio.getFrequency(climb) : 0;
+		audio.setClimb(climb, sampleTime);
+	}
+
+	public int getToneFrequency() {
+		return toneFrequency;
 	}
 
 	public void stopTone() {
@@ -106,7 +307,13 @@ public class DeviceController {
 	}
 
 	public void setLCDLine(int lineNum, String line) {
-		lcd.writeLine(lineNum, line);
+		lcdLines[lineNum] = line;
+		if (lcd != null)
+			lcd.writeLine(lineNum, line);
+	}
+
+	public String getLCDLine(int lineNum) {
+		return lcdLines[lineNum];
 	}
 
 	public void setLCDLines(String line1, String line2) {
@@ -170,6 +377,85 @@ public class DeviceController {
 				}
 			}
 
+			// print the vario audio's latency and table
+			else if (args[1].equals("audio")) {
+				audio.print();
+			}
+
+			// print barometer sample timing
+			else if (args[1].equals("timing")) {
+				sensor.getSampleTiming().print();
+				if (args.length > 2 && args[2].equals("reset"))
+					sensor.getSampleTiming().reset();
+			}
+
+			// print the timing of the scheduled tasks, and the blocking workers
+			else if (args[1].equals("scheduler")) {
+				Workers.print();
+			}
+
+			// print the data streams and their subscribers
+			else if (args[1].equals("pipeline")) {
+				sensor.getReadings().print();
+				fixes.print();
+				vario.print();
+				if (mainSwitch != null)
+					mainSwitch.getEdges().print();
+			}
+
+			// print the barometer's noise estimates and tuning
+			else if (args[1].equals("tune")) {
+				if (sensor.getTuner() == null)
+					System.out.printf("Fixed settings: OSR x%d, IIR %d\n", sensor.getPressureOversampling(),
+							sensor.getFilterCoefficient());
+				else
+					sensor.getTuner().print();
+			}
+
+			// show or set the QNH, from a value in hPa or the GPS altitude
+			else if (args[1].equals("qnh")) {
+				if (args.length > 2 && args[2].equals("gps")) {
+					if (Double.isNaN(setQNHFromGPS()))
+						System.out.println("NO GPS FIX");
+				} else if (args.length > 2)
+					Config.qnh = Double.parseDouble(args[2]);
+				System.out.printf("QNH: %.2fhPa\n", Config.qnh);
+				if (fusion.isCalibrated())
+					System.out.printf("GPS calibration: QNH %.2fhPa, offset %+.1fm (+/- %.1fm)\n", fusion.getQNH(),
+							fusion.getOffset(), fusion.getUncertainty());
+			}
+
+			// print accelerometer statistics and the vario filter state
+			else if (args[1].equals("imu")) {
+				if (imu == null)
+					System.out.println("NO ACCELEROMETER");
+				else
+					System.out.printf("MPU6050: %d samples in %d reads, %d overflows, vertical %+.2fm/s2\n",
+							imu.getSamples(), imu.getFifoReads(), imu.getOverflows(), imu.getVerticalAcceleration());
+				VarioFilter vario = sensor.getVarioFilter();
+				System.out.printf("Vario: %.1fm, %+.2fm/s, %+.2fm/s2\n", vario.getAltitude(), vario.getVerticalSpeed(),
+						vario.getAcceleration());
+			}
+
+			// print sensor bus statistics
+			else if (args[1].equals("i2c")) {
+				if (sensorBus == null)
+					System.out.println("NO SENSOR BUS");
+				else {
+					sensorBus.print();
+					if (sensor.getRegisters() != null)
+						sensor.getRegisters().print();
+					if (imu != null)
+						imu.getRegisters().print();
+				}
+			}
+
+			// press the main switch (simulated devices)
+			else if (args[1].equals("press")) {
+				int hold = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+				mainSwitch.runScript("0:" + hold);
+			}
+
 			else
 				System.out.println("Invalid test");
 		} catch (Exception e) {
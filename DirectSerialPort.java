@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * GPS serial connection that reads the device file directly.
+ *
+ * A single reader thread blocks on a FileChannel and reads into one reused direct
+ * buffer, which is handed straight to the receiver. This avoids the String or byte
+ * array that pi4j creates for every event. Any readable path can be used, so a pseudo
+ * terminal (e.g. from socat) can stand in for the module on a desktop machine.
+ */
+public class DirectSerialPort implements GPSPort {
+
+	private static final int BUFFER_SIZE = 1024;
+
+	private String device; // device path
+	private Receiver receiver; // receiver for incoming data
+	private FileChannel channel; // device file opened for reading
+	private FileChannel output; // device file opened for writing, null if read-only
+	private ReaderWorker workerThread; // reads from the channel
+
+	/**
+	 * Constructor for a direct serial connection
+	 *
+	 * @param device Device path, e.g. /dev/ttyS0 or a pseudo terminal
+	 * @param receiver Receiver for incoming data
+	 */
+	public DirectSerialPort(String device, Receiver receiver) {
+		this.device = device;
+		this.receiver = receiver;
+	}
+
+	@Override
+	public synchronized void open(int baud) throws IOException {
+		close();
+		configure(baud);
+
+		if (Config.verbose)
+			System.out.printf("GPS: Opening %s directly at %d baud\n", device, baud);
+
+		// separate channels, since a FileChannel holds its position lock while a read
+		// blocks, which would stop writes until the next data arrived
+		channel = FileChannel.open(Paths.get(device), StandardOpenOption.READ);
+		try {
+			output = FileChannel.open(Paths.get(device), StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			// read-only source, such as a recorded log
+			output = null;
+		}
+
+		workerThread = new ReaderWorker(channel);
+		Workers.execute("gps-reader", workerThread);
+	}
+
+	@Override
+	public synchronized void write(byte[] data) throws IOException {
+		if (output == null)
+			throw new IOException("GPS port is not open for writing");
+		ByteBuffer out = ByteBuffer.wrap(data);
+		while (out.hasRemaining())
+			output.write(out);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (workerThread != null)
+			workerThread.shutdown();
+		workerThread = null;
+		try {
+			if (channel != null)
+				channel.close();
+			if (output != null)
+				output.close();
+		} catch (IOException e) {
+			Errors.handleException(e, "Failed to close " + device);
+		}
+		channel = null;
+		output = null;
+	}
+
+	/**
+	 * Set the terminal to raw mode at a baud rate. Fails quietly for paths that are not
+	 * terminals.
+	 *
+	 * @param baud Baud rate
+	 */
+	private void configure(int baud) {
+		try {
+			Process p = Runtime.getRuntime().exec(new String[] { "stty", "-F", device, Integer.toString(baud), "raw",
+					"-echo", "cs8", "-cstopb", "-parenb", "-crtscts", "-ixon", "-ixoff" });
+			if (p.waitFor() != 0 && Config.verbose)
+				System.out.printf("GPS: %s is not a terminal, baud rate not set\n", device);
+		} catch (Exception e) {
+			Errors.handleException(e, "Could not configure " + device);
+		}
+	}
+
+	/**
+	 * Worker thread class
+	 */
+	public class ReaderWorker implements Runnable {
+
+		// flag for whether the worker should shut down
+		private volatile boolean shutdown;
+
+		// channel this worker reads from
+		private FileChannel channel;
+
+		// reused buffer for incoming data
+		private ByteBuffer buffer;
+
+		/**
+		 * Constructor
+		 *
+		 * @param channel Channel to read from
+		 */
+		public ReaderWorker(FileChannel channel) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			shutdown = false;
+		}
+
+		/**
+		 * Main worker loop
+		 */
+		@Override
+		public void run() {
+			while (!shutdown) {
+				try {
+					buffer.clear();
+					int count = channel.read(buffer);
+					if (count > 0) {
+						buffer.flip();
+						receiver.received(buffer);
+					} else if (count < 0) {
+						// end of a file or the other end of a pseudo terminal closed
+						Util.delay(100);
+					}
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (IOException e) {
+					Errors.handleException(e, "Failed to read " + device);
+					Util.delay(1000);
+				}
+			}
+		}
+
+		/**
+		 * Shut down the worker
+		 */
+		public void shutdown() {
+			shutdown = true;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Assembles the NMEA sentences of one GPS epoch into a single fix.
+ *
+ * The module sends several sentences per fix (GGA, GSA, RMC and VTG by default). RMC
+ * and GGA carry the UTC time of the fix, so a change in that time starts a new epoch.
+ * GSA and VTG have no time field and are merged into the epoch that is currently open.
+ *
+ * Each epoch is published exactly once as an immutable GPSData: as soon as both RMC and
+ * GGA have arrived, or otherwise (e.g. no fix, so no useful GGA) when the next epoch
+ * starts. Sentences for an epoch that has already been published are ignored, which
+ * only drops a trailing VTG whose values duplicate the RMC.
+ *
+ * A UBX NAV-PVT carries a whole epoch in one message, so it is published directly.
+ *
+ * Sentences are accepted on the serial thread; the latest fixes can be read from any
+ * thread in constant time.
+ */
+public class EpochAssembler {
+
+	private Listener listener; // notified of each published fix
+	private volatile GPSData latest; // last published fix
+	private volatile GPSData latestComplete; // last published fix with position and altitude
+
+	// state of the open epoch
+	private int epochTime; // UTC time of the open epoch in milliseconds since midnight, -1 if none
+	private boolean published; // whether the open epoch has been published
+	private boolean hasRMC; // whether an RMC was received for this epoch
+	private boolean hasGGA; // whether a GGA was received for this epoch
+	private boolean switchPressed; // whether the GPS switch was pressed during the epoch
+	private boolean rmcValid; // RMC status
+	private int fixQuality; // GGA fix quality
+	private int date; // DDMMYY from RMC
+	private double latitude;
+	private double longitude;
+	private double altitude;
+	private double speed;
+	private double trackingAngle;
+	private int satellites;
+	private double hdop;
+
+	/**
+	 * Listener for published fixes
+	 */
+	public interface Listener {
+		/**
+		 * Called once for each epoch
+		 *
+		 * @param fix The fix for the epoch
+		 */
+		void fixPublished(GPSData fix);
+	}
+
+	/**
+	 * Constructor for an epoch assembler
+	 *
+	 * @param listener Listener to notify of each published fix, may be null
+	 */
+	public EpochAssembler(Listener listener) {
+		this.listener = listener;
+		epochTime = -1;
+		clear();
+	}
+
+	/**
+	 * Merge a parsed sentence into the current epoch
+	 *
+	 * @param parser Parser holding the sentence values
+	 * @param switchPressed Whether the GPS switch is pressed
+	 */
+	public void accept(NMEAParser parser, boolean switchPressed) {
+		int type = parser.getType();
+		if (type == NMEAParser.RMC || type == NMEAParser.GGA) {
+			int time = parser.getTime();
+			if (time != epochTime || time < 0) {
+				if (!published && (hasRMC || hasGGA))
+					publish();
+				epochTime = time;
+				clear();
+			}
+		}
+		if (published)
+			return;
+
+		this.switchPressed |= switchPressed;
+		switch (type) {
+			case NMEAParser.RMC:
+				hasRMC = true;
+				rmcValid = parser.isValid();
+				date = parser.getDate();
+				latitude = parser.getLatitude();
+				longitude = parser.getLongitude();
+				speed = parser.getSpeed();
+				trackingAngle = parser.getTrackingAngle();
+				break;
+			case NMEAParser.GGA:
+				hasGGA = true;
+				fixQuality = parser.getFixQuality();
+				satellites = parser.getSatellites();
+				altitude = parser.getAltitude();
+				if (Double.isNaN(hdop))
+					hdop = parser.getHDOP();
+				if (!hasRMC) {
+					latitude = parser.getLatitude();
+					longitude = parser.getLongitude();
+				}
+				break;
+			case NMEAParser.VTG:
+				if (!hasRMC) {
+					speed = parser.getSpeed();
+					trackingAngle = parser.getTrackingAngle();
+				}
+				break;
+			case NMEAParser.GSA:
+				hdop = parser.getHDOP();
+				break;
+			default:
+				return;
+		}
+
+		if (hasRMC && hasGGA)
+			publish();
+	}
+
+	/**
+	 * Publish the fix from a UBX NAV-PVT, which holds a complete epoch
+	 *
+	 * @param parser Parser holding the decoded NAV-PVT
+	 * @param switchPressed Whether the GPS switch is pressed
+	 */
+	public void accept(UBXParser parser, boolean switchPressed) {
+		int fixType = parser.getFixType();
+		boolean valid = parser.isFixOK() && fixType >= UBXParser.FIX_2D;
+		boolean complete = valid && fixType >= UBXParser.FIX_3D && parser.getTime() >= 0;
+
+		// NAV-PVT has no HDOP, PDOP is the closest it reports
+		publish(new GPSData(valid, complete, parser.getTime(), parser.getDate(),
+				valid ? parser.getLatitude() : -1000.0, valid ? parser.getLongitude() : -1000.0,
+				complete ? parser.getAltitude() : 0.0, parser.getSpeed(), parser.getTrackingAngle(),
+				parser.getSatellites(), parser.getPDOP(), switchPressed));
+	}
+
+	/**
+	 * Returns the last published fix
+	 *
+	 * @return Last fix, or null if none have been published
+	 */
+	public GPSData getLatest() { return latest; }
+
+	/**
+	 * Returns the last published fix that had a valid position and altitude
+	 *
+	 * @return Last complete fix, or null if there has not been one
+	 */
+	public GPSData getLatestComplete() { return latestComplete; }
+
+	/**
+	 * Create the fix for the open epoch and make it visible to readers
+	 */
+	private void publish() {
+		boolean valid = hasRMC ? rmcValid : fixQuality > 0;
+		boolean complete = hasRMC && hasGGA && rmcValid && fixQuality > 0 && !Double.isNaN(altitude);
+		GPSData fix = new GPSData(valid, complete, epochTime, hasRMC ? date : -1,
+				orDefault(latitude, -1000.0), orDefault(longitude, -1000.0), orDefault(altitude, 0.0),
+				orDefault(speed, 0.0), orDefault(trackingAngle, 0.0), satellites, hdop, switchPressed);
+		published = true;
+		publish(fix);
+	}
+
+	/**
+	 * Make a fix visible to readers and notify the listener
+	 *
+	 * @param fix The fix
+	 */
+	private void publish(GPSData fix) {
+		latest = fix;
+		if (fix.isComplete())
+			latestComplete = fix;
+		if (listener != null)
+			listener.fixPublished(fix);
+	}
+
+	/**
+	 * Reset the values for a new epoch
+	 */
+	private void clear() {
+		published = false;
+		hasRMC = false;
+		hasGGA = false;
+		switchPressed = false;
+		rmcValid = false;
+		fixQuality = 0;
+		date = -1;
+		latitude = Double.NaN;
+		longitude = Double.NaN;
+		altitude = Double.NaN;
+		speed = Double.NaN;
+		trackingAngle = Double.NaN;
+		satellites = -1;
+		hdop = Double.NaN;
+	}
+
+	/**
+	 * Substitute a default for a value that was not received
+	 *
+	 * @param value Value, NaN if not received
+	 * @param defaultValue Value to use instead of NaN
+	 * @return The value or the default
+	 */
+	private static double orDefault(double value, double defaultValue) {
+		return Double.isNaN(value) ? defaultValue : value;
+	}
+}
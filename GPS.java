@@ -1,36 +1,87 @@
-import com.pi4j.io.serial.*;
-import com.pi4j.util.Console;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import com.pi4j.io.gpio.GpioController;
 
 /**
- * Controller for the Adafruit Ultimate GPS module and a status LED.
+ * Controller for the Adafruit Ultimate GPS module (or a u-blox module) and a status LED.
  *
- * Converts serial data to GPSData objects, which are stored as a list of the
- * last 15 to be created. If any of the last 15 data are valid (meaning the GPS
- * module says it has a fix), and if data has been received more recently than the
- * timeout (currently 15sec), then the LED will be on.
+ * Config.gpsProtocol selects NMEA sentences or u-blox UBX NAV-PVT messages. If
+ * Config.gpsConfigure is set, the module's baud rate, output and fix rate are
+ * negotiated at startup (see PMTK and UBX).
+ *
+ * Converts serial data to GPSData objects, one per GPS epoch, which are stored in a
+ * ring buffer of the last few to be created (Config.gpsHistorySize). If any of those
+ * are valid (meaning the GPS module says it has a fix), and if data has been received
+ * more recently than the timeout (currently 15sec), then the LED will be on.
  */
 public class GPS {
 	
-	private String buffer; // buffer for incoming serial data
-	private ArrayList<GPSData> dataList; // list of up to 15 previous GPS readings
+	// finds valid fixes in the history
+	private static final RingBuffer.Filter<GPSData> VALID = new RingBuffer.Filter<GPSData>() {
+		@Override
+		public boolean accept(GPSData data) {
+			return data.isValid();
+		}
+	};
+
+	private GPSPort port; // serial connection to the module
+	private PMTK pmtk; // MediaTek module configuration, null if not configuring
+	private UBX ubx; // u-blox module configuration, null if not configuring
+	private boolean binary; // whether the module sends UBX instead of NMEA
+	private NMEAParser parser; // parser for incoming NMEA data
+	private UBXParser ubxParser; // parser for incoming UBX data
+	private EpochAssembler assembler; // merges the sentences of each epoch into one fix
+	private RingBuffer<GPSData> history; // previous GPS readings, written only by the serial thread
 	private long lastDataTime; // the last time serial data was received
+	private FileChannel trace; // file recording the serial data for replay, null if not recording
 	private Switch button; // GPS switch controller
 	private LED led; // GPS LED controller
+	private volatile EpochAssembler.Listener fixListener; // told about each fix, null for none
 		
 	/**
 	 * Constructor for a GPS controller object
 	 * 
-	 * @param gpio GPIO controller
+	 * @param gpio GPIO controller, or null for no switch or LED (replay)
 	 * @param gpsLedPinNum GPIO pin number for GPS LED
 	 * @param gpsSwitchPinNum GPIO pin number for GPS switch
 	 */
 	public GPS(GpioController gpio, int gpsLedPinNum, int gpsSwitchPinNum) {
-		button = new Switch(gpio, "gpsSwitch", gpsSwitchPinNum, true);
-		led = new LED(gpio, "gpsFix", gpsLedPinNum);
-		dataList = new ArrayList<>();
+		this(gpio == null ? null : new Switch(gpio, "gpsSwitch", gpsSwitchPinNum, true),
+				gpio == null ? null : new LED(gpio, "gpsFix", gpsLedPinNum));
+	}
+	
+	/**
+	 * Constructor for a GPS controller object with an existing switch and LED (which
+	 * may be simulated)
+	 * 
+	 * @param button GPS switch, or null for none
+	 * @param led GPS fix LED, or null for none
+	 */
+	public GPS(Switch button, LED led) {
+		this.button = button;
+		this.led = led;
+		history = new RingBuffer<>(Config.gpsHistorySize);
+		assembler = new EpochAssembler(new EpochAssembler.Listener() {
+			@Override
+			public void fixPublished(GPSData fix) {
+				handleFix(fix);
+			}
+		});
+		parser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				handleSentence(parser);
+			}
+		});
+		ubxParser = new UBXParser(new UBXParser.Listener() {
+			@Override
+			public void messageReceived(UBXParser parser) {
+				handleMessage(parser);
+			}
+		});
 		init();
 	}
 	
@@ -39,59 +90,54 @@ public class GPS {
 	 */
 	public void init() {
 		lastDataTime = 0;
-		buffer = "";
+		parser.reset();
+		ubxParser.reset();
+		binary = Config.gpsProtocol.equals("UBX");
+		pmtk = null;
+		ubx = null;
+		if (port != null) port.close();
+		closeTrace();
 		if (Config.gpsSource.equals("NONE")) return;
 		
-        try {
-			// create an instance of the serial communications class
-			final Serial serial = SerialFactory.createInstance();
-
-			// create and register the serial data listener
-			// this will run in its own thread
-			serial.addListener(new SerialDataEventListener() {
+		try {
+			GPSPort.Receiver receiver = new GPSPort.Receiver() {
 				@Override
-				public void dataReceived(SerialDataEvent event) {
-
-					// NOTE! - It is extremely important to read the data received from the
-					// serial port.  If it does not get read from the receive buffer, the
-					// buffer will continue to grow and consume memory.
-
-					// read and handle the serial data
-					try {
-						handleSerialData(event.getAsciiString());
-					} catch (IOException e) {
-						Errors.handleException(e, "Serial I/O failure");
-					}
+				public void received(ByteBuffer data) {
+					handleSerialData(data);
 				}
-			});
-			
-            // create serial config object
-            SerialConfig config = new SerialConfig();
-            
-            // *** need to enable serial in Raspberry Pi config ***
-            // set serial I/O settings
-            String device = "/dev/ttyS0"; // SerialPort.getDefaultPort(); // should return /dev/ttyS0 for UART
-            if (Config.gpsSource.equals("USB")) device = "/dev/ttyUSB0";
-            config.device(device)
-                  .baud(Baud._9600)
-                  .dataBits(DataBits._8)
-                  .parity(Parity.NONE)
-                  .stopBits(StopBits._1)
-                  .flowControl(FlowControl.NONE);
+			};
 
-            // display connection details
-            if (Config.verbose) {
-				System.out.printf("GPS: Opening serial connection to: %s\n", config.toString());
-			}
+			// the direct source reads any device path on its own thread, the simulated
+			// source plays a log or a generated flight, otherwise pi4j reads the UART
+			// (should be /dev/ttyS0) or the USB adapter
+			if (Config.gpsSource.equals("DIRECT"))
+				port = new DirectSerialPort(Config.gpsDevice, receiver);
+			else if (Config.gpsSource.equals("SIM"))
+				port = new SimGPSPort(Config.gpsSimFile, receiver);
+			else if (Config.gpsSource.equals("USB"))
+				port = new PiSerialPort("/dev/ttyUSB0", receiver);
+			else
+				port = new PiSerialPort("/dev/ttyS0", receiver);
+
+			if (!Config.gpsTrace.isEmpty())
+				trace = FileChannel.open(Paths.get(Config.gpsTrace), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
 
-            // open the default serial device/port with the configuration settings
-            serial.open(config);
+			// negotiate baud rate, output and fix rate, or just open at the set baud rate
+			if (Config.gpsConfigure && binary) {
+				ubx = new UBX(port);
+				ubx.configure();
+			} else if (Config.gpsConfigure) {
+				pmtk = new PMTK(port);
+				pmtk.configure();
+			} else
+				port.open(Config.gpsBaud);
             
 			if (Config.verbose) System.out.println("GPS: ready");
-        }
-        catch(Exception e) {
-            Errors.handleException(e, "Serial setup failed");
-        }
+		}
+		catch(Exception e) {
+			Errors.handleException(e, "Serial setup failed");
+		}
 	}
 		
 	/**
@@ -100,36 +146,19 @@ public class GPS {
 	 * @return Last valid GPSData or null if none are valid
 	 */
 	public GPSData getLastValid() {
-		if (dataList.size() < 1) return null;
-		for (int i = dataList.size() - 1; i >= 0; i--) {
-			if (dataList.get(i) != null && dataList.get(i).isValid()) {
-				GPSData result = dataList.get(i);
-				if (button != null && button.isPressed()) return filter(result);
-				return result;
-			}
-		}
-		return null;
+		GPSData result = history.latestValid(VALID);
+		if (result != null && button != null && button.isPressed()) return filter(result);
+		return result;
 	}
 
+	/**
+	 * Get the last GPS data with a valid position and altitude from the same epoch
+	 * 
+	 * @return Last complete GPSData or null if there has not been one
+	 */
 	public GPSData getLastComplete() {
-		if (dataList.size() < 1) return null;
-		GPSData result = null;
-		for (int i = dataList.size() - 1; i >= 0; i--) {
-			GPSData item = dataList.get(i);
-			if (item != null && item.isValid() && item.getDate() != null) {
-				result = item;
-				break;
-			}
-		}
-		if (result == null) return null;
-		for (int i = dataList.size() - 1; i >= 0; i--) {
-			GPSData item = dataList.get(i);
-			if (item != null && item.isValid() && item.getAltitude() > 0) {
-				result.setAltitude(item.getAltitude());
-				break;
-			}
-		}
-		if (result == null || result.getAltitude() <= 0) return null;
+		GPSData result = assembler.getLatestComplete();
+		if (result != null && button != null && button.isPressed()) return filter(result);
 		return result;
 	}
 		
@@ -139,43 +168,46 @@ public class GPS {
 	 * @return Last GPSData or null if there is no data
 	 */
 	public GPSData getLast() {
-		if (dataList.size() < 1) return null;
-		GPSData result = dataList.get(dataList.size() - 1);
+		GPSData result = assembler.getLatest();
+		if (result == null) return null;
 		if (button != null && button.isPressed()) return filter(result);
 		return result;
 	}
 		
 	/**
-	 * Get all GPS data (only keeps the last 15)
+	 * Get the retained GPS data history (only keeps the last Config.gpsHistorySize)
 	 * - not currently in use by the program
 	 * 
-	 * @return List of all retained GPSData
+	 * @return History of GPSData, newest first
 	 */
-	public ArrayList<GPSData> getAllData() { return dataList; }
+	public RingBuffer<GPSData> getHistory() { return history; }
 	
 	/**
-	 * Update the LED, on if any of the last 15 are valid
+	 * Update the LED, on if any of the retained data are valid
 	 */
 	public void updateLED() {
+		if (led == null) return;
 		boolean hasValidData = getLastValid() != null;
 		boolean gpsActive = button == null || !button.isPressed();
-		boolean timedOut = System.currentTimeMillis() - lastDataTime > Config.gpsDataTimeout;
+		boolean timedOut = Clock.millis() - lastDataTime > Config.gpsDataTimeout;
 
 		if (hasValidData && gpsActive && !timedOut) led.off();
 		else led.on();
 		/* disable attempting to reinitialize after timeout
 		if (timedOut) {
 			init();
-			lastDataTime = System.currentTimeMillis();
+			lastDataTime = Clock.millis();
 		}
 		*/
 	}
 	
 	/**
-	 * Shut down LED controller
+	 * Shut down LED controller and close the serial port
 	 */
 	public void shutdown() {
 		if (led != null) led.shutdown();
+		if (port != null) port.close();
+		closeTrace();
 	}
 		
 	/**
@@ -200,38 +232,109 @@ public class GPS {
 	public long getLastDataTime() { return lastDataTime; }
 		
 	/**
-	 * Process GPS information from serial data
+	 * Returns the NMEA parser, for statistics
 	 * 
-	 * @param serialData String of data to process
+	 * @return NMEA parser
 	 */
-	private void handleSerialData(String serialData) {
-		lastDataTime = System.currentTimeMillis();
-		boolean pressed = false;
-		if (buffer.length() > 1024) buffer = "";
-		if (button != null && button.isPressed()) pressed = true;
+	public NMEAParser getParser() { return parser; }
 		
-		buffer += serialData;
-		if (buffer.contains("$GPRMC")) {
-			buffer = buffer.substring(buffer.indexOf("$GPRMC"));
-			
-			if (buffer.split(",").length > 10) {
-				dataList.add(new GPSData(buffer, pressed));
-				if (dataList.size() > 15) dataList.remove(0);
-				updateLED();
-				buffer = "";
+	/**
+	 * Returns the UBX parser, for statistics
+	 * 
+	 * @return UBX parser
+	 */
+	public UBXParser getUBXParser() { return ubxParser; }
+		
+	/**
+	 * Process serial data from a source other than the port, such as a recorded log
+	 * 
+	 * @param data Buffer holding the data between its position and limit
+	 */
+	public void receive(ByteBuffer data) {
+		handleSerialData(data);
+	}
+		
+	/**
+	 * Process GPS information from serial data
+	 * 
+	 * @param data Buffer holding the serial data between its position and limit
+	 */
+	private void handleSerialData(ByteBuffer data) {
+		lastDataTime = Clock.millis();
+		if (binary) ubxParser.accept(data);
+		else parser.accept(data);
+
+		// recorded after parsing since writing moves the buffer position
+		if (trace != null) {
+			try {
+				trace.write(data);
+			} catch (IOException e) {
+				Errors.handleException(e, "Failed to write GPS trace");
+				closeTrace();
 			}
 		}
-		else
-		if (buffer.contains("$GPGGA")) {
-			buffer = buffer.substring(buffer.indexOf("$GPGGA"));
-			
-			if (buffer.split(",").length > 10) {
-				dataList.add(new GPSData(buffer, pressed));
-				if (dataList.size() > 15) dataList.remove(0);
-				updateLED();
-				buffer = "";
-			}
+	}
+	
+	/**
+	 * Stop recording serial data
+	 */
+	private void closeTrace() {
+		try {
+			if (trace != null) trace.close();
+		} catch (IOException e) {
+			Errors.handleException(e, "Failed to close GPS trace");
+		}
+		trace = null;
+	}
+	
+	/**
+	 * Merge a parsed sentence into the current epoch
+	 * 
+	 * @param parser Parser holding the sentence values
+	 */
+	private void handleSentence(NMEAParser parser) {
+		if (parser.getType() == NMEAParser.PMTK_ACK) {
+			if (pmtk != null) pmtk.acknowledge(parser.getAckCommand(), parser.getAckFlag());
+			return;
 		}
+		assembler.accept(parser, button != null && button.isPressed());
+	}
+	
+	/**
+	 * Handle a UBX message, one NAV-PVT per epoch
+	 * 
+	 * @param parser Parser holding the message
+	 */
+	private void handleMessage(UBXParser parser) {
+		if (parser.isAck()) {
+			if (ubx != null)
+				ubx.acknowledge(parser.getAckClass(), parser.getAckId(), parser.getMessageId() == UBXParser.ACK_ACK);
+			return;
+		}
+		if (parser.isNavPVT())
+			assembler.accept(parser, button != null && button.isPressed());
+	}
+	
+	/**
+	 * Store the fix for a completed epoch
+	 * 
+	 * @param fix Fix published by the epoch assembler
+	 */
+	private void handleFix(GPSData fix) {
+		history.add(fix);
+		updateLED();
+		EpochAssembler.Listener listener = fixListener;
+		if (listener != null)
+			listener.fixPublished(fix);
+	}
+
+	/**
+	 * Set a listener to be told about each fix as it is stored (on the serial thread)
+	 * 
+	 * @param listener The listener, or null for none
+	 */
+	public void setFixListener(EpochAssembler.Listener listener) {
+		fixListener = listener;
 	}
 	
 	/**
@@ -241,6 +344,6 @@ public class GPS {
 	 * @return GPSData with only date and time
 	 */
 	private GPSData filter(GPSData input) {
-		return new GPSData(input.getTime(), input.getDate());
+		return new GPSData(input.getTimeMillis(), input.getDateValue());
 	}
 }
@@ -4,63 +4,59 @@
  */
 public class GPSData {
 	
-	private boolean valid; // flag for whether the module reported it had a GPS fix
-	private String time; // time in HH.MM.SS
-	private String date; // date in YYYY-MM-DD
-	private double latitude; // latitude as a decimal
-	private double longitude; // longitude as a decimal
-	private double altitude; // altitude in m as a decimal
-	private double speed; // speed in knots as a decimal
-	private double trackingAngle; // tracking angle as a decimal
-	private boolean switchPressed; // flag for whether the GPS switch was pressed
+	private final boolean valid; // flag for whether the module reported it had a GPS fix
+	private final boolean complete; // flag for whether position and altitude come from the same epoch
+	private final int time; // UTC time in milliseconds since midnight, -1 if unknown
+	private final int date; // UTC date as DDMMYY, -1 if unknown
+	private final double latitude; // latitude as a decimal
+	private final double longitude; // longitude as a decimal
+	private final double altitude; // altitude in m as a decimal
+	private final double speed; // speed in knots as a decimal
+	private final double trackingAngle; // tracking angle as a decimal
+	private final int satellites; // number of satellites used, -1 if unknown
+	private final double hdop; // horizontal dilution of precision, NaN if unknown
+	private final boolean switchPressed; // flag for whether the GPS switch was pressed
 	
 	/**
 	 * Constructor for a GPS data object
 	 * 
-	 * @param data Data string
+	 * @param valid Whether the module reported a fix
+	 * @param complete Whether the position and altitude are from the same epoch
+	 * @param time Time in milliseconds since midnight
+	 * @param date Date as DDMMYY
+	 * @param latitude Latitude as a decimal
+	 * @param longitude Longitude as a decimal
+	 * @param altitude Altitude in m
+	 * @param speed Speed in knots
+	 * @param trackingAngle Tracking angle in degrees
+	 * @param satellites Number of satellites used
+	 * @param hdop Horizontal dilution of precision
 	 * @param switchPressed Whether the switch was pressed when the reading was obtained
 	 */
-	public GPSData(String data, boolean switchPressed) {
-		String[] parts = data.split(",");
-		try {
-			// process the information from the raw serial data string
-			if (data.contains("GPRMC")) {
-				valid = parts[2].equals("A");
-				time = processTime(parts[1]);
-				date = processDate(parts[9]);
-				latitude = processLatitude(parts[3], parts[4]);
-				longitude = processLongitude(parts[5], parts[6]);
-				speed = Double.parseDouble(parts[7]);
-				trackingAngle = Double.parseDouble(parts[8]);
-			} else if (data.contains("GPGGA")) {
-				valid = Integer.parseInt(parts[6]) > 0;
-				time = processTime(parts[1]);
-				latitude = processLatitude(parts[2], parts[3]);
-				longitude = processLongitude(parts[4], parts[5]);
-				altitude = parts[9] == null || parts[9].equals("") ? 0.0 : Double.parseDouble(parts[9]);
-			}
-			this.switchPressed = switchPressed;
-		}
-		catch (Exception e) {
-			Errors.handleException(e, "Bad GPS data");
-		}
+	public GPSData(boolean valid, boolean complete, int time, int date, double latitude, double longitude,
+			double altitude, double speed, double trackingAngle, int satellites, double hdop, boolean switchPressed) {
+		this.valid = valid;
+		this.complete = complete;
+		this.time = time;
+		this.date = date;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.altitude = altitude;
+		this.speed = speed;
+		this.trackingAngle = trackingAngle;
+		this.satellites = satellites;
+		this.hdop = hdop;
+		this.switchPressed = switchPressed;
 	}
 	
 	/**
 	 * Constructor for only time and date (used for no GPS fix)
 	 * 
-	 * @param time Time of the reading
-	 * @param date Date of the reading
+	 * @param time Time of the reading in milliseconds since midnight
+	 * @param date Date of the reading as DDMMYY
 	 */
-	public GPSData(String time, String date) {
-		this.time = time;
-		this.date = date;
-		valid = true;
-		latitude = -1000;
-		longitude = -1000;
-		altitude = -1000;
-		speed = -1000;
-		trackingAngle = -1000;
+	public GPSData(int time, int date) {
+		this(true, false, time, date, -1000, -1000, -1000, -1000, -1000, -1, Double.NaN, false);
 	}
 	
 	/**
@@ -70,28 +66,54 @@ public class GPSData {
 	 */
 	public boolean isValid() { return valid; }
 
-	public boolean isComplete() { return valid && altitude > 0; }
+	/**
+	 * Returns true if the data has a position and altitude from the same epoch
+	 * 
+	 * @return True if both an RMC and a GGA fix were received for this epoch
+	 */
+	public boolean isComplete() { return complete; }
 	
 	/**
 	 * Returns time
 	 * 
 	 * @return Time in HH.MM.SS
 	 */
-	public String getTime() { return time; }
+	public String getTime() {
+		if (time < 0) return "";
+		int seconds = time / 1000;
+		return String.format("%02d.%02d.%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
 	
 	/**
 	 * Returns date
 	 * 
-	 * @return Date in YYYY-MM-DD
+	 * @return Date in YYYY-MM-DD, or null if the reading had no date
+	 */
+	public String getDate() {
+		if (date < 0) return null;
+		return String.format("20%02d-%02d-%02d", date % 100, (date / 100) % 100, date / 10000);
+	}
+	
+	/**
+	 * Returns raw time
+	 * 
+	 * @return Time in milliseconds since midnight, or -1 if unknown
 	 */
-	public String getDate() { return date; }
+	public int getTimeMillis() { return time; }
+	
+	/**
+	 * Returns raw date
+	 * 
+	 * @return Date as DDMMYY, or -1 if unknown
+	 */
+	public int getDateValue() { return date; }
 	
 	/**
 	 * Returns date and time in a single string
 	 * 
 	 * @return Date and time in YYYY-MM-DDTHH.MM.SS
 	 */
-	public String getDateTime() { return date + "T" + time; }
+	public String getDateTime() { return getDate() + "T" + getTime(); }
 	
 	/**
 	 * Returns latitude
@@ -107,9 +129,12 @@ public class GPSData {
 	 */
 	public double getLongitude() { return longitude; }
 	
+	/**
+	 * Returns altitude above mean sea level
+	 * 
+	 * @return Altitude in m
+	 */
 	public double getAltitude() { return altitude; }
-
-	public void setAltitude(double altitude) { this.altitude = altitude; };
 	
 	/**
 	 * Returns speed in knots
@@ -132,6 +157,20 @@ public class GPSData {
 	 */
 	public double getTrackingAngle() { return trackingAngle; }
 	
+	/**
+	 * Returns number of satellites used for the fix
+	 * 
+	 * @return Number of satellites, or -1 if unknown
+	 */
+	public int getSatellites() { return satellites; }
+	
+	/**
+	 * Returns horizontal dilution of precision
+	 * 
+	 * @return HDOP, or NaN if unknown
+	 */
+	public double getHDOP() { return hdop; }
+	
 	/**
 	 * Return GPS switch status
 	 * 
@@ -143,75 +182,11 @@ public class GPSData {
 	 * Prints GPS data
 	 */
 	public void print() {
-		System.out.printf("\nTime:  %s %s\n", time, date);
+		System.out.printf("\nTime:  %s %s\n", getTime(), getDate());
 		System.out.printf("Valid: %s\n", valid);
 		System.out.printf("Lat.:  %f\n", latitude);
 		System.out.printf("Long.: %f\n", longitude);
 		System.out.printf("Alt.: %f\n", altitude);
 		System.out.printf("Speed: %f at angle %f\n\n", speed, trackingAngle);
 	}
-	
-	/**
-	 * Processes raw time data
-	 * - from HHMMSS.MMM (GMT)
-	 * 
-	 * @param time Time in HHMMSS.MMM
-	 * @return Time in HH.MM.SS
-	 */
-	private String processTime(String time) {
-		if (time.length() < 6) return "";
-		return String.format("%s.%s.%s",
-			time.substring(0, 2),
-			time.substring(2, 4),
-			time.substring(4, 6));
-	}
-	
-	/**
-	 * Processes raw date data
-	 * - from DDMMYY
-	 * 
-	 * @param date Date in DDMMYY
-	 * @return Date in YYYY-MM-DD
-	 */
-	private String processDate(String date) {
-		if (date.length() < 6) return "";
-		return String.format("20%s-%s-%s",
-			date.substring(4, 6),
-			date.substring(2, 4),
-			date.substring(0, 2));
-	}
-	
-	/**
-	 * Processes raw latitude data
-	 * - from DDMM.MMM where: D = degrees, M = decimal minutes
-	 * 
-	 * @param latitude Latitude in DDMM.MMM
-	 * @param direction N or S
-	 * @return Latitude as a decimal
-	 */
-	private double processLatitude(String latitude, String direction) {
-		if (latitude.length() < 3) return -1000.0;
-		double degrees = Double.parseDouble(latitude.substring(0, 2));
-		double minutes = Double.parseDouble(latitude.substring(2, latitude.length()));
-		double result = degrees + minutes / 60.0;
-		if (direction.equals("S")) result *= -1.0;
-		return result;
-	}
-	
-	/**
-	 * Processes raw longitude data
-	 * - from DDDMM.MMM where: D = degrees, M = decimal minutes
-	 * 
-	 * @param longitude Longitude in DDDMM.MMM
-	 * @param direction E or W
-	 * @return Longitude as a decimal
-	 */
-	private double processLongitude(String longitude, String direction) {
-		if (longitude.length() < 4) return -1000.0;
-		double degrees = Double.parseDouble(longitude.substring(0, 3));
-		double minutes = Double.parseDouble(longitude.substring(3, longitude.length()));
-		double result = degrees + minutes / 60.0;
-		if (direction.equals("W")) result *= -1.0;
-		return result;
-	}
 }
@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serial connection to the GPS module
+ */
+public interface GPSPort {
+
+	/**
+	 * Receiver for data read from the port
+	 */
+	interface Receiver {
+		/**
+		 * Called on the port's reader thread when data arrives
+		 *
+		 * @param data Buffer holding the data between its position and limit, only valid
+		 *             until the method returns
+		 */
+		void received(ByteBuffer data);
+	}
+
+	/**
+	 * Open the port, or reopen it if it is already open
+	 *
+	 * @param baud Baud rate
+	 * @throws IOException If the port cannot be opened
+	 */
+	void open(int baud) throws IOException;
+
+	/**
+	 * Send data to the module
+	 *
+	 * @param data Bytes to send
+	 * @throws IOException If the data cannot be written
+	 */
+	void write(byte[] data) throws IOException;
+
+	/**
+	 * Close the port and stop reading
+	 */
+	void close();
+}
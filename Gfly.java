@@ -13,101 +13,82 @@ public class Gfly {
 	public static final int DEV_COMMAND = -1;
 	public static final int WAITING = 0;
 
-	private static int state; // current system state
-	private static boolean shutdown; // flag for whether the program should shut down
-	private static boolean acceptingCommands; // flag for whether the program should take commands
-	private static long lastGPSTime;
-	private static long lastDistanceTime;
-	private static long lastLCDUpdateTime;
+	private static volatile int state; // current system state
 
 	private static DeviceController controller;
 	private static Track track;
-	private static double distance;
+	private static volatile double distance;
 	private static GPSData gpsDelta; // for distance calculation
-	private static GPSData gpsOrigin;
-	private static PTAData ptaOrigin;
-
-	private static void handleDevCommand() {
-		if (!acceptingCommands)
-			return;
-		int previousState = state;
-
-		// start new thread
-		(new Thread() {
-			public void run() {
-
-				// don't start new threads listening for commands until this one is done
-				acceptingCommands = false;
-
-				// wait for input
-				String input = null;
-				String[] args = null;
-				try {
-					input = new Scanner(System.in).nextLine();
-					args = input.split(" ");
-				} catch (Exception e) {
-					// if it can't read, just return, the program probably quit
-					return;
-				}
-
-				// process input
-				state = DEV_COMMAND;
-				try {
-					if (input == null || args == null)
-						return;
-					if (input.equals("quit"))
-						shutdown = true;
-					else if (args[0].equals("test"))
-						controller.testComponent(args);
-					else
-						Config.handleConfigLine(input);
-				} catch (Exception e) {
-					Errors.handleException(e, "Could not execute command");
-				}
-
-				// start listening for commands again
-				acceptingCommands = true;
-				state = previousState;
+	private static volatile GPSData gpsOrigin;
+	private static volatile PTAData ptaOrigin;
+	private static volatile double fusedOrigin; // calibrated altitude at the origin, NaN if not set
+	private static boolean fusedOriginCalibrated; // whether GPS had calibrated the altitude when fusedOrigin was set
+	private static double fusedOriginOffset; // barometric altitude error estimated when fusedOrigin was set
+	private static TaskScheduler scheduler; // runs the main program's tasks
+	private static TaskScheduler.Task distanceTask; // measures the distance, null until a complete fix
+	private static volatile boolean menuActive; // whether the menu or a selection's result owns the display
+	private static ButtonGestures gestures; // gestures from the button, null if none
+	private static boolean menuOpen; // whether the menu is showing
+	private static int selected; // menu item selected
+	private static long menuTime; // time of the last button activity in the menu
+	private static long messageTime; // time the result of a selection is shown until, 0 if none
+	private static Topic.Subscription<VarioData> toneSink; // sets the tone from each climb rate
+	private static Topic.Subscription<VarioData> lcdSink; // shows the newest altitude and climb
+
+	/**
+	 * Read and carry out commands from the console until it closes or the program quits
+	 */
+	private static void readCommands() {
+		Scanner scanner = new Scanner(System.in);
+		while (!scheduler.isShutdown()) {
+			String input;
+			try {
+				input = scanner.nextLine();
+			} catch (Exception e) {
+				// if it can't read, just return, the program probably quit
+				return;
 			}
-		}).start();
-	}
-
-	private static double handleAltitudeChange() {
-		double diff = controller.getAltitudeChange();
-
-		if (Config.varioAudioOn && diff > 0.5) {
-			controller.setTone(440 + (int) (440 * diff));
-		} else if (Config.varioAudioOn && diff < -0.5) {
-			controller.setTone(220 + (int) (110 * diff));
-		} else {
-			controller.setTone(0);
+			String[] args = input.split(" ");
+
+			// process input
+			int previousState = state;
+			state = DEV_COMMAND;
+			try {
+				if (input.equals("quit"))
+					scheduler.shutdown();
+				else if (args[0].equals("test"))
+					controller.testComponent(args);
+				else
+					Config.handleConfigLine(input);
+			} catch (Exception e) {
+				Errors.handleException(e, "Could not execute command");
+			}
+			state = previousState;
 		}
-
-		return diff;
 	}
 
-	private static void updateLCD(GPSData gps, double diff) {
-		if (System.currentTimeMillis() - lastLCDUpdateTime > 200) {
-			PTAData pta = controller.getPTA();
-
-			double pressureAltitude = pta.getAltitude();
-			double gpsAltitude = gps == null ? 0.0 : gps.getAltitude();
+	private static void updateLCD(GPSData gps, VarioData data) {
+		if (!menuActive) {
+			PTAData pta = data.getSample();
+			double diff = data.getClimb();
 
-			double altitude = pressureAltitude;
-			double altitudeOrigin = ptaOrigin != null ? ptaOrigin.getAltitude() : 0.0;
+			double altitude = data.getAltitude();
+			if (Double.isNaN(altitude))
+				altitude = 0.0;
+			double altitudeOrigin = altitude;
 
 			if (Config.altitudeSource == 0) {
-				altitude = (altitude + gpsAltitude) / 2.0;
-				if (gpsOrigin != null)
-					altitudeOrigin = (altitudeOrigin + gpsOrigin.getAltitude()) / 2.0;
+				if (!Double.isNaN(fusedOrigin))
+					altitudeOrigin = fusedOrigin;
 			}
 			else if (Config.altitudeSource == 1) {
-				altitude = gpsAltitude;
 				if (gpsOrigin != null)
 					altitudeOrigin = gpsOrigin.getAltitude();
 			}
+			else if (ptaOrigin != null)
+				altitudeOrigin = ptaOrigin.getAltitude();
 
-			double speed = gps.getSpeedKMH();
+			double speed = gps == null ? 0.0 : gps.getSpeedKMH();
 
 			String line1 = "";
 			String line2 = "";
@@ -133,9 +114,8 @@ public class Gfly {
 			// System.out.printf("%s %s\n", gpsOrigin.getLatitude(), gpsOrigin.getLongitude());
 			// System.out.printf("%s %s\n", gps.getLatitude(), gps.getLongitude());
 			// System.out.println(Util.gpsDistance(gpsOrigin.getLatitude(), gpsOrigin.getLongitude(), gps.getLatitude(), gps.getLongitude()) * 1000);
-			System.out.printf("%s %s\n", line1, line2);
-
-			lastLCDUpdateTime = System.currentTimeMillis();
+			if (Config.verbose)
+				System.out.printf("%s %s\n", line1, line2);
 		}
 	}
 
@@ -146,7 +126,7 @@ public class Gfly {
 			controller.setLCDLines(line1, line2);
 		}
 		else if (selected < 4) {
-			String line1 = String.format("%s ALT SRC: %s  ", selected == 2 ? ">" : " ", Config.altitudeSource == 1 ? "GPS" : Config.altitudeSource == 2 ? "PRS" : "AVG");
+			String line1 = String.format("%s ALT SRC: %s  ", selected == 2 ? ">" : " ", Config.altitudeSource == 1 ? "GPS" : Config.altitudeSource == 2 ? "PRS" : "FUS");
 			String line2 = String.format("%s VARIO: %s    ", selected == 3 ? ">" : " ", Config.varioAudioOn == true ? "ON " : "OFF");
 			controller.setLCDLines(line1, line2);
 		}
@@ -155,10 +135,15 @@ public class Gfly {
 			String line2 = String.format("%s POWER DOWN    ", selected == 5 ? ">" : " ");
 			controller.setLCDLines(line1, line2);
 		}
+		else if (selected < 7) {
+			String line1 = String.format("%s SET QNH (GPS) ", selected == 6 ? ">" : " ");
+			String line2 = String.format("  QNH %6.1fhPa ", Config.qnh);
+			controller.setLCDLines(line1, line2);
+		}
 	}
 
 	private static int getNextSelection(int selected) {
-		return (selected + 1) % 6;
+		return (selected + 1) % 7;
 	}
 
 	private static void displayProgress(int selected, long time) {
@@ -169,7 +154,8 @@ public class Gfly {
 		else if (selected == 3) progressTitle = " Setting vario  ";
 		else if (selected == 4) progressTitle = "Resetting origin";
 		else if (selected == 5) progressTitle = " Shutting down  ";
-		controller.setLCDProgress(progressTitle, (int) time-500, 1500);
+		else if (selected == 6) progressTitle = "  Setting QNH   ";
+		controller.setLCDProgress(progressTitle, (int) time - Config.buttonHoldTime, Config.buttonLongTime - Config.buttonHoldTime);
 	}
 
 	private static void handleSelection(int selected) {
@@ -185,7 +171,7 @@ public class Gfly {
 		}
 		else if (selected == 2) {
 			Config.altitudeSource = (Config.altitudeSource + 1) % 3;
-			String line2 = String.format("      %s       ", Config.altitudeSource == 1 ? "GPS" : Config.altitudeSource == 2 ? "PRS" : "AVG");
+			String line2 = String.format("      %s       ", Config.altitudeSource == 1 ? "GPS" : Config.altitudeSource == 2 ? "PRS" : "FUS");
 			controller.setLCDLines("ALTITUDE SOURCE ", line2);
 		}
 		else if (selected == 3) {
@@ -200,73 +186,116 @@ public class Gfly {
 			powerDown();
 			return;
 		}
-		Util.delay(1000);
-	}
-
-	private static void handleButtonInput() {
-		int selected = 0;
-
-		// first press
-		if (controller.getButton().isPressed()) {
-			long pressTime = System.currentTimeMillis();
-			
-			// repeat until first release
-			while (controller.getButton().isPressed()) {
-				Util.delay(200);
-			}
+		else if (selected == 6) {
+			double qnh = controller.setQNHFromGPS();
+			String line2 = Double.isNaN(qnh) ? "   NO GPS FIX   " : String.format("  %6.1f hPa    ", qnh);
+			controller.setLCDLines("      QNH       ", line2);
+		}
 
-			// first release, if short
-			if (System.currentTimeMillis() - pressTime < 1000) {
-				long releaseTime = System.currentTimeMillis();
+		// show the result for a second before the flight display returns
+		menuActive = true;
+		messageTime = Clock.millis() + 1000;
+	}
 
-				// repeat until release timeout
-				while (System.currentTimeMillis() - releaseTime < 5000) {
+	/**
+	 * Open the menu or act on it for a button gesture. A short press opens the menu and
+	 * then moves to the next item, holding selects the item (with progress shown from
+	 * the hold time), and a double press outside the menu turns the vario audio on or off.
+	 * 
+	 * @param gesture The gesture
+	 */
+	private static void handleGesture(ButtonGestures.Gesture gesture) {
+		if (!menuOpen) {
+			if (gesture == ButtonGestures.Gesture.SHORT)
+				openMenu();
+			else if (gesture == ButtonGestures.Gesture.DOUBLE)
+				handleSelection(3);
+			return;
+		}
 
-					// second press
-					if (controller.getButton().isPressed()) {
-						pressTime = System.currentTimeMillis();
-			
-						// repeat until second release
-						while (controller.getButton().isPressed()) {
-							long time = System.currentTimeMillis() - pressTime;
+		menuTime = Clock.millis();
+		if (gesture == ButtonGestures.Gesture.SHORT) {
+			selected = getNextSelection(selected);
+			displayMenu(selected);
+		}
+		else if (gesture == ButtonGestures.Gesture.CANCEL)
+			displayMenu(selected);
+		else if (gesture == ButtonGestures.Gesture.LONG) {
+			closeMenu();
+			handleSelection(selected);
+		}
+	}
 
-							if (time > 500) {
-								displayProgress(selected, time);
-			
-								// second press max time reached
-								if (time > 2000) {
-									handleSelection(selected);
-									return;
-								}
-							}
-							Util.delay(100);
-						}
+	/**
+	 * Show the progress of a hold selecting a menu item
+	 * 
+	 * @param duration Milliseconds since the press
+	 */
+	private static void handleHolding(long duration) {
+		if (menuOpen) {
+			menuTime = Clock.millis();
+			displayProgress(selected, duration);
+		}
+	}
 
-						// second release, if short
-						if (System.currentTimeMillis() - pressTime < 1000) {
-							selected = getNextSelection(selected);
-						}
-						if (System.currentTimeMillis() - pressTime < 2500) {
-							releaseTime = System.currentTimeMillis();
-						}
-					}
+	private static void openMenu() {
+		menuOpen = true;
+		menuActive = true;
+		selected = 0;
+		menuTime = Clock.millis();
+		gestures.setDoubleTime(0); // short presses move through the menu without waiting
+		displayMenu(selected);
+	}
 
-					// after one short press
-					else {
-						displayMenu(selected);
-					}
+	private static void closeMenu() {
+		menuOpen = false;
+		menuActive = false;
+		gestures.setDoubleTime(Config.buttonDoubleTime);
+	}
 
-					Util.delay(200);
-				}
-			}
+	/**
+	 * Finish the gestures and menu timeouts that end with time rather than a press
+	 */
+	private static void handleButtonInput() {
+		if (gestures == null)
+			return; // no button during replay
+		long now = Clock.millis();
+		gestures.update(now);
+		if (menuOpen && !gestures.isActive() && now - menuTime > Config.menuTimeout)
+			closeMenu();
+		if (!menuOpen && messageTime > 0 && now >= messageTime) {
+			messageTime = 0;
+			menuActive = false;
 		}
 	}
 
 	private static void resetOrigin() {
+		if (distanceTask != null)
+			distanceTask.cancel();
+		distanceTask = null;
 		distance = 0.0;
 		gpsDelta = null;
 		gpsOrigin = null;
 		ptaOrigin = null;
+		fusedOrigin = Double.NaN;
+	}
+
+	/**
+	 * Set the calibrated altitude origin once there is an altitude, and move it with the
+	 * first GPS calibration if it was set before that, so the elevation gain does not
+	 * jump by the barometer's error
+	 */
+	private static void updateFusedOrigin() {
+		AltitudeFusion fusion = controller.getAltitudeFusion();
+		if (Double.isNaN(fusedOrigin)) {
+			fusedOrigin = fusion.getAltitude();
+			fusedOriginCalibrated = fusion.isCalibrated();
+			fusedOriginOffset = fusion.getOffset();
+		}
+		else if (!fusedOriginCalibrated && fusion.isCalibrated()) {
+			fusedOrigin += fusion.getOffset() - fusedOriginOffset;
+			fusedOriginCalibrated = true;
+		}
 	}
 
 	private static void powerDown() {
@@ -279,41 +308,179 @@ public class Gfly {
 		}
 	}
 
-	private static void mainLoop() {
-		try {
-			handleDevCommand();
+	/**
+	 * Keep the origins and the distance up to date as GPS and barometer data arrive
+	 */
+	private static void updateOrigin() {
+		GPSData gps = controller.getGPSData();
+
+		boolean complete = gps != null && gps.isComplete();
+
+		// measure the distance travelled every minute from the first complete fix
+		if (gpsDelta == null && complete) {
+			gpsDelta = gps;
+			distanceTask = scheduler.schedule("distance", 60000, 60000, TaskScheduler.NORMAL, new Runnable() {
+				@Override
+				public void run() {
+					updateDistance();
+				}
+			});
+		}
 
-			GPSData gps = controller.getGPSData();
+		if (gpsOrigin == null && complete)
+			gpsOrigin = gps;
 
-			if (gpsDelta == null && gps.isComplete()) {
-				gpsDelta = gps;
-				lastDistanceTime = System.currentTimeMillis();
-			}
+		if (ptaOrigin == null)
+			ptaOrigin = controller.getPTA();
 
-			if (lastDistanceTime > 0 && System.currentTimeMillis() - lastDistanceTime > 60000) {
-				double distanceDelta = Util.vincentyDistance(gpsDelta.getLatitude(), gpsDelta.getLongitude(), gps.getLatitude(), gps.getLongitude());
-				distance += distanceDelta;
-				gpsDelta = gps;
-				lastDistanceTime = System.currentTimeMillis();
-			}
+		updateFusedOrigin();
+	}
 
-			if (gpsOrigin == null && gps.isComplete())
-				gpsOrigin = gps;
+	/**
+	 * Add the distance since the last measurement
+	 */
+	private static void updateDistance() {
+		GPSData gps = controller.getGPSData();
+		if (gpsDelta != null && gps != null && gps.isComplete()) {
+			double distanceDelta = Util.vincentyDistance(gpsDelta.getLatitude(), gpsDelta.getLongitude(), gps.getLatitude(), gps.getLongitude());
+			distance += distanceDelta;
+			gpsDelta = gps;
+		}
+	}
 
-			if (ptaOrigin == null)
-				ptaOrigin = controller.getPTA();
+	/**
+	 * Run the main program's tasks that are due, then wait until the next one is
+	 */
+	static void mainLoop() {
+		scheduler.runOnce();
+	}
 
-			double diff = handleAltitudeChange();
+	/**
+	 * Initialize the program state for an initialized device controller
+	 * 
+	 * @param deviceController Device controller to use
+	 * @param threaded Whether to start worker threads and accept commands, otherwise the
+	 *                 caller drives mainLoop and the track updates (used for replay)
+	 */
+	static void start(DeviceController deviceController, boolean threaded) {
+		controller = deviceController;
+		scheduler = Workers.scheduler();
+		track = new Track(controller, threaded);
+		distance = 0.0;
+		gpsDelta = null;
+		gpsOrigin = null;
+		ptaOrigin = null;
+		fusedOrigin = Double.NaN;
+		distanceTask = null;
+		gestures = null;
 
-			updateLCD(gps, diff);
+		state = WAITING;
+		menuActive = false;
+		menuOpen = false;
+		messageTime = 0;
 
-			handleButtonInput();
+		// the tone and display only need the newest climb rate
+		toneSink = controller.getVario().subscribe("tone", 1, Topic.Policy.LATEST, new Topic.Handler<VarioData>() {
+			@Override
+			public void handle(VarioData data) {
+				controller.setClimb(data.getClimb(), data.getSample().getTime());
+			}
+		});
+		lcdSink = controller.getVario().subscribe("lcd", 1, Topic.Policy.LATEST, new Topic.Handler<VarioData>() {
+			@Override
+			public void handle(VarioData data) {
+				updateLCD(controller.getGPSData(), data);
+			}
+		});
 
-			Util.delay(Config.mainLoopDelay);
+		// the tone follows each sample on the sensors' thread, while the display and menu
+		// run on the main scheduler, so neither holds it up (the audio engine only has to
+		// be woken); replay runs it here, first when several tasks are due
+		if (threaded)
+			toneSink.inline();
+		else {
+			scheduler.schedule("vario", 0, Config.mainLoopDelay, TaskScheduler.HIGH, new Runnable() {
+				@Override
+				public void run() {
+					controller.dispatch();
+					toneSink.dispatch();
+				}
+			});
 		}
-		catch (Exception e) {
-			Errors.handleException(e, "exception in main loop");
+		scheduler.schedule("origin", 0, Config.mainLoopDelay, TaskScheduler.NORMAL, new Runnable() {
+			@Override
+			public void run() {
+				updateOrigin();
+			}
+		});
+		scheduler.schedule("lcd", 0, 200, TaskScheduler.NORMAL, new Runnable() {
+			@Override
+			public void run() {
+				lcdSink.dispatch();
+			}
+		});
+
+		// the button's edges are handled on the scheduler's thread, as soon as they arrive
+		if (controller.getButton() != null) {
+			gestures = new ButtonGestures(new ButtonGestures.Listener() {
+				@Override
+				public void gesture(ButtonGestures.Gesture gesture) {
+					handleGesture(gesture);
+				}
+
+				@Override
+				public void holding(long duration) {
+					handleHolding(duration);
+				}
+			});
+			Topic.Subscription<Switch.Edge> edges = controller.getButton().getEdges().subscribe("gestures", 16,
+					Topic.Policy.DROP_OLDEST, new Topic.Handler<Switch.Edge>() {
+						@Override
+						public void handle(final Switch.Edge edge) {
+							scheduler.scheduleOnce("edge", 0, TaskScheduler.NORMAL, new Runnable() {
+								@Override
+								public void run() {
+									gestures.addEdge(edge);
+								}
+							});
+						}
+					});
+			edges.inline();
 		}
+		scheduler.schedule("buttons", 0, Config.mainLoopDelay, TaskScheduler.LOW, new Runnable() {
+			@Override
+			public void run() {
+				handleButtonInput();
+			}
+		});
+
+		// one reader takes commands for as long as the program runs
+		if (threaded && Config.devMode) {
+			Workers.execute("commands", new Runnable() {
+				@Override
+				public void run() {
+					readCommands();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the track recorder
+	 * 
+	 * @return Track recorder
+	 */
+	static Track getTrack() {
+		return track;
+	}
+
+	/**
+	 * Returns the distance travelled since the origin was reset
+	 * 
+	 * @return Distance in km
+	 */
+	static double getDistance() {
+		return distance;
 	}
 
 	public static void main(String... args) {
@@ -324,15 +491,10 @@ public class Gfly {
 		Util.delay(Config.programStartDelay);
 
 		// initialize the device controller, exit program if it fails
-		controller = new DeviceController();
-		if (!controller.init())
+		DeviceController deviceController = new DeviceController();
+		if (!deviceController.init())
 			System.exit(-1);
-
-		track = new Track(controller);
-		distance = 0.0;
-		gpsDelta = null;
-		gpsOrigin = null;
-		ptaOrigin = null;
+		start(deviceController, true);
 
 		// add a shutdown hook so that the application can trap a Ctrl-C and
 		// handle it gracefully by ensuring that all components are properly shut down
@@ -345,18 +507,8 @@ public class Gfly {
 			}
 		});
 
-		// initialize the program state
-		if (Config.devMode)
-			acceptingCommands = true;
-		shutdown = false;
-		state = WAITING;
-		lastGPSTime = 0;
-		lastDistanceTime = 0;
-		lastLCDUpdateTime = 0;
-
-		// run the main program loop
-		while (!shutdown)
-			mainLoop();
+		// run the main program's tasks until told to quit
+		scheduler.run();
 
 		// exit the program, closing all threads
 		System.exit(0);
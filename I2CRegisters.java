@@ -0,0 +1,387 @@
+import com.pi4j.io.i2c.I2CDevice;
+import java.io.IOException;
+
+/**
+ * Register access for one device on a shared I2C bus.
+ *
+ * Configuration registers the chip never changes by itself are declared cacheable by
+ * the driver: they are read once (a run of adjacent cacheable registers in one burst)
+ * and then served from a shadow copy, so reading a setting or changing a few bits of
+ * one costs no read transaction, and writing the value a register already holds costs
+ * nothing. Writes to adjacent registers go out in one transaction, as register/value
+ * pairs for chips that take them (BMP388) or auto-incrementing from the first register
+ * (MPU6050). Everything else (data, status, FIFO) is read from the chip every time.
+ * A failed transaction leaves the registers it touched uncached, so a retry of the
+ * same write is sent rather than skipped.
+ *
+ * All transactions on a bus hold its lock, so drivers on different threads never
+ * interleave theirs, and a read-modify-write is atomic. Buffers are reused, so
+ * register access allocates nothing. Transactions and bytes are counted for each
+ * device and for the bus.
+ */
+public class I2CRegisters {
+
+	private static final int REGISTERS = 256;
+
+	private final I2CDevice device;
+	private final Bus bus;
+	private final String name;
+	private final boolean pairedWrites; // multi-register writes as register/value pairs
+	private final boolean[] cacheable; // registers the chip does not change by itself
+	private final boolean[] cached; // cacheable registers whose shadow value is current
+	private final byte[] shadow; // last value read from or written to each register
+	private final byte[] buffer; // for single register reads and writes
+
+	// statistics
+	private long transactions;
+	private long bytesRead;
+	private long bytesWritten;
+	private long cacheHits; // register reads served from the shadow
+	private long skippedWrites; // writes of the value the register already held
+
+	/**
+	 * Bus shared by several devices: the lock their transactions hold, and totals
+	 */
+	public static class Bus {
+
+		// bit rate the busy time is estimated for (the Raspberry Pi's default clock)
+		private static final double CLOCK = 100000;
+
+		private final String name;
+		private final long startTime; // Clock.nanos when created
+		private long transactions;
+		private long bytes; // bytes transferred, including addresses
+
+		/**
+		 * Constructor for a bus
+		 *
+		 * @param name Name for statistics
+		 */
+		public Bus(String name) {
+			this.name = name;
+			startTime = Clock.nanos();
+		}
+
+		/**
+		 * Count a transaction, holding the lock
+		 */
+		private void count(int length) {
+			transactions++;
+			bytes += length + 1; // the device address
+		}
+
+		/**
+		 * Returns the number of transactions on the bus
+		 *
+		 * @return Transaction count
+		 */
+		public synchronized long getTransactions() {
+			return transactions;
+		}
+
+		/**
+		 * Returns the number of bytes transferred on the bus, including device addresses
+		 *
+		 * @return Byte count
+		 */
+		public synchronized long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Returns the estimated fraction of the time the bus has been busy, counting 9 bit
+		 * times per byte and 2 for the start and stop of each transaction
+		 *
+		 * @return Fraction from 0 to 1
+		 */
+		public synchronized double getUtilization() {
+			double elapsed = (Clock.nanos() - startTime) / 1e9;
+			if (elapsed <= 0)
+				return 0;
+			return (bytes * 9 + transactions * 2) / CLOCK / elapsed;
+		}
+
+		/**
+		 * Print the totals
+		 */
+		public synchronized void print() {
+			double elapsed = Math.max(1e-9, (Clock.nanos() - startTime) / 1e9);
+			System.out.printf("%s: %d transactions (%.1f/s), %d bytes (%.0f/s), %.1f%% busy at %.0fkHz\n", name,
+					transactions, transactions / elapsed, bytes, bytes / elapsed, getUtilization() * 100, CLOCK / 1000);
+		}
+	}
+
+	/**
+	 * Constructor for a device's registers
+	 *
+	 * @param device I2C device (real or simulated)
+	 * @param bus Bus the device is on, shared with the other devices on it
+	 * @param name Name for statistics
+	 * @param pairedWrites True if the chip takes multi-register writes as
+	 *        register/value pairs, false if it auto-increments
+	 */
+	public I2CRegisters(I2CDevice device, Bus bus, String name, boolean pairedWrites) {
+		this.device = device;
+		this.bus = bus;
+		this.name = name;
+		this.pairedWrites = pairedWrites;
+		cacheable = new boolean[REGISTERS];
+		cached = new boolean[REGISTERS];
+		shadow = new byte[REGISTERS];
+		buffer = new byte[2 * REGISTERS];
+	}
+
+	/**
+	 * Declare registers the chip does not change by itself, to be served from the cache
+	 *
+	 * @param register First register
+	 * @param length Number of registers
+	 */
+	public void cache(int register, int length) {
+		synchronized (bus) {
+			for (int i = register; i < register + length; i++)
+				cacheable[i & 0xff] = true;
+		}
+	}
+
+	/**
+	 * Forget the cached values, e.g. after the chip is reset
+	 */
+	public void invalidate() {
+		synchronized (bus) {
+			java.util.Arrays.fill(cached, false);
+		}
+	}
+
+	/**
+	 * Read a register, from the cache if it is cacheable and has been read or written
+	 * before. A cacheable register that has not is read with the run of cacheable
+	 * registers around it, in one burst. If the read fails (it has been reported) the
+	 * value is meaningless; use tryRead where that matters.
+	 *
+	 * @param register Register address
+	 * @return Value
+	 */
+	public byte read(int register) {
+		return (byte) tryRead(register);
+	}
+
+	/**
+	 * Read a register like read, telling a failed read from a value
+	 *
+	 * @param register Register address
+	 * @return Value from 0 to 255, or -1 if the read failed
+	 */
+	public int tryRead(int register) {
+		register &= 0xff;
+		synchronized (bus) {
+			if (cached[register]) {
+				cacheHits++;
+				return shadow[register] & 0xff;
+			}
+			if (!cacheable[register])
+				return transfer(register, buffer, 0, 1) ? buffer[0] & 0xff : -1;
+			int first = register;
+			while (first > 0 && cacheable[first - 1] && !cached[first - 1])
+				first--;
+			int last = register;
+			while (last < REGISTERS - 1 && cacheable[last + 1] && !cached[last + 1])
+				last++;
+			if (!transfer(first, buffer, 0, last - first + 1))
+				return -1;
+			for (int i = first; i <= last; i++) {
+				shadow[i] = buffer[i - first];
+				cached[i] = true;
+			}
+			return shadow[register] & 0xff;
+		}
+	}
+
+	/**
+	 * Read consecutive registers (or a FIFO) from the chip in one transaction, updating
+	 * the cache for any cacheable ones
+	 *
+	 * @param register First register
+	 * @param values Buffer for the values
+	 * @param offset Index in values for the first
+	 * @param length Number of bytes
+	 * @return The buffer
+	 */
+	public byte[] read(int register, byte[] values, int offset, int length) {
+		register &= 0xff;
+		synchronized (bus) {
+			if (!transfer(register, values, offset, length)) {
+				forget(register, length);
+				return values;
+			}
+			for (int i = 0; i < length && register + i < REGISTERS; i++) {
+				if (cacheable[register + i]) {
+					shadow[register + i] = values[offset + i];
+					cached[register + i] = true;
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Write a register, unless it is cached and already holds the value
+	 *
+	 * @param register Register address
+	 * @param value Value
+	 */
+	public void write(int register, byte value) {
+		register &= 0xff;
+		synchronized (bus) {
+			if (cached[register] && shadow[register] == value) {
+				skippedWrites++;
+				return;
+			}
+			buffer[0] = (byte) register;
+			buffer[1] = value;
+			if (send(buffer, 2))
+				store(register, value);
+			else
+				forget(register, 1);
+		}
+	}
+
+	/**
+	 * Write consecutive registers in one transaction. With paired writes, registers that
+	 * are cached and already hold their values are left out.
+	 *
+	 * @param register First register
+	 * @param values Values
+	 * @param offset Index in values of the first
+	 * @param length Number of registers
+	 */
+	public void write(int register, byte[] values, int offset, int length) {
+		register &= 0xff;
+		synchronized (bus) {
+			int size = 0;
+			if (pairedWrites) {
+				for (int i = 0; i < length; i++) {
+					int r = register + i;
+					if (cached[r] && shadow[r] == values[offset + i]) {
+						skippedWrites++;
+						continue;
+					}
+					buffer[size++] = (byte) r;
+					buffer[size++] = values[offset + i];
+				}
+			} else {
+				boolean changed = false;
+				for (int i = 0; i < length; i++)
+					changed |= !cached[register + i] || shadow[register + i] != values[offset + i];
+				if (changed) {
+					buffer[size++] = (byte) register;
+					System.arraycopy(values, offset, buffer, size, length);
+					size += length;
+				} else
+					skippedWrites += length;
+			}
+			if (size > 0 && !send(buffer, size)) {
+				forget(register, length);
+				return;
+			}
+			for (int i = 0; i < length; i++)
+				store(register + i, values[offset + i]);
+		}
+	}
+
+	/**
+	 * Change some bits of a register, reading it from the cache if possible
+	 *
+	 * @param register Register address
+	 * @param mask Bits to change
+	 * @param bits New values of those bits
+	 * @return False if the register could not be read, when nothing is written (so the
+	 *         other bits are never replaced with garbage)
+	 */
+	public boolean update(int register, int mask, int bits) {
+		synchronized (bus) {
+			int value = tryRead(register);
+			if (value < 0)
+				return false;
+			write(register, (byte) ((value & ~mask) | (bits & mask)));
+			return true;
+		}
+	}
+
+	/**
+	 * Keep a written value in the cache, holding the lock
+	 */
+	private void store(int register, byte value) {
+		if (cacheable[register]) {
+			shadow[register] = value;
+			cached[register] = true;
+		}
+	}
+
+	/**
+	 * Mark registers as not cached after a failed transaction, so the chip is asked
+	 * (or written) again next time, holding the lock
+	 */
+	private void forget(int register, int length) {
+		for (int i = 0; i < length && register + i < REGISTERS; i++)
+			cached[register + i] = false;
+	}
+
+	/**
+	 * Read registers in one transaction, holding the lock
+	 *
+	 * @return True if the read succeeded
+	 */
+	private boolean transfer(int register, byte[] values, int offset, int length) {
+		transactions++;
+		bytesWritten++;
+		bytesRead += length;
+		bus.count(length + 1);
+		try {
+			device.read(register, values, offset, length);
+			return true;
+		} catch (IOException e) {
+			Errors.handleException(e, "Failed to read " + name);
+			return false;
+		}
+	}
+
+	/**
+	 * Write bytes in one transaction, holding the lock
+	 *
+	 * @return True if the write succeeded
+	 */
+	private boolean send(byte[] bytes, int length) {
+		transactions++;
+		bytesWritten += length;
+		bus.count(length);
+		try {
+			device.write(bytes, 0, length);
+			return true;
+		} catch (IOException e) {
+			Errors.handleException(e, "Failed to write to " + name);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of transactions with the device
+	 *
+	 * @return Transaction count
+	 */
+	public long getTransactions() {
+		synchronized (bus) {
+			return transactions;
+		}
+	}
+
+	/**
+	 * Print the device's statistics
+	 */
+	public void print() {
+		synchronized (bus) {
+			System.out.printf("%s: %d transactions, %d bytes read, %d written, %d cached reads, %d writes skipped\n",
+					name, transactions, bytesRead, bytesWritten, cacheHits, skippedWrites);
+		}
+	}
+}
@@ -2,6 +2,7 @@ import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.pi4j.wiringpi.Gpio;
 import com.pi4j.wiringpi.Lcd;
@@ -15,8 +16,36 @@ public class LCD {
   private int handle;
   private ArrayList<String> lines;
   private boolean shutdown;
+  private boolean simulated;
+  private char[][] frame; // characters on the display, kept in memory when simulated
 
   public LCD() {
+    this(false);
+  }
+
+  /**
+   * Constructor for an LCD controller
+   *
+   * @param simulated True to only keep the display in an in-memory framebuffer
+   */
+  public LCD(boolean simulated) {
+    this.simulated = simulated;
+    frame = new char[LCD_ROWS][LCD_COLUMNS];
+    for (char[] row : frame)
+      Arrays.fill(row, ' ');
+    lines = new ArrayList<String>();
+    for (int i = 0; i < LCD_ROWS; i++)
+      lines.add("");
+
+    if (simulated) {
+      shutdown = false;
+      writeLine(0, "      GFLY      ");
+      writeLine(1, "    STARTING    ");
+      if (Config.verbose)
+        System.out.println("LCD: simulated");
+      return;
+    }
+
     // initialize LCD
     handle = Lcd.lcdInit(LCD_ROWS, // number of row supported by LCD
         LCD_COLUMNS, // number of columns supported by LCD
@@ -32,10 +61,6 @@ public class LCD {
         0, // LCD data bit 7 (set to 0 if using 4 bit communication)
         0); // LCD data bit 8 (set to 0 if using 4 bit communication)
 
-    lines = new ArrayList<String>();
-    for (int i = 0; i < LCD_ROWS; i++)
-      lines.add("");
-
     // verify initialization
     if (handle == -1) {
       System.out.println("LCD: Failed to initialize");
@@ -57,12 +82,30 @@ public class LCD {
     if (shutdown || lines.get(lineNum).equals(line))
       return;
 
+    // same as the display: text past the end of the line is cut off
+    for (int i = 0; i < LCD_COLUMNS; i++)
+      frame[lineNum][i] = i < line.length() ? line.charAt(i) : ' ';
+    if (simulated) {
+      lines.set(lineNum, line);
+      return;
+    }
+
     Lcd.lcdHome(handle);
     Lcd.lcdPosition(handle, 0, lineNum);
     Lcd.lcdPuts(handle, line);
     lines.set(lineNum, line);
   }
 
+  /**
+   * Returns what a row of the display shows
+   *
+   * @param lineNum Row number
+   * @return The 16 characters on the row
+   */
+  public String getDisplayLine(int lineNum) {
+    return new String(frame[lineNum]);
+  }
+
   public void shutdown() {
     writeLine(0, "    Goodbye     ");
     writeLine(1, "                ");
@@ -9,10 +9,11 @@ import com.pi4j.io.gpio.Pin;
  * Controller for LEDs with 1, 3 or 4 pins.
  * 
  * Has a queue for LED events (either set or flash). Functions "on", "off", and "flash" add the
- * corresponding event to the queue as one of the colour codes. A worker thread constantly processes
- * the queue in the background while the rest of the program is running. That way the program 
- * doesn't sit and wait while it flashes the LED. If multiple flash commands come in at the same
- * time, they will happen one after the other in the order that they came in.
+ * corresponding event to the queue as one of the colour codes. The queue is processed by tasks on
+ * the shared scheduler, started when an event is queued and timed by the flashes, so the program
+ * doesn't sit and wait while it flashes the LED and nothing wakes up while the LED is idle. If
+ * multiple flash commands come in at the same time, they will happen one after the other in the
+ * order that they came in.
  *
  * PI4J includes functions like pulse() and blink() which should have done all of this in 
  * a much simpler way, but they turned out to be unreliable in that the LEDs wouldn't consistently
@@ -46,12 +47,20 @@ public class LED {
 	private static final int MAGENTA_FLASH = 15;
 	private static final int CYAN_FLASH    = 16;
 	private static final int ALL_FLASH     = 17;
+
+	// flash phases
+	private static final int IDLE = 0;
+	private static final int FLASH_ON = 1;
+	private static final int FLASH_OFF = 2;
 	
 	private ArrayList<GpioPinDigitalOutput> pins; // list of GPIO pins
-	private ArrayList<Integer> queue; // LED event queue (of colour codes)
-	private LEDWorker workerThread; // handles then removes events from the queue (set or flash)
+	private ArrayList<Integer> queue; // LED event queue (of colour codes), also the lock for busy and shutdown
+	private boolean busy; // whether a task is processing the queue
+	private boolean shutdown; // whether to stop processing the queue
+	private int phase; // IDLE, or FLASH_ON or FLASH_OFF while a flash is shown
 	private int status; // last solid colour (or OFF) the LED was set to - returns to this after flashing
 	private String name; // name of this LED
+	private int[] levels; // current red, green, blue and white values (kept for simulated LEDs)
 		
 	/**
 	 * Constructor for a 1 pin LED controller object
@@ -68,9 +77,16 @@ public class LED {
 		Pin pin = RaspiPin.getPinByAddress(pinNum);
 		pins.add(gpio.provisionDigitalOutputPin(pin, name, PinState.LOW));		
 		pins.get(0).setShutdownOptions(true, PinState.LOW);
+	}
 		
-		// start worker thread
-		startWorker();
+	/**
+	 * Constructor for a simulated LED controller object with no pins, which only keeps
+	 * its state (see getLevel)
+	 * 
+	 * @param name Name of this LED
+	 */
+	public LED(String name) {
+		init(name);
 	}
 		
 	/**
@@ -103,16 +119,25 @@ public class LED {
 		for (GpioPinDigitalOutput pin : pins) {
 			pin.setShutdownOptions(true, PinState.LOW);
 		}
-		
-		// start worker thread
-		startWorker();
 	}
 		
 	/**
 	 * Shut down the controller
 	 */
 	public void shutdown() {
-		if (workerThread != null) workerThread.shutdown();
+		synchronized (queue) {
+			shutdown = true;
+		}
+	}
+	
+	/**
+	 * Returns the current value of one colour
+	 * 
+	 * @param colour RED, GREEN, BLUE or WHITE
+	 * @return 0 for off, PIN_MAX for on
+	 */
+	public int getLevel(int colour) {
+		return levels[colour];
 	}
 	
 	/**
@@ -130,8 +155,8 @@ public class LED {
 	public void on(int colourCode) {
 		if (status != colourCode) {
 			if (Config.verbose) System.out.printf("LED: %s => %s\n", name, getColourName(colourCode));
-			queue.add(new Integer(colourCode));
 			status = colourCode;
+			add(colourCode);
 		}
 	}
 		
@@ -141,8 +166,8 @@ public class LED {
 	public void off() {
 		if (status != OFF) {
 			if (Config.verbose) System.out.printf("LED: %s => off\n", name);
-			queue.add(new Integer(OFF));
 			status = OFF;
+			add(OFF);
 		}
 	}
 	
@@ -166,7 +191,7 @@ public class LED {
 			System.out.printf("LED: %s => flash %s x %d\n", name, getColourName(colourCode), numTimes);
 		}
 		for (int i = 0; i < numTimes; i++) {
-			queue.add(new Integer(colourCode + 10));
+			add(colourCode + 10);
 		}
 	}
 		
@@ -217,16 +242,75 @@ public class LED {
 		this.name = name;
 		pins = new ArrayList<>();
 		queue = new ArrayList<>();
+		levels = new int[4];
 		status = OFF;
 	}
 		
 	/**
-	 * Start worker thread
+	 * Queue an event, starting to process the queue if it is idle
+	 * 
+	 * @param colourCode Colour code, +10 for a flash
+	 */
+	private void add(int colourCode) {
+		synchronized (queue) {
+			queue.add(colourCode);
+			if (busy || shutdown) return;
+			busy = true;
+		}
+		schedule(0);
+	}
+	
+	/**
+	 * Process the queue after a delay, on the shared scheduler
+	 * 
+	 * @param delay Milliseconds
 	 */
-	private void startWorker() {
-		workerThread = new LEDWorker();
-		(new Thread(workerThread)).start();
-		if (Config.verbose) System.out.printf("LED: %s ready\n", name);
+	private void schedule(int delay) {
+		Workers.scheduler().scheduleOnce("led " + name, delay, TaskScheduler.LOW, new Runnable() {
+			@Override
+			public void run() {
+				processQueue();
+			}
+		});
+	}
+	
+	/**
+	 * Handle the events in the queue until it is empty or a flash needs time, when
+	 * processing continues after the flash's on or off time
+	 */
+	private void processQueue() {
+		if (phase == FLASH_ON) {
+			set(OFF);
+			phase = FLASH_OFF;
+			schedule(Config.ledFlashOffTime);
+			return;
+		}
+		if (phase == FLASH_OFF) {
+			phase = IDLE;
+			synchronized (queue) {
+				if (queue.isEmpty()) set(status);
+			}
+		}
+		
+		while (true) {
+			int colourCode;
+			synchronized (queue) {
+				if (queue.isEmpty() || shutdown) {
+					busy = false;
+					return;
+				}
+				colourCode = queue.remove(0);
+			}
+			if (colourCode < RED_FLASH) {
+				set(colourCode);
+			}
+			else {
+				set(colourCode - 10);
+				phase = FLASH_ON;
+				schedule(Config.ledFlashTime);
+				return;
+			}
+		}
 	}
 	
 	/**
@@ -264,6 +348,12 @@ public class LED {
 	 * @param w White value
 	 */
 	private void set(int r, int g, int b, int w) {		
+		levels[RED] = r;
+		levels[GREEN] = g;
+		levels[BLUE] = b;
+		levels[WHITE] = w;
+		if (pins.isEmpty()) return;
+		
 		if (r == 0) pins.get(RED).low();
 		else pins.get(RED).high();
 		
@@ -280,91 +370,4 @@ public class LED {
 		if (w == 0) pins.get(WHITE).low();
 		else pins.get(WHITE).high();
 	}
-	
-	/**
-	 * Worker thread class
-	 */
-	public class LEDWorker implements Runnable {
-		
-		// flag for whether the worker should shut down
-		private boolean shutdown;
-	 	
-		/**
-		 * Constructor
-		 */
-		public LEDWorker() {
-			shutdown = false;
-		}
-			
-		/**
-		 * Main worker loop
-		 */
-		@Override
-		public void run() {
-			while (!shutdown) {
-				processQueue();
-				Util.delay(Config.ledRefreshTime);
-			}
-		}
-			
-		/**
-		 * Shut down the worker
-		 */
-		public void shutdown() {
-			shutdown = true;
-		}
-	 	
-		/**
-		 * Process the LED's queue
-		 */
-		private void processQueue() {
-			if (queue.size() > 0) {
-				switch (queue.get(0).intValue()) {
-					case OFF:     processSet(OFF); break;
-					case ALL:     processSet(ALL); break;
-					case RED:     processSet(RED); break;
-					case GREEN:   processSet(GREEN); break;
-					case BLUE:    processSet(BLUE); break;
-					case WHITE:   processSet(WHITE); break;
-					case YELLOW:  processSet(YELLOW); break;
-					case MAGENTA: processSet(MAGENTA); break;
-					case CYAN:    processSet(CYAN); break;
-					case ALL_FLASH:     processFlash(ALL); break;
-					case RED_FLASH:     processFlash(RED); break;
-					case GREEN_FLASH:   processFlash(GREEN); break;
-					case BLUE_FLASH:    processFlash(BLUE); break;
-					case WHITE_FLASH:   processFlash(WHITE); break;
-					case YELLOW_FLASH:  processFlash(YELLOW); break;
-					case MAGENTA_FLASH: processFlash(MAGENTA); break;
-					case CYAN_FLASH:    processFlash(CYAN); break;
-					default: break;
-				}
-			}
-		}
-			
-		/**
-		 * Handle a SET from the queue
-		 * 
-		 * @param colourCode Colour code
-		 */
-		private void processSet(int colourCode) {
-			set(colourCode);
-			status = colourCode;
-			queue.remove(0);
-		}
-			
-		/**
-		 * Handle a FLASH from the queue
-		 * 
-		 * @param colourCode Colour code
-		 */
-		private void processFlash(int colourCode) {
-			set(colourCode);
-			Util.delay(Config.ledFlashTime);
-			set(OFF);
-			Util.delay(Config.ledFlashOffTime);
-			queue.remove(0);
-			if (queue.size() == 0) set(status);
-		}
-	}
 }
@@ -0,0 +1,282 @@
+import com.pi4j.io.i2c.I2CDevice;
+
+/**
+ * Driver for an MPU-6050 accelerometer/gyroscope on the sensor I2C bus, feeding
+ * vertical acceleration to the vario filter.
+ *
+ * Only the accelerometer is used. It samples at Config.imuSampleRate into the chip's
+ * FIFO, which a task on the sensors' scheduler empties every Config.imuFifoBatch samples,
+ * at a fixed rate, so the bus sees one
+ * count read and one data read per batch. The direction of gravity is found by
+ * averaging the readings over Config.imuGravityTime seconds, and each reading is
+ * projected onto it; subtracting the average magnitude leaves the vertical
+ * acceleration without gravity or the accelerometer's offset, whatever way up the
+ * device is mounted. Without the gyroscope, turns tilt the apparent vertical a little
+ * while they last, which the barometer corrects.
+ */
+public class MPU6050 {
+
+  public static final int ADDRESS = 0x68;
+
+  private static byte WHO_AM_I = 0x68;
+  private static byte REGISTER_SMPLRT_DIV = 0x19;
+  private static byte REGISTER_CONFIG = 0x1A;
+  private static byte REGISTER_GYRO_CONFIG = 0x1B;
+  private static byte REGISTER_ACCEL_CONFIG = 0x1C;
+  private static byte REGISTER_FIFO_EN = 0x23;
+  private static byte REGISTER_INT_STATUS = 0x3A;
+  private static byte REGISTER_USER_CTRL = 0x6A;
+  private static byte REGISTER_PWR_MGMT_1 = 0x6B;
+  private static byte REGISTER_FIFO_COUNT = 0x72; // high byte, then low byte
+  private static byte REGISTER_FIFO_R_W = 0x74;
+  private static byte REGISTER_WHO_AM_I = 0x75;
+
+  private static byte PWR_RESET = (byte) 0x80;
+  private static byte PWR_CLOCK_PLL = 0x01; // awake, clocked from the X gyro
+  private static byte DLPF_44HZ = 0x03; // accelerometer bandwidth 44Hz, 1kHz internal rate
+  private static byte GYRO_250 = 0x00; // +/-250 deg/s full scale (gyroscope unused)
+  private static byte ACCEL_4G = 0x08; // +/-4g full scale
+  private static byte FIFO_ACCEL = 0x08; // accelerometer X, Y and Z into the FIFO
+  private static byte USER_FIFO_ENABLE = 0x40;
+  private static byte USER_FIFO_RESET = 0x04;
+  private static int INT_FIFO_OVERFLOW = 0x10;
+
+  private static int FIFO_SIZE = 1024;
+  private static final Struct.Codec SAMPLE_FORMAT = Struct.compile(">hhh"); // X, Y and Z
+  private static final Struct.Codec COUNT_FORMAT = Struct.compile(">H");
+  private static int SAMPLE_SIZE = SAMPLE_FORMAT.size();
+  private static double SCALE = 9.80665 / 8192; // m/s^2 per count at +/-4g
+
+  private I2CRegisters registers;
+  private VarioFilter vario;
+  private TaskScheduler.Task readTask; // empties the FIFO every batch
+  private byte[] buffer; // buffer for FIFO reads
+  private int sampleRate; // samples per second the chip was set to
+  private double gravityX, gravityY, gravityZ; // average acceleration, m/s^2
+  private boolean gravityKnown;
+  private long lastSampleTime; // milliseconds of the last sample
+  private volatile double verticalAcceleration; // latest, m/s^2
+  private long samples; // samples read
+  private long fifoReads; // batches read
+  private long overflows; // times the FIFO filled up and was reset
+
+  /**
+   * Constructor for an accelerometer alone on its bus
+   *
+   * @param device I2C device at the chip's address (real or SimMPU6050)
+   * @param vario Vario filter to feed, or null
+   */
+  public MPU6050(I2CDevice device, VarioFilter vario) {
+    this(device, new I2CRegisters.Bus("I2C"), vario);
+  }
+
+  /**
+   * Constructor for an accelerometer
+   *
+   * @param device I2C device at the chip's address (real or SimMPU6050)
+   * @param bus Bus the device is on, shared with the other sensors on it
+   * @param vario Vario filter to feed, or null
+   */
+  public MPU6050(I2CDevice device, I2CRegisters.Bus bus, VarioFilter vario) {
+    try {
+      registers = new I2CRegisters(device, bus, "MPU6050", false);
+      registers.cache(REGISTER_SMPLRT_DIV, 4); // to ACCEL_CONFIG
+      registers.cache(REGISTER_FIFO_EN, 1);
+      this.vario = vario;
+      buffer = new byte[FIFO_SIZE];
+
+      byte id = readByte(REGISTER_WHO_AM_I);
+      if (id != WHO_AM_I) {
+        if (Config.verbose)
+          System.out.println("MPU6050: Failed to find chip");
+        return;
+      }
+
+      writeByte(REGISTER_PWR_MGMT_1, PWR_RESET);
+      registers.invalidate();
+      Util.delay(100);
+      writeByte(REGISTER_PWR_MGMT_1, PWR_CLOCK_PLL);
+
+      // SMPLRT_DIV to ACCEL_CONFIG in one write
+      int divider = Math.max(0, Math.min(255, 1000 / Math.max(1, Config.imuSampleRate) - 1));
+      sampleRate = 1000 / (divider + 1);
+      byte[] config = { (byte) divider, DLPF_44HZ, GYRO_250, ACCEL_4G };
+      registers.write(REGISTER_SMPLRT_DIV, config, 0, config.length);
+      resetFifo();
+      writeByte(REGISTER_FIFO_EN, FIFO_ACCEL);
+
+      startReading();
+
+      if (Config.verbose)
+        System.out.printf("MPU6050: ready, %d samples per second\n", sampleRate);
+    } catch (Exception e) {
+      Errors.handleException(e, "Failed to initialize MPU6050");
+    }
+  }
+
+  /**
+   * Shut down the controller
+   */
+  public void shutdown() {
+    if (readTask != null)
+      readTask.cancel();
+    if (Config.verbose)
+      System.out.printf("MPU6050: %d samples in %d reads, %d overflows\n", samples, fifoReads, overflows);
+    if (Config.verbose && registers != null)
+      registers.print();
+  }
+
+  /**
+   * Start reading the FIFO every batch, at a fixed rate on the sensors' scheduler
+   */
+  private void startReading() {
+    int period = Math.max(1, Config.imuFifoBatch * 1000 / sampleRate);
+    readTask = Workers.sensors().schedule("mpu6050", period, period, TaskScheduler.HIGH, new Runnable() {
+      @Override
+      public void run() {
+        readFifo();
+      }
+    });
+    if (Config.verbose)
+      System.out.printf("MPU6050: reading every %dms\n", period);
+  }
+
+  /**
+   * Empty the FIFO and start filling it again
+   */
+  private void resetFifo() {
+    writeByte(REGISTER_USER_CTRL, USER_FIFO_RESET);
+    writeByte(REGISTER_USER_CTRL, USER_FIFO_ENABLE);
+  }
+
+  /**
+   * Read the samples waiting in the FIFO and pass them on
+   *
+   * @return Number of samples read
+   */
+  private int readFifo() {
+    readBurst(REGISTER_FIFO_COUNT, buffer, 2);
+    int count = (int) COUNT_FORMAT.get(buffer, 0, 0) / SAMPLE_SIZE;
+    if (count * SAMPLE_SIZE > FIFO_SIZE - SAMPLE_SIZE && (readByte(REGISTER_INT_STATUS) & INT_FIFO_OVERFLOW) != 0) {
+      // the oldest samples were overwritten, so the FIFO may be out of step with the sample boundaries
+      resetFifo();
+      overflows++;
+      return 0;
+    }
+    if (count == 0)
+      return 0;
+
+    readBurst(REGISTER_FIFO_R_W, buffer, count * SAMPLE_SIZE);
+    fifoReads++;
+
+    // the last sample was just taken, the rest are one sample period apart before it
+    long now = Clock.millis();
+    double period = 1000.0 / sampleRate;
+    for (int i = 0; i < count; i++) {
+      int offset = i * SAMPLE_SIZE;
+      double x = SAMPLE_FORMAT.get(buffer, offset, 0) * SCALE;
+      double y = SAMPLE_FORMAT.get(buffer, offset, 1) * SCALE;
+      double z = SAMPLE_FORMAT.get(buffer, offset, 2) * SCALE;
+      long time = Math.max(lastSampleTime, now - Math.round((count - 1 - i) * period));
+      lastSampleTime = time;
+      addSample(x, y, z, time);
+    }
+    samples += count;
+    return count;
+  }
+
+  /**
+   * Find the vertical acceleration of a sample and pass it to the vario filter
+   *
+   * @param x Acceleration along the chip's X axis in m/s^2
+   * @param y Acceleration along the Y axis
+   * @param z Acceleration along the Z axis
+   * @param time Time of the sample in milliseconds
+   */
+  private void addSample(double x, double y, double z, long time) {
+    if (!gravityKnown) {
+      gravityX = x;
+      gravityY = y;
+      gravityZ = z;
+      gravityKnown = true;
+    } else {
+      double weight = 1.0 / (Config.imuGravityTime * sampleRate);
+      gravityX += (x - gravityX) * weight;
+      gravityY += (y - gravityY) * weight;
+      gravityZ += (z - gravityZ) * weight;
+    }
+
+    double gravity = Math.sqrt(gravityX * gravityX + gravityY * gravityY + gravityZ * gravityZ);
+    if (gravity == 0)
+      return;
+    double vertical = (x * gravityX + y * gravityY + z * gravityZ) / gravity - gravity;
+    verticalAcceleration = vertical;
+    if (vario != null)
+      vario.addAcceleration(vertical, time);
+  }
+
+  /**
+   * Returns the vertical acceleration of the latest sample
+   *
+   * @return m/s^2, positive upwards, without gravity
+   */
+  public double getVerticalAcceleration() {
+    return verticalAcceleration;
+  }
+
+  /**
+   * Returns the number of samples read
+   *
+   * @return Sample count
+   */
+  public long getSamples() {
+    return samples;
+  }
+
+  /**
+   * Returns the number of FIFO batches read
+   *
+   * @return Read count
+   */
+  public long getFifoReads() {
+    return fifoReads;
+  }
+
+  /**
+   * Returns the number of times the FIFO overflowed
+   *
+   * @return Overflow count
+   */
+  public long getOverflows() {
+    return overflows;
+  }
+
+  /**
+   * Returns the accelerometer's register access, with its bus statistics
+   *
+   * @return Registers
+   */
+  public I2CRegisters getRegisters() {
+    return registers;
+  }
+
+  private byte readByte(byte register) {
+    return registers.read(register);
+  }
+
+  /**
+   * Read consecutive registers (or the FIFO) in a single transaction
+   *
+   * @param register First register
+   * @param buffer Buffer for the values
+   * @param length Number of bytes
+   * @return The buffer
+   */
+  private byte[] readBurst(byte register, byte[] buffer, int length) {
+    return registers.read(register, buffer, 0, length);
+  }
+
+  private void writeByte(byte register, byte value) {
+    registers.write(register, value);
+  }
+}
@@ -0,0 +1,603 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for NMEA 0183 sentences.
+ *
+ * Serial data is fed in one chunk at a time, in whatever pieces the port happens to
+ * deliver, and is copied into a fixed sentence buffer. A sentence is framed by '$', the
+ * '*' checksum delimiter and CR/LF. Once a complete sentence has been received and its
+ * XOR checksum matches, the fields are parsed in place into the primitive values below
+ * and the listener is notified. Nothing is allocated while parsing, so a high rate of
+ * sentences does not create garbage for the collector.
+ *
+ * The parsed values are only valid for the duration of the listener call, and are
+ * overwritten by the next sentence.
+ */
+public class NMEAParser {
+
+	// sentence types
+	public static final int UNKNOWN = 0;
+	public static final int RMC = 1;
+	public static final int GGA = 2;
+	public static final int VTG = 3;
+	public static final int GSA = 4;
+	public static final int PMTK_ACK = 5;
+
+	// the NMEA limit is 82 characters including the $ and CR/LF, allow some slack
+	private static final int MAX_LENGTH = 128;
+	private static final int MAX_FIELDS = 32;
+
+	// framing states
+	private static final int WAITING = 0; // waiting for a $
+	private static final int BODY = 1; // between $ and *
+	private static final int CHECKSUM_HIGH = 2; // first checksum digit
+	private static final int CHECKSUM_LOW = 3; // second checksum digit
+	private static final int END = 4; // waiting for CR/LF
+
+	private static final double[] POWERS_OF_TEN = { 1.0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	private final byte[] sentence; // current sentence, without the $ or checksum
+	private final int[] fieldStart; // index of the first character of each field
+	private final int[] fieldEnd; // index after the last character of each field
+	private Listener listener; // notified after each valid sentence
+	private int state; // framing state
+	private int length; // number of bytes in the sentence buffer
+	private int fieldCount; // number of fields in the current sentence
+	private int checksum; // running XOR checksum
+	private int expectedChecksum; // checksum sent with the sentence
+
+	// statistics
+	private long sentenceCount; // valid sentences received
+	private long checksumErrors; // sentences dropped because of a bad checksum
+	private long framingErrors; // sentences dropped because they were too long or malformed
+
+	// values parsed from the last sentence
+	private int type; // sentence type
+	private int time; // UTC time in milliseconds since midnight, -1 if not present
+	private int date; // UTC date as DDMMYY, -1 if not present
+	private boolean valid; // RMC status A or GGA fix quality > 0
+	private double latitude; // decimal degrees, NaN if not present
+	private double longitude; // decimal degrees, NaN if not present
+	private double altitude; // metres above mean sea level, NaN if not present
+	private double speed; // knots, NaN if not present
+	private double trackingAngle; // degrees true, NaN if not present
+	private int fixQuality; // GGA fix quality or GSA fix type
+	private int satellites; // satellites used, -1 if not present
+	private double hdop; // horizontal dilution of precision, NaN if not present
+	private int ackCommand; // command number acknowledged by a PMTK001, -1 if not present
+	private int ackFlag; // PMTK001 result: 0 invalid, 1 unsupported, 2 failed, 3 succeeded
+
+	/**
+	 * Listener for parsed sentences
+	 */
+	public interface Listener {
+		/**
+		 * Called after a sentence has been received and parsed
+		 *
+		 * @param parser The parser holding the values of the sentence
+		 */
+		void sentenceParsed(NMEAParser parser);
+	}
+
+	/**
+	 * Constructor for an NMEA parser
+	 *
+	 * @param listener Listener to notify of parsed sentences
+	 */
+	public NMEAParser(Listener listener) {
+		this.listener = listener;
+		sentence = new byte[MAX_LENGTH];
+		fieldStart = new int[MAX_FIELDS];
+		fieldEnd = new int[MAX_FIELDS];
+		reset();
+	}
+
+	/**
+	 * Discard any partially received sentence
+	 */
+	public void reset() {
+		state = WAITING;
+		length = 0;
+		checksum = 0;
+	}
+
+	/**
+	 * Process a chunk of serial data
+	 *
+	 * @param data Buffer holding the data
+	 * @param offset Index of the first byte to process
+	 * @param count Number of bytes to process
+	 */
+	public void accept(byte[] data, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++)
+			accept(data[i]);
+	}
+
+	/**
+	 * Process the serial data between a buffer's position and limit, without changing
+	 * the buffer's position
+	 *
+	 * @param data Buffer holding the data
+	 */
+	public void accept(ByteBuffer data) {
+		int end = data.limit();
+		for (int i = data.position(); i < end; i++)
+			accept(data.get(i));
+	}
+
+	/**
+	 * Process a single byte of serial data
+	 *
+	 * @param b The byte to process
+	 */
+	public void accept(byte b) {
+		if (b == '$') {
+			if (state == END)
+				completeSentence();
+			else if (state != WAITING)
+				framingErrors++;
+			state = BODY;
+			length = 0;
+			checksum = 0;
+			return;
+		}
+
+		switch (state) {
+			case BODY:
+				if (b == '*') {
+					state = CHECKSUM_HIGH;
+				} else if (b == '\r' || b == '\n' || length == MAX_LENGTH) {
+					framingErrors++;
+					state = WAITING;
+				} else {
+					sentence[length++] = b;
+					checksum ^= b;
+				}
+				break;
+			case CHECKSUM_HIGH:
+				expectedChecksum = hexValue(b) << 4;
+				state = expectedChecksum < 0 ? WAITING : CHECKSUM_LOW;
+				if (state == WAITING)
+					framingErrors++;
+				break;
+			case CHECKSUM_LOW:
+				int low = hexValue(b);
+				if (low < 0) {
+					framingErrors++;
+					state = WAITING;
+				} else {
+					expectedChecksum |= low;
+					state = END;
+				}
+				break;
+			case END:
+				if (b == '\r' || b == '\n') {
+					state = WAITING;
+					completeSentence();
+				} else {
+					framingErrors++;
+					state = WAITING;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Frame a sentence body with $, checksum and CR/LF
+	 *
+	 * @param body Sentence without the $ or checksum, e.g. "PMTK220,100"
+	 * @return The complete sentence
+	 */
+	public static String frame(CharSequence body) {
+		int sum = 0;
+		for (int i = 0; i < body.length(); i++)
+			sum ^= body.charAt(i);
+		return String.format("$%s*%02X\r\n", body, sum & 0xff);
+	}
+
+	/**
+	 * Returns the type of the last sentence
+	 *
+	 * @return One of the sentence type constants
+	 */
+	public int getType() { return type; }
+
+	/**
+	 * Returns the UTC time of the last sentence
+	 *
+	 * @return Milliseconds since midnight, or -1 if the sentence has no time
+	 */
+	public int getTime() { return time; }
+
+	/**
+	 * Returns the UTC date of the last sentence
+	 *
+	 * @return Date as DDMMYY, or -1 if the sentence has no date
+	 */
+	public int getDate() { return date; }
+
+	/**
+	 * Returns true if the module reported it had a fix
+	 *
+	 * @return True if the last sentence was valid
+	 */
+	public boolean isValid() { return valid; }
+
+	/**
+	 * Returns latitude
+	 *
+	 * @return Latitude as a decimal, or NaN if not present
+	 */
+	public double getLatitude() { return latitude; }
+
+	/**
+	 * Returns longitude
+	 *
+	 * @return Longitude as a decimal, or NaN if not present
+	 */
+	public double getLongitude() { return longitude; }
+
+	/**
+	 * Returns altitude above mean sea level
+	 *
+	 * @return Altitude in m, or NaN if not present
+	 */
+	public double getAltitude() { return altitude; }
+
+	/**
+	 * Returns speed over ground
+	 *
+	 * @return Speed in knots, or NaN if not present
+	 */
+	public double getSpeed() { return speed; }
+
+	/**
+	 * Returns tracking angle
+	 *
+	 * @return Tracking angle in degrees, or NaN if not present
+	 */
+	public double getTrackingAngle() { return trackingAngle; }
+
+	/**
+	 * Returns GGA fix quality (0 = none, 1 = GPS, 2 = DGPS) or GSA fix type (1 = none,
+	 * 2 = 2D, 3 = 3D)
+	 *
+	 * @return Fix quality
+	 */
+	public int getFixQuality() { return fixQuality; }
+
+	/**
+	 * Returns number of satellites used for the fix
+	 *
+	 * @return Number of satellites, or -1 if not present
+	 */
+	public int getSatellites() { return satellites; }
+
+	/**
+	 * Returns horizontal dilution of precision
+	 *
+	 * @return HDOP, or NaN if not present
+	 */
+	public double getHDOP() { return hdop; }
+
+	/**
+	 * Returns the command number acknowledged by a PMTK001 sentence
+	 *
+	 * @return Command number, or -1 if not present
+	 */
+	public int getAckCommand() { return ackCommand; }
+
+	/**
+	 * Returns the result in a PMTK001 sentence
+	 *
+	 * @return 0 invalid command, 1 unsupported, 2 valid but failed, 3 succeeded
+	 */
+	public int getAckFlag() { return ackFlag; }
+
+	/**
+	 * Returns the number of valid sentences received
+	 *
+	 * @return Sentence count
+	 */
+	public long getSentenceCount() { return sentenceCount; }
+
+	/**
+	 * Returns the number of sentences dropped because of a checksum mismatch
+	 *
+	 * @return Checksum error count
+	 */
+	public long getChecksumErrors() { return checksumErrors; }
+
+	/**
+	 * Returns the number of sentences dropped because they were malformed
+	 *
+	 * @return Framing error count
+	 */
+	public long getFramingErrors() { return framingErrors; }
+
+	/**
+	 * Verify the checksum of a fully framed sentence and parse it
+	 */
+	private void completeSentence() {
+		if (expectedChecksum == (checksum & 0xff))
+			handleSentence();
+		else
+			checksumErrors++;
+	}
+
+	/**
+	 * Split a checksummed sentence into fields and parse it
+	 */
+	private void handleSentence() {
+		// split into fields
+		fieldCount = 0;
+		int start = 0;
+		for (int i = 0; i <= length && fieldCount < MAX_FIELDS; i++) {
+			if (i == length || sentence[i] == ',') {
+				fieldStart[fieldCount] = start;
+				fieldEnd[fieldCount] = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+
+		// address field is talker (GP, GN, ...) + sentence id
+		if (fieldEnd[0] == 7 && matches(0, 'P', 'M', 'T') && sentence[3] == 'K' && digits(4, 3) == 1) {
+			type = PMTK_ACK;
+		} else if (fieldEnd[0] != 5) {
+			type = UNKNOWN;
+		} else if (matches(2, 'R', 'M', 'C')) {
+			type = RMC;
+		} else if (matches(2, 'G', 'G', 'A')) {
+			type = GGA;
+		} else if (matches(2, 'V', 'T', 'G')) {
+			type = VTG;
+		} else if (matches(2, 'G', 'S', 'A')) {
+			type = GSA;
+		} else {
+			type = UNKNOWN;
+		}
+
+		clearValues();
+		switch (type) {
+			case RMC:
+				if (fieldCount < 10)
+					return;
+				time = parseTime(1);
+				valid = fieldEquals(2, 'A');
+				latitude = parseCoordinate(3, 2, 'S');
+				longitude = parseCoordinate(5, 3, 'W');
+				speed = parseDecimal(7);
+				trackingAngle = parseDecimal(8);
+				date = (int) parseInteger(9);
+				break;
+			case GGA:
+				if (fieldCount < 10)
+					return;
+				time = parseTime(1);
+				latitude = parseCoordinate(2, 2, 'S');
+				longitude = parseCoordinate(4, 3, 'W');
+				fixQuality = (int) parseInteger(6);
+				valid = fixQuality > 0;
+				satellites = (int) parseInteger(7);
+				hdop = parseDecimal(8);
+				altitude = parseDecimal(9);
+				break;
+			case VTG:
+				if (fieldCount < 8)
+					return;
+				trackingAngle = parseDecimal(1);
+				speed = parseDecimal(5);
+				break;
+			case GSA:
+				if (fieldCount < 17)
+					return;
+				fixQuality = (int) parseInteger(2);
+				valid = fixQuality > 1;
+				hdop = parseDecimal(16);
+				break;
+			case PMTK_ACK:
+				if (fieldCount < 3)
+					return;
+				ackCommand = (int) parseInteger(1);
+				ackFlag = (int) parseInteger(2);
+				break;
+			default:
+				break;
+		}
+
+		sentenceCount++;
+		if (listener != null)
+			listener.sentenceParsed(this);
+	}
+
+	/**
+	 * Reset the parsed values before parsing a new sentence
+	 */
+	private void clearValues() {
+		time = -1;
+		date = -1;
+		valid = false;
+		latitude = Double.NaN;
+		longitude = Double.NaN;
+		altitude = Double.NaN;
+		speed = Double.NaN;
+		trackingAngle = Double.NaN;
+		fixQuality = 0;
+		satellites = -1;
+		hdop = Double.NaN;
+		ackCommand = -1;
+		ackFlag = -1;
+	}
+
+	/**
+	 * Check three characters of the sentence
+	 *
+	 * @param index Index in the sentence buffer
+	 * @return True if the characters match
+	 */
+	private boolean matches(int index, char a, char b, char c) {
+		return sentence[index] == a && sentence[index + 1] == b && sentence[index + 2] == c;
+	}
+
+	/**
+	 * Check whether a field is a single character
+	 *
+	 * @param field Field number
+	 * @param c Character to compare with
+	 * @return True if the field is exactly that character
+	 */
+	private boolean fieldEquals(int field, char c) {
+		return field < fieldCount && fieldEnd[field] - fieldStart[field] == 1 && sentence[fieldStart[field]] == c;
+	}
+
+	/**
+	 * Parse an unsigned integer field, ignoring anything after a decimal point
+	 *
+	 * @param field Field number
+	 * @return The value, or -1 if empty or invalid
+	 */
+	private long parseInteger(int field) {
+		if (field >= fieldCount || fieldStart[field] == fieldEnd[field])
+			return -1;
+		long value = 0;
+		for (int i = fieldStart[field]; i < fieldEnd[field]; i++) {
+			int digit = sentence[i] - '0';
+			if (sentence[i] == '.')
+				break;
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a decimal number field
+	 *
+	 * @param field Field number
+	 * @return The value, or NaN if empty or invalid
+	 */
+	private double parseDecimal(int field) {
+		if (field >= fieldCount)
+			return Double.NaN;
+		return parseDecimal(fieldStart[field], fieldEnd[field]);
+	}
+
+	/**
+	 * Parse a decimal number from part of the sentence buffer
+	 *
+	 * @param start Index of the first character
+	 * @param end Index after the last character
+	 * @return The value, or NaN if empty or invalid
+	 */
+	private double parseDecimal(int start, int end) {
+		if (start >= end)
+			return Double.NaN;
+		boolean negative = sentence[start] == '-';
+		if (negative)
+			start++;
+		long mantissa = 0;
+		int decimals = -1;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			byte c = sentence[i];
+			if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits++;
+					if (decimals >= 0)
+						decimals++;
+				}
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (digits == 0)
+			return Double.NaN;
+		double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a time field
+	 * - from HHMMSS.SSS
+	 *
+	 * @param field Field number
+	 * @return Milliseconds since midnight, or -1 if empty or invalid
+	 */
+	private int parseTime(int field) {
+		if (field >= fieldCount || fieldEnd[field] - fieldStart[field] < 6)
+			return -1;
+		int start = fieldStart[field];
+		int hours = (int) digits(start, 2);
+		int minutes = (int) digits(start + 2, 2);
+		double seconds = parseDecimal(start + 4, fieldEnd[field]);
+		if (hours < 0 || minutes < 0 || Double.isNaN(seconds))
+			return -1;
+		return (hours * 60 + minutes) * 60000 + (int) Math.round(seconds * 1000.0);
+	}
+
+	/**
+	 * Parse a latitude or longitude field and its hemisphere field
+	 * - from DDMM.MMMM or DDDMM.MMMM where D = degrees, M = decimal minutes
+	 *
+	 * @param field Field number of the coordinate
+	 * @param degreeDigits Number of digits for degrees (2 for latitude, 3 for longitude)
+	 * @param negative Hemisphere character that makes the value negative (S or W)
+	 * @return Coordinate as a decimal, or NaN if empty or invalid
+	 */
+	private double parseCoordinate(int field, int degreeDigits, char negative) {
+		if (field + 1 >= fieldCount || fieldEnd[field] - fieldStart[field] <= degreeDigits)
+			return Double.NaN;
+		int start = fieldStart[field];
+		long degrees = digits(start, degreeDigits);
+		double minutes = parseDecimal(start + degreeDigits, fieldEnd[field]);
+		if (degrees < 0 || Double.isNaN(minutes))
+			return Double.NaN;
+		double result = degrees + minutes / 60.0;
+		if (fieldEquals(field + 1, negative))
+			result *= -1.0;
+		return result;
+	}
+
+	/**
+	 * Parse a fixed number of digits
+	 *
+	 * @param start Index of the first digit
+	 * @param count Number of digits
+	 * @return The value, or -1 if any character is not a digit
+	 */
+	private long digits(int start, int count) {
+		long value = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = sentence[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Convert a hexadecimal character to its value
+	 *
+	 * @param b The character
+	 * @return Value from 0 to 15, or -1 if not a hexadecimal character
+	 */
+	private static int hexValue(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		return -1;
+	}
+}
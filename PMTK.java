@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Startup configuration for MediaTek GPS modules (such as the Adafruit Ultimate GPS)
+ * using PMTK commands.
+ *
+ * The module powers up at 9600 baud, sending a fix once a second with every sentence
+ * type. This negotiates the baud rate (PMTK251), the sentences sent (PMTK314) and the
+ * fix interval (PMTK220), reopening the port at the new baud rate and waiting for the
+ * module to acknowledge each command with a PMTK001.
+ *
+ * The module keeps its baud rate while it has backup power, so the target baud rate is
+ * tried first before falling back to the power-on rate.
+ */
+public class PMTK {
+
+	// PMTK001 result flags
+	public static final int ACK_INVALID = 0;
+	public static final int ACK_UNSUPPORTED = 1;
+	public static final int ACK_FAILED = 2;
+	public static final int ACK_SUCCEEDED = 3;
+
+	// command numbers
+	private static final int TEST = 0;
+	private static final int SET_BAUD = 251;
+	private static final int SET_FIX_INTERVAL = 220;
+	private static final int SET_OUTPUT = 314;
+
+	// sentence order in the PMTK314 mask
+	private static final String[] OUTPUT_SENTENCES = { "GLL", "RMC", "VTG", "GGA", "GSA", "GSV" };
+
+	// number of times to send a command before giving up
+	private static final int RETRIES = 3;
+
+	private GPSPort port; // port to the module
+	private int expectedCommand; // command waiting for acknowledgement, -1 if none
+	private int ackFlag; // result received for the expected command, -1 if none yet
+
+	/**
+	 * Constructor for a PMTK configurator
+	 *
+	 * @param port Port to the module
+	 */
+	public PMTK(GPSPort port) {
+		this.port = port;
+		expectedCommand = -1;
+		ackFlag = -1;
+	}
+
+	/**
+	 * Configure the module from the Config values, leaving the port open at the
+	 * resulting baud rate
+	 *
+	 * @return True if every command was acknowledged
+	 */
+	public boolean configure() {
+		try {
+			int baud = Config.gpsBaud;
+
+			// try the target baud rate in case the module is already set to it
+			port.open(baud);
+			boolean connected = send(TEST, "");
+
+			if (!connected && baud != Config.gpsDefaultBaud) {
+				port.open(Config.gpsDefaultBaud);
+				if (!send(TEST, "")) {
+					System.out.println("GPS: module did not respond, not configured");
+					return false;
+				}
+
+				// cut the sentences down first so they fit at the old rate while switching
+				send(SET_OUTPUT, outputMask(Config.gpsSentences));
+
+				// the baud change is not acknowledged, confirm at the new rate instead
+				port.write(command(SET_BAUD, "," + baud));
+				Util.delay(100);
+				port.open(baud);
+				connected = send(TEST, "");
+				if (!connected) {
+					System.out.printf("GPS: module did not respond at %d baud\n", baud);
+					port.open(Config.gpsDefaultBaud);
+					return false;
+				}
+			}
+
+			boolean success = connected;
+			success &= send(SET_OUTPUT, outputMask(Config.gpsSentences));
+			success &= send(SET_FIX_INTERVAL, "," + Config.gpsUpdateInterval);
+
+			if (Config.verbose)
+				System.out.printf("GPS: configured %s at %d baud every %dms (%s)\n", Config.gpsSentences, baud,
+						Config.gpsUpdateInterval, success ? "acknowledged" : "not acknowledged");
+			if (Config.gpsUpdateInterval < 1000 && baud <= 9600)
+				System.out.println("GPS: fix interval is too short for 9600 baud, fixes will be dropped");
+			return success;
+		} catch (Exception e) {
+			Errors.handleException(e, "Failed to configure GPS module");
+		}
+		return false;
+	}
+
+	/**
+	 * Handle a PMTK001 acknowledgement from the module (serial thread)
+	 *
+	 * @param command Command number acknowledged
+	 * @param flag Result flag
+	 */
+	public synchronized void acknowledge(int command, int flag) {
+		if (command == expectedCommand) {
+			ackFlag = flag;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Send a command and wait for it to be acknowledged, retrying if there is no reply
+	 *
+	 * @param number Command number
+	 * @param arguments Arguments, each starting with a comma
+	 * @return True if the module acknowledged success
+	 */
+	private boolean send(int number, String arguments) throws IOException {
+		byte[] data = command(number, arguments);
+		for (int i = 0; i < RETRIES; i++) {
+			synchronized (this) {
+				expectedCommand = number;
+				ackFlag = -1;
+				port.write(data);
+
+				long end = System.currentTimeMillis() + Config.gpsAckTimeout;
+				long now = System.currentTimeMillis();
+				while (ackFlag < 0 && now < end) {
+					try {
+						wait(end - now);
+					} catch (InterruptedException e) {
+						Errors.handleException(e, "Thread interrupted");
+						return false;
+					}
+					now = System.currentTimeMillis();
+				}
+				expectedCommand = -1;
+
+				if (ackFlag == ACK_SUCCEEDED)
+					return true;
+				if (ackFlag >= 0) {
+					System.out.printf("GPS: PMTK%03d rejected (%d)\n", number, ackFlag);
+					return false;
+				}
+			}
+		}
+		if (Config.verbose)
+			System.out.printf("GPS: no acknowledgement for PMTK%03d\n", number);
+		return false;
+	}
+
+	/**
+	 * Build a command sentence
+	 *
+	 * @param number Command number
+	 * @param arguments Arguments, each starting with a comma
+	 * @return The framed sentence as bytes
+	 */
+	public static byte[] command(int number, String arguments) {
+		String body = String.format("PMTK%03d%s", number, arguments);
+		return NMEAParser.frame(body).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Build the PMTK314 arguments for a list of sentences
+	 *
+	 * @param sentences Comma separated sentence types, e.g. "RMC,GGA"
+	 * @return Arguments for PMTK314, sending each listed sentence with every fix
+	 */
+	public static String outputMask(String sentences) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < 19; i++) {
+			boolean enabled = false;
+			if (i < OUTPUT_SENTENCES.length)
+				for (String sentence : sentences.split(","))
+					enabled |= sentence.trim().equalsIgnoreCase(OUTPUT_SENTENCES[i]);
+			result.append(enabled ? ",1" : ",0");
+		}
+		return result.toString();
+	}
+}
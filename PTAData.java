@@ -1,13 +1,15 @@
 
 public class PTAData {
-  private double pressure;
-  private double temperature;
-  private double altitude;
+  private final double pressure;
+  private final double temperature;
+  private final double altitude;
+  private final long time; // Clock.millis of the measurement
 
-  public PTAData(double pressure, double temperature, double altitude) {
+  public PTAData(double pressure, double temperature, double altitude, long time) {
     this.pressure = pressure;
     this.temperature = temperature;
     this.altitude = altitude;
+    this.time = time;
   }
 
   public double getPressure() { return pressure; }
@@ -15,4 +17,6 @@ public class PTAData {
   public double getTemperature() { return temperature; }
 
   public double getAltitude() { return altitude; }
+
+  public long getTime() { return time; }
 }
\ No newline at end of file
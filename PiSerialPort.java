@@ -0,0 +1,85 @@
+import com.pi4j.io.serial.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * GPS serial connection through pi4j, which delivers data to an event listener on
+ * its own thread
+ */
+public class PiSerialPort implements GPSPort {
+
+	private Serial serial; // pi4j serial port
+	private String device; // device path
+	private Receiver receiver; // receiver for incoming data
+
+	/**
+	 * Constructor for a pi4j serial connection
+	 *
+	 * @param device Device path, e.g. /dev/ttyS0
+	 * @param receiver Receiver for incoming data
+	 */
+	public PiSerialPort(String device, final Receiver receiver) {
+		this.device = device;
+		this.receiver = receiver;
+
+		// create an instance of the serial communications class
+		serial = SerialFactory.createInstance();
+
+		// create and register the serial data listener
+		// this will run in its own thread
+		serial.addListener(new SerialDataEventListener() {
+			@Override
+			public void dataReceived(SerialDataEvent event) {
+
+				// NOTE! - It is extremely important to read the data received from the
+				// serial port.  If it does not get read from the receive buffer, the
+				// buffer will continue to grow and consume memory.
+
+				// read and handle the serial data
+				try {
+					receiver.received(ByteBuffer.wrap(event.getBytes()));
+				} catch (IOException e) {
+					Errors.handleException(e, "Serial I/O failure");
+				}
+			}
+		});
+	}
+
+	@Override
+	public void open(int baud) throws IOException {
+		if (serial.isOpen())
+			serial.close();
+
+		// *** need to enable serial in Raspberry Pi config ***
+		// set serial I/O settings
+		SerialConfig config = new SerialConfig();
+		config.device(device)
+			  .baud(Baud.getInstance(baud))
+			  .dataBits(DataBits._8)
+			  .parity(Parity.NONE)
+			  .stopBits(StopBits._1)
+			  .flowControl(FlowControl.NONE);
+
+		// display connection details
+		if (Config.verbose)
+			System.out.printf("GPS: Opening serial connection to: %s\n", config.toString());
+
+		// open the serial device/port with the configuration settings
+		serial.open(config);
+	}
+
+	@Override
+	public void write(byte[] data) throws IOException {
+		serial.write(data);
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (serial.isOpen())
+				serial.close();
+		} catch (IOException e) {
+			Errors.handleException(e, "Failed to close serial port");
+		}
+	}
+}
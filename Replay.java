@@ -0,0 +1,477 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays a recorded flight through GPS, BMP388, Track and the main loop on a virtual
+ * clock, without any hardware.
+ *
+ * Usage: java -cp Gfly.jar Replay [-track] nmeaLog pressureTrace [output.csv] [name=value ...]
+ *        java -cp Gfly.jar Replay generate seconds nmeaLog pressureTrace
+ *        java -cp Gfly.jar Replay vario pressureTrace [name=value ...]
+ *
+ * The NMEA log is raw serial data (Config.gpsTrace records one) and the pressure trace
+ * has lines of time in ms, pressure in Pa and temperature (Config.pressureTrace records
+ * one). Both start at the same moment: the first sentence with a time is placed at the
+ * start of the trace, and each epoch is released when the virtual clock reaches its
+ * UTC time. Everything runs on this thread, with the main loop's delay moving the
+ * clock forward, so a replay gives the same output every time and runs as fast as the
+ * processing allows.
+ *
+ * The output CSV has a line for each main loop iteration that changed the display.
+ * With -track, the track is recorded as on the device (named from the virtual time).
+ * Config values can be given as name=value arguments; settings.conf is not loaded.
+ *
+ * The vario mode feeds a pressure trace to the climb rate estimators (Kalman and
+ * moving average) and compares each with a reference that can only be computed
+ * afterwards: the slope of a line fitted to the altitudes a second either side of each
+ * sample, which has no delay. The delay of an estimator is the shift that best lines
+ * it up with the reference, and its noise is the RMS difference left at that shift. It
+ * also times how long each takes to show 1 m/s after a step into a 2 m/s climb.
+ */
+public class Replay {
+
+	// virtual start time if the log has no date, 2000-01-01 00:00 UTC
+	private static final long DEFAULT_START_TIME = 946684800000L;
+
+	// replayed devices
+	private GPS gps;
+	private BMP388 sensor;
+	private DeviceController controller;
+
+	// pressure trace
+	private long[] sampleTimes; // ms from the start of the trace
+	private double[] samplePressures; // Pa
+	private double[] sampleTemperatures; // deg C
+	private int sampleCount;
+	private int nextSample;
+
+	// timeline
+	private long startTime; // virtual time of the start of the trace
+	private int lastEpochTime; // UTC time of the last epoch released, -1 if none
+	private long lastEpochTarget; // virtual time the last epoch was released at
+	private int sentenceTime; // UTC time of the sentence just scanned, -1 if it has none
+
+	// output and statistics
+	private BufferedWriter output;
+	private String lastLine1;
+	private String lastLine2;
+	private long iterations;
+	private long fixes;
+	private double minClimb;
+	private double maxClimb;
+
+	public static void main(String... args) {
+		try {
+			if (args.length == 4 && args[0].equals("generate")) {
+				generate(Integer.parseInt(args[1]), args[2], args[3]);
+				return;
+			}
+
+			if (args.length >= 2 && args[0].equals("vario")) {
+				for (int i = 2; i < args.length; i++)
+					Config.handleConfigLine(args[i]);
+				new Replay().measureVario(args[1]);
+				return;
+			}
+
+			boolean track = false;
+			String[] files = new String[3];
+			int fileCount = 0;
+			for (String arg : args) {
+				if (arg.equals("-track"))
+					track = true;
+				else if (arg.contains("="))
+					Config.handleConfigLine(arg);
+				else if (fileCount < files.length)
+					files[fileCount++] = arg;
+			}
+			if (fileCount < 2) {
+				System.out.println("Usage: Replay [-track] nmeaLog pressureTrace [output.csv] [name=value ...]");
+				System.out.println("       Replay generate seconds nmeaLog pressureTrace");
+				System.out.println("       Replay vario pressureTrace [name=value ...]");
+				return;
+			}
+
+			new Replay().run(files[0], files[1], files[2], track);
+		} catch (Exception e) {
+			Errors.handleException(e, "Replay failed");
+		}
+	}
+
+	/**
+	 * Replay a flight
+	 *
+	 * @param nmeaFile Path of the NMEA log
+	 * @param traceFile Path of the pressure trace
+	 * @param outputFile Path of the output CSV, or null for none
+	 * @param track Whether to record the track
+	 */
+	public void run(String nmeaFile, String traceFile, String outputFile, boolean track) throws IOException {
+		byte[] nmea = Files.readAllBytes(Paths.get(nmeaFile));
+		loadTrace(traceFile);
+
+		// devices without I/O, fed below
+		Config.gpsSource = "NONE";
+		gps = new GPS(null, 0, 0);
+		sensor = new BMP388();
+		controller = new DeviceController();
+		controller.initReplay(gps, sensor);
+
+		// scanner to find the time of each sentence before it is given to the GPS
+		NMEAParser scanner = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				if (parser.getType() == NMEAParser.RMC || parser.getType() == NMEAParser.GGA)
+					sentenceTime = parser.getTime();
+			}
+		});
+
+		startTime = findStartTime(nmea);
+		Clock.useVirtual(startTime);
+		Gfly.start(controller, false);
+		if (track)
+			Gfly.getTrack().run();
+		if (outputFile != null) {
+			output = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8);
+			output.write("time,altitude,climb,distance,tone,line1,line2\n");
+		}
+
+		lastEpochTime = -1;
+		lastEpochTarget = startTime;
+		minClimb = 0.0;
+		maxClimb = 0.0;
+		long wallStart = System.nanoTime();
+
+		// release the log a sentence at a time, running the program up to each new epoch
+		ByteBuffer buffer = ByteBuffer.wrap(nmea);
+		long sequence = 0;
+		int start = 0;
+		while (start < nmea.length) {
+			int end = start;
+			while (end < nmea.length && nmea[end] != '\n')
+				end++;
+			end = Math.min(end + 1, nmea.length);
+
+			sentenceTime = -1;
+			scanner.accept(nmea, start, end - start);
+			if (sentenceTime >= 0 && sentenceTime != lastEpochTime) {
+				runUntil(epochTarget(sentenceTime));
+				lastEpochTime = sentenceTime;
+			}
+
+			buffer.limit(end).position(start);
+			gps.receive(buffer);
+			buffer.limit(nmea.length);
+			start = end;
+
+			if (gps.getHistory().getSequence() != sequence) {
+				sequence = gps.getHistory().getSequence();
+				fixes++;
+			}
+		}
+
+		// let the rest of the pressure trace play out
+		runUntil(Math.max(lastEpochTarget, startTime + (sampleCount > 0 ? sampleTimes[sampleCount - 1] : 0)));
+		// runUntil stops once the clock reaches the time, before delivering the samples
+		// that became due in the last step
+		while (nextSample < sampleCount)
+			step();
+		long wallTime = System.nanoTime() - wallStart;
+
+		if (output != null)
+			output.close();
+		report(wallTime, track);
+		Clock.useSystem();
+	}
+
+	/**
+	 * Measure the delay and noise of the climb rate estimators on a pressure trace
+	 *
+	 * @param traceFile Path of the pressure trace
+	 */
+	public void measureVario(String traceFile) throws IOException {
+		loadTrace(traceFile);
+		int n = sampleCount;
+		int window = BMP388.samples; // one second either side for the reference
+		if (n < 4 * window) {
+			System.out.println("Replay: trace too short");
+			return;
+		}
+
+		String filter = Config.varioFilter;
+		double[] kalman = new double[n];
+		double[] average = new double[n];
+		double[] altitude = new double[n];
+		sensor = new BMP388();
+		for (int i = 0; i < n; i++) {
+			sensor.addSample(samplePressures[i], sampleTemperatures[i], sampleTimes[i]);
+			altitude[i] = sensor.getLastData().getAltitude();
+			Config.varioFilter = "KALMAN";
+			kalman[i] = sensor.getAltitudeChange();
+			Config.varioFilter = "AVERAGE";
+			average[i] = sensor.getAltitudeChange();
+		}
+		Config.varioFilter = filter;
+
+		// slope of the least squares line through the altitudes around each sample
+		double[] reference = new double[n];
+		for (int i = window; i < n - window; i++) {
+			double st = 0, sa = 0, stt = 0, sta = 0;
+			for (int j = i - window; j <= i + window; j++) {
+				double t = (sampleTimes[j] - sampleTimes[i]) / 1000.0;
+				st += t;
+				sa += altitude[j];
+				stt += t * t;
+				sta += t * altitude[j];
+			}
+			int count = 2 * window + 1;
+			reference[i] = (count * sta - st * sa) / (count * stt - st * st);
+		}
+
+		double interval = (sampleTimes[n - 1] - sampleTimes[0]) / (double) (n - 1);
+		System.out.printf(Locale.ROOT, "%d samples, %.1f ms apart, process noise %.2f, measurement noise %.2f m\n", n,
+				interval, Config.varioProcessNoise, Config.varioMeasurementNoise);
+		reportVario("Kalman", kalman, reference, window, interval);
+		reportVario("Average", average, reference, window, interval);
+
+		// entering a 2 m/s climb over half a second, with the trace's sample interval and
+		// 0.3 m of noise, and a 200Hz accelerometer with 0.3 m/s^2 of noise for the aided filter
+		Random random = new Random(1);
+		BMP388 step = new BMP388();
+		BMP388 aided = new BMP388();
+		long stepTime = 10000;
+		long sampleInterval = Math.max(1, Math.round(interval));
+		long[] reached = { -1, -1, -1 };
+		for (long time = 0; time < stepTime + 5000; time++) {
+			double t = Math.max(0, (time - stepTime) / 1000.0);
+			double height = 1000 + (t < 0.5 ? 2 * t * t : 2 * t - 0.5);
+			if (time % 5 == 0) {
+				double acceleration = time >= stepTime && t < 0.5 ? 4.0 : 0.0;
+				aided.getVarioFilter().addAcceleration(acceleration + random.nextGaussian() * 0.3, time);
+			}
+			if (time % sampleInterval == 0) {
+				double noise = random.nextGaussian() * 0.3;
+				double pressure = AltitudeConverter.STANDARD_QNH * 100
+						* Math.pow(1 - (height + noise) / 44307.7, 1 / 0.190284);
+				step.addSample(pressure, 15, time);
+				aided.addSample(pressure, 15, time);
+			}
+			for (int k = 0; k < 3; k++) {
+				Config.varioFilter = k == 2 ? "AVERAGE" : "KALMAN";
+				double climb = (k == 1 ? aided : step).getAltitudeChange();
+				if (time >= stepTime && reached[k] < 0 && climb >= 1.0)
+					reached[k] = time - stepTime;
+			}
+		}
+		Config.varioFilter = filter;
+		System.out.printf("Entering 2 m/s: 1 m/s shown after %d ms (Kalman), %d ms (Kalman with accelerometer), %d ms (average)\n",
+				reached[0], reached[1], reached[2]);
+	}
+
+	/**
+	 * Print the delay and noise of one climb rate estimator against the reference
+	 */
+	private static void reportVario(String name, double[] estimate, double[] reference, int window,
+			double interval) {
+		int maxLag = 3 * window;
+		int bestLag = 0;
+		double bestError = Double.MAX_VALUE;
+		for (int lag = 0; lag <= maxLag; lag++) {
+			double sum = 0;
+			int count = 0;
+			for (int i = 2 * window + lag; i < reference.length - window; i++) {
+				double d = estimate[i] - reference[i - lag];
+				sum += d * d;
+				count++;
+			}
+			double error = Math.sqrt(sum / count);
+			if (error < bestError) {
+				bestError = error;
+				bestLag = lag;
+			}
+		}
+		System.out.printf(Locale.ROOT, "%s: delay %.0f ms, noise %.3f m/s RMS\n", name, bestLag * interval, bestError);
+	}
+
+	/**
+	 * Returns the virtual time an epoch is released at
+	 *
+	 * @param epochTime UTC time of the epoch in milliseconds since midnight
+	 * @return Virtual time
+	 */
+	private long epochTarget(int epochTime) {
+		if (lastEpochTime < 0) {
+			lastEpochTarget = startTime;
+			return startTime;
+		}
+		long delta = epochTime - lastEpochTime;
+		if (delta < -43200000L)
+			delta += 86400000L; // past midnight
+		lastEpochTarget += Math.max(0, delta);
+		return lastEpochTarget;
+	}
+
+	/**
+	 * Run the program until the virtual clock reaches a time
+	 *
+	 * @param time Virtual time in milliseconds
+	 */
+	private void runUntil(long time) throws IOException {
+		while (Clock.millis() < time)
+			step();
+	}
+
+	/**
+	 * Deliver the pressure samples that are due, then run one main loop iteration
+	 */
+	private void step() throws IOException {
+		long now = Clock.millis();
+		while (nextSample < sampleCount && startTime + sampleTimes[nextSample] <= now) {
+			sensor.addSample(samplePressures[nextSample], sampleTemperatures[nextSample],
+					startTime + sampleTimes[nextSample]);
+			nextSample++;
+		}
+
+		// the main loop needs a pressure reading to display
+		if (sensor.getLastData() == null) {
+			Clock.advance(Math.max(1, Config.mainLoopDelay));
+			return;
+		}
+
+		long before = Clock.millis();
+		Gfly.getTrack().update();
+		Gfly.mainLoop();
+		iterations++;
+		if (Clock.millis() == before)
+			Clock.advance(1); // mainLoopDelay of 0
+
+		double climb = controller.getAltitudeChange();
+		minClimb = Math.min(minClimb, climb);
+		maxClimb = Math.max(maxClimb, climb);
+
+		String line1 = controller.getLCDLine(0);
+		String line2 = controller.getLCDLine(1);
+		if (output != null && (!line1.equals(lastLine1) || !line2.equals(lastLine2))) {
+			output.write(String.format(Locale.ROOT, "%.1f,%.2f,%.2f,%.3f,%d,\"%s\",\"%s\"\n",
+					(before - startTime) / 1000.0, controller.getAltitude(), climb, Gfly.getDistance(),
+					controller.getToneFrequency(), line1, line2));
+		}
+		lastLine1 = line1;
+		lastLine2 = line2;
+	}
+
+	/**
+	 * Print the results of the replay
+	 *
+	 * @param wallTime Time taken in nanoseconds
+	 * @param track Whether the track was recorded
+	 */
+	private void report(long wallTime, boolean track) {
+		double flightSeconds = (Clock.millis() - startTime) / 1000.0;
+		double seconds = wallTime / 1e9;
+		System.out.printf(Locale.ROOT, "Replayed %.0f s of flight in %.2f s (%.0fx real time)\n", flightSeconds,
+				seconds, seconds > 0 ? flightSeconds / seconds : 0.0);
+		System.out.printf(Locale.ROOT, "  %d GPS fixes, %d pressure samples, %d main loop iterations (%.1f us each)\n",
+				fixes, nextSample, iterations, iterations > 0 ? wallTime / 1e3 / iterations : 0.0);
+		System.out.printf(Locale.ROOT, "  distance %.3f km, climb %+.2f to %+.2f m/s\n", Gfly.getDistance(), minClimb,
+				maxClimb);
+		System.out.printf("  %d NMEA sentences, %d checksum errors, %d framing errors\n",
+				gps.getParser().getSentenceCount(), gps.getParser().getChecksumErrors(),
+				gps.getParser().getFramingErrors());
+		if (track)
+			System.out.println("  track written to " + Gfly.getTrack().getFilename());
+	}
+
+	/**
+	 * Find the virtual start time from the first date and time in the log, so that the
+	 * track file and timestamps match the flight
+	 *
+	 * @param nmea The log
+	 * @return Milliseconds since the Unix epoch
+	 */
+	private static long findStartTime(byte[] nmea) {
+		final int[] first = { -1, -1 };
+		NMEAParser parser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				if (parser.getType() == NMEAParser.RMC && first[1] < 0 && parser.getDate() >= 0) {
+					first[1] = parser.getDate();
+					if (first[0] < 0) first[0] = parser.getTime();
+				} else if (parser.getType() == NMEAParser.GGA && first[0] < 0)
+					first[0] = parser.getTime();
+			}
+		});
+		for (int i = 0; i < nmea.length && first[1] < 0; i += 4096)
+			parser.accept(nmea, i, Math.min(4096, nmea.length - i));
+
+		if (first[0] < 0 || first[1] < 0)
+			return DEFAULT_START_TIME;
+		int date = first[1];
+		long day = LocalDate.of(2000 + date % 100, (date / 100) % 100, date / 10000).toEpochDay();
+		return day * 86400000L + first[0];
+	}
+
+	/**
+	 * Load a pressure trace into primitive arrays
+	 *
+	 * @param path Path of the trace
+	 */
+	private void loadTrace(String path) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(path), StandardCharsets.US_ASCII);
+		sampleTimes = new long[lines.size()];
+		samplePressures = new double[lines.size()];
+		sampleTemperatures = new double[lines.size()];
+		sampleCount = 0;
+		for (String line : lines) {
+			String[] parts = line.split(",");
+			if (parts.length < 3 || parts[0].isEmpty() || !Character.isDigit(parts[0].charAt(0)))
+				continue; // header or comment
+			try {
+				sampleTimes[sampleCount] = Long.parseLong(parts[0].trim());
+				samplePressures[sampleCount] = Double.parseDouble(parts[1]);
+				sampleTemperatures[sampleCount] = Double.parseDouble(parts[2]);
+				sampleCount++;
+			} catch (NumberFormatException e) {
+				System.out.println("Replay: skipping invalid trace line " + line);
+			}
+		}
+	}
+
+	/**
+	 * Generate a synthetic flight (the benchmark thermal) as an NMEA log at the
+	 * Config.gpsUpdateInterval rate and a pressure trace at BMP388.samples Hz
+	 *
+	 * @param seconds Length of the flight
+	 * @param nmeaFile Path of the NMEA log to write
+	 * @param traceFile Path of the pressure trace to write
+	 */
+	private static void generate(int seconds, String nmeaFile, String traceFile) throws IOException {
+		int rate = Math.max(1, 1000 / Config.gpsUpdateInterval);
+		Files.write(Paths.get(nmeaFile), SimFlight.generateNMEA(seconds, rate));
+
+		// fixed seed so that the same trace is generated every time
+		Random random = new Random(1);
+		double[] state = new double[6];
+		try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(traceFile), StandardCharsets.US_ASCII)) {
+			writer.write("time,pressure,temperature\n");
+			int samples = seconds * BMP388.samples;
+			for (int i = 0; i < samples; i++) {
+				long time = i * 1000L / BMP388.samples;
+				SimFlight.flight(time / 1000.0, state);
+				double altitude = state[2] + random.nextGaussian() * 0.3;
+				double pressure = 101325.0 * Math.pow(1.0 - altitude / 44307.7, 1.0 / 0.190284);
+				double temperature = 15.0 - 0.0065 * state[2];
+				writer.write(String.format(Locale.ROOT, "%d,%.2f,%.3f\n", time, pressure, temperature));
+			}
+		}
+		System.out.printf("Generated %d s of flight in %s and %s\n", seconds, nmeaFile, traceFile);
+	}
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity history of the most recent items, for one writer thread and any
+ * number of reader threads.
+ *
+ * Items are written into a circular array and a sequence number counts how many have
+ * ever been added. Readers use the sequence number to find items and to check that an
+ * item was not overwritten while it was being read, so no locks are needed and reads
+ * do not allocate. Items must be immutable, since they are shared between threads.
+ *
+ * @param <T> Type of item stored
+ */
+public class RingBuffer<T> {
+
+	private final AtomicReferenceArray<T> slots; // one spare slot so a reader never sees a slot being written
+	private final int capacity; // number of items that can be read back
+	private volatile long sequence; // number of items ever added
+
+	/**
+	 * Visitor for iterating over the history
+	 *
+	 * @param <T> Type of item stored
+	 */
+	public interface Visitor<T> {
+		/**
+		 * Called for each item, newest first
+		 *
+		 * @param item The item
+		 * @return True to continue to the next (older) item
+		 */
+		boolean visit(T item);
+	}
+
+	/**
+	 * Test for the items latestValid looks for
+	 *
+	 * @param <T> Type of item stored
+	 */
+	public interface Filter<T> {
+		/**
+		 * Called for each item, newest first, until one is accepted
+		 *
+		 * @param item The item
+		 * @return True if the item is the one wanted
+		 */
+		boolean accept(T item);
+	}
+
+	/**
+	 * Constructor for a ring buffer
+	 *
+	 * @param capacity Number of items to keep
+	 */
+	public RingBuffer(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		slots = new AtomicReferenceArray<>(this.capacity + 1);
+		sequence = 0;
+	}
+
+	/**
+	 * Add an item, replacing the oldest if full (writer thread only)
+	 *
+	 * @param item Item to add
+	 */
+	public void add(T item) {
+		long next = sequence;
+		slots.set((int) (next % slots.length()), item);
+		sequence = next + 1;
+	}
+
+	/**
+	 * Returns the most recently added item
+	 *
+	 * @return Newest item, or null if empty
+	 */
+	public T latest() {
+		return get(0);
+	}
+
+	/**
+	 * Returns an item by age
+	 *
+	 * @param age 0 for the newest item, 1 for the one before it, and so on
+	 * @return The item, or null if there is no item of that age
+	 */
+	public T get(int age) {
+		long end = sequence;
+		long index = end - 1 - age;
+		if (age < 0 || age >= capacity || index < 0)
+			return null;
+		T item = slots.get((int) (index % slots.length()));
+
+		// the writer may have lapped the reader while it was reading
+		if (sequence - index > capacity)
+			return null;
+		return item;
+	}
+
+	/**
+	 * Returns the newest item a filter accepts. If the writer laps the reader during the
+	 * search, it starts again from the newest item, so a burst of writes never hides a
+	 * valid item that is still retained.
+	 *
+	 * @param filter Test for the item wanted
+	 * @return Newest accepted item, or null if no retained item is accepted
+	 */
+	public T latestValid(Filter<T> filter) {
+		while (true) {
+			long end = sequence;
+			boolean lapped = false;
+			for (long index = end - 1; index >= 0 && end - index <= capacity; index--) {
+				T item = slots.get((int) (index % slots.length()));
+				if (sequence - index > capacity) {
+					lapped = true;
+					break;
+				}
+				if (item != null && filter.accept(item))
+					return item;
+			}
+			if (!lapped)
+				return null;
+		}
+	}
+
+	/**
+	 * Visit the retained items, newest first
+	 *
+	 * @param max Maximum number of items to visit
+	 * @param visitor Visitor to call for each item
+	 * @return Number of items visited
+	 */
+	public int forEach(int max, Visitor<T> visitor) {
+		long end = sequence;
+		int count = 0;
+		for (long index = end - 1; index >= 0 && count < max; index--) {
+			T item = slots.get((int) (index % slots.length()));
+			if (sequence - index > capacity)
+				break;
+			count++;
+			if (!visitor.visit(item))
+				break;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of items that can currently be read
+	 *
+	 * @return Number of retained items
+	 */
+	public int size() {
+		return (int) Math.min(sequence, capacity);
+	}
+
+	/**
+	 * Returns the maximum number of items retained
+	 *
+	 * @return Capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of items ever added, which readers can use to tell whether
+	 * anything new has arrived
+	 *
+	 * @return Sequence number of the next item
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+}
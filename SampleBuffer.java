@@ -0,0 +1,217 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * History of sensor values with running window sums, for one writer thread and any
+ * number of reader threads.
+ *
+ * Values are kept in a circular array of primitives holding two windows: the newest
+ * window and the one before it. The sum of each window is updated as values enter and
+ * leave it, with Kahan compensation, so the means and the change between them cost the
+ * same whatever the window length and nothing is allocated. The sums are recomputed
+ * from the values each time the array wraps around so rounding cannot build up over a
+ * long flight. Readers take an optimistic StampedLock read (a sequence lock) and retry,
+ * yielding, if the writer was adding a value at the same time; they never take the
+ * read lock, so the writer is never blocked.
+ */
+public class SampleBuffer {
+
+	private final StampedLock lock = new StampedLock();
+	private final double[] values; // two windows, oldest value at index count % length
+	private final int window; // number of values in each window
+	private long count; // number of values ever added
+
+	// sums of the newest and previous windows, and their Kahan compensation terms
+	private double recentSum;
+	private double recentError;
+	private double previousSum;
+	private double previousError;
+
+	/**
+	 * Constructor for a sample buffer
+	 *
+	 * @param window Number of values averaged in each window
+	 */
+	public SampleBuffer(int window) {
+		this.window = Math.max(1, window);
+		values = new double[this.window * 2];
+		count = 0;
+	}
+
+	/**
+	 * Add a value, moving the oldest value of the newest window into the previous
+	 * window and dropping the oldest value of that (writer thread only)
+	 *
+	 * @param value Value to add
+	 */
+	public void add(double value) {
+		long stamp = lock.writeLock();
+		try {
+			int length = values.length;
+			int index = (int) (count % length);
+			double leaving = count >= length ? values[index] : 0.0;
+			double moving = count >= window ? values[(int) ((count - window) % length)] : 0.0;
+			values[index] = value;
+			count++;
+
+			if (count % length == 0) {
+				recalculate();
+			} else {
+				addRecent(value - moving);
+				addPrevious(moving - leaving);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Add an offset to every stored value, e.g. when the reference they are measured
+	 * from changes (writer thread only)
+	 *
+	 * @param delta Amount to add
+	 */
+	public void shift(double delta) {
+		long stamp = lock.writeLock();
+		try {
+			int stored = (int) Math.min(count, values.length);
+			for (int i = 0; i < stored; i++)
+				values[i] += delta;
+			recentSum += delta * Math.min(count, window);
+			previousSum += delta * Math.max(0, Math.min(count - window, window));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Add to the newest window's sum with Kahan compensation
+	 *
+	 * @param delta Amount to add
+	 */
+	private void addRecent(double delta) {
+		double y = delta - recentError;
+		double t = recentSum + y;
+		recentError = (t - recentSum) - y;
+		recentSum = t;
+	}
+
+	/**
+	 * Add to the previous window's sum with Kahan compensation
+	 *
+	 * @param delta Amount to add
+	 */
+	private void addPrevious(double delta) {
+		double y = delta - previousError;
+		double t = previousSum + y;
+		previousError = (t - previousSum) - y;
+		previousSum = t;
+	}
+
+	/**
+	 * Recompute both sums from the stored values (called with the array full and the
+	 * oldest value at index 0)
+	 */
+	private void recalculate() {
+		recentSum = recentError = previousSum = previousError = 0.0;
+		for (int i = 0; i < window; i++) {
+			addPrevious(values[i]);
+			addRecent(values[window + i]);
+		}
+	}
+
+	/**
+	 * Returns the most recently added value
+	 *
+	 * @return Newest value, or NaN if empty
+	 */
+	public double latest() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			double result = count > 0 ? values[(int) ((count - 1) % values.length)] : Double.NaN;
+			if (lock.validate(stamp))
+				return result;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the mean of the newest window, or of all values if fewer have been added
+	 *
+	 * @return Mean, or NaN if empty
+	 */
+	public double getMean() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			long n = Math.min(count, window);
+			double sum = recentSum;
+			if (lock.validate(stamp))
+				return n > 0 ? sum / n : Double.NaN;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the mean of the window before the newest one
+	 *
+	 * @return Mean, or NaN if the previous window has no values yet
+	 */
+	public double getPreviousMean() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			long n = Math.min(count - window, window);
+			double sum = previousSum;
+			if (lock.validate(stamp))
+				return n > 0 ? sum / n : Double.NaN;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the difference between the means of the newest and previous windows
+	 *
+	 * @return Change in the mean, or 0 until both windows are full
+	 */
+	public double getChange() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			boolean full = count >= values.length;
+			double change = recentSum - previousSum;
+			if (lock.validate(stamp))
+				return full ? change / window : 0.0;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the number of values that can currently be read
+	 *
+	 * @return Number of retained values
+	 */
+	public int size() {
+		return (int) Math.min(getCount(), values.length);
+	}
+
+	/**
+	 * Returns the number of values averaged in each window
+	 *
+	 * @return Window length
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Returns the number of values ever added
+	 *
+	 * @return Count
+	 */
+	public long getCount() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			long result = count;
+			if (lock.validate(stamp))
+				return result;
+			Thread.yield();
+		}
+	}
+}
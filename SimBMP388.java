@@ -0,0 +1,690 @@
+import com.pi4j.io.i2c.I2CDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Simulated BMP388 on the I2C bus, for running without a Raspberry Pi.
+ *
+ * Emulates the register map as the driver sees it: chip id, calibration block, the
+ * power control modes with conversion times from the oversampling settings, the status
+ * data-ready bits (cleared when the data registers are read), the data and sensor time
+ * registers, the IIR filter, the FIFO (sensor, sensor time and configuration change
+ * frames, watermark and full flags, flush), the data ready and FIFO watermark
+ * interrupts (delivered to a handler in place of the INT pin) and the soft reset command. A register
+ * address written on its own sets the read pointer, reads auto-increment except at
+ * the FIFO data register, and writes are register/value pairs, as on the real bus.
+ *
+ * The measured pressure follows the benchmark flight (a thermal climb) with noise that
+ * falls with oversampling, and is turned into raw ADC values by inverting the
+ * compensation formulas for the simulated calibration.
+ */
+public class SimBMP388 implements I2CDevice {
+
+	public static final int ADDRESS = 0x77;
+
+	// registers
+	private static final int CHIP_ID = 0x00;
+	private static final int STATUS = 0x03;
+	private static final int DATA = 0x04; // pressure then temperature, 3 bytes each
+	private static final int SENSOR_TIME = 0x0C;
+	private static final int INT_STATUS = 0x11;
+	private static final int FIFO_LENGTH = 0x12;
+	private static final int FIFO_DATA = 0x14;
+	private static final int FIFO_WATERMARK = 0x15;
+	private static final int FIFO_CONFIG_1 = 0x17;
+	private static final int FIFO_CONFIG_2 = 0x18;
+	private static final int INT_CTRL = 0x19;
+	private static final int PWR_CTRL = 0x1B;
+	private static final int OSR = 0x1C;
+	private static final int ODR = 0x1D;
+	private static final int CONFIG = 0x1F;
+	private static final int CALIBRATION = 0x31;
+	private static final int CMD = 0x7E;
+
+	// status and power control bits
+	private static final int STATUS_CMD_READY = 0x10;
+	private static final int STATUS_PRESSURE_READY = 0x20;
+	private static final int STATUS_TEMPERATURE_READY = 0x40;
+	private static final int INT_DATA_READY = 0x08;
+	private static final int INT_FIFO_WATERMARK = 0x01;
+	private static final int INT_FIFO_FULL = 0x02;
+	private static final int FIFO_ENABLED = 0x01;
+	private static final int FIFO_STOP_ON_FULL = 0x02;
+	private static final int FIFO_TIME = 0x04;
+	private static final int FIFO_PRESSURE = 0x08;
+	private static final int FIFO_TEMPERATURE = 0x10;
+	private static final int FIFO_SIZE = 512;
+	private static final int INT_WATERMARK_ENABLED = 0x08;
+	private static final int INT_DATA_READY_ENABLED = 0x40;
+	private static final int PRESSURE_ENABLED = 0x01;
+	private static final int TEMPERATURE_ENABLED = 0x02;
+	private static final int MODE_SLEEP = 0;
+	private static final int MODE_FORCED = 1;
+	private static final int MODE_NORMAL = 3;
+
+	// calibration as stored in the chip: T1 T2 T3 P1 ... P11
+	private static final Struct.Codec CALIBRATION_FORMAT = Struct.compile("<HHbhhbbHHbbhbb");
+	private static final long[] CALIBRATION_VALUES = { 27594, 19118, -7, -4587, -4455, 35, 1, 19836, 23613, 3, -7,
+			15889, 29, -60 };
+	private static final Struct.Codec UINT24 = Struct.compile("<K");
+
+	private static final double NOISE = 2.0; // pressure noise in Pa without oversampling
+
+	private final byte[] registers = new byte[128];
+	private final Random random = new Random(1);
+	private final long startTime; // Clock.nanos when the simulation started
+	private int pointer; // register the next read starts at
+	private long conversionEnd; // Clock.nanos when the conversion in progress finishes, 0 if none
+	private long nextSample; // Clock.nanos of the next normal mode conversion
+	private double filteredPressure; // IIR filter state, NaN when reset
+	private final byte[] fifo = new byte[FIFO_SIZE]; // FIFO contents, circular
+	private int fifoStart; // index of the oldest FIFO byte
+	private int fifoLength; // number of bytes in the FIFO
+	private boolean timeFramePending; // a sensor time frame follows when the FIFO is emptied
+	private int frameRemaining; // bytes of the frame being read still to come
+	private int frameStart; // fifoStart when the frame being read started
+	private int lastFrameTime; // sensor time of the last measurement
+	private boolean interruptRaised; // INT pin raised since the interrupt thread last looked
+	private InterruptWorker interruptThread;
+
+	// compensation coefficients, as calculated by the driver
+	private double[] temperatureCalib;
+	private double[] pressureCalib;
+
+	// statistics
+	private long reads; // read transactions
+	private long writes; // write transactions
+	private long conversions; // measurements made
+
+	/**
+	 * Constructor for a simulated BMP388
+	 */
+	public SimBMP388() {
+		startTime = Clock.nanos();
+		CALIBRATION_FORMAT.pack(CALIBRATION_VALUES, registers, CALIBRATION);
+		calculateCoefficients();
+		reset();
+	}
+
+	/**
+	 * Deliver the sensor's interrupts to a handler, in place of a GPIO listener on the
+	 * INT pin. The handler is called on a worker thread when a measurement (data ready)
+	 * or the FIFO watermark is reached, if enabled in INT_CTRL.
+	 *
+	 * @param handler Handler to call, or null to stop
+	 */
+	public synchronized void setInterruptHandler(Runnable handler) {
+		if (interruptThread != null)
+			interruptThread.shutdown();
+		interruptThread = null;
+		if (handler != null) {
+			interruptThread = new InterruptWorker(handler);
+			Workers.execute("bmp388-int", interruptThread); // stops with the program, like the real pin
+		}
+	}
+
+	/**
+	 * Returns the number of read and write transactions on the bus
+	 *
+	 * @return Transaction count
+	 */
+	public long getTransactions() {
+		return reads + writes;
+	}
+
+	/**
+	 * Returns the number of measurements made
+	 *
+	 * @return Conversion count
+	 */
+	public long getConversions() {
+		return conversions;
+	}
+
+	@Override
+	public int getAddress() {
+		return ADDRESS;
+	}
+
+	@Override
+	public synchronized void write(byte b) throws IOException {
+		writes++;
+		pointer = b & 0x7f;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int size) throws IOException {
+		writes++;
+		if (size == 1) {
+			pointer = buffer[offset] & 0x7f;
+			return;
+		}
+		for (int i = offset; i + 1 < offset + size; i += 2)
+			writeRegister(buffer[i] & 0x7f, buffer[i + 1] & 0xff);
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public synchronized void write(int address, byte b) throws IOException {
+		writes++;
+		writeRegister(address & 0x7f, b & 0xff);
+	}
+
+	@Override
+	public synchronized void write(int address, byte[] buffer, int offset, int size) throws IOException {
+		writes++;
+		for (int i = 0; i < size; i++)
+			writeRegister((address + i) & 0x7f, buffer[offset + i] & 0xff);
+	}
+
+	@Override
+	public void write(int address, byte[] buffer) throws IOException {
+		write(address, buffer, 0, buffer.length);
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		reads++;
+		update();
+		int value = readRegister(nextRegister());
+		endRead();
+		return value;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int size) throws IOException {
+		reads++;
+		update();
+		for (int i = 0; i < size; i++)
+			buffer[offset + i] = (byte) readRegister(nextRegister());
+		endRead();
+		return size;
+	}
+
+	@Override
+	public synchronized int read(int address) throws IOException {
+		reads++;
+		update();
+		pointer = address & 0x7f;
+		int value = readRegister(nextRegister());
+		endRead();
+		return value;
+	}
+
+	@Override
+	public synchronized int read(int address, byte[] buffer, int offset, int size) throws IOException {
+		pointer = address & 0x7f;
+		return read(buffer, offset, size);
+	}
+
+	@Override
+	public synchronized int read(byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer,
+			int readOffset, int readSize) throws IOException {
+		write(writeBuffer, writeOffset, writeSize);
+		return read(readBuffer, readOffset, readSize);
+	}
+
+	// ioctl is not used by the driver, present for pi4j versions that declare it
+	public void ioctl(long command, int value) throws IOException {
+		throw new IOException("ioctl not supported by the simulated BMP388");
+	}
+
+	public void ioctl(long command, ByteBuffer data, IntBuffer offsets) throws IOException {
+		throw new IOException("ioctl not supported by the simulated BMP388");
+	}
+
+	/**
+	 * Returns the register at the read pointer and moves the pointer on, except at the
+	 * FIFO data register which is read repeatedly
+	 *
+	 * @return Register address
+	 */
+	private int nextRegister() {
+		int register = pointer;
+		if (pointer != FIFO_DATA)
+			pointer = (pointer + 1) & 0x7f;
+		return register;
+	}
+
+	/**
+	 * Read a register, with the side effects of the real chip
+	 *
+	 * @param register Register address
+	 * @return Value from 0 to 255
+	 */
+	private int readRegister(int register) {
+		register &= 0x7f;
+		int value = registers[register] & 0xff;
+
+		// reading the data clears the matching ready bit, reading INT_STATUS clears it
+		if (register >= DATA && register < DATA + 3)
+			registers[STATUS] &= ~STATUS_PRESSURE_READY;
+		else if (register >= DATA + 3 && register < DATA + 6)
+			registers[STATUS] &= ~STATUS_TEMPERATURE_READY;
+		else if (register == INT_STATUS)
+			registers[INT_STATUS] = 0;
+		else if (register == FIFO_DATA)
+			value = readFifo();
+		return value;
+	}
+
+	/**
+	 * Write a register, with the side effects of the real chip
+	 *
+	 * @param register Register address
+	 * @param value Value from 0 to 255
+	 */
+	private void writeRegister(int register, int value) {
+		update();
+		if (register == CMD) {
+			if (value == 0xB6)
+				reset();
+			else if (value == 0xB0)
+				flushFifo();
+			return;
+		}
+		if (register < FIFO_WATERMARK || register > CONFIG)
+			return; // read only
+		registers[register] = (byte) value;
+
+		// the FIFO records changes to the measurement settings
+		if ((register == OSR || register == ODR || register == CONFIG)
+				&& (registers[FIFO_CONFIG_1] & FIFO_ENABLED) != 0)
+			appendFifo(new byte[] { 0x48, 0x00 });
+		else if (register == FIFO_CONFIG_1 && (value & FIFO_ENABLED) == 0)
+			flushFifo();
+
+		if (register == PWR_CTRL) {
+			int mode = (value >> 4) & 0x03;
+			if (mode == 2)
+				mode = MODE_FORCED;
+			if (mode == MODE_FORCED) {
+				conversionEnd = Clock.nanos() + conversionTime();
+			} else if (mode == MODE_NORMAL) {
+				nextSample = Clock.nanos() + conversionTime();
+			} else
+				conversionEnd = 0;
+		} else if (register == CONFIG)
+			filteredPressure = Double.NaN;
+	}
+
+	/**
+	 * Restore the power-on register values, keeping the calibration
+	 */
+	private void reset() {
+		for (int i = 0; i < CALIBRATION; i++)
+			registers[i] = 0;
+		registers[CMD] = 0;
+		registers[CHIP_ID] = 0x50;
+		registers[STATUS] = STATUS_CMD_READY;
+		registers[OSR] = 0x02;
+		registers[FIFO_WATERMARK] = 0x01;
+		registers[FIFO_CONFIG_1] = FIFO_STOP_ON_FULL;
+		registers[FIFO_CONFIG_2] = 0x02;
+		conversionEnd = 0;
+		filteredPressure = Double.NaN;
+		flushFifo();
+	}
+
+	/**
+	 * Bring the simulation up to the current time, completing any conversions that
+	 * would have finished
+	 */
+	private void update() {
+		long now = Clock.nanos();
+		putInt24(SENSOR_TIME, sensorTime(now));
+		int mode = (registers[PWR_CTRL] >> 4) & 0x03;
+		if (mode == MODE_NORMAL) {
+			long period = 5000000L << Math.min(17, registers[ODR] & 0x1f);
+			// only the latest measurement is visible in the data registers, but the FIFO
+			// gets them all (as many as fit)
+			long missed = (now - nextSample) / period;
+			if (missed > FIFO_SIZE / 7)
+				nextSample += (missed - FIFO_SIZE / 7) * period;
+			while (now >= nextSample) {
+				measure(nextSample);
+				nextSample += period;
+			}
+		} else if (conversionEnd != 0 && now >= conversionEnd) {
+			registers[PWR_CTRL] &= 0x0f; // back to sleep after a forced measurement
+			measure(conversionEnd);
+			conversionEnd = 0;
+		}
+	}
+
+	/**
+	 * Take a measurement into the data registers
+	 *
+	 * @param time Clock.nanos when the measurement finished
+	 */
+	private void measure(long time) {
+		conversions++;
+		int control = registers[PWR_CTRL];
+		int osr = registers[OSR] & 0xff;
+		double seconds = (time - startTime) / 1e9;
+
+		double[] state = new double[6];
+		SimFlight.flight(seconds, state);
+		double temperature = 15.0 - 0.0065 * state[2];
+		double pressure = 101325.0 * Math.pow(1.0 - state[2] / 44307.7, 1.0 / 0.190284);
+		pressure += random.nextGaussian() * NOISE / Math.sqrt(1 << (osr & 0x07));
+
+		double unfiltered = pressure;
+
+		// IIR filter with coefficient 2^n - 1
+		int coefficient = (1 << ((registers[CONFIG] >> 1) & 0x07)) - 1;
+		if (coefficient > 0 && !Double.isNaN(filteredPressure))
+			pressure = (filteredPressure * coefficient + pressure) / (coefficient + 1);
+		filteredPressure = pressure;
+
+		int adcTemperature = temperatureADC(temperature);
+		double compensated = compensatedTemperature(adcTemperature);
+		int adcPressure = pressureADC(pressure, compensated);
+
+		int status = STATUS_CMD_READY;
+		if ((control & PRESSURE_ENABLED) != 0) {
+			putInt24(DATA, adcPressure);
+			status |= STATUS_PRESSURE_READY;
+		}
+		if ((control & TEMPERATURE_ENABLED) != 0) {
+			putInt24(DATA + 3, adcTemperature);
+			status |= STATUS_TEMPERATURE_READY;
+		}
+		registers[STATUS] = (byte) status;
+		registers[INT_STATUS] |= INT_DATA_READY;
+		if ((registers[INT_CTRL] & INT_DATA_READY_ENABLED) != 0)
+			interruptRaised = true;
+		lastFrameTime = sensorTime(time);
+		putInt24(SENSOR_TIME, lastFrameTime);
+
+		// in normal mode, also queue a frame in the FIFO
+		int fifoConfig = registers[FIFO_CONFIG_1];
+		if ((fifoConfig & FIFO_ENABLED) != 0 && ((control >> 4) & 0x03) == MODE_NORMAL) {
+			boolean filtered = (registers[FIFO_CONFIG_2] & 0x18) == 0x08;
+			int framePressure = filtered ? adcPressure : pressureADC(unfiltered, compensated);
+			byte[] frame;
+			if ((fifoConfig & FIFO_PRESSURE) != 0 && (fifoConfig & FIFO_TEMPERATURE) != 0)
+				frame = new byte[] { (byte) 0x94, (byte) adcTemperature, (byte) (adcTemperature >> 8),
+						(byte) (adcTemperature >> 16), (byte) framePressure, (byte) (framePressure >> 8),
+						(byte) (framePressure >> 16) };
+			else if ((fifoConfig & FIFO_TEMPERATURE) != 0)
+				frame = new byte[] { (byte) 0x90, (byte) adcTemperature, (byte) (adcTemperature >> 8),
+						(byte) (adcTemperature >> 16) };
+			else if ((fifoConfig & FIFO_PRESSURE) != 0)
+				frame = new byte[] { (byte) 0x84, (byte) framePressure, (byte) (framePressure >> 8),
+						(byte) (framePressure >> 16) };
+			else
+				return;
+			appendFifo(frame);
+			timeFramePending = true;
+		}
+	}
+
+	/**
+	 * Returns the sensor time, which counts at 25.6kHz
+	 *
+	 * @param time Clock.nanos
+	 * @return 24 bit count
+	 */
+	private int sensorTime(long time) {
+		return (int) ((time / 39063L) & 0xffffff);
+	}
+
+	/**
+	 * Add a frame to the FIFO, dropping the oldest frames to make room unless it is set
+	 * to stop when full
+	 *
+	 * @param frame Header and data
+	 */
+	private void appendFifo(byte[] frame) {
+		while (fifoLength + frame.length > FIFO_SIZE) {
+			registers[INT_STATUS] |= INT_FIFO_FULL;
+			if ((registers[FIFO_CONFIG_1] & FIFO_STOP_ON_FULL) != 0)
+				return;
+			int dropped = frameLength(fifo[fifoStart] & 0xff);
+			fifoStart = (fifoStart + dropped) % FIFO_SIZE;
+			fifoLength -= dropped;
+		}
+		for (byte b : frame)
+			fifo[(fifoStart + fifoLength++) % FIFO_SIZE] = b;
+		updateFifoLength();
+	}
+
+	/**
+	 * Take the next byte from the FIFO. Once it is empty the sensor time frame is sent
+	 * (if enabled), then empty frames.
+	 *
+	 * @return Value from 0 to 255
+	 */
+	private int readFifo() {
+		if (fifoLength == 0) {
+			if (!timeFramePending || (registers[FIFO_CONFIG_1] & FIFO_TIME) == 0)
+				return 0x80;
+			timeFramePending = false;
+			appendFifo(new byte[] { (byte) 0xA0, (byte) lastFrameTime, (byte) (lastFrameTime >> 8),
+					(byte) (lastFrameTime >> 16) });
+		}
+		int value = fifo[fifoStart] & 0xff;
+		if (frameRemaining == 0) {
+			frameStart = fifoStart;
+			frameRemaining = frameLength(value);
+		}
+		frameRemaining--;
+		fifoStart = (fifoStart + 1) % FIFO_SIZE;
+		fifoLength--;
+		updateFifoLength();
+		return value;
+	}
+
+	/**
+	 * Finish a read transaction. A FIFO frame that was only partly read is sent again
+	 * by the next read, as on the real chip.
+	 */
+	private void endRead() {
+		if (frameRemaining > 0) {
+			fifoLength += (fifoStart - frameStart + FIFO_SIZE) % FIFO_SIZE;
+			fifoStart = frameStart;
+			frameRemaining = 0;
+			updateFifoLength();
+		}
+	}
+
+	/**
+	 * Empty the FIFO
+	 */
+	private void flushFifo() {
+		fifoStart = 0;
+		fifoLength = 0;
+		frameRemaining = 0;
+		timeFramePending = false;
+		updateFifoLength();
+	}
+
+	/**
+	 * Set the FIFO length registers and watermark flag from the FIFO contents
+	 */
+	private void updateFifoLength() {
+		registers[FIFO_LENGTH] = (byte) fifoLength;
+		registers[FIFO_LENGTH + 1] = (byte) (fifoLength >> 8);
+		int watermark = (registers[FIFO_WATERMARK] & 0xff) | (registers[FIFO_WATERMARK + 1] & 0x01) << 8;
+		if (watermark > 0 && fifoLength >= watermark) {
+			if ((registers[INT_STATUS] & INT_FIFO_WATERMARK) == 0 && (registers[INT_CTRL] & INT_WATERMARK_ENABLED) != 0)
+				interruptRaised = true;
+			registers[INT_STATUS] |= INT_FIFO_WATERMARK;
+		}
+	}
+
+	/**
+	 * Returns the length of a FIFO frame from its header
+	 *
+	 * @param header Frame header
+	 * @return Bytes including the header
+	 */
+	private static int frameLength(int header) {
+		if (header == 0x94)
+			return 7;
+		if (header == 0x90 || header == 0x84 || header == 0xA0)
+			return 4;
+		return 2;
+	}
+
+	/**
+	 * Returns the conversion time for the current settings (datasheet section 3.9.2)
+	 *
+	 * @return Nanoseconds
+	 */
+	private long conversionTime() {
+		int control = registers[PWR_CTRL];
+		int osr = registers[OSR] & 0xff;
+		long micros = 234;
+		if ((control & PRESSURE_ENABLED) != 0)
+			micros += 392 + 2020 * (1 << (osr & 0x07));
+		if ((control & TEMPERATURE_ENABLED) != 0)
+			micros += 163 + 2020 * (1 << ((osr >> 3) & 0x07));
+		return micros * 1000L;
+	}
+
+	/**
+	 * Write a little-endian 24 bit value to three registers
+	 */
+	private void putInt24(int register, int value) {
+		UINT24.set(registers, register, 0, value);
+	}
+
+	/**
+	 * Calculate the floating point coefficients the same way as the driver
+	 */
+	private void calculateCoefficients() {
+		long[] c = CALIBRATION_VALUES;
+		temperatureCalib = new double[] { c[0] / Math.pow(2, -8.0), c[1] / Math.pow(2, 30.0), c[2] / Math.pow(2, 48.0) };
+		pressureCalib = new double[] { (c[3] - Math.pow(2, 14.0)) / Math.pow(2, 20.0),
+				(c[4] - Math.pow(2, 14.0)) / Math.pow(2, 29.0), c[5] / Math.pow(2, 32.0), c[6] / Math.pow(2, 37.0),
+				c[7] / Math.pow(2, -3.0), c[8] / Math.pow(2, 6.0), c[9] / Math.pow(2, 8.0), c[10] / Math.pow(2, 15.0),
+				c[11] / Math.pow(2, 48.0), c[12] / Math.pow(2, 48.0), c[13] / Math.pow(2, 65.0) };
+	}
+
+	/**
+	 * Compensate a raw temperature
+	 *
+	 * @param adc Raw temperature
+	 * @return Temperature in deg C
+	 */
+	private double compensatedTemperature(double adc) {
+		double d = adc - temperatureCalib[0];
+		return d * temperatureCalib[1] + d * d * temperatureCalib[2];
+	}
+
+	/**
+	 * Compensate a raw pressure
+	 *
+	 * @param adc Raw pressure
+	 * @param t Compensated temperature
+	 * @return Pressure in Pa
+	 */
+	private double compensatedPressure(double adc, double t) {
+		double[] p = pressureCalib;
+		double offset = p[4] + p[5] * t + p[6] * t * t + p[7] * t * t * t;
+		double sensitivity = p[0] + p[1] * t + p[2] * t * t + p[3] * t * t * t;
+		return offset + adc * sensitivity + adc * adc * (p[8] + p[9] * t) + adc * adc * adc * p[10];
+	}
+
+	/**
+	 * Find the raw temperature that compensates to a temperature (Newton's method)
+	 *
+	 * @param temperature Temperature in deg C
+	 * @return Raw 24 bit value
+	 */
+	private int temperatureADC(double temperature) {
+		double adc = temperatureCalib[0] + temperature / temperatureCalib[1];
+		for (int i = 0; i < 4; i++) {
+			double d = adc - temperatureCalib[0];
+			double slope = temperatureCalib[1] + 2.0 * d * temperatureCalib[2];
+			adc -= (compensatedTemperature(adc) - temperature) / slope;
+		}
+		return clampADC(adc);
+	}
+
+	/**
+	 * Find the raw pressure that compensates to a pressure (Newton's method)
+	 *
+	 * @param pressure Pressure in Pa
+	 * @param t Compensated temperature
+	 * @return Raw 24 bit value
+	 */
+	private int pressureADC(double pressure, double t) {
+		double adc = 4000000.0;
+		for (int i = 0; i < 8; i++) {
+			double step = 1.0;
+			double slope = (compensatedPressure(adc + step, t) - compensatedPressure(adc - step, t)) / (2 * step);
+			adc -= (compensatedPressure(adc, t) - pressure) / slope;
+		}
+		return clampADC(adc);
+	}
+
+	/**
+	 * Round to a 24 bit unsigned value
+	 */
+	private static int clampADC(double adc) {
+		return (int) Math.max(0, Math.min(0xffffff, Math.round(adc)));
+	}
+
+	/**
+	 * Worker thread class, raising the INT pin when the simulated sensor would
+	 */
+	public class InterruptWorker implements Runnable {
+
+		// flag for whether the worker should shut down
+		private volatile boolean shutdown;
+		private Runnable handler;
+
+		/**
+		 * Constructor
+		 *
+		 * @param handler Handler to call for each interrupt
+		 */
+		public InterruptWorker(Runnable handler) {
+			this.handler = handler;
+			shutdown = false;
+		}
+
+		/**
+		 * Main worker loop
+		 */
+		@Override
+		public void run() {
+			while (!shutdown) {
+				// sleep until the next normal mode measurement is due
+				long wait;
+				boolean raised;
+				synchronized (SimBMP388.this) {
+					update();
+					raised = interruptRaised;
+					interruptRaised = false;
+					int mode = (registers[PWR_CTRL] >> 4) & 0x03;
+					wait = mode == MODE_NORMAL ? nextSample - Clock.nanos() : 1000000L;
+				}
+				if (raised)
+					handler.run();
+				try {
+					if (wait > 0)
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Shut down the worker
+		 */
+		public void shutdown() {
+			shutdown = true;
+		}
+	}
+}
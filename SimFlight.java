@@ -0,0 +1,154 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The synthetic flight the simulated devices, the replay tool and the benchmarks share:
+ * a glider circling in a thermal, and the NMEA sentences and UBX NAV-PVT messages a GPS
+ * module would send for it.
+ */
+public class SimFlight {
+
+	/**
+	 * Generate an NMEA stream for a flight circling in a thermal, with GGA, GSA, RMC
+	 * and VTG sentences for each fix (the default output of the Ultimate GPS)
+	 *
+	 * @param seconds Length of the stream
+	 * @param rate Fixes per second
+	 * @return The stream as ASCII bytes
+	 */
+	public static byte[] generateNMEA(int seconds, int rate) {
+		StringBuilder out = new StringBuilder(seconds * rate * 280);
+		int fixes = seconds * rate;
+		double[] state = new double[6];
+		for (int i = 0; i < fixes; i++)
+			appendNMEA(out, (double) i / rate, state);
+		return out.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Append the sentences for one fix of the synthetic flight
+	 *
+	 * @param out Where to append the sentences
+	 * @param t Seconds since the start of the flight
+	 * @param state Working array of 6 values
+	 */
+	public static void appendNMEA(StringBuilder out, double t, double[] state) {
+		int millis = flight(t, state);
+		double latitude = state[0];
+		double longitude = state[1];
+		double altitude = state[2];
+		double speed = state[3];
+		double course = state[4];
+		String time = formatTime(millis);
+		String lat = formatCoordinate(latitude, 2) + "," + (latitude < 0 ? "S" : "N");
+		String lon = formatCoordinate(longitude, 3) + "," + (longitude < 0 ? "W" : "E");
+
+		out.append(NMEAParser.frame(String.format(Locale.ROOT, "GPGGA,%s,%s,%s,1,09,0.9,%.1f,M,-17.0,M,,",
+				time, lat, lon, altitude)));
+		out.append(NMEAParser.frame("GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1"));
+		out.append(NMEAParser.frame(String.format(Locale.ROOT, "GPRMC,%s,A,%s,%s,%.2f,%.2f,170626,,,A",
+				time, lat, lon, speed, course)));
+		out.append(NMEAParser.frame(String.format(Locale.ROOT, "GPVTG,%.2f,T,,M,%.2f,N,%.2f,K,A",
+				course, speed, speed * 1.852)));
+	}
+
+	/**
+	 * Generate a UBX NAV-PVT stream for the same flight as generateNMEA
+	 *
+	 * @param seconds Length of the stream
+	 * @param rate Fixes per second
+	 * @return The stream of framed messages
+	 */
+	public static byte[] generateUBX(int seconds, int rate) {
+		int fixes = seconds * rate;
+		ByteBuffer out = ByteBuffer.allocate(fixes * (UBXParser.NAV_PVT_LENGTH + 8));
+		ByteBuffer body = ByteBuffer.allocate(UBXParser.NAV_PVT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		double[] state = new double[6];
+		for (int i = 0; i < fixes; i++)
+			out.put(navPVT(body, (double) i / rate, state));
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * Build the NAV-PVT message for one fix of the synthetic flight
+	 *
+	 * @param body Little-endian working buffer of NAV_PVT_LENGTH bytes
+	 * @param t Seconds since the start of the flight
+	 * @param state Working array of 6 values
+	 * @return The framed message
+	 */
+	public static byte[] navPVT(ByteBuffer body, double t, double[] state) {
+		int millis = flight(t, state);
+		int second = millis / 1000;
+		int nano = (millis % 1000) * 1000000;
+		body.clear();
+		body.putInt(0, millis); // iTOW, not used
+		body.putShort(4, (short) 2026);
+		body.put(6, (byte) 6);
+		body.put(7, (byte) 17);
+		body.put(8, (byte) (second / 3600));
+		body.put(9, (byte) ((second / 60) % 60));
+		body.put(10, (byte) (second % 60));
+		body.put(11, (byte) 0x07); // valid date, time, fully resolved
+		body.putInt(12, 30); // tAcc
+		body.putInt(16, nano);
+		body.put(20, (byte) UBXParser.FIX_3D);
+		body.put(21, (byte) 0x01); // gnssFixOK
+		body.put(23, (byte) 9);
+		body.putInt(24, (int) Math.round(state[1] * 1e7));
+		body.putInt(28, (int) Math.round(state[0] * 1e7));
+		body.putInt(32, (int) Math.round((state[2] - 17.0) * 1000.0));
+		body.putInt(36, (int) Math.round(state[2] * 1000.0));
+		body.putInt(40, 2500);
+		body.putInt(44, 4000);
+		double metres = state[3] * 1852.0 / 3600.0;
+		double course = Math.toRadians(state[4]);
+		body.putInt(48, (int) Math.round(metres * Math.cos(course) * 1000.0));
+		body.putInt(52, (int) Math.round(metres * Math.sin(course) * 1000.0));
+		body.putInt(56, (int) Math.round(-state[5] * 1000.0));
+		body.putInt(60, (int) Math.round(metres * 1000.0));
+		body.putInt(64, (int) Math.round(state[4] * 1e5));
+		body.putShort(76, (short) 250);
+		return UBXParser.frame(UBXParser.CLASS_NAV, UBXParser.NAV_PVT, body.array());
+	}
+
+	/**
+	 * Synthetic flight circling in a thermal
+	 *
+	 * @param t Seconds since the start of the flight
+	 * @param state Filled with latitude, longitude, altitude (m), speed (knots),
+	 *              course (degrees) and climb rate (m/s)
+	 * @return UTC time in milliseconds since midnight
+	 */
+	public static int flight(double t, double[] state) {
+		double angle = t * 2.0 * Math.PI / 30.0; // 30 second circles
+		state[0] = 51.0 + 0.0005 * Math.sin(angle) + t * 0.000002;
+		state[1] = -115.0 + 0.0008 * Math.cos(angle);
+		state[2] = 1500.0 + t * 0.5 + 3.0 * Math.sin(t / 7.0);
+		state[3] = 19.0 + 2.0 * Math.sin(angle);
+		state[4] = (Math.toDegrees(angle) + 90.0) % 360.0;
+		state[5] = 0.5 + 3.0 / 7.0 * Math.cos(t / 7.0);
+		return (int) Math.round((43200.0 + t) * 1000.0) % 86400000;
+	}
+
+	/**
+	 * Format milliseconds since midnight as HHMMSS.SSS
+	 */
+	private static String formatTime(int millis) {
+		return String.format(Locale.ROOT, "%02d%02d%02d.%03d", millis / 3600000, (millis / 60000) % 60,
+				(millis / 1000) % 60, millis % 1000);
+	}
+
+	/**
+	 * Format a coordinate as DDMM.MMMM or DDDMM.MMMM
+	 */
+	private static String formatCoordinate(double value, int degreeDigits) {
+		value = Math.abs(value);
+		int degrees = (int) value;
+		double minutes = (value - degrees) * 60.0;
+		return String.format(Locale.ROOT, "%0" + degreeDigits + "d%07.4f", degrees, minutes);
+	}
+}
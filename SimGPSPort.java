@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Simulated GPS module, for running without a Raspberry Pi.
+ *
+ * Plays an NMEA log one epoch at a time at its recorded rate (starting again at the
+ * end), or generates the benchmark flight at the module's fix interval. Behaves like a
+ * MediaTek module, or a u-blox module if Config.gpsProtocol is UBX: configuration
+ * commands are answered (PMTK001, ACK-ACK) and applied, and like a real serial link,
+ * nothing gets through unless the port is open at the module's baud rate. The module
+ * keeps its settings when the port is closed, as it would on backup power.
+ */
+public class SimGPSPort implements GPSPort {
+
+	// PMTK314 sentence order, as in PMTK
+	private static final String[] SENTENCES = { "GLL", "RMC", "VTG", "GGA", "GSA", "GSV" };
+
+	private GPSPort.Receiver receiver; // where data from the module is delivered
+	private ArrayList<byte[]> epochs; // the log split into epochs, null to generate
+	private ArrayList<Integer> epochTimes; // UTC time of each epoch, -1 if unknown
+	private ModuleWorker workerThread;
+	private ConcurrentLinkedQueue<byte[]> replies; // responses waiting to be sent
+	private StringBuilder commands; // partial PMTK command written to the module
+	private UBXParser commandParser; // UBX messages written to the module
+
+	// simulated module state
+	private volatile int openBaud; // baud rate the port is open at, 0 if closed
+	private volatile int moduleBaud; // baud rate the module uses
+	private volatile int interval; // milliseconds between fixes
+	private volatile boolean[] sentences; // NMEA sentences sent, in PMTK314 order
+	private volatile boolean ubx; // u-blox module
+	private volatile boolean nmeaOutput; // u-blox: NMEA enabled on the port
+	private volatile boolean navPVTOutput; // u-blox: NAV-PVT enabled
+
+	/**
+	 * Constructor for a simulated GPS module
+	 *
+	 * @param file NMEA log to play, or empty to generate a flight
+	 * @param receiver Receiver for data from the module
+	 */
+	public SimGPSPort(String file, GPSPort.Receiver receiver) throws IOException {
+		this.receiver = receiver;
+		replies = new ConcurrentLinkedQueue<>();
+		commands = new StringBuilder();
+		commandParser = new UBXParser(new UBXParser.Listener() {
+			@Override
+			public void messageReceived(UBXParser parser) {
+				handleUBX(parser);
+			}
+		});
+
+		moduleBaud = Config.gpsDefaultBaud;
+		interval = 1000;
+		sentences = new boolean[] { false, true, true, true, true, true };
+		ubx = Config.gpsProtocol.equals("UBX");
+		nmeaOutput = true;
+		navPVTOutput = false;
+
+		if (file != null && !file.isEmpty())
+			loadLog(file);
+		if (Config.verbose)
+			System.out.printf("GPS: simulated %s module, %s\n", ubx ? "u-blox" : "MediaTek",
+					epochs == null ? "generated flight" : epochs.size() + " epochs from " + file);
+	}
+
+	@Override
+	public synchronized void open(int baud) throws IOException {
+		openBaud = baud;
+		if (workerThread == null) {
+			workerThread = new ModuleWorker();
+			Workers.execute("gps-sim", workerThread);
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] data) throws IOException {
+		if (openBaud != moduleBaud)
+			return; // garbage to the module at the wrong rate
+		commandParser.accept(data, 0, data.length);
+		for (byte b : data) {
+			if (b == '$')
+				commands.setLength(0);
+			commands.append((char) (b & 0xff));
+			if (b == '\n') {
+				handlePMTK(commands.toString().trim());
+				commands.setLength(0);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		openBaud = 0;
+		if (workerThread != null)
+			workerThread.shutdown();
+		workerThread = null;
+	}
+
+	/**
+	 * Split an NMEA log into epochs, starting a new one when the RMC/GGA time changes
+	 *
+	 * @param file Path of the log
+	 */
+	private void loadLog(String file) throws IOException {
+		final byte[] data = Files.readAllBytes(Paths.get(file));
+		epochs = new ArrayList<>();
+		epochTimes = new ArrayList<>();
+		final int[] time = { -1 };
+		NMEAParser scanner = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void sentenceParsed(NMEAParser parser) {
+				if (parser.getType() == NMEAParser.RMC || parser.getType() == NMEAParser.GGA)
+					time[0] = parser.getTime();
+			}
+		});
+
+		int epochStart = 0;
+		int epochTime = -1;
+		int start = 0;
+		while (start < data.length) {
+			int end = start;
+			while (end < data.length && data[end] != '\n')
+				end++;
+			end = Math.min(end + 1, data.length);
+
+			time[0] = -1;
+			scanner.accept(data, start, end - start);
+			if (time[0] >= 0 && time[0] != epochTime && start > epochStart) {
+				epochs.add(java.util.Arrays.copyOfRange(data, epochStart, start));
+				epochTimes.add(epochTime);
+				epochStart = start;
+			}
+			if (time[0] >= 0)
+				epochTime = time[0];
+			start = end;
+		}
+		if (start > epochStart) {
+			epochs.add(java.util.Arrays.copyOfRange(data, epochStart, start));
+			epochTimes.add(epochTime);
+		}
+	}
+
+	/**
+	 * Handle a PMTK command written to a MediaTek module
+	 *
+	 * @param line The command, from $ to the checksum
+	 */
+	private void handlePMTK(String line) {
+		if (ubx || !line.startsWith("$PMTK") || line.length() < 8)
+			return;
+		String body = line.substring(1, line.indexOf('*') > 0 ? line.indexOf('*') : line.length());
+		int number;
+		try {
+			number = Integer.parseInt(body.substring(4, 7));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (!NMEAParser.frame(body).trim().equals(line)) {
+			reply(NMEAParser.frame(String.format("PMTK001,%d,0", number)).getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+
+		String[] fields = body.split(",");
+		int flag = PMTK.ACK_SUCCEEDED;
+		try {
+			if (number == 251 && fields.length > 1) {
+				moduleBaud = Integer.parseInt(fields[1]); // switches without acknowledging
+				return;
+			} else if (number == 220 && fields.length > 1) {
+				interval = Math.max(100, Integer.parseInt(fields[1]));
+			} else if (number == 314) {
+				boolean[] enabled = new boolean[SENTENCES.length];
+				for (int i = 0; i < enabled.length && i + 1 < fields.length; i++)
+					enabled[i] = !fields[i + 1].equals("0");
+				sentences = enabled;
+			} else if (number != 0)
+				flag = PMTK.ACK_UNSUPPORTED;
+		} catch (NumberFormatException e) {
+			flag = PMTK.ACK_INVALID;
+		}
+		reply(NMEAParser.frame(String.format("PMTK001,%d,%d", number, flag)).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Handle a UBX message written to a u-blox module
+	 *
+	 * @param parser Parser holding the message
+	 */
+	private void handleUBX(UBXParser parser) {
+		if (!ubx || parser.getMessageClass() != UBXParser.CLASS_CFG)
+			return;
+		int id = parser.getMessageId();
+		int length = parser.getPayloadLength();
+		boolean acknowledged = true;
+		int newBaud = moduleBaud;
+
+		if (id == UBXParser.CFG_PRT && length == 1) {
+			reply(UBXParser.frame(UBXParser.CLASS_CFG, UBXParser.CFG_PRT, UBX.setPort(moduleBaud)));
+		} else if (id == UBXParser.CFG_PRT && length >= 20) {
+			newBaud = payloadInt(parser, 8);
+			nmeaOutput = (parser.getPayloadByte(14) & 0x02) != 0;
+		} else if (id == UBXParser.CFG_RATE && length >= 6) {
+			interval = Math.max(40, parser.getPayloadByte(0) | parser.getPayloadByte(1) << 8);
+		} else if (id == UBXParser.CFG_MSG && length >= 3) {
+			if (parser.getPayloadByte(0) == UBXParser.CLASS_NAV && parser.getPayloadByte(1) == UBXParser.NAV_PVT)
+				navPVTOutput = parser.getPayloadByte(2) > 0;
+		} else
+			acknowledged = false;
+
+		// a new baud rate applies before the acknowledgement is sent
+		moduleBaud = newBaud;
+		reply(UBXParser.frame(UBXParser.CLASS_ACK, acknowledged ? UBXParser.ACK_ACK : UBXParser.ACK_NAK,
+				new byte[] { (byte) UBXParser.CLASS_CFG, (byte) id }));
+	}
+
+	/**
+	 * Read a little-endian 32 bit value from a message payload
+	 */
+	private static int payloadInt(UBXParser parser, int offset) {
+		return parser.getPayloadByte(offset) | parser.getPayloadByte(offset + 1) << 8
+				| parser.getPayloadByte(offset + 2) << 16 | parser.getPayloadByte(offset + 3) << 24;
+	}
+
+	/**
+	 * Queue a response for the worker to send
+	 *
+	 * @param data Response bytes
+	 */
+	private void reply(byte[] data) {
+		replies.add(data);
+	}
+
+	/**
+	 * Deliver data to the receiver if the port is at the module's baud rate
+	 *
+	 * @param data Data from the module
+	 */
+	private void send(byte[] data) {
+		if (openBaud == moduleBaud)
+			receiver.received(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Worker thread class, acting as the module
+	 */
+	public class ModuleWorker implements Runnable {
+
+		// flag for whether the worker should shut down
+		private volatile boolean shutdown;
+
+		/**
+		 * Constructor
+		 */
+		public ModuleWorker() {
+			shutdown = false;
+		}
+
+		/**
+		 * Main worker loop
+		 */
+		@Override
+		public void run() {
+			long start = Clock.millis();
+			long nextFix = start;
+			int epoch = 0;
+			double[] state = new double[6];
+			ByteBuffer body = ByteBuffer.allocate(UBXParser.NAV_PVT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+			while (!shutdown) {
+				byte[] reply;
+				while ((reply = replies.poll()) != null)
+					send(reply);
+
+				long now = Clock.millis();
+				if (now >= nextFix) {
+					if (epochs != null && !epochs.isEmpty()) {
+						send(epochs.get(epoch));
+						int time = epochTimes.get(epoch);
+						epoch = (epoch + 1) % epochs.size();
+						int next = epochTimes.get(epoch);
+						long delta = time >= 0 && next > time ? next - time : interval;
+						nextFix += Math.min(delta, 10000);
+					} else {
+						double t = (nextFix - start) / 1000.0;
+						if (ubx && navPVTOutput)
+							send(SimFlight.navPVT(body, t, state));
+						if (!ubx || nmeaOutput)
+							send(filterSentences(t, state));
+						nextFix += interval;
+					}
+					if (nextFix < now)
+						nextFix = now; // fell behind, e.g. paused in a debugger
+				}
+				Util.delay(10);
+			}
+		}
+
+		/**
+		 * Generate the enabled sentences of one epoch
+		 *
+		 * @param t Seconds since the start of the flight
+		 * @param state Working array
+		 * @return The sentences
+		 */
+		private byte[] filterSentences(double t, double[] state) {
+			StringBuilder all = new StringBuilder(320);
+			SimFlight.appendNMEA(all, t, state);
+			StringBuilder out = new StringBuilder(all.length());
+			boolean[] enabled = sentences;
+			for (String line : all.toString().split("\n")) {
+				for (int i = 0; i < SENTENCES.length; i++)
+					if (enabled[i] && line.startsWith(SENTENCES[i], 3))
+						out.append(line).append('\n');
+			}
+			return out.toString().getBytes(StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Shut down the worker
+		 */
+		public void shutdown() {
+			shutdown = true;
+		}
+	}
+}
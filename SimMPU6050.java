@@ -0,0 +1,316 @@
+import com.pi4j.io.i2c.I2CDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Simulated MPU-6050 on the I2C bus, for running without a Raspberry Pi.
+ *
+ * Emulates the accelerometer side of the register map as the driver sees it: the
+ * identity register, reset and sleep in PWR_MGMT_1, the sample rate divider and
+ * filter setting, the full scale range, the accelerometer data registers and the
+ * FIFO (count, data, reset, and overflow, which drops the oldest bytes and sets the
+ * flag in INT_STATUS, cleared when read). A register address written on its own sets
+ * the read pointer, reads auto-increment except at the FIFO data register, and the
+ * bytes after the register address in a write go to that register and the ones after
+ * it, as on the real bus.
+ *
+ * The acceleration follows the benchmark flight (the rate of change of its climb),
+ * seen through a chip mounted at a tilt, with an offset on each axis and noise.
+ */
+public class SimMPU6050 implements I2CDevice {
+
+	// registers
+	private static final int SMPLRT_DIV = 0x19;
+	private static final int CONFIG = 0x1A;
+	private static final int ACCEL_CONFIG = 0x1C;
+	private static final int FIFO_EN = 0x23;
+	private static final int INT_STATUS = 0x3A;
+	private static final int ACCEL_XOUT = 0x3B; // X, Y and Z, 2 bytes each, big-endian
+	private static final int USER_CTRL = 0x6A;
+	private static final int PWR_MGMT_1 = 0x6B;
+	private static final int FIFO_COUNT = 0x72;
+	private static final int FIFO_R_W = 0x74;
+	private static final int WHO_AM_I = 0x75;
+
+	private static final int PWR_RESET = 0x80;
+	private static final int PWR_SLEEP = 0x40;
+	private static final int FIFO_ACCEL = 0x08;
+	private static final int USER_FIFO_ENABLE = 0x40;
+	private static final int USER_FIFO_RESET = 0x04;
+	private static final int INT_FIFO_OVERFLOW = 0x10;
+	private static final int FIFO_SIZE = 1024;
+	private static final Struct.Codec SAMPLE_FORMAT = Struct.compile(">hhh");
+
+	private static final double GRAVITY = 9.80665; // m/s^2
+	private static final double NOISE = 0.3; // m/s^2 on each axis, mostly vibration
+	private static final double[] MOUNTING = { 0.15, -0.25, 0.956 }; // unit vector of up in the chip's axes
+	private static final double[] OFFSET = { 0.12, -0.08, 0.2 }; // m/s^2
+
+	private final byte[] registers = new byte[128];
+	private final Random random = new Random(2);
+	private final long startTime; // Clock.nanos when the simulation started
+	private final byte[] fifo = new byte[FIFO_SIZE]; // FIFO contents, circular
+	private int fifoStart; // index of the oldest FIFO byte
+	private int fifoLength; // number of bytes in the FIFO
+	private int pointer; // register the next read starts at
+	private long nextSample; // Clock.nanos of the next sample
+	private long reads; // read transactions
+	private long writes; // write transactions
+	private long sampleCount; // samples taken
+
+	/**
+	 * Constructor for a simulated MPU-6050
+	 */
+	public SimMPU6050() {
+		startTime = Clock.nanos();
+		reset();
+	}
+
+	/**
+	 * Returns the number of read and write transactions on the bus
+	 *
+	 * @return Transaction count
+	 */
+	public long getTransactions() {
+		return reads + writes;
+	}
+
+	/**
+	 * Returns the number of samples taken
+	 *
+	 * @return Sample count
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	@Override
+	public int getAddress() {
+		return MPU6050.ADDRESS;
+	}
+
+	@Override
+	public synchronized void write(byte b) throws IOException {
+		writes++;
+		pointer = b & 0x7f;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int size) throws IOException {
+		writes++;
+		pointer = buffer[offset] & 0x7f;
+		for (int i = 1; i < size; i++)
+			writeRegister((pointer + i - 1) & 0x7f, buffer[offset + i] & 0xff);
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public synchronized void write(int address, byte b) throws IOException {
+		writes++;
+		writeRegister(address & 0x7f, b & 0xff);
+	}
+
+	@Override
+	public synchronized void write(int address, byte[] buffer, int offset, int size) throws IOException {
+		writes++;
+		for (int i = 0; i < size; i++)
+			writeRegister((address + i) & 0x7f, buffer[offset + i] & 0xff);
+	}
+
+	@Override
+	public void write(int address, byte[] buffer) throws IOException {
+		write(address, buffer, 0, buffer.length);
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		reads++;
+		update();
+		return readRegister(nextRegister());
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int size) throws IOException {
+		reads++;
+		update();
+		for (int i = 0; i < size; i++)
+			buffer[offset + i] = (byte) readRegister(nextRegister());
+		return size;
+	}
+
+	@Override
+	public synchronized int read(int address) throws IOException {
+		reads++;
+		update();
+		pointer = address & 0x7f;
+		return readRegister(nextRegister());
+	}
+
+	@Override
+	public synchronized int read(int address, byte[] buffer, int offset, int size) throws IOException {
+		pointer = address & 0x7f;
+		return read(buffer, offset, size);
+	}
+
+	@Override
+	public synchronized int read(byte[] writeBuffer, int writeOffset, int writeSize, byte[] readBuffer,
+			int readOffset, int readSize) throws IOException {
+		write(writeBuffer, writeOffset, writeSize);
+		return read(readBuffer, readOffset, readSize);
+	}
+
+	// ioctl is not used by the driver, present for pi4j versions that declare it
+	public void ioctl(long command, int value) throws IOException {
+		throw new IOException("ioctl not supported by the simulated MPU-6050");
+	}
+
+	public void ioctl(long command, ByteBuffer data, IntBuffer offsets) throws IOException {
+		throw new IOException("ioctl not supported by the simulated MPU-6050");
+	}
+
+	/**
+	 * Returns the register at the read pointer and moves the pointer on, except at the
+	 * FIFO data register which is read repeatedly
+	 *
+	 * @return Register address
+	 */
+	private int nextRegister() {
+		int register = pointer;
+		if (pointer != FIFO_R_W)
+			pointer = (pointer + 1) & 0x7f;
+		return register;
+	}
+
+	/**
+	 * Read a register, with the side effects of the real chip
+	 *
+	 * @param register Register address
+	 * @return Value from 0 to 255
+	 */
+	private int readRegister(int register) {
+		int value = registers[register] & 0xff;
+		if (register == INT_STATUS) {
+			registers[INT_STATUS] = 0;
+		} else if (register == FIFO_COUNT) {
+			value = fifoLength >> 8;
+		} else if (register == FIFO_COUNT + 1) {
+			value = fifoLength & 0xff;
+		} else if (register == FIFO_R_W) {
+			if (fifoLength == 0)
+				return 0xff;
+			value = fifo[fifoStart] & 0xff;
+			fifoStart = (fifoStart + 1) % FIFO_SIZE;
+			fifoLength--;
+		}
+		return value;
+	}
+
+	/**
+	 * Write a register, with the side effects of the real chip
+	 *
+	 * @param register Register address
+	 * @param value Value from 0 to 255
+	 */
+	private void writeRegister(int register, int value) {
+		update();
+		if (register == PWR_MGMT_1 && (value & PWR_RESET) != 0) {
+			reset();
+			return;
+		}
+		if (register == USER_CTRL && (value & USER_FIFO_RESET) != 0) {
+			fifoStart = 0;
+			fifoLength = 0;
+			value &= ~USER_FIFO_RESET; // clears itself
+		}
+		if (register == FIFO_COUNT || register == FIFO_COUNT + 1 || register == WHO_AM_I || register == INT_STATUS)
+			return; // read only
+		if (register == FIFO_R_W)
+			return; // writing the FIFO is not simulated
+		registers[register] = (byte) value;
+		if (register == PWR_MGMT_1 || register == SMPLRT_DIV || register == CONFIG)
+			nextSample = Clock.nanos() + samplePeriod();
+	}
+
+	/**
+	 * Power-on state: asleep, with everything else cleared
+	 */
+	private void reset() {
+		java.util.Arrays.fill(registers, (byte) 0);
+		registers[WHO_AM_I] = (byte) MPU6050.ADDRESS;
+		registers[PWR_MGMT_1] = (byte) PWR_SLEEP;
+		fifoStart = 0;
+		fifoLength = 0;
+	}
+
+	/**
+	 * Returns the time between samples, from the divider and the internal rate (1kHz
+	 * with the low pass filter on, 8kHz without)
+	 *
+	 * @return Nanoseconds
+	 */
+	private long samplePeriod() {
+		int filter = registers[CONFIG] & 0x07;
+		long internal = filter == 0 || filter == 7 ? 125000L : 1000000L;
+		return internal * (1 + (registers[SMPLRT_DIV] & 0xff));
+	}
+
+	/**
+	 * Bring the simulation up to the current time, taking the samples that are due
+	 */
+	private void update() {
+		if ((registers[PWR_MGMT_1] & PWR_SLEEP) != 0)
+			return;
+		long now = Clock.nanos();
+		long period = samplePeriod();
+		long missed = (now - nextSample) / period;
+		if (missed > FIFO_SIZE / 6)
+			nextSample += (missed - FIFO_SIZE / 6) * period;
+		while (now >= nextSample) {
+			sample(nextSample);
+			nextSample += period;
+		}
+	}
+
+	/**
+	 * Take a sample into the data registers and the FIFO
+	 *
+	 * @param time Clock.nanos of the sample
+	 */
+	private void sample(long time) {
+		sampleCount++;
+		double seconds = (time - startTime) / 1e9;
+		double[] state = new double[6];
+		SimFlight.flight(seconds + 0.05, state);
+		double after = state[5];
+		SimFlight.flight(seconds - 0.05, state);
+		double vertical = (after - state[5]) / 0.1;
+
+		double perCount = GRAVITY / (16384 >> ((registers[ACCEL_CONFIG] >> 3) & 0x03));
+		byte[] data = new byte[SAMPLE_FORMAT.size()];
+		for (int axis = 0; axis < 3; axis++) {
+			double value = (GRAVITY + vertical) * MOUNTING[axis] + OFFSET[axis] + random.nextGaussian() * NOISE;
+			int counts = (int) Math.max(-32768, Math.min(32767, Math.round(value / perCount)));
+			SAMPLE_FORMAT.set(data, 0, axis, counts);
+		}
+		System.arraycopy(data, 0, registers, ACCEL_XOUT, data.length);
+
+		if ((registers[USER_CTRL] & USER_FIFO_ENABLE) != 0 && (registers[FIFO_EN] & FIFO_ACCEL) != 0) {
+			for (byte b : data) {
+				if (fifoLength == FIFO_SIZE) {
+					// full: the oldest byte is overwritten
+					fifoStart = (fifoStart + 1) % FIFO_SIZE;
+					fifoLength--;
+					registers[INT_STATUS] |= INT_FIFO_OVERFLOW;
+				}
+				fifo[(fifoStart + fifoLength) % FIFO_SIZE] = b;
+				fifoLength++;
+			}
+		}
+	}
+}
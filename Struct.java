@@ -11,15 +11,471 @@
  *
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.lang.*;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.Math.*;
 
+/**
+ * Packing and unpacking of binary data described by python struct style format
+ * strings.
+ *
+ * For repeated use, compile a format once into a Codec, which is immutable and can be
+ * shared between threads. A codec reads fields from, and writes them into, a byte
+ * array or ByteBuffer at any offset without allocating. Formats start with an optional
+ * byte order ('<' little-endian, '>' or '!' big-endian, '@' or '=' native, the default)
+ * followed by field types, each optionally preceded by a repeat count:
+ *
+ *   x pad byte (no value)    b/B 8 bit signed/unsigned    h/H 16 bit
+ *   k/K 24 bit (not in python, for sensor registers)       i/I 32 bit
+ *   q 64 bit                 f 32 bit float               d 64 bit double
+ *
+ * The instance methods (pack, unpack) are the original byte array interface, kept for
+ * existing callers; pack and unpack use cached codecs, and the single value methods
+ * only read the instance's native byte order, so a shared Struct is thread-safe.
+ */
 public class Struct {
+
+    // codecs for the format strings given to the instance methods
+    private static final ConcurrentHashMap<String, Codec> CODECS = new ConcurrentHashMap<>();
+
+    /**
+     * Compile a format string
+     *
+     * @param fmt Format, e.g. "<HHbh"
+     * @return Codec for the format
+     * @throws IllegalArgumentException if the format is invalid
+     */
+    public static Codec compile(String fmt) {
+        return new Codec(fmt);
+    }
+
+    /**
+     * Returns the cached codec for a format, compiling it on first use
+     */
+    private static Codec cached(String fmt) {
+        Codec codec = CODECS.get(fmt);
+        if (codec == null) {
+            codec = new Codec(fmt);
+            CODECS.putIfAbsent(fmt, codec);
+        }
+        return codec;
+    }
+
+    /**
+     * A compiled format: the type and offset of each field, and the byte order
+     */
+    public static final class Codec {
+        private final String format;
+        private final boolean bigEndian;
+        private final char[] types; // type of each field
+        private final int[] offsets; // byte offset of each field
+        private final int[] widths; // bytes in each field
+        private final int size; // bytes in the whole structure
+        private final boolean floating; // has float or double fields
+
+        /**
+         * Constructor for a codec
+         *
+         * @param fmt Format string
+         */
+        private Codec(String fmt) {
+            format = fmt;
+            int start = 0;
+            boolean big = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+            if (!fmt.isEmpty() && "<>!@=".indexOf(fmt.charAt(0)) >= 0) {
+                char c = fmt.charAt(0);
+                if (c == '<')
+                    big = false;
+                else if (c == '>' || c == '!')
+                    big = true;
+                start = 1;
+            }
+            bigEndian = big;
+
+            // count the fields first so the arrays are exactly sized
+            char[] fieldTypes = new char[fmt.length()];
+            int[] fieldOffsets = new int[fmt.length()];
+            int fields = 0;
+            int offset = 0;
+            boolean hasFloat = false;
+            int repeat = -1;
+            for (int i = start; i < fmt.length(); i++) {
+                char c = fmt.charAt(i);
+                if (Character.isWhitespace(c))
+                    continue;
+                if (c >= '0' && c <= '9') {
+                    repeat = (repeat < 0 ? 0 : repeat * 10) + (c - '0');
+                    continue;
+                }
+                int width = width(c);
+                if (width == 0)
+                    throw new IllegalArgumentException("Invalid format character '" + c + "' in " + fmt);
+                int n = repeat < 0 ? 1 : repeat;
+                repeat = -1;
+                if (c == 'x') {
+                    offset += n;
+                    continue;
+                }
+                if (fields + n > fieldTypes.length) {
+                    fieldTypes = Arrays.copyOf(fieldTypes, fields + n);
+                    fieldOffsets = Arrays.copyOf(fieldOffsets, fields + n);
+                }
+                for (int j = 0; j < n; j++) {
+                    fieldTypes[fields] = c;
+                    fieldOffsets[fields] = offset;
+                    fields++;
+                    offset += width;
+                }
+                hasFloat |= c == 'f' || c == 'd';
+            }
+            if (repeat >= 0)
+                throw new IllegalArgumentException("Repeat count without a type in " + fmt);
+            types = Arrays.copyOf(fieldTypes, fields);
+            offsets = Arrays.copyOf(fieldOffsets, fields);
+            widths = new int[fields];
+            for (int i = 0; i < fields; i++)
+                widths[i] = width(types[i]);
+            size = offset;
+            floating = hasFloat;
+        }
+
+        /**
+         * Returns the number of bytes of a type, 0 if not a type
+         */
+        private static int width(char type) {
+            switch (type) {
+                case 'x': case 'b': case 'B':
+                    return 1;
+                case 'h': case 'H':
+                    return 2;
+                case 'k': case 'K':
+                    return 3;
+                case 'i': case 'I': case 'f':
+                    return 4;
+                case 'q': case 'd':
+                    return 8;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Returns the number of bytes the format describes
+         *
+         * @return Size in bytes
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the number of values (pad bytes have none)
+         *
+         * @return Field count
+         */
+        public int count() {
+            return types.length;
+        }
+
+        /**
+         * Returns the byte offset of a field in the structure
+         *
+         * @param field Field index
+         * @return Offset in bytes
+         */
+        public int offset(int field) {
+            return offsets[field];
+        }
+
+        /**
+         * Read an integer field
+         *
+         * @param src Data
+         * @param offset Offset of the structure in src
+         * @param field Field index
+         * @return The value (float and double fields are truncated)
+         */
+        public long get(byte[] src, int offset, int field) {
+            char type = types[field];
+            long raw = read(src, offset + offsets[field], widths[field]);
+            return isFloating(type) ? (long) toDouble(raw, type) : toLong(raw, type);
+        }
+
+        /**
+         * Read an integer field from a buffer, without changing its position
+         *
+         * @param src Data
+         * @param index Index of the structure in src
+         * @param field Field index
+         * @return The value (float and double fields are truncated)
+         */
+        public long get(ByteBuffer src, int index, int field) {
+            char type = types[field];
+            long raw = read(src, index + offsets[field], widths[field]);
+            return isFloating(type) ? (long) toDouble(raw, type) : toLong(raw, type);
+        }
+
+        /**
+         * Read any field as a double
+         *
+         * @param src Data
+         * @param offset Offset of the structure in src
+         * @param field Field index
+         * @return The value
+         */
+        public double getDouble(byte[] src, int offset, int field) {
+            char type = types[field];
+            long raw = read(src, offset + offsets[field], widths[field]);
+            return isFloating(type) ? toDouble(raw, type) : toLong(raw, type);
+        }
+
+        /**
+         * Read any field from a buffer as a double, without changing its position
+         *
+         * @param src Data
+         * @param index Index of the structure in src
+         * @param field Field index
+         * @return The value
+         */
+        public double getDouble(ByteBuffer src, int index, int field) {
+            char type = types[field];
+            long raw = read(src, index + offsets[field], widths[field]);
+            return isFloating(type) ? toDouble(raw, type) : toLong(raw, type);
+        }
+
+        /**
+         * Read all fields of an integer format
+         *
+         * @param src Data
+         * @param offset Offset of the structure in src
+         * @param out Array for the values, at least count() long
+         * @throws IllegalArgumentException if the format has float or double fields
+         */
+        public void unpack(byte[] src, int offset, long[] out) {
+            if (floating)
+                throw new IllegalArgumentException("Format has floating point fields: " + format);
+            for (int i = 0; i < types.length; i++)
+                out[i] = toLong(read(src, offset + offsets[i], widths[i]), types[i]);
+        }
+
+        /**
+         * Read all fields of an integer format from a buffer, without changing its position
+         *
+         * @param src Data
+         * @param index Index of the structure in src
+         * @param out Array for the values, at least count() long
+         * @throws IllegalArgumentException if the format has float or double fields
+         */
+        public void unpack(ByteBuffer src, int index, long[] out) {
+            if (floating)
+                throw new IllegalArgumentException("Format has floating point fields: " + format);
+            for (int i = 0; i < types.length; i++)
+                out[i] = toLong(read(src, index + offsets[i], widths[i]), types[i]);
+        }
+
+        /**
+         * Read all fields as doubles
+         *
+         * @param src Data
+         * @param offset Offset of the structure in src
+         * @param out Array for the values, at least count() long
+         */
+        public void unpack(byte[] src, int offset, double[] out) {
+            for (int i = 0; i < types.length; i++)
+                out[i] = getDouble(src, offset, i);
+        }
+
+        /**
+         * Read all fields from a buffer as doubles, without changing its position
+         *
+         * @param src Data
+         * @param index Index of the structure in src
+         * @param out Array for the values, at least count() long
+         */
+        public void unpack(ByteBuffer src, int index, double[] out) {
+            for (int i = 0; i < types.length; i++)
+                out[i] = getDouble(src, index, i);
+        }
+
+        /**
+         * Write an integer to a field (converted for float and double fields)
+         *
+         * @param dst Destination
+         * @param offset Offset of the structure in dst
+         * @param field Field index
+         * @param value The value, truncated to the field's width
+         */
+        public void set(byte[] dst, int offset, int field, long value) {
+            char type = types[field];
+            write(dst, offset + offsets[field], widths[field], isFloating(type) ? fromDouble(value, type) : value);
+        }
+
+        /**
+         * Write an integer to a field in a buffer, without changing its position
+         *
+         * @param dst Destination
+         * @param index Index of the structure in dst
+         * @param field Field index
+         * @param value The value, truncated to the field's width
+         */
+        public void set(ByteBuffer dst, int index, int field, long value) {
+            char type = types[field];
+            write(dst, index + offsets[field], widths[field], isFloating(type) ? fromDouble(value, type) : value);
+        }
+
+        /**
+         * Write a double to a field (rounded for integer fields)
+         *
+         * @param dst Destination
+         * @param offset Offset of the structure in dst
+         * @param field Field index
+         * @param value The value
+         */
+        public void setDouble(byte[] dst, int offset, int field, double value) {
+            char type = types[field];
+            write(dst, offset + offsets[field], widths[field], isFloating(type) ? fromDouble(value, type) : round(value));
+        }
+
+        /**
+         * Write a double to a field in a buffer, without changing its position
+         *
+         * @param dst Destination
+         * @param index Index of the structure in dst
+         * @param field Field index
+         * @param value The value
+         */
+        public void setDouble(ByteBuffer dst, int index, int field, double value) {
+            char type = types[field];
+            write(dst, index + offsets[field], widths[field], isFloating(type) ? fromDouble(value, type) : round(value));
+        }
+
+        /**
+         * Write all fields (pad bytes are left as they are)
+         *
+         * @param values Values, at least count() long
+         * @param dst Destination
+         * @param offset Offset of the structure in dst
+         */
+        public void pack(long[] values, byte[] dst, int offset) {
+            for (int i = 0; i < types.length; i++)
+                set(dst, offset, i, values[i]);
+        }
+
+        /**
+         * Write all fields into a buffer, without changing its position
+         *
+         * @param values Values, at least count() long
+         * @param dst Destination
+         * @param index Index of the structure in dst
+         */
+        public void pack(long[] values, ByteBuffer dst, int index) {
+            for (int i = 0; i < types.length; i++)
+                set(dst, index, i, values[i]);
+        }
+
+        /**
+         * Write all fields from doubles
+         *
+         * @param values Values, at least count() long
+         * @param dst Destination
+         * @param offset Offset of the structure in dst
+         */
+        public void pack(double[] values, byte[] dst, int offset) {
+            for (int i = 0; i < types.length; i++)
+                setDouble(dst, offset, i, values[i]);
+        }
+
+        /**
+         * Write all fields from doubles into a buffer, without changing its position
+         *
+         * @param values Values, at least count() long
+         * @param dst Destination
+         * @param index Index of the structure in dst
+         */
+        public void pack(double[] values, ByteBuffer dst, int index) {
+            for (int i = 0; i < types.length; i++)
+                setDouble(dst, index, i, values[i]);
+        }
+
+        private static boolean isFloating(char type) {
+            return type == 'f' || type == 'd';
+        }
+
+        /**
+         * Sign extend or mask the raw bytes of an integer field
+         */
+        private static long toLong(long raw, char type) {
+            switch (type) {
+                case 'b':
+                    return (byte) raw;
+                case 'h':
+                    return (short) raw;
+                case 'k':
+                    return raw << 40 >> 40;
+                case 'i':
+                    return (int) raw;
+                default:
+                    return raw; // unsigned types and q
+            }
+        }
+
+        private static double toDouble(long raw, char type) {
+            return type == 'f' ? Float.intBitsToFloat((int) raw) : Double.longBitsToDouble(raw);
+        }
+
+        private static long fromDouble(double value, char type) {
+            return type == 'f' ? Float.floatToRawIntBits((float) value) : Double.doubleToRawLongBits(value);
+        }
+
+        private long read(byte[] src, int position, int width) {
+            long raw = 0;
+            if (bigEndian) {
+                for (int i = 0; i < width; i++)
+                    raw = raw << 8 | (src[position + i] & 0xff);
+            } else {
+                for (int i = width - 1; i >= 0; i--)
+                    raw = raw << 8 | (src[position + i] & 0xff);
+            }
+            return raw;
+        }
+
+        private long read(ByteBuffer src, int position, int width) {
+            long raw = 0;
+            if (bigEndian) {
+                for (int i = 0; i < width; i++)
+                    raw = raw << 8 | (src.get(position + i) & 0xff);
+            } else {
+                for (int i = width - 1; i >= 0; i--)
+                    raw = raw << 8 | (src.get(position + i) & 0xff);
+            }
+            return raw;
+        }
+
+        private void write(byte[] dst, int position, int width, long raw) {
+            for (int i = 0; i < width; i++) {
+                int shift = bigEndian ? (width - 1 - i) * 8 : i * 8;
+                dst[position + i] = (byte) (raw >>> shift);
+            }
+        }
+
+        private void write(ByteBuffer dst, int position, int width, long raw) {
+            for (int i = 0; i < width; i++) {
+                int shift = bigEndian ? (width - 1 - i) * 8 : i * 8;
+                dst.put(position + i, (byte) (raw >>> shift));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return format;
+        }
+    }
+
     private short BigEndian = 0;
     private short LittleEndian = 1;
     private short byteOrder;
@@ -197,82 +653,24 @@ public class Struct {
 
 
     public byte[] pack(String fmt, long val) throws Exception{
-        if(fmt.length()>2){
-            throw new Exception("Single values may not have multiple format specifiers");
-        }
+        Codec codec = cached(fmt);
 
-        byte[] bx = new byte[1];
-        for (int i=0; i<fmt.length(); i++){
-            char c = fmt.charAt(i);
-            if ((i == 0) && ((c == '>') || (c == '<') || (c == '@') || (c == '!'))){
-                if (c == '>')
-                    byteOrder = BigEndian;
-                else if (c == '<')
-                    byteOrder = LittleEndian;
-                else if(c == '!')
-                    byteOrder = BigEndian;
-                else if (c == '@')
-                    byteOrder = nativeByteOrder;
-            }
-            else if((c != '>') && (c != '<') && (c != '@') && (c != '!')) {
-
-                bx = pack_single_data(c, val);
-
-                if (bx == null)
-                    throw new Exception("Invalid character specifier");
-
-
-            }
+        if(codec.count()!=1)
+            throw new Exception("Single values may not have multiple format specifiers");
 
-        }
+        byte[] bx = new byte[codec.size()];
+        codec.set(bx, 0, 0, val);
         return bx;
     }
 
     public byte[] pack(String fmt, long[] vals) throws Exception{
-        char c0 = fmt.charAt(0);
-        int len;
-        if((c0 == '@') || (c0 == '>') || (c0 == '<') || (c0 == '!')) {
-            len = fmt.length() - 1;
-        } else {
-            len = fmt.length();
-        }
-
-        if(len!=vals.length)
-            throw new Exception("format length and values aren't equal: " + len + " vs " + vals.length);
-
-        len = lenEst(fmt);
-
-        byte[] bxx = new byte[0];
-        byte[] bx;
-        byte[] temp;
-
-        for (int i=0; i<fmt.length(); i++){
-            char c = fmt.charAt(i);
-            if ((i == 0) && ((c == '>') || (c == '<') || (c == '@') || (c == '!'))){
-                if (c == '>')
-                    byteOrder = BigEndian;
-                else if (c == '<')
-                    byteOrder = LittleEndian;
-                else if(c == '!')
-                    byteOrder = BigEndian;
-                else if (c == '@')
-                    byteOrder = nativeByteOrder;
-            }
-            else if((c != '>') && (c != '<') && (c != '@') && (c != '!')) {
-                if((c0 == '@') || (c0 == '>') || (c0 == '<') || (c0 == '!')) {
-                    bx = pack(Character.toString(c), vals[i-1]);
-                }
-                else {
-                    bx = pack(Character.toString(c), vals[i]);
-                }
-                temp = new byte[bxx.length + bx.length];
-                System.arraycopy(bxx, 0, temp, 0,bxx.length);
-                System.arraycopy(bx, 0, temp, bxx.length, bx.length);
+        Codec codec = cached(fmt);
 
-                bxx = Arrays.copyOf(temp, temp.length);
-            }
-        }
+        if(codec.count()!=vals.length)
+            throw new Exception("format length and values aren't equal: " + codec.count() + " vs " + vals.length);
 
+        byte[] bxx = new byte[codec.size()];
+        codec.pack(vals, bxx, 0);
         return bxx;
     }
 
@@ -377,75 +775,14 @@ public class Struct {
 
 
 
-    private int lenEst(String fmt){
-        int counter = 0;
-        char x = '\0';
-        for(int i =0; i<fmt.length(); i++) {
-            x = fmt.charAt(i);
-            if (x=='b')
-                counter+=1;
-            if (x=='i' || x=='I')
-                counter+=4;
-            else if (x=='h' || x=='H')
-                counter+=2;
-        }
-        return counter;
-    }
-
     public long[] unpack(String fmt, byte[] vals) throws Exception{
-        int len;
-        len = lenEst(fmt);
-
-        if(len!=vals.length)
-            throw new Exception("format length and values aren't equal: " + len + " vs " + vals.length);
-
-        char c0 = fmt.charAt(0);
-
-        long[] bxx;
-        if (c0=='@' || c0 == '<' || c0 == '>' || c0 == '!') {
-            bxx = new long[fmt.length() - 1];
-        }
-        else{
-            bxx = new long[fmt.length()];
-        }
-        char c;
-        byte[] bChar = new byte[1];
-        byte[] bShort = new byte[2];
-        byte[] bLong = new byte[4];
-        ByteArrayInputStream bs = new ByteArrayInputStream(vals);
-
-        int p = 0;
-        for (int i=0; i<fmt.length(); i++){
-            c = fmt.charAt(i);
-            if ((i == 0) && ((c == '>') || (c == '<') || (c == '@') || (c == '!'))){
-                if (c == '>')
-                    byteOrder = BigEndian;
-                else if (c == '<')
-                    byteOrder = LittleEndian;
-                else if(c == '!')
-                    byteOrder = BigEndian;
-                else
-                    byteOrder = nativeByteOrder;
-            }
-            else {
-                if ((c != '>') && (c != '<') && (c != '@') && (c != '!')) {
-                    if (c == 'b') {
-                        int read = bs.read(bChar);
-                        bxx[p] = unpack_single_data(c, bChar);
-                    }
-                    if (c == 'h' || c == 'H') {
-                        int read = bs.read(bShort);
-                        bxx[p] = unpack_single_data(c, bShort);
-                    }
-                    else if(c == 'i' || c =='I'){
-                        int read = bs.read(bLong);
-                        bxx[p] = unpack_single_data(c, bLong);
-                    }
-                    p++;
-                }
-            }
+        Codec codec = cached(fmt);
 
-        }
+        if(codec.size()!=vals.length)
+            throw new Exception("format length and values aren't equal: " + codec.size() + " vs " + vals.length);
+
+        long[] bxx = new long[codec.count()];
+        codec.unpack(vals, 0, bxx);
         return bxx;
     }
 
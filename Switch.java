@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioPinDigitalInput;
 import com.pi4j.io.gpio.RaspiPin;
@@ -16,6 +18,31 @@ public class Switch {
 	private boolean invert; // flag for whether to invert (false: high = pressed)
 	private boolean state; // flag for whether the switch is currently pressed
 	private boolean wasPressed; // flag for whether the switch was pressed since the last check
+	private final ArrayList<TaskScheduler.Task> scriptTasks = new ArrayList<>(); // scripted presses and releases, if simulated
+	private final Topic<Edge> edges; // each press and release
+
+	/**
+	 * A press or release
+	 */
+	public static class Edge {
+		private final boolean pressed;
+		private final long time;
+
+		/**
+		 * Constructor for an edge
+		 * 
+		 * @param pressed True for a press, false for a release
+		 * @param time Time in milliseconds
+		 */
+		public Edge(boolean pressed, long time) {
+			this.pressed = pressed;
+			this.time = time;
+		}
+
+		public boolean isPressed() { return pressed; }
+
+		public long getTime() { return time; }
+	}
 
 	/**
 	 * Constructor for a button controller object
@@ -43,6 +70,7 @@ public class Switch {
 		this.name = name;
 		state = false;
 		wasPressed = false;
+		edges = new Topic<>(name);
 
 		// determine signal inversion
 		invert = false;
@@ -72,6 +100,85 @@ public class Switch {
 			System.out.printf("Switch: %s ready\n", name);
 	}
 
+	/**
+	 * Constructor for a simulated switch, pressed by calling simulate or from a script
+	 * 
+	 * @param name Name for this switch
+	 */
+	public Switch(String name) {
+		this.name = name;
+		state = false;
+		wasPressed = false;
+		edges = new Topic<>(name);
+		if (Config.verbose)
+			System.out.printf("Switch: %s simulated\n", name);
+	}
+
+	/**
+	 * Cancel the scripted presses, if any
+	 */
+	public void shutdown() {
+		synchronized (scriptTasks) {
+			for (TaskScheduler.Task task : scriptTasks)
+				task.cancel();
+			scriptTasks.clear();
+		}
+	}
+
+	/**
+	 * Set the state as if the pin had changed (simulated switches)
+	 * 
+	 * @param pressed True to press, false to release
+	 */
+	public void simulate(boolean pressed) {
+		setState(pressed);
+	}
+
+	/**
+	 * Press and release the switch following a script, on the shared scheduler
+	 * 
+	 * @param script Comma separated presses as wait:hold in milliseconds, e.g.
+	 *               "5000:300,500:300,500:2500" waits 5s, presses for 300ms, waits
+	 *               500ms, and so on
+	 */
+	public void runScript(String script) {
+		shutdown();
+		long time = 0;
+		for (String press : script.split(",")) {
+			try {
+				String[] times = press.trim().split(":");
+				time += Integer.parseInt(times[0]);
+				schedulePress(time, true, times[1]);
+				time += Integer.parseInt(times[1]);
+				schedulePress(time, false, times[1]);
+			} catch (Exception e) {
+				Errors.handleException(e, "Invalid switch script entry " + press);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Schedule a scripted press or release on the shared scheduler
+	 * 
+	 * @param delay Milliseconds from now
+	 * @param pressed True to press, false to release
+	 * @param hold Milliseconds the press is held for, for the message
+	 */
+	private void schedulePress(long delay, final boolean pressed, final String hold) {
+		synchronized (scriptTasks) {
+			scriptTasks.add(Workers.scheduler().scheduleOnce("switch " + name, delay, TaskScheduler.NORMAL,
+					new Runnable() {
+						@Override
+						public void run() {
+							if (Config.verbose && pressed)
+								System.out.printf("Switch: %s pressed for %sms\n", name, hold);
+							simulate(pressed);
+						}
+					}));
+		}
+	}
+
 	/**
 	 * Returns the CURRENT state at time of check
 	 * 
@@ -108,10 +215,31 @@ public class Switch {
 	 */
 	private void handleEvent(GpioPinDigitalStateChangeEvent event) {
 		if (invert)
-			state = event.getState().isLow();
+			setState(event.getState().isLow());
 		else
-			state = event.getState().isHigh();
-		if (state)
+			setState(event.getState().isHigh());
+	}
+
+	/**
+	 * Change the state, publishing the edge if it changed
+	 * 
+	 * @param pressed True if pressed
+	 */
+	private void setState(boolean pressed) {
+		boolean changed = pressed != state;
+		state = pressed;
+		if (pressed)
 			wasPressed = true;
+		if (changed)
+			edges.publish(new Edge(pressed, Clock.millis()));
+	}
+
+	/**
+	 * Returns the stream of presses and releases
+	 * 
+	 * @return Topic of edges
+	 */
+	public Topic<Edge> getEdges() {
+		return edges;
 	}
 }
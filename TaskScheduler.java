@@ -0,0 +1,319 @@
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Runs periodic and one-shot tasks on one thread, each when its deadline comes.
+ *
+ * Tasks wait in a priority queue ordered by deadline, and among tasks due at the
+ * same time by priority, so the thread sleeps exactly until the next deadline rather
+ * than polling. Periodic tasks run at a fixed rate: each deadline is the previous one
+ * plus the period, so a late run does not push the later ones back, and periods
+ * missed entirely (while another task ran long) are skipped rather than run in a
+ * burst. Tasks are not preempted, so anything that must not wait for a slow task
+ * belongs on its own thread.
+ *
+ * For each task name the scheduler measures the lag (how late each run started), the
+ * jitter (standard deviation of the time between starts), the run time, and the
+ * overruns (runs that ended after the next deadline had passed). One-shot tasks
+ * scheduled again and again under one name (an LED's flashes, simulated button presses) share
+ * their statistics.
+ *
+ * In replay the clock is virtual, and waiting for a deadline moves it forward.
+ */
+public class TaskScheduler {
+
+	// task priorities, higher runs first when due at the same time
+	public static final int LOW = 0;
+	public static final int NORMAL = 1;
+	public static final int HIGH = 2;
+
+	private final String name;
+	private final PriorityQueue<Task> queue; // tasks waiting for their deadlines
+	private final LinkedHashMap<String, Stats> stats; // statistics of each task name
+	private long sequence; // order tasks were scheduled, for equal deadlines and priorities
+	private volatile boolean shutdown;
+
+	/**
+	 * Statistics of the tasks with one name, guarded by the scheduler
+	 */
+	private static class Stats {
+
+		private final String name;
+		private final long period; // milliseconds, 0 for one-shot
+		private final int priority;
+		private final TimingStats starts; // intervals between starts
+		private long runs;
+		private long overruns;
+		private long skipped; // periods missed entirely
+		private double totalLag; // milliseconds
+		private long maxLag;
+		private double totalRunTime; // nanoseconds
+		private long maxRunTime;
+
+		private Stats(String name, long period, int priority) {
+			this.name = name;
+			this.period = period;
+			this.priority = priority;
+			starts = new TimingStats(name);
+		}
+
+		private void print() {
+			System.out.printf("  %s (%s, priority %d): %d runs, %d overruns, %d skipped, lag mean %.1fms, max %dms, "
+					+ "jitter %.3fms, run time mean %.3fms, max %.3fms\n", name,
+					period > 0 ? period + "ms" : "once", priority, runs, overruns, skipped,
+					runs == 0 ? 0.0 : totalLag / runs, maxLag, starts.getJitter(),
+					runs == 0 ? 0.0 : totalRunTime / runs / 1e6, maxRunTime / 1e6);
+		}
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	public class Task implements Comparable<Task> {
+
+		private final long period; // milliseconds, 0 for one-shot
+		private final int priority;
+		private final Runnable job;
+		private final Stats stats;
+		private long deadline; // Clock.millis the next run is due
+		private long order;
+		private boolean cancelled;
+
+		private Task(long deadline, long period, int priority, Runnable job, Stats stats) {
+			this.deadline = deadline;
+			this.period = period;
+			this.priority = priority;
+			this.job = job;
+			this.stats = stats;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (deadline != other.deadline)
+				return deadline < other.deadline ? -1 : 1;
+			if (priority != other.priority)
+				return other.priority - priority;
+			return Long.compare(order, other.order);
+		}
+
+		/**
+		 * Stop running the task
+		 */
+		public void cancel() {
+			synchronized (TaskScheduler.this) {
+				cancelled = true;
+				queue.remove(this);
+			}
+		}
+
+		/**
+		 * Run the task and work out its next deadline
+		 *
+		 * @param now Clock.millis when it started
+		 */
+		private void run(long now) {
+			long start = Clock.nanos();
+			stats.starts.add(start);
+			try {
+				job.run();
+			} catch (Exception e) {
+				Errors.handleException(e, "Failed to run task " + stats.name);
+			}
+			long runTime = Clock.nanos() - start;
+			long end = Clock.millis();
+
+			synchronized (TaskScheduler.this) {
+				stats.runs++;
+				long lag = now - deadline;
+				stats.totalLag += lag;
+				stats.maxLag = Math.max(stats.maxLag, lag);
+				stats.totalRunTime += runTime;
+				stats.maxRunTime = Math.max(stats.maxRunTime, runTime);
+				if (period <= 0 || cancelled)
+					return;
+				deadline += period;
+				if (end > deadline)
+					stats.overruns++;
+				if (deadline < end) {
+					long missed = (end - deadline) / period;
+					stats.skipped += missed;
+					deadline += missed * period;
+				}
+				order = sequence++;
+				queue.add(this);
+			}
+		}
+
+		/**
+		 * Returns when the run in progress (or else the next run) was due
+		 *
+		 * @return Clock.millis
+		 */
+		public long getDeadline() {
+			synchronized (TaskScheduler.this) {
+				return deadline;
+			}
+		}
+
+		/**
+		 * Returns the number of runs of tasks with this name that ended after the next
+		 * deadline
+		 *
+		 * @return Overrun count
+		 */
+		public long getOverruns() {
+			synchronized (TaskScheduler.this) {
+				return stats.overruns;
+			}
+		}
+
+		/**
+		 * Returns the mean time from the deadline to the start of a run, for tasks with
+		 * this name
+		 *
+		 * @return Milliseconds
+		 */
+		public double getMeanLag() {
+			synchronized (TaskScheduler.this) {
+				return stats.runs == 0 ? 0.0 : stats.totalLag / stats.runs;
+			}
+		}
+
+		/**
+		 * Returns the standard deviation of the time between the starts of runs, for
+		 * tasks with this name
+		 *
+		 * @return Milliseconds
+		 */
+		public double getJitter() {
+			return stats.starts.getJitter();
+		}
+	}
+
+	/**
+	 * Constructor for a scheduler
+	 *
+	 * @param name Name for statistics
+	 */
+	public TaskScheduler(String name) {
+		this.name = name;
+		queue = new PriorityQueue<>();
+		stats = new LinkedHashMap<>();
+		shutdown = false;
+	}
+
+	/**
+	 * Schedule a task to run every period, starting after a delay
+	 *
+	 * @param name Task name for statistics
+	 * @param delay Milliseconds until the first run
+	 * @param period Milliseconds between runs
+	 * @param priority LOW, NORMAL or HIGH
+	 * @param job What to run
+	 * @return Task, to cancel it
+	 */
+	public Task schedule(String name, long delay, long period, int priority, Runnable job) {
+		return add(name, delay, Math.max(1, period), priority, job);
+	}
+
+	/**
+	 * Schedule a task to run once after a delay
+	 *
+	 * @param name Task name for statistics
+	 * @param delay Milliseconds until it runs
+	 * @param priority LOW, NORMAL or HIGH
+	 * @param job What to run
+	 * @return Task, to cancel it
+	 */
+	public Task scheduleOnce(String name, long delay, int priority, Runnable job) {
+		return add(name, delay, 0, priority, job);
+	}
+
+	/**
+	 * Queue a task, waking the scheduler if it is now the first due
+	 */
+	private synchronized Task add(String name, long delay, long period, int priority, Runnable job) {
+		Stats taskStats = stats.get(name);
+		if (taskStats == null) {
+			taskStats = new Stats(name, period, priority);
+			stats.put(name, taskStats);
+		}
+		Task task = new Task(Clock.millis() + Math.max(0, delay), period, priority, job, taskStats);
+		task.order = sequence++;
+		queue.add(task);
+		notifyAll();
+		return task;
+	}
+
+	/**
+	 * Run the tasks that are due, then wait until the next deadline (or until a task is
+	 * scheduled or the scheduler shut down)
+	 */
+	public void runOnce() {
+		long now = Clock.millis();
+		while (true) {
+			Task task;
+			synchronized (this) {
+				task = queue.peek();
+				if (task == null || task.deadline > now || shutdown)
+					break;
+				queue.poll();
+			}
+			task.run(now);
+			now = Clock.millis();
+		}
+
+		synchronized (this) {
+			if (shutdown)
+				return;
+			Task next = queue.peek();
+			if (Clock.isVirtual()) {
+				if (next != null)
+					Clock.advanceTo(next.deadline);
+				return;
+			}
+			long wait = next == null ? 1000 : next.deadline - Clock.millis();
+			if (wait > 0) {
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Errors.handleException(e, "Thread interrupted");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run tasks on the calling thread until shut down
+	 */
+	public void run() {
+		while (!shutdown)
+			runOnce();
+	}
+
+	/**
+	 * Stop running tasks and return from run
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns whether the scheduler has been shut down
+	 *
+	 * @return True if shut down
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Print the statistics of every task name
+	 */
+	public synchronized void print() {
+		System.out.printf("%s: %d tasks waiting\n", name, queue.size());
+		for (Stats taskStats : stats.values())
+			taskStats.print();
+	}
+}
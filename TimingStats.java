@@ -0,0 +1,110 @@
+/**
+ * Statistics of the intervals between periodic events, for measuring jitter.
+ *
+ * Each event's timestamp is compared with the previous one and the interval is added
+ * to a running mean and variance (Welford's method), so nothing is stored per event.
+ * Jitter is the standard deviation of the interval.
+ */
+public class TimingStats {
+
+	private String name; // name for reports
+	private long lastTime; // nanoseconds of the previous event, -1 before the first
+	private long count; // number of intervals
+	private double mean; // mean interval in nanoseconds
+	private double m2; // sum of squared differences from the mean
+	private long min; // shortest interval in nanoseconds
+	private long max; // longest interval in nanoseconds
+
+	/**
+	 * Constructor for a timing statistics object
+	 *
+	 * @param name Name for reports
+	 */
+	public TimingStats(String name) {
+		this.name = name;
+		reset();
+	}
+
+	/**
+	 * Forget all events so far
+	 */
+	public synchronized void reset() {
+		lastTime = -1;
+		count = 0;
+		mean = 0;
+		m2 = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Record an event
+	 *
+	 * @param time Time of the event in nanoseconds (from Clock.nanos)
+	 */
+	public synchronized void add(long time) {
+		if (lastTime >= 0) {
+			long interval = time - lastTime;
+			count++;
+			double delta = interval - mean;
+			mean += delta / count;
+			m2 += delta * (interval - mean);
+			min = Math.min(min, interval);
+			max = Math.max(max, interval);
+		}
+		lastTime = time;
+	}
+
+	/**
+	 * Returns the number of intervals recorded
+	 *
+	 * @return Interval count
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the mean interval
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getMean() {
+		return mean / 1e6;
+	}
+
+	/**
+	 * Returns the standard deviation of the interval
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getJitter() {
+		return count > 1 ? Math.sqrt(m2 / (count - 1)) / 1e6 : 0.0;
+	}
+
+	/**
+	 * Returns the shortest interval
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getMin() {
+		return count > 0 ? min / 1e6 : 0.0;
+	}
+
+	/**
+	 * Returns the longest interval
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getMax() {
+		return max / 1e6;
+	}
+
+	/**
+	 * Print a summary of the intervals
+	 */
+	public synchronized void print() {
+		System.out.printf("%s: %d intervals, mean %.3fms, jitter %.3fms, min %.3fms, max %.3fms\n", name, count,
+				getMean(), getJitter(), getMin(), getMax());
+	}
+}
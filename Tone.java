@@ -2,28 +2,43 @@ import com.pi4j.wiringpi.SoftTone;
 
 /**
  * Controller class for simple tones
+ * 
+ * The vario's beeps are timed by VarioAudio, which writes each change of frequency
+ * with setOutput.
  */
 public class Tone {
 
-	private ToneWorker workerThread;
 	private int pinNum;
 	private String name;
-	private int freq;
-	private boolean playing;
+	private volatile boolean playing;
+	private RingBuffer<long[]> recording; // time and frequency of each output change, if simulated
 
 	/**
 	 * Constructor for a tone controller object
 	 */
 	public Tone(int pinNum, String name) {
+		this(pinNum, name, false);
+	}
+
+	/**
+	 * Constructor for a tone controller object that can record its output instead of
+	 * playing it
+	 * 
+	 * @param pinNum GPIO pin number
+	 * @param name Name for this tone
+	 * @param simulated True to record the output instead of using the pin
+	 */
+	public Tone(int pinNum, String name, boolean simulated) {
 		this.pinNum = pinNum;
 		this.name = name;
 		playing = false;
-		freq = 0;
 
-		// set up GPIO pin
-		int success = SoftTone.softToneCreate(pinNum);
-
-		startWorker();
+		// set up GPIO pin, or the recording
+		int success = 0;
+		if (simulated)
+			recording = new RingBuffer<>(1024);
+		else
+			success = SoftTone.softToneCreate(pinNum);
 
 		if (Config.verbose) {
 			if (success == 0)
@@ -37,18 +52,8 @@ public class Tone {
 	 * Shut down the controller
 	 */
 	public void shutdown() {
-		if (workerThread != null)
-			workerThread.shutdown();
-	}
-
-	/**
-	 * Start worker thread
-	 */
-	private void startWorker() {
-		workerThread = new ToneWorker();
-		(new Thread(workerThread)).start();
-		if (Config.verbose)
-			System.out.printf("Tone: %s worker ready\n", name);
+		if (playing)
+			setOutput(0);
 	}
 
 	/**
@@ -57,7 +62,10 @@ public class Tone {
 	public void stop() {
 		if (Config.verbose)
 			System.out.printf("Tone: %s off\n", name);
-		SoftTone.softToneStop(pinNum);
+		if (recording != null)
+			record(0);
+		else
+			SoftTone.softToneStop(pinNum);
 		playing = false;
 	}
 
@@ -72,14 +80,9 @@ public class Tone {
 	 * Turn the tone on for a number of milliseconds
 	 */
 	public void play(int freq, int time) {
-		if (freq > 0) {
-			if (Config.verbose)
-				System.out.printf("Tone: %s playing freq %d for %dms\n", name, freq, time);
-			SoftTone.softToneWrite(pinNum, Math.min(Math.max(freq, 110), 3520));
-		} else
-			SoftTone.softToneWrite(pinNum, 0);
-
-		playing = freq > 0;
+		if (freq > 0 && Config.verbose)
+			System.out.printf("Tone: %s playing freq %d for %dms\n", name, freq, time);
+		setOutput(freq);
 
 		if (time > 0) {
 			Util.delay(time);
@@ -87,53 +90,39 @@ public class Tone {
 		}
 	}
 
-	public void setFreq(int freq) {
-		this.freq = freq;
-	}
-
 	/**
-	 * Worker thread class
+	 * Change the frequency being played, quietly (the vario's beeps change it often)
+	 * 
+	 * @param freq Frequency in Hz, 0 for off
 	 */
-	public class ToneWorker implements Runnable {
-
-		// flag for whether the worker should shut down
-		private boolean shutdown;
-
-		/**
-		 * Constructor
-		 */
-		public ToneWorker() {
-			shutdown = false;
-		}
+	public void setOutput(int freq) {
+		int output = freq > 0 ? Math.min(Math.max(freq, 110), 3520) : 0;
+		if (recording != null)
+			record(output);
+		else
+			SoftTone.softToneWrite(pinNum, output);
 
-		/**
-		 * Main worker loop
-		 */
-		@Override
-		public void run() {
-			while (!shutdown) {
-				if (freq > 0 && !playing) {
-					int pulseTime = 1 + (int) (200000.0 / freq);
-					int offTime = 1 + (int) (pulseTime / 2.0);
-					long pulseEndTime = System.currentTimeMillis() + pulseTime;
+		playing = freq > 0;
+	}
 
-					while (System.currentTimeMillis() < pulseEndTime) {
-						play(freq);
-						Util.delay(10);
-					}
-					freq = 0;
-					play(0);
-					Util.delay(offTime);
-				} else
-					Util.delay(200);
-			}
-		}
+	/**
+	 * Returns the recorded output when simulated
+	 * 
+	 * @return Time (ms) and frequency of each change in output, newest first, or null
+	 *         if not simulated
+	 */
+	public RingBuffer<long[]> getRecording() {
+		return recording;
+	}
 
-		/**
-		 * Shut down the worker
-		 */
-		public void shutdown() {
-			shutdown = true;
-		}
+	/**
+	 * Record a change in output
+	 * 
+	 * @param output Frequency written, 0 for off
+	 */
+	private synchronized void record(int output) {
+		long[] last = recording.latest();
+		if (last == null || last[1] != output)
+			recording.add(new long[] { Clock.millis(), output });
 	}
 }
@@ -0,0 +1,368 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A stream of items from one or more producers to any number of subscribers.
+ *
+ * Each subscriber has its own bounded queue and handler, so a slow consumer holds up
+ * nobody but itself, and what happens when its queue is full is its own choice:
+ * LATEST keeps only the newest item (displays, where only the current value matters),
+ * DROP_OLDEST keeps the newest items up to the capacity, and BLOCK makes the producer
+ * wait for room (lossless, for records). A subscription is either started, when its
+ * own worker thread handles items as soon as they are published, inline, when the
+ * publishing thread handles each item as it publishes it (for cheap handlers, where the
+ * hop to another thread would cost more than the work), or dispatched, when the owner
+ * handles the waiting items on its own thread (used for replay, where everything runs
+ * on one thread and a BLOCK producer handles them itself instead of waiting).
+ *
+ * Each subscription counts the items handled and dropped, its deepest queue, and the
+ * time from publishing an item to the end of handling it.
+ *
+ * @param <T> Type of item; items are shared between threads so must be immutable
+ */
+public class Topic<T> {
+
+	/**
+	 * What to do when a subscriber's queue is full
+	 */
+	public enum Policy {
+		LATEST, DROP_OLDEST, BLOCK
+	}
+
+	/**
+	 * Consumer of a subscription's items
+	 *
+	 * @param <T> Type of item
+	 */
+	public interface Handler<T> {
+		/**
+		 * Called for each item, in the order published
+		 *
+		 * @param item The item
+		 */
+		void handle(T item);
+	}
+
+	private final String name;
+	private final CopyOnWriteArrayList<Subscription<T>> subscriptions;
+	private volatile long published; // number of items published
+
+	/**
+	 * Constructor for a topic
+	 *
+	 * @param name Name for statistics
+	 */
+	public Topic(String name) {
+		this.name = name;
+		subscriptions = new CopyOnWriteArrayList<>();
+		published = 0;
+	}
+
+	/**
+	 * Subscribe to the items published from now on
+	 *
+	 * @param name Subscriber name for statistics
+	 * @param capacity Queue length (1 for LATEST)
+	 * @param policy What to do when the queue is full
+	 * @param handler Consumer of the items
+	 * @return Subscription, to be started or dispatched
+	 */
+	public Subscription<T> subscribe(String name, int capacity, Policy policy, Handler<T> handler) {
+		Subscription<T> subscription = new Subscription<>(this.name + "/" + name,
+				policy == Policy.LATEST ? 1 : capacity, policy, handler);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Publish an item to every subscriber
+	 *
+	 * @param item The item
+	 */
+	public void publish(T item) {
+		published++;
+		long time = Clock.nanos();
+		for (Subscription<T> subscription : subscriptions) {
+			subscription.offer(item, time);
+			if (subscription.inline)
+				subscription.dispatch();
+		}
+	}
+
+	/**
+	 * Returns the number of items published
+	 *
+	 * @return Item count
+	 */
+	public long getPublished() {
+		return published;
+	}
+
+	/**
+	 * Stop every subscription's worker and release waiting producers
+	 */
+	public void close() {
+		for (Subscription<T> subscription : subscriptions)
+			subscription.close();
+	}
+
+	/**
+	 * Print the statistics of every subscription
+	 */
+	public void print() {
+		System.out.printf("%s: %d published\n", name, published);
+		for (Subscription<T> subscription : subscriptions)
+			subscription.print();
+	}
+
+	/**
+	 * One subscriber's queue, handler and statistics
+	 *
+	 * @param <T> Type of item
+	 */
+	public static class Subscription<T> {
+
+		private final String name;
+		private final Object[] items; // circular queue
+		private final long[] times; // Clock.nanos each item was published
+		private final Policy policy;
+		private final Handler<T> handler;
+		private int head; // index of the oldest item
+		private int size; // number of items waiting
+		private boolean closed;
+		private volatile boolean inline; // handled by the publishing thread
+		private final Object dispatching = new Object(); // held while handling items on a caller's thread
+		private Worker worker; // null unless started
+
+		// statistics
+		private long handled;
+		private long dropped;
+		private int maxDepth;
+		private double totalLatency; // nanoseconds from publishing to the end of handling
+		private long maxLatency;
+
+		/**
+		 * Constructor for a subscription
+		 *
+		 * @param name Name for statistics
+		 * @param capacity Queue length
+		 * @param policy What to do when the queue is full
+		 * @param handler Consumer of the items
+		 */
+		private Subscription(String name, int capacity, Policy policy, Handler<T> handler) {
+			this.name = name;
+			this.policy = policy;
+			this.handler = handler;
+			items = new Object[Math.max(1, capacity)];
+			times = new long[items.length];
+		}
+
+		/**
+		 * Queue an item, following the policy if the queue is full
+		 */
+		private void offer(T item, long time) {
+			synchronized (this) {
+				if (closed)
+					return;
+				if (size == items.length && policy == Policy.BLOCK && worker != null) {
+					while (size == items.length && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Errors.handleException(e, "Thread interrupted");
+							return;
+						}
+					}
+					if (closed)
+						return;
+				}
+				if (size == items.length && policy != Policy.BLOCK) {
+					items[head] = null;
+					head = (head + 1) % items.length;
+					size--;
+					dropped++;
+				}
+				if (size < items.length) {
+					int tail = (head + size) % items.length;
+					items[tail] = item;
+					times[tail] = time;
+					size++;
+					maxDepth = Math.max(maxDepth, size);
+					notifyAll();
+					return;
+				}
+			}
+
+			// BLOCK without a worker: make room by handling the waiting items here
+			dispatch();
+			offer(item, time);
+		}
+
+		/**
+		 * Handle the oldest waiting item on the calling thread
+		 *
+		 * @param wait True to wait for an item if there is none
+		 * @return True if an item was handled
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean handleNext(boolean wait) {
+			T item;
+			long time;
+			synchronized (this) {
+				while (wait && size == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				if (size == 0)
+					return false;
+				item = (T) items[head];
+				time = times[head];
+				items[head] = null;
+				head = (head + 1) % items.length;
+				size--;
+				notifyAll();
+			}
+			try {
+				handler.handle(item);
+			} catch (Exception e) {
+				Errors.handleException(e, "Failed to handle " + name);
+			}
+			long latency = Clock.nanos() - time;
+			synchronized (this) {
+				handled++;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+			}
+			return true;
+		}
+
+		/**
+		 * Handle the waiting items on the calling thread (for subscriptions not started)
+		 *
+		 * @return Number of items handled
+		 */
+		public int dispatch() {
+			int count = 0;
+			synchronized (dispatching) {
+				while (handleNext(false))
+					count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Handle each item on the thread that publishes it, as soon as it is published.
+		 * Items from several publishing threads are still handled one at a time, in order.
+		 */
+		public void inline() {
+			synchronized (this) {
+				if (worker != null || closed)
+					return;
+			}
+			inline = true;
+		}
+
+		/**
+		 * Start a worker, on the shared pool for blocking loops, that handles each item as
+		 * it arrives
+		 */
+		public void start() {
+			synchronized (this) {
+				if (worker != null || closed)
+					return;
+				worker = new Worker();
+			}
+			Workers.execute(name, worker);
+		}
+
+		/**
+		 * Stop the worker and stop accepting items
+		 */
+		public void close() {
+			synchronized (this) {
+				closed = true;
+				if (worker != null)
+					worker.shutdown();
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Returns the number of items waiting
+		 *
+		 * @return Queue length
+		 */
+		public synchronized int getDepth() {
+			return size;
+		}
+
+		/**
+		 * Returns the number of items handled
+		 *
+		 * @return Item count
+		 */
+		public synchronized long getHandled() {
+			return handled;
+		}
+
+		/**
+		 * Returns the number of items dropped because the queue was full
+		 *
+		 * @return Item count
+		 */
+		public synchronized long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Returns the mean time from publishing an item to the end of handling it
+		 *
+		 * @return Milliseconds
+		 */
+		public synchronized double getMeanLatency() {
+			return handled == 0 ? 0.0 : totalLatency / handled / 1e6;
+		}
+
+		/**
+		 * Print the statistics
+		 */
+		public synchronized void print() {
+			System.out.printf("  %s (%s): %d handled, %d dropped, max depth %d, latency mean %.3fms, max %.3fms\n",
+					name, policy, handled, dropped, maxDepth, getMeanLatency(), maxLatency / 1e6);
+		}
+
+		/**
+		 * Worker thread class
+		 */
+		public class Worker implements Runnable {
+
+			// flag for whether the worker should shut down
+			private volatile boolean shutdown;
+
+			/**
+			 * Constructor
+			 */
+			public Worker() {
+				shutdown = false;
+			}
+
+			/**
+			 * Main worker loop
+			 */
+			@Override
+			public void run() {
+				while (!shutdown)
+					handleNext(true);
+			}
+
+			/**
+			 * Shut down the worker
+			 */
+			public void shutdown() {
+				shutdown = true;
+			}
+		}
+	}
+}
@@ -7,19 +7,41 @@ import java.nio.file.Paths;
 
 public class Track {
 
-	private TrackWorker workerThread;
+	// minimum time between points, ms
+	private static final int INTERVAL = 1000;
+
+	private Topic.Subscription<GPSData> fixes; // every GPS fix, none dropped
 	private DeviceController controller;
-	private boolean running;
-	private long lastGPSTime;
-	private String filename;
+	private volatile boolean running;
+	private int lastFixTime; // time of day of the last point written, ms, -1 for none
+	private volatile String filename;
 
 	public Track(DeviceController controller) {
+		this(controller, true);
+	}
+
+	/**
+	 * Constructor for a track recorder
+	 *
+	 * @param controller Device controller to get GPS data from
+	 * @param startWorker Whether to start the worker thread, otherwise update must be
+	 *                    called regularly (used for replay)
+	 */
+	public Track(DeviceController controller, boolean startWorker) {
 		if (controller != null) {
 			this.controller = controller;
 			running = false;
-			lastGPSTime = 0;
+			lastFixTime = -1;
 
-			startWorker();
+			// the track is a record, so the GPS waits for it rather than lose a fix
+			fixes = controller.getFixes().subscribe("track", 64, Topic.Policy.BLOCK, new Topic.Handler<GPSData>() {
+				@Override
+				public void handle(GPSData fix) {
+					record(fix);
+				}
+			});
+			if (startWorker)
+				startWorker();
 
 			if (Config.verbose)
 				System.out.println("Track: ready");
@@ -31,17 +53,16 @@ public class Track {
 	 * Shut down the controller
 	 */
 	public void shutdown() {
-		if (workerThread != null)
-			workerThread.shutdown();
+		if (fixes != null)
+			fixes.close();
 	}
 
 	public void run() {
 		try {
 			String header = "type,latitude,longitude,alt,speed,course\n";
-			filename = String.format("gps_%d.txt", System.currentTimeMillis());
+			filename = String.format("gps_%d.txt", Clock.millis());
 
-			Files.write(Paths.get(filename), header.getBytes(StandardCharsets.UTF_8),
-					Files.exists(Paths.get(filename)) ? StandardOpenOption.APPEND : StandardOpenOption.CREATE);
+			Files.write(Paths.get(filename), header.getBytes(StandardCharsets.UTF_8));
 
 			running = true;
 		} catch (Exception e) {
@@ -64,64 +85,52 @@ public class Track {
 		return running;
 	}
 
+	public String getFilename() {
+		return filename;
+	}
+
 	/**
-	 * Start worker thread
+	 * Record the GPS fixes published since the last update, when the worker is not
+	 * started
 	 */
-	private void startWorker() {
-		workerThread = new TrackWorker();
-		(new Thread(workerThread)).start();
-		if (Config.verbose)
-			System.out.println("Track: worker ready");
+	public void update() {
+		if (fixes != null)
+			fixes.dispatch();
 	}
 
 	/**
-	 * Worker thread class
+	 * Write a GPS fix if tracking and it is a second or more after the last one written
+	 * 
+	 * @param gps GPS fix
 	 */
-	public class TrackWorker implements Runnable {
-
-		// flag for whether the worker should shut down
-		private boolean shutdown;
+	private void record(GPSData gps) {
+		if (!running || gps == null || !gps.isValid())
+			return;
+		int time = gps.getTimeMillis();
+		if (lastFixTime >= 0 && time >= lastFixTime && time - lastFixTime < INTERVAL)
+			return; // too soon (an earlier time is the next day)
+		lastFixTime = time;
+
+		double altitude = controller.getAltitude();
+		String gpsStr = String.format("T,%f,%f,%f,%f,%f\n", gps.getLatitude(), gps.getLongitude(),
+				Double.isNaN(altitude) ? gps.getAltitude() : altitude, gps.getSpeed(), gps.getTrackingAngle());
 
-		/**
-		 * Constructor
-		 */
-		public TrackWorker() {
-			shutdown = false;
-		}
-
-		/**
-		 * Main worker loop
-		 */
-		@Override
-		public void run() {
-			while (!shutdown) {
-				if (running && System.currentTimeMillis() - lastGPSTime > 1000) {
-					GPSData gps = controller.getGPSData();
-
-					if (gps != null && gps.isValid()) {
-						String gpsStr = String.format("T,%f,%f,%f,%f,%f\n", gps.getLatitude(), gps.getLongitude(),
-								gps.getAltitude(), gps.getSpeed(), gps.getTrackingAngle());
-
-						try {
-							Files.write(Paths.get(filename), gpsStr.getBytes(StandardCharsets.UTF_8),
-									Files.exists(Paths.get(filename)) ? StandardOpenOption.APPEND : StandardOpenOption.CREATE);
-						} catch (Exception e) {
-							Errors.handleException(e, "cannot write GPS file");
-						}
-						System.out.print(gpsStr);
-					}
-
-					lastGPSTime = System.currentTimeMillis();
-				}
-				Util.delay(100);
-			}
+		try {
+			Files.write(Paths.get(filename), gpsStr.getBytes(StandardCharsets.UTF_8),
+					Files.exists(Paths.get(filename)) ? StandardOpenOption.APPEND : StandardOpenOption.CREATE);
+		} catch (Exception e) {
+			Errors.handleException(e, "cannot write GPS file");
 		}
+		if (Config.verbose)
+			System.out.print(gpsStr);
+	}
 
-		/**
-		 * Shut down the worker
-		 */
-		public void shutdown() {
-			shutdown = true;
-		}
+	/**
+	 * Start worker thread
+	 */
+	private void startWorker() {
+		fixes.start();
+		if (Config.verbose)
+			System.out.println("Track: worker ready");
 	}
-}
\ No newline at end of file
+}
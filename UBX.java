@@ -0,0 +1,221 @@
+import java.io.IOException;
+
+/**
+ * Startup configuration for u-blox GPS modules using UBX-CFG messages.
+ *
+ * The module powers up at 9600 baud sending NMEA once a second. This sets the UART to
+ * the target baud rate with UBX output only (CFG-PRT), sets the measurement interval
+ * (CFG-RATE) and enables a NAV-PVT with every solution (CFG-MSG), waiting for the module
+ * to acknowledge each message with an ACK-ACK.
+ *
+ * As with PMTK, the target baud rate is tried first in case the module kept its
+ * configuration on backup power.
+ */
+public class UBX {
+
+	// UART1, the port the module's TX/RX pins are connected to
+	private static final int PORT_UART = 1;
+
+	// CFG-PRT mode: 8 data bits, no parity, 1 stop bit
+	private static final int MODE_8N1 = 0x08D0;
+
+	// protocol masks
+	private static final int PROTOCOL_UBX = 0x01;
+	private static final int PROTOCOL_NMEA = 0x02;
+
+	// number of times to send a message before giving up
+	private static final int RETRIES = 3;
+
+	private GPSPort port; // port to the module
+	private int expectedClass; // class waiting for acknowledgement, -1 if none
+	private int expectedId; // id waiting for acknowledgement
+	private int ackResult; // 1 for ACK-ACK, 0 for ACK-NAK, -1 if none yet
+
+	/**
+	 * Constructor for a UBX configurator
+	 *
+	 * @param port Port to the module
+	 */
+	public UBX(GPSPort port) {
+		this.port = port;
+		expectedClass = -1;
+		ackResult = -1;
+	}
+
+	/**
+	 * Configure the module from the Config values, leaving the port open at the
+	 * resulting baud rate
+	 *
+	 * @return True if every message was acknowledged
+	 */
+	public boolean configure() {
+		try {
+			int baud = Config.gpsBaud;
+
+			// try the target baud rate in case the module is already set to it
+			port.open(baud);
+			boolean connected = send(UBXParser.CFG_PRT, pollPort());
+
+			if (!connected && baud != Config.gpsDefaultBaud) {
+				port.open(Config.gpsDefaultBaud);
+				if (!send(UBXParser.CFG_PRT, pollPort())) {
+					System.out.println("GPS: module did not respond, not configured");
+					return false;
+				}
+
+				// the acknowledgement is sent at the new rate, so confirm there instead
+				port.write(UBXParser.frame(UBXParser.CLASS_CFG, UBXParser.CFG_PRT, setPort(baud)));
+				Util.delay(100);
+				port.open(baud);
+				connected = send(UBXParser.CFG_PRT, pollPort());
+				if (!connected) {
+					System.out.printf("GPS: module did not respond at %d baud\n", baud);
+					port.open(Config.gpsDefaultBaud);
+					return false;
+				}
+			}
+
+			boolean success = connected;
+			success &= send(UBXParser.CFG_PRT, setPort(baud));
+			success &= send(UBXParser.CFG_RATE, setRate(Config.gpsUpdateInterval));
+			success &= send(UBXParser.CFG_MSG, setMessageRate(UBXParser.CLASS_NAV, UBXParser.NAV_PVT, 1));
+
+			if (Config.verbose)
+				System.out.printf("GPS: configured NAV-PVT at %d baud every %dms (%s)\n", baud,
+						Config.gpsUpdateInterval, success ? "acknowledged" : "not acknowledged");
+
+			// each NAV-PVT is 100 bytes, 10 bits per byte on the wire
+			if (100 * 10 * 1000 / Math.max(1, Config.gpsUpdateInterval) > baud * 8 / 10)
+				System.out.println("GPS: fix interval is too short for " + baud + " baud, fixes will be dropped");
+			return success;
+		} catch (Exception e) {
+			Errors.handleException(e, "Failed to configure GPS module");
+		}
+		return false;
+	}
+
+	/**
+	 * Handle an ACK-ACK or ACK-NAK from the module (serial thread)
+	 *
+	 * @param messageClass Class of the acknowledged message
+	 * @param messageId Id of the acknowledged message
+	 * @param acknowledged True for ACK-ACK, false for ACK-NAK
+	 */
+	public synchronized void acknowledge(int messageClass, int messageId, boolean acknowledged) {
+		if (messageClass == expectedClass && messageId == expectedId) {
+			ackResult = acknowledged ? 1 : 0;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Send a CFG message and wait for it to be acknowledged, retrying if there is no reply
+	 *
+	 * @param id CFG message id
+	 * @param body Payload
+	 * @return True if the module acknowledged the message
+	 */
+	private boolean send(int id, byte[] body) throws IOException {
+		byte[] data = UBXParser.frame(UBXParser.CLASS_CFG, id, body);
+		for (int i = 0; i < RETRIES; i++) {
+			synchronized (this) {
+				expectedClass = UBXParser.CLASS_CFG;
+				expectedId = id;
+				ackResult = -1;
+				port.write(data);
+
+				long end = System.currentTimeMillis() + Config.gpsAckTimeout;
+				long now = System.currentTimeMillis();
+				while (ackResult < 0 && now < end) {
+					try {
+						wait(end - now);
+					} catch (InterruptedException e) {
+						Errors.handleException(e, "Thread interrupted");
+						return false;
+					}
+					now = System.currentTimeMillis();
+				}
+				expectedClass = -1;
+
+				if (ackResult == 1)
+					return true;
+				if (ackResult == 0) {
+					System.out.printf("GPS: UBX-CFG 0x%02X rejected\n", id);
+					return false;
+				}
+			}
+		}
+		if (Config.verbose)
+			System.out.printf("GPS: no acknowledgement for UBX-CFG 0x%02X\n", id);
+		return false;
+	}
+
+	/**
+	 * Build a CFG-PRT poll for the UART, which the module acknowledges
+	 *
+	 * @return Payload
+	 */
+	private static byte[] pollPort() {
+		return new byte[] { PORT_UART };
+	}
+
+	/**
+	 * Build a CFG-PRT setting the UART baud rate, accepting UBX and NMEA in and sending
+	 * only UBX out
+	 *
+	 * @param baud Baud rate
+	 * @return Payload
+	 */
+	public static byte[] setPort(int baud) {
+		byte[] body = new byte[20];
+		body[0] = PORT_UART;
+		putInt(body, 4, MODE_8N1);
+		putInt(body, 8, baud);
+		putShort(body, 12, PROTOCOL_UBX | PROTOCOL_NMEA);
+		putShort(body, 14, PROTOCOL_UBX);
+		return body;
+	}
+
+	/**
+	 * Build a CFG-RATE setting the measurement interval, one solution per measurement
+	 * aligned to GPS time
+	 *
+	 * @param interval Measurement interval in milliseconds
+	 * @return Payload
+	 */
+	public static byte[] setRate(int interval) {
+		byte[] body = new byte[6];
+		putShort(body, 0, interval);
+		putShort(body, 2, 1);
+		putShort(body, 4, 1);
+		return body;
+	}
+
+	/**
+	 * Build a CFG-MSG setting how often a message is sent on the current port
+	 *
+	 * @param messageClass Message class
+	 * @param messageId Message id
+	 * @param rate Send once every this many solutions, 0 to disable
+	 * @return Payload
+	 */
+	public static byte[] setMessageRate(int messageClass, int messageId, int rate) {
+		return new byte[] { (byte) messageClass, (byte) messageId, (byte) rate };
+	}
+
+	/**
+	 * Write a little-endian 16 bit value
+	 */
+	private static void putShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >> 8);
+	}
+
+	/**
+	 * Write a little-endian 32 bit value
+	 */
+	private static void putInt(byte[] data, int offset, int value) {
+		putShort(data, offset, value);
+		putShort(data, offset + 2, value >> 16);
+	}
+}
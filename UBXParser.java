@@ -0,0 +1,497 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Incremental parser for u-blox UBX binary messages.
+ *
+ * A message is framed by the sync characters 0xB5 0x62, followed by the class and id,
+ * a little-endian 16 bit payload length, the payload and a two byte Fletcher checksum
+ * over everything from the class to the end of the payload. Serial data is fed in one
+ * chunk at a time and copied into a fixed payload buffer, so nothing is allocated while
+ * parsing.
+ *
+ * NAV-PVT is decoded in place from the payload buffer into the primitive values below,
+ * and ACK-ACK / ACK-NAK into the acknowledged message. The values are only valid for the
+ * duration of the listener call, and are overwritten by the next message.
+ */
+public class UBXParser {
+
+	// sync characters
+	public static final int SYNC_1 = 0xB5;
+	public static final int SYNC_2 = 0x62;
+
+	// message classes and ids
+	public static final int CLASS_NAV = 0x01;
+	public static final int CLASS_ACK = 0x05;
+	public static final int CLASS_CFG = 0x06;
+	public static final int NAV_PVT = 0x07;
+	public static final int ACK_NAK = 0x00;
+	public static final int ACK_ACK = 0x01;
+	public static final int CFG_PRT = 0x00;
+	public static final int CFG_MSG = 0x01;
+	public static final int CFG_RATE = 0x08;
+
+	// NAV-PVT payload length and fix types
+	public static final int NAV_PVT_LENGTH = 92;
+	public static final int FIX_NONE = 0;
+	public static final int FIX_2D = 2;
+	public static final int FIX_3D = 3;
+
+	// largest payload kept, longer messages (e.g. NAV-SAT) are skipped
+	private static final int MAX_LENGTH = 256;
+
+	// framing states
+	private static final int WAITING = 0; // waiting for the first sync character
+	private static final int SYNC = 1; // waiting for the second sync character
+	private static final int CLASS = 2;
+	private static final int ID = 3;
+	private static final int LENGTH_LOW = 4;
+	private static final int LENGTH_HIGH = 5;
+	private static final int PAYLOAD = 6;
+	private static final int CHECKSUM_A = 7;
+	private static final int CHECKSUM_B = 8;
+
+	private final byte[] payload; // payload of the current message
+	private final ByteBuffer fields; // little-endian view of the payload for decoding
+	private Listener listener; // notified after each valid message
+	private int state; // framing state
+	private int messageClass; // class of the current message
+	private int messageId; // id of the current message
+	private int length; // payload length of the current message
+	private int received; // payload bytes received so far
+	private int checksumA; // running Fletcher checksum
+	private int checksumB;
+	private int expectedChecksumA; // first checksum byte sent with the message
+
+	// statistics
+	private long messageCount; // valid messages received
+	private long checksumErrors; // messages dropped because of a bad checksum
+	private long framingErrors; // messages dropped because they were too long
+
+	// values decoded from the last NAV-PVT
+	private int time; // UTC time in milliseconds since midnight, -1 if not valid
+	private int date; // UTC date as DDMMYY, -1 if not valid
+	private int fixType; // 0 none, 1 dead reckoning, 2 2D, 3 3D, 4 GNSS + dead reckoning, 5 time only
+	private boolean fixOK; // whether the fix is within the receiver's accuracy masks
+	private int satellites; // satellites used
+	private double latitude; // decimal degrees
+	private double longitude; // decimal degrees
+	private double altitude; // metres above mean sea level
+	private double speed; // ground speed in knots
+	private double trackingAngle; // heading of motion in degrees
+	private double verticalSpeed; // metres per second, positive up
+	private double horizontalAccuracy; // metres
+	private double verticalAccuracy; // metres
+	private double pdop; // position dilution of precision
+
+	// acknowledged message from the last ACK-ACK or ACK-NAK
+	private int ackClass;
+	private int ackId;
+
+	/**
+	 * Listener for received messages
+	 */
+	public interface Listener {
+		/**
+		 * Called after a message has been received and decoded
+		 *
+		 * @param parser The parser holding the message
+		 */
+		void messageReceived(UBXParser parser);
+	}
+
+	/**
+	 * Constructor for a UBX parser
+	 *
+	 * @param listener Listener to notify of received messages
+	 */
+	public UBXParser(Listener listener) {
+		this.listener = listener;
+		payload = new byte[MAX_LENGTH];
+		fields = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		reset();
+	}
+
+	/**
+	 * Discard any partially received message
+	 */
+	public void reset() {
+		state = WAITING;
+		received = 0;
+	}
+
+	/**
+	 * Process a chunk of serial data
+	 *
+	 * @param data Buffer holding the data
+	 * @param offset Index of the first byte to process
+	 * @param count Number of bytes to process
+	 */
+	public void accept(byte[] data, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++)
+			accept(data[i]);
+	}
+
+	/**
+	 * Process the serial data between a buffer's position and limit, without changing
+	 * the buffer's position
+	 *
+	 * @param data Buffer holding the data
+	 */
+	public void accept(ByteBuffer data) {
+		int end = data.limit();
+		for (int i = data.position(); i < end; i++)
+			accept(data.get(i));
+	}
+
+	/**
+	 * Process a single byte of serial data
+	 *
+	 * @param b The byte to process
+	 */
+	public void accept(byte b) {
+		int value = b & 0xff;
+		switch (state) {
+			case WAITING:
+				if (value == SYNC_1)
+					state = SYNC;
+				break;
+			case SYNC:
+				state = value == SYNC_2 ? CLASS : value == SYNC_1 ? SYNC : WAITING;
+				checksumA = 0;
+				checksumB = 0;
+				break;
+			case CLASS:
+				messageClass = value;
+				addToChecksum(value);
+				state = ID;
+				break;
+			case ID:
+				messageId = value;
+				addToChecksum(value);
+				state = LENGTH_LOW;
+				break;
+			case LENGTH_LOW:
+				length = value;
+				addToChecksum(value);
+				state = LENGTH_HIGH;
+				break;
+			case LENGTH_HIGH:
+				length |= value << 8;
+				addToChecksum(value);
+				received = 0;
+				if (length > MAX_LENGTH) {
+					framingErrors++;
+					state = WAITING;
+				} else
+					state = length == 0 ? CHECKSUM_A : PAYLOAD;
+				break;
+			case PAYLOAD:
+				payload[received++] = b;
+				addToChecksum(value);
+				if (received == length)
+					state = CHECKSUM_A;
+				break;
+			case CHECKSUM_A:
+				expectedChecksumA = value;
+				state = CHECKSUM_B;
+				break;
+			case CHECKSUM_B:
+				state = WAITING;
+				if (expectedChecksumA == checksumA && value == checksumB)
+					handleMessage();
+				else
+					checksumErrors++;
+				break;
+			default:
+				state = WAITING;
+				break;
+		}
+	}
+
+	/**
+	 * Frame a message with sync characters, length and checksum
+	 *
+	 * @param messageClass Message class
+	 * @param messageId Message id
+	 * @param body Payload bytes
+	 * @return The complete message
+	 */
+	public static byte[] frame(int messageClass, int messageId, byte[] body) {
+		byte[] result = new byte[body.length + 8];
+		result[0] = (byte) SYNC_1;
+		result[1] = (byte) SYNC_2;
+		result[2] = (byte) messageClass;
+		result[3] = (byte) messageId;
+		result[4] = (byte) body.length;
+		result[5] = (byte) (body.length >> 8);
+		System.arraycopy(body, 0, result, 6, body.length);
+
+		int a = 0;
+		int b = 0;
+		for (int i = 2; i < result.length - 2; i++) {
+			a = (a + (result[i] & 0xff)) & 0xff;
+			b = (b + a) & 0xff;
+		}
+		result[result.length - 2] = (byte) a;
+		result[result.length - 1] = (byte) b;
+		return result;
+	}
+
+	/**
+	 * Returns the class of the last message
+	 *
+	 * @return Message class
+	 */
+	public int getMessageClass() { return messageClass; }
+
+	/**
+	 * Returns the id of the last message
+	 *
+	 * @return Message id
+	 */
+	public int getMessageId() { return messageId; }
+
+	/**
+	 * Returns the payload length of the last message
+	 *
+	 * @return Length in bytes
+	 */
+	public int getPayloadLength() { return length; }
+
+	/**
+	 * Returns a byte of the last message's payload, for messages that are not decoded
+	 *
+	 * @param index Index in the payload
+	 * @return Value from 0 to 255
+	 */
+	public int getPayloadByte(int index) { return payload[index] & 0xff; }
+
+	/**
+	 * Returns whether the last message was a NAV-PVT
+	 *
+	 * @return True for a decoded NAV-PVT
+	 */
+	public boolean isNavPVT() { return messageClass == CLASS_NAV && messageId == NAV_PVT; }
+
+	/**
+	 * Returns whether the last message was an ACK-ACK or ACK-NAK
+	 *
+	 * @return True for an acknowledgement
+	 */
+	public boolean isAck() { return messageClass == CLASS_ACK && length >= 2; }
+
+	/**
+	 * Returns UTC time
+	 *
+	 * @return Milliseconds since midnight, -1 if not valid
+	 */
+	public int getTime() { return time; }
+
+	/**
+	 * Returns UTC date
+	 *
+	 * @return Date as DDMMYY, -1 if not valid
+	 */
+	public int getDate() { return date; }
+
+	/**
+	 * Returns the fix type
+	 *
+	 * @return 0 none, 2 2D, 3 3D (see FIX_ constants)
+	 */
+	public int getFixType() { return fixType; }
+
+	/**
+	 * Returns whether the receiver flagged the fix as valid
+	 *
+	 * @return True if gnssFixOK was set
+	 */
+	public boolean isFixOK() { return fixOK; }
+
+	/**
+	 * Returns the number of satellites used
+	 *
+	 * @return Satellites used
+	 */
+	public int getSatellites() { return satellites; }
+
+	/**
+	 * Returns latitude
+	 *
+	 * @return Latitude in decimal degrees
+	 */
+	public double getLatitude() { return latitude; }
+
+	/**
+	 * Returns longitude
+	 *
+	 * @return Longitude in decimal degrees
+	 */
+	public double getLongitude() { return longitude; }
+
+	/**
+	 * Returns altitude above mean sea level
+	 *
+	 * @return Altitude in metres
+	 */
+	public double getAltitude() { return altitude; }
+
+	/**
+	 * Returns ground speed
+	 *
+	 * @return Speed in knots
+	 */
+	public double getSpeed() { return speed; }
+
+	/**
+	 * Returns heading of motion
+	 *
+	 * @return Heading in degrees
+	 */
+	public double getTrackingAngle() { return trackingAngle; }
+
+	/**
+	 * Returns vertical speed
+	 *
+	 * @return Metres per second, positive up
+	 */
+	public double getVerticalSpeed() { return verticalSpeed; }
+
+	/**
+	 * Returns the estimated horizontal accuracy
+	 *
+	 * @return Accuracy in metres
+	 */
+	public double getHorizontalAccuracy() { return horizontalAccuracy; }
+
+	/**
+	 * Returns the estimated vertical accuracy
+	 *
+	 * @return Accuracy in metres
+	 */
+	public double getVerticalAccuracy() { return verticalAccuracy; }
+
+	/**
+	 * Returns position dilution of precision
+	 *
+	 * @return PDOP
+	 */
+	public double getPDOP() { return pdop; }
+
+	/**
+	 * Returns the class of the acknowledged message
+	 *
+	 * @return Class from the last ACK-ACK or ACK-NAK
+	 */
+	public int getAckClass() { return ackClass; }
+
+	/**
+	 * Returns the id of the acknowledged message
+	 *
+	 * @return Id from the last ACK-ACK or ACK-NAK
+	 */
+	public int getAckId() { return ackId; }
+
+	/**
+	 * Returns the number of valid messages received
+	 *
+	 * @return Message count
+	 */
+	public long getMessageCount() { return messageCount; }
+
+	/**
+	 * Returns the number of messages dropped because of a bad checksum
+	 *
+	 * @return Checksum error count
+	 */
+	public long getChecksumErrors() { return checksumErrors; }
+
+	/**
+	 * Returns the number of messages dropped because they were too long
+	 *
+	 * @return Framing error count
+	 */
+	public long getFramingErrors() { return framingErrors; }
+
+	/**
+	 * Update the Fletcher checksum with a byte
+	 *
+	 * @param value Byte value from 0 to 255
+	 */
+	private void addToChecksum(int value) {
+		checksumA = (checksumA + value) & 0xff;
+		checksumB = (checksumB + checksumA) & 0xff;
+	}
+
+	/**
+	 * Decode a checksummed message and notify the listener
+	 */
+	private void handleMessage() {
+		messageCount++;
+		if (isNavPVT()) {
+			if (length < NAV_PVT_LENGTH)
+				return;
+			decodeNavPVT();
+		} else if (messageClass == CLASS_ACK) {
+			if (length < 2)
+				return;
+			ackClass = payload[0] & 0xff;
+			ackId = payload[1] & 0xff;
+		}
+		if (listener != null)
+			listener.messageReceived(this);
+	}
+
+	/**
+	 * Decode the NAV-PVT fields from the payload
+	 */
+	private void decodeNavPVT() {
+		int year = fields.getShort(4) & 0xffff;
+		int month = payload[6];
+		int day = payload[7];
+		int hour = payload[8];
+		int minute = payload[9];
+		int second = payload[10];
+		int validity = payload[11];
+		int nano = fields.getInt(16);
+
+		// nano is the signed fraction of the second, so it can take the time back before
+		// midnight (or, rounded, on past it), and then the date moves with it
+		int days = 0;
+		if ((validity & 0x02) != 0) {
+			int millis = ((hour * 60 + minute) * 60 + second) * 1000 + Math.round(nano / 1e6f);
+			days = Math.floorDiv(millis, 86400000);
+			time = Math.floorMod(millis, 86400000);
+		} else
+			time = -1;
+		if ((validity & 0x01) == 0)
+			date = -1;
+		else if (days == 0)
+			date = day * 10000 + month * 100 + year % 100;
+		else {
+			try {
+				LocalDate shifted = LocalDate.of(year, month, day).plusDays(days);
+				date = shifted.getDayOfMonth() * 10000 + shifted.getMonthValue() * 100 + shifted.getYear() % 100;
+			} catch (DateTimeException e) {
+				date = -1;
+			}
+		}
+
+		fixType = payload[20];
+		fixOK = (payload[21] & 0x01) != 0;
+		satellites = payload[23] & 0xff;
+		longitude = fields.getInt(24) * 1e-7;
+		latitude = fields.getInt(28) * 1e-7;
+		altitude = fields.getInt(36) * 1e-3;
+		horizontalAccuracy = (fields.getInt(40) & 0xffffffffL) * 1e-3;
+		verticalAccuracy = (fields.getInt(44) & 0xffffffffL) * 1e-3;
+		verticalSpeed = -fields.getInt(56) * 1e-3;
+		speed = fields.getInt(60) * 1e-3 * 3600.0 / 1852.0;
+		trackingAngle = fields.getInt(64) * 1e-5;
+		pdop = (fields.getShort(76) & 0xffff) * 0.01;
+	}
+}
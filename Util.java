@@ -14,13 +14,13 @@ import static java.lang.Math.*;
 public class Util {
 			
 	/**
-	 * Delay for a set amount of time
+	 * Delay for a set amount of time (moves the clock forward instead during replay)
 	 * 
 	 * @param milliseconds How long to wait for
 	 */
 	public static void delay(int milliseconds) {
 		try {
-			Thread.sleep(milliseconds);
+			Clock.sleep(milliseconds);
 		} catch (InterruptedException e) {
 			Errors.handleException(e, "Thread interrupted");
 		}
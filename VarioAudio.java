@@ -0,0 +1,324 @@
+/**
+ * Turns the climb rate into the vario's sound.
+ *
+ * Each climb rate maps through a table, worked out once from Config.varioAudioTable,
+ * to a frequency, a beep period and the part of each period that sounds: climbs beep
+ * higher and faster as they get stronger, sink is a continuous low tone, and rates in
+ * the deadband from Config.varioSinkThreshold to Config.varioClimbThreshold are silent.
+ * The engine runs on its own thread, which sleeps until the next beep starts or ends
+ * and is woken as soon as a new climb rate arrives, so a change is heard without
+ * waiting for a poll. A new rate keeps the beat of the beeps already going (a beep
+ * starts at once only from silence), and the frequency glides to its new value with a
+ * time constant of Config.varioAudioGlide rather than jumping.
+ *
+ * The time from each barometer measurement (its interrupt, its FIFO frame's time, or
+ * when its poll was due) to the engine taking up its climb rate is measured against a
+ * budget of 20ms.
+ */
+public class VarioAudio {
+
+	// climb (m/s):frequency (Hz):beep period (ms, 0 for continuous):duty, for each point
+	public static final String DEFAULT_TABLE = "-10:110:0:1,-1:110:0:1,-0.5:165:0:1,0.5:660:456:0.67,"
+			+ "1:880:342:0.67,2:1320:228:0.67,4:2200:137:0.67,7:3520:86:0.67";
+
+	private static final double STEP = 0.01; // m/s between table entries
+	private static final int GLIDE_STEP = 10; // milliseconds between frequency changes while gliding
+	private static final long LATENCY_BUDGET = 20; // milliseconds
+	private static final int NONE = -1; // no climb rate waiting
+	private static final int SILENT = -2; // silence waiting (audio turned off)
+
+	private final Tone tone;
+	private final double minClimb; // climb rate of the first table entry
+	private final int[] frequencies; // Hz for each entry, 0 for silent
+	private final int[] periods; // milliseconds from one beep to the next, 0 for continuous
+	private final int[] onTimes; // milliseconds each beep sounds
+	private volatile boolean shutdown;
+
+	// newest climb rate, guarded by this
+	private int pending; // table entry, NONE or SILENT
+	private long pendingTime; // Clock.millis its sample was measured
+
+	// latency statistics, guarded by this
+	private long updates; // climb rates taken up
+	private long superseded; // climb rates replaced by a newer one before being taken up
+	private long late; // updates over the budget
+	private double totalLatency; // milliseconds
+	private long maxLatency; // milliseconds
+
+	// engine state, used on the engine's thread only
+	private int target; // Hz, 0 for silent
+	private int period;
+	private int onTime;
+	private double frequency; // Hz, gliding towards the target
+	private long cycleStart; // Clock.nanos the current beep started
+	private long lastStep; // Clock.nanos of the last step
+	private int output; // Hz written to the tone, 0 for off
+
+	/**
+	 * Constructor for a vario audio engine, with the table from Config.varioAudioTable
+	 *
+	 * @param tone Tone to play, or null to only look up frequencies (replay)
+	 */
+	public VarioAudio(Tone tone) {
+		this.tone = tone;
+		pending = NONE;
+
+		double[][] points;
+		try {
+			points = parseTable(Config.varioAudioTable.isEmpty() ? DEFAULT_TABLE : Config.varioAudioTable);
+		} catch (Exception e) {
+			Errors.handleException(e, "Invalid varioAudioTable, using the default");
+			points = parseTable(DEFAULT_TABLE);
+		}
+
+		// work out every entry, so each climb rate costs one lookup
+		minClimb = points[0][0];
+		int entries = (int) Math.round((points[points.length - 1][0] - minClimb) / STEP) + 1;
+		frequencies = new int[entries];
+		periods = new int[entries];
+		onTimes = new int[entries];
+		int segment = 0;
+		for (int i = 0; i < entries; i++) {
+			double climb = minClimb + i * STEP;
+			if (climb >= Config.varioSinkThreshold - 1e-9 && climb <= Config.varioClimbThreshold + 1e-9)
+				continue;
+			while (segment < points.length - 2 && climb > points[segment + 1][0])
+				segment++;
+			double[] low = points[segment];
+			double[] high = points[segment + 1];
+			double t = Math.min(1, Math.max(0, (climb - low[0]) / (high[0] - low[0])));
+			frequencies[i] = (int) Math.round(low[1] + t * (high[1] - low[1]));
+			if (low[2] > 0 && high[2] > 0)
+				periods[i] = (int) Math.round(low[2] + t * (high[2] - low[2]));
+			else
+				periods[i] = (int) (t < 0.5 ? low[2] : high[2]);
+			if (periods[i] > 0)
+				onTimes[i] = Math.max(1, (int) Math.round(periods[i] * (low[3] + t * (high[3] - low[3]))));
+		}
+
+		if (Config.verbose)
+			System.out.printf("VarioAudio: ready, %d entries from %+.1f to %+.1fm/s\n", entries, minClimb,
+					minClimb + (entries - 1) * STEP);
+	}
+
+	/**
+	 * Parse a table of climb:frequency:period:duty points, in order of climb rate
+	 *
+	 * @param table Comma separated points
+	 * @return Points
+	 */
+	private static double[][] parseTable(String table) {
+		String[] parts = table.split(",");
+		if (parts.length < 2)
+			throw new IllegalArgumentException("Vario audio table needs at least two points");
+		double[][] points = new double[parts.length][];
+		for (int i = 0; i < parts.length; i++) {
+			String[] values = parts[i].trim().split(":");
+			if (values.length != 4)
+				throw new IllegalArgumentException("Vario audio point needs 4 values: " + parts[i]);
+			points[i] = new double[4];
+			for (int j = 0; j < 4; j++)
+				points[i][j] = Double.parseDouble(values[j]);
+			if (i > 0 && points[i][0] <= points[i - 1][0])
+				throw new IllegalArgumentException("Vario audio points out of order: " + parts[i]);
+			if (points[i][1] < 0 || points[i][2] < 0 || points[i][3] <= 0 || points[i][3] > 1)
+				throw new IllegalArgumentException("Invalid vario audio point: " + parts[i]);
+		}
+		return points;
+	}
+
+	/**
+	 * Returns the table entry for a climb rate, clamped to the ends of the table
+	 */
+	private int entry(double climb) {
+		int i = (int) Math.round((climb - minClimb) / STEP);
+		return Math.min(Math.max(i, 0), frequencies.length - 1);
+	}
+
+	/**
+	 * Returns the frequency the table gives a climb rate
+	 *
+	 * @param climb Climb rate in m/s
+	 * @return Frequency in Hz, 0 for silent
+	 */
+	public int getFrequency(double climb) {
+		return frequencies[entry(climb)];
+	}
+
+	/**
+	 * Hand the engine a new climb rate, waking it to play it at once
+	 *
+	 * @param climb Climb rate in m/s
+	 * @param sampleTime Clock.millis the barometer sample it came from was measured
+	 */
+	public synchronized void setClimb(double climb, long sampleTime) {
+		if (pending != NONE)
+			superseded++;
+		pending = Config.varioAudioOn ? entry(climb) : SILENT;
+		pendingTime = sampleTime;
+		notifyAll();
+	}
+
+	/**
+	 * Start the engine's thread
+	 */
+	public void start() {
+		Workers.execute("vario-audio", new Runnable() {
+			@Override
+			public void run() {
+				runEngine();
+			}
+		});
+	}
+
+	/**
+	 * Stop the engine, leaving the tone off
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * Main engine loop: take up the newest climb rate, update the output, and sleep
+	 * until the next change is due or a climb rate arrives
+	 */
+	private void runEngine() {
+		lastStep = Clock.nanos();
+		while (!shutdown) {
+			long now = Clock.nanos();
+			int next;
+			long sampleTime;
+			synchronized (this) {
+				next = pending;
+				sampleTime = pendingTime;
+				pending = NONE;
+			}
+			if (next != NONE)
+				apply(next, sampleTime, now);
+			long wait = step(now);
+
+			synchronized (this) {
+				if (pending == NONE && !shutdown) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Errors.handleException(e, "Thread interrupted");
+						return;
+					}
+				}
+			}
+		}
+		if (output != 0)
+			tone.setOutput(0);
+	}
+
+	/**
+	 * Take up a table entry as the target sound
+	 */
+	private void apply(int next, long sampleTime, long now) {
+		int nextFrequency = next == SILENT ? 0 : frequencies[next];
+		if (nextFrequency > 0) {
+			// from silence the first beep starts now, at its own pitch
+			if (target == 0) {
+				frequency = nextFrequency;
+				cycleStart = now;
+			}
+			period = periods[next];
+			onTime = onTimes[next];
+		}
+		target = nextFrequency;
+
+		long latency = Clock.millis() - sampleTime;
+		synchronized (this) {
+			updates++;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+			if (latency > LATENCY_BUDGET)
+				late++;
+		}
+	}
+
+	/**
+	 * Glide the frequency, move through the beep's period, and write the output
+	 *
+	 * @return Milliseconds until the next change, 0 for none
+	 */
+	private long step(long now) {
+		double elapsedStep = (now - lastStep) / 1e6;
+		lastStep = now;
+		if (target == 0) {
+			write(0);
+			return 0;
+		}
+
+		frequency += (target - frequency) * (1 - Math.exp(-elapsedStep / Math.max(1, Config.varioAudioGlide)));
+		if (Math.abs(target - frequency) < 1)
+			frequency = target;
+
+		boolean on = true;
+		long wait = 0;
+		if (period > 0) {
+			long elapsed = (now - cycleStart) / 1000000;
+			if (elapsed >= period) {
+				long cycles = elapsed / period;
+				cycleStart += cycles * period * 1000000;
+				elapsed -= cycles * period;
+			}
+			on = elapsed < onTime;
+			wait = on ? onTime - elapsed : period - elapsed;
+		}
+		if (on && frequency != target)
+			wait = wait == 0 ? GLIDE_STEP : Math.min(wait, GLIDE_STEP);
+
+		write(on ? (int) Math.round(frequency) : 0);
+		return wait;
+	}
+
+	/**
+	 * Write a frequency to the tone if it changed
+	 */
+	private void write(int freq) {
+		if (freq != output) {
+			tone.setOutput(freq);
+			output = freq;
+		}
+	}
+
+	/**
+	 * Returns the mean time from a barometer sample being measured to the engine
+	 * taking up its climb rate
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getMeanLatency() {
+		return updates == 0 ? 0.0 : totalLatency / updates;
+	}
+
+	/**
+	 * Returns the longest time from a barometer sample being measured to the engine
+	 * taking up its climb rate
+	 *
+	 * @return Milliseconds
+	 */
+	public synchronized double getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Print the latency statistics and a sample of the table
+	 */
+	public synchronized void print() {
+		System.out.printf("VarioAudio: %d updates, %d superseded, latency mean %.3fms, max %.3fms, %d over %dms\n",
+				updates, superseded, getMeanLatency(), getMaxLatency(), late, LATENCY_BUDGET);
+		for (int climb = -3; climb <= 5; climb++) {
+			int i = entry(climb);
+			if (frequencies[i] == 0)
+				System.out.printf("  %+dm/s: silent\n", climb);
+			else if (periods[i] == 0)
+				System.out.printf("  %+dm/s: %dHz continuous\n", climb, frequencies[i]);
+			else
+				System.out.printf("  %+dm/s: %dHz, %dms every %dms\n", climb, frequencies[i], onTimes[i], periods[i]);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Output of the vario stage for one barometer sample: the altitude from the chosen
+ * source and the climb rate, with the sample they came from
+ */
+public class VarioData {
+  private final PTAData sample;
+  private final double altitude;
+  private final double climb;
+  private final long time;
+
+  /**
+   * Constructor for vario data
+   *
+   * @param sample Barometer sample
+   * @param altitude Altitude in metres from Config.altitudeSource, NaN if none yet
+   * @param climb Climb rate in m/s
+   * @param time Time in milliseconds
+   */
+  public VarioData(PTAData sample, double altitude, double climb, long time) {
+    this.sample = sample;
+    this.altitude = altitude;
+    this.climb = climb;
+    this.time = time;
+  }
+
+  public PTAData getSample() { return sample; }
+
+  public double getAltitude() { return altitude; }
+
+  public double getClimb() { return climb; }
+
+  public long getTime() { return time; }
+}
@@ -0,0 +1,181 @@
+/**
+ * Kalman filter estimating altitude, vertical speed and vertical acceleration from
+ * barometric altitudes, updated with each sample, and optionally from an
+ * accelerometer's vertical acceleration.
+ *
+ * The model is constant acceleration driven by white noise in its rate of change
+ * (jerk), with Config.varioProcessNoise as the jerk's spectral density, and the
+ * altitudes have white noise with a standard deviation of Config.varioMeasurementNoise.
+ * A higher process noise follows changes in climb faster but passes through more of the
+ * sensor noise. Accelerometer readings measure the acceleration directly (standard
+ * deviation Config.varioAccelNoise), so a change in climb shows up within a few of
+ * their samples instead of waiting for the altitudes to show it. The covariance is
+ * symmetric, so only its upper triangle is kept, and an update allocates nothing.
+ * Updated by the sensor workers and read by any thread; measurements from the two
+ * sensors may arrive slightly out of order, and one older than the last is applied as
+ * if it were taken at the same time.
+ */
+public class VarioFilter {
+
+	// a gap longer than this (e.g. the sensor was restarted) starts the filter again
+	private static final double MAX_INTERVAL = 1.0; // seconds
+
+	// the climb rate is reported as 0 for this long after starting, while it settles
+	private static final long SETTLE_TIME = 1000; // milliseconds
+
+	// state
+	private double altitude; // m
+	private double speed; // m/s
+	private double acceleration; // m/s^2
+	private long lastTime; // milliseconds of the last sample
+	private long startTime; // milliseconds of the first sample
+	private boolean started;
+
+	// covariance, upper triangle
+	private double p00, p01, p02, p11, p12, p22;
+
+	/**
+	 * Constructor for a vario filter
+	 */
+	public VarioFilter() {
+		started = false;
+	}
+
+	/**
+	 * Add a measured altitude
+	 *
+	 * @param measured Altitude in metres
+	 * @param time Time of the measurement in milliseconds
+	 */
+	public synchronized void update(double measured, long time) {
+		double r = Config.varioMeasurementNoise * Config.varioMeasurementNoise;
+		double dt = (time - lastTime) / 1000.0;
+		if (!started || dt > MAX_INTERVAL || dt < -MAX_INTERVAL) {
+			altitude = measured;
+			speed = 0;
+			acceleration = 0;
+			p00 = r;
+			p11 = 1;
+			p22 = 1;
+			p01 = p02 = p12 = 0;
+			lastTime = time;
+			startTime = time;
+			started = true;
+			return;
+		}
+		predict(time);
+
+		// correct with the measurement: H = [1 0 0]
+		double s = p00 + r;
+		double k0 = p00 / s, k1 = p01 / s, k2 = p02 / s;
+		double innovation = measured - altitude;
+		altitude += k0 * innovation;
+		speed += k1 * innovation;
+		acceleration += k2 * innovation;
+
+		// P = (I - K H) P
+		double c00 = p00, c01 = p01, c02 = p02;
+		p00 -= k0 * c00;
+		p01 -= k0 * c01;
+		p02 -= k0 * c02;
+		p11 -= k1 * c01;
+		p12 -= k1 * c02;
+		p22 -= k2 * c02;
+	}
+
+	/**
+	 * Add a measured vertical acceleration (ignored until there is an altitude)
+	 *
+	 * @param measured Acceleration in m/s^2, positive upwards, without gravity
+	 * @param time Time of the measurement in milliseconds
+	 */
+	public synchronized void addAcceleration(double measured, long time) {
+		if (!started || time - lastTime > MAX_INTERVAL * 1000)
+			return;
+		predict(time);
+
+		// correct with the measurement: H = [0 0 1]
+		double s = p22 + Config.varioAccelNoise * Config.varioAccelNoise;
+		double k0 = p02 / s, k1 = p12 / s, k2 = p22 / s;
+		double innovation = measured - acceleration;
+		altitude += k0 * innovation;
+		speed += k1 * innovation;
+		acceleration += k2 * innovation;
+
+		// P = (I - K H) P
+		double c02 = p02, c12 = p12, c22 = p22;
+		p00 -= k0 * c02;
+		p01 -= k0 * c12;
+		p02 -= k0 * c22;
+		p11 -= k1 * c12;
+		p12 -= k1 * c22;
+		p22 -= k2 * c22;
+	}
+
+	/**
+	 * Move the state forward to a time: x = F x, P = F P F' + Q
+	 *
+	 * @param time Time in milliseconds, no change if not after the last measurement
+	 */
+	private void predict(long time) {
+		double dt = (time - lastTime) / 1000.0;
+		if (dt <= 0)
+			return;
+		lastTime = time;
+
+		double half = dt * dt / 2;
+		altitude += dt * speed + half * acceleration;
+		speed += dt * acceleration;
+
+		// rows of F P, then (F P) F'
+		double a00 = p00 + dt * p01 + half * p02;
+		double a01 = p01 + dt * p11 + half * p12;
+		double a02 = p02 + dt * p12 + half * p22;
+		double a11 = p11 + dt * p12;
+		double a12 = p12 + dt * p22;
+		double q = Config.varioProcessNoise;
+		double dt2 = dt * dt, dt3 = dt2 * dt;
+		p00 = a00 + dt * a01 + half * a02 + q * dt3 * dt2 / 20;
+		p01 = a01 + dt * a02 + q * dt2 * dt2 / 8;
+		p02 = a02 + q * dt3 / 6;
+		p11 = a11 + dt * a12 + q * dt3 / 3;
+		p12 = a12 + q * dt2 / 2;
+		p22 += q * dt;
+	}
+
+	/**
+	 * Move the altitude by an offset, e.g. when the QNH changes
+	 *
+	 * @param delta Metres to add
+	 */
+	public synchronized void shift(double delta) {
+		altitude += delta;
+	}
+
+	/**
+	 * Returns the estimated altitude
+	 *
+	 * @return Metres, or NaN before the first sample
+	 */
+	public synchronized double getAltitude() {
+		return started ? altitude : Double.NaN;
+	}
+
+	/**
+	 * Returns the estimated vertical speed
+	 *
+	 * @return Metres per second, positive when climbing, or 0 for the first second
+	 */
+	public synchronized double getVerticalSpeed() {
+		return started && lastTime - startTime >= SETTLE_TIME ? speed : 0.0;
+	}
+
+	/**
+	 * Returns the estimated vertical acceleration
+	 *
+	 * @return Metres per second squared
+	 */
+	public synchronized double getAcceleration() {
+		return acceleration;
+	}
+}
@@ -0,0 +1,124 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by the devices and the main program.
+ *
+ * Short, timed jobs (LED flashes, simulated button presses and the main program's
+ * tasks) are tasks on one scheduler, run by the main program's thread (or the replay),
+ * so they wake only when something is due and their timing is measured with the rest.
+ * Reading the barometer and accelerometer at their sample rates are tasks on a second
+ * scheduler with a thread of its own, so a slow display write or menu action never
+ * delays a sample. Loops that really block (the barometer waiting for its interrupt or
+ * a forced measurement, the GPS port, command input, and stream subscribers with
+ * workers of their own, like the track file) run on a pool of daemon threads instead,
+ * reused rather than created per job, as does the vario audio. Cheap stream stages run
+ * inline on the thread that publishes to them, so a barometer sample reaches the audio
+ * engine on the sensor thread, with only the switch that wakes the engine.
+ *
+ * All are created on first use and again after a shutdown, so a controller can be
+ * initialized again (replay).
+ */
+public class Workers {
+
+	private static TaskScheduler scheduler;
+	private static TaskScheduler sensors;
+	private static ExecutorService io;
+	private static final AtomicInteger ioThreads = new AtomicInteger(); // threads the pool has created
+	private static final AtomicInteger ioJobs = new AtomicInteger(); // blocking jobs running
+
+	/**
+	 * Returns the shared scheduler, which the main program runs
+	 *
+	 * @return Scheduler
+	 */
+	public static synchronized TaskScheduler scheduler() {
+		if (scheduler == null || scheduler.isShutdown())
+			scheduler = new TaskScheduler("scheduler");
+		return scheduler;
+	}
+
+	/**
+	 * Returns the scheduler for reading sensors, which runs on its own pool thread
+	 *
+	 * @return Scheduler
+	 */
+	public static synchronized TaskScheduler sensors() {
+		if (sensors == null || sensors.isShutdown()) {
+			final TaskScheduler created = new TaskScheduler("sensors");
+			sensors = created;
+			execute("sensors", new Runnable() {
+				@Override
+				public void run() {
+					created.run();
+				}
+			});
+		}
+		return sensors;
+	}
+
+	/**
+	 * Run a loop that blocks on I/O on a pool thread, named for the job while it runs
+	 *
+	 * @param name Thread name
+	 * @param job The loop
+	 */
+	public static synchronized void execute(final String name, final Runnable job) {
+		if (io == null || io.isShutdown()) {
+			io = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "io-" + ioThreads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		io.execute(new Runnable() {
+			@Override
+			public void run() {
+				Thread thread = Thread.currentThread();
+				String poolName = thread.getName();
+				thread.setName(name);
+				ioJobs.incrementAndGet();
+				try {
+					job.run();
+				} catch (Exception e) {
+					Errors.handleException(e, "Worker " + name + " failed");
+				} finally {
+					ioJobs.decrementAndGet();
+					thread.setName(poolName);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the schedulers and let the pool's threads end once their loops have been told
+	 * to shut down
+	 */
+	public static synchronized void shutdown() {
+		if (scheduler != null)
+			scheduler.shutdown();
+		if (sensors != null)
+			sensors.shutdown();
+		if (io != null)
+			io.shutdown();
+	}
+
+	/**
+	 * Print the schedulers' tasks and the blocking jobs running
+	 */
+	public static void print() {
+		scheduler().print();
+		TaskScheduler sensorScheduler;
+		synchronized (Workers.class) {
+			sensorScheduler = sensors;
+		}
+		if (sensorScheduler != null)
+			sensorScheduler.print();
+		System.out.printf("io: %d blocking jobs on %d threads created\n", ioJobs.get(), ioThreads.get());
+	}
+}